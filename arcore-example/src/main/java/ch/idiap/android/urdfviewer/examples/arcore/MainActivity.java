@@ -250,10 +250,8 @@ public class MainActivity extends Activity implements GLRenderer.Listener {
                 if(!renderer.isRobotPlaced()){
                     popup.getMenu().removeItem(R.id.remove_goal);
                     popup.getMenu().removeItem(R.id.add_goal);
-                /*}else{
-                    if(renderer.getPath().isEmpty()){
-                        popup.getMenu().removeItem(R.id.remove_goal);
-                    }*/
+                }else if(!renderer.hasViaPoints()){
+                    popup.getMenu().removeItem(R.id.remove_goal);
                 }
 
                 popup.setOnMenuItemClickListener(new PopupMenu.OnMenuItemClickListener() {
@@ -371,6 +369,7 @@ public class MainActivity extends Activity implements GLRenderer.Listener {
 
         surfaceView.onResume();
         renderer.getDisplayRotationHelper().onResume();
+        renderer.onResume();
     }
 
 
@@ -383,10 +382,17 @@ public class MainActivity extends Activity implements GLRenderer.Listener {
             // still call session.update() and get a SessionPausedException.
             renderer.getDisplayRotationHelper().onPause();
             surfaceView.onPause();
+            renderer.onPause();
             session.pause();
         }
     }
 
+    @Override
+    protected void onDestroy() {
+        renderer.onDestroy();
+        super.onDestroy();
+    }
+
     @Override
     public void onRequestPermissionsResult(int requestCode, String[] permissions, int[] results) {
         if (!CameraPermissionHelper.hasCameraPermission(this)) {
@@ -202,6 +202,13 @@ public class Manipulator {
     }
 
 
+    /** Indicates if the selection is being moved (translated or rotated)
+     */
+    public boolean isManipulating() {
+        return (action != Action.ACTION_NONE);
+    }
+
+
     public boolean intersects(Ray ray) {
         if (!hasSelection())
             return false;
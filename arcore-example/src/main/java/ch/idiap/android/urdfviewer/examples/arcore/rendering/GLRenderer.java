@@ -39,10 +39,15 @@ import org.joml.Vector3f;
 import org.joml.Vector3fc;
 import org.joml.Vector4f;
 
+import java.io.File;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
 import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 
 import javax.microedition.khronos.egl.EGLConfig;
 import javax.microedition.khronos.opengles.GL10;
@@ -66,7 +71,12 @@ import ch.idiap.android.glrenderer.textures.TextureManager;
 import ch.idiap.android.glrenderer.viewports.ExternalViewport;
 import ch.idiap.android.glrenderer.viewports.Viewport;
 import ch.idiap.android.ros.ROSManager;
+import ch.idiap.android.urdf.robot.IkTracker;
+import ch.idiap.android.urdf.robot.ReachabilityMap;
 import ch.idiap.android.urdf.robot.Robot;
+import ch.idiap.android.urdf.robot.Trajectory;
+import ch.idiap.android.urdf.robot.TrajectoryPlanner;
+import ch.idiap.android.urdf.robot.TrajectoryValidator;
 import ch.idiap.android.urdfviewer.examples.arcore.ar.TrackingStateHelper;
 import ch.idiap.android.urdfviewer.examples.arcore.entities.AnchorEntity;
 import ch.idiap.android.urdfviewer.examples.arcore.ar.ARHits;
@@ -124,6 +134,60 @@ public class GLRenderer implements GLSurfaceView.Renderer {
     private static final float CYLINDER_MASS = 0.5f;
     private static final float BALL_MASS = 0.5f;
 
+    // Height of the new via-points above the plane (m)
+    private static final float VIA_POINT_HEIGHT = 0.2f;
+
+    // ARCore refines the poses of the anchors at every frame: smaller displacements of a
+    // via-point (1 mm, 0.5 degree) aren't given to the planner
+    private static final float VIA_POINT_POSITION_TOLERANCE = 0.001f;
+    private static final float VIA_POINT_ORIENTATION_TOLERANCE = (float) Math.toRadians(0.5);
+
+    // Difference of joint positions (rad or m) under which two waypoints are the same, so the
+    // preview doesn't restart
+    private static final float WAYPOINT_TOLERANCE = 1e-3f;
+
+    // Reachability map of the robot: built once in the background (a few seconds), then
+    // read from the files of the application
+    private static final String REACHABILITY_MAP_FILE = "panda_arm.reachability";
+    private static final float REACHABILITY_VOXEL_SIZE = 0.05f;
+    private static final int REACHABILITY_NB_SAMPLES = 1000000;
+
+    // Orientation of the end-effector relative to a via-point: the gripper points down
+    private static final Quaternionfc GRASP_ORIENTATION =
+            new Quaternionf(new AxisAngle4f((float) Math.PI, Transforms.UNIT_X));
+
+    private static final Color VIA_POINT_COLOR = new Color(0.0f, 0.6f, 0.0f, 1.0f);
+    private static final Color UNREACHED_VIA_POINT_COLOR = new Color(0.6f, 0.0f, 0.0f, 1.0f);
+    private static final Color COLLIDING_VIA_POINT_COLOR = new Color(0.8f, 0.5f, 0.0f, 1.0f);
+
+
+    /** A via-point of the trajectory of the robot, and its goal last given to the planner
+     */
+    private static class ViaPoint {
+        final Entity entity;
+        final Material material;
+        final Vector3f position = new Vector3f();
+        final Quaternionf orientation = new Quaternionf();
+
+        ViaPoint(Entity entity, Material material) {
+            this.entity = entity;
+            this.material = material;
+        }
+    }
+
+
+    /** The result of the validation of a trajectory
+     */
+    private static class Validation {
+        final Trajectory trajectory;
+        final TrajectoryValidator.Collision collision;
+
+        Validation(Trajectory trajectory, TrajectoryValidator.Collision collision) {
+            this.trajectory = trajectory;
+            this.collision = collision;
+        }
+    }
+
     private final Context context;
     private final GestureHelper gestureHelper;
     private final Listener listener;
@@ -140,6 +204,31 @@ public class GLRenderer implements GLSurfaceView.Renderer {
     private final ArrayList<AnchorEntity> anchors = new ArrayList<>();
     private Robot robot = null;
     private Manipulator manipulator = null;
+
+    private TrajectoryPlanner planner = null;
+    private final List<ViaPoint> viaPoints = new ArrayList<>();
+    private volatile Trajectory plannedTrajectory = null;    // set by the planning thread
+    private Trajectory previewedTrajectory = null;
+    private Trajectory playedTrajectory = null;
+
+    // The robot follows the via-point dragged with the manipulator, if any
+    private IkTracker tracker = null;
+    private ViaPoint trackedViaPoint = null;
+    private int[] trackedJointIndices = null;
+    private float[] trackedPositions = null;
+
+    // The poses of the links along the trajectories are computed on the rendering thread, and
+    // checked for collisions on their own thread
+    private TrajectoryValidator validator = null;
+    private final ExecutorService validationExecutor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "TrajectoryValidation");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final AtomicReference<TrajectoryValidator.Sweep> sweepToValidate =
+            new AtomicReference<>();
+    private volatile Validation validation = null;
+    private Validation shownValidation = null;
     private Light light = null;
 
     private World physicsWorld = null;
@@ -191,7 +280,10 @@ public class GLRenderer implements GLSurfaceView.Renderer {
         return (robot != null);
     }
 
-    private List<AnchorEntity> ellipsoides;
+
+    public boolean hasViaPoints() {
+        return !viaPoints.isEmpty();
+    }
 
 
     @Override
@@ -233,13 +325,58 @@ public class GLRenderer implements GLSurfaceView.Renderer {
         light.color.set(0.7f, 0.7f, 0.7f, 1.0f);
         light.transforms.setPosition(3.0f, 4.0f, 5.0f);
 
-        // Create the physics world
+        // Create the physics world, simulated on its own thread
+        if (physicsWorld != null)
+            physicsWorld.stopSimulationThread();
+
         physicsWorld = new World();
         //physicsWorld.enableDebugDrawing(camera);
+        physicsWorld.startSimulationThread();
         previousTime = System.nanoTime();
     }
 
 
+    /** Should be called from Activity#onResume()
+     */
+    public void onResume() {
+        if (physicsWorld != null)
+            physicsWorld.startSimulationThread();
+    }
+
+
+    /** Should be called from Activity#onPause(), to stop the simulation
+     */
+    public void onPause() {
+        if (physicsWorld != null)
+            physicsWorld.stopSimulationThread();
+    }
+
+
+    /** Should be called from Activity#onDestroy(), to stop the planning and validation threads
+     * and release the native solvers
+     */
+    public void onDestroy() {
+        // The validation in progress (if any) uses the validator
+        validationExecutor.shutdownNow();
+
+        try {
+            validationExecutor.awaitTermination(1, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        if (planner != null) {
+            planner.release();
+            planner = null;
+        }
+
+        if (validator != null) {
+            validator.release();
+            validator = null;
+        }
+    }
+
+
     @Override
     public void onSurfaceChanged(GL10 gl, int width, int height) {
         displayRotationHelper.onSurfaceChanged(width, height);
@@ -355,6 +492,15 @@ public class GLRenderer implements GLSurfaceView.Renderer {
                 body.setFriction(GROUND_FRICTION);
             }
 
+            // Plan the trajectory again if the via-points (or the robot) were moved, and preview
+            // the last planned one
+            if (robot != null) {
+                updateViaPoints();
+                trackViaPoint();
+                previewTrajectory();
+                showValidation();
+            }
+
             // Update the robot state
             if (robot != null) {
                 if (mode == Mode.PLAYBACK) {
@@ -363,7 +509,7 @@ public class GLRenderer implements GLSurfaceView.Renderer {
                 }
             }
 
-            // Step the physics simulation
+            // Update the bodies from the physics simulation
             physicsWorld.step(elapsed);
 
             // Use the view and projection matrices used by the AR for the visualization of the robot models
@@ -395,7 +541,11 @@ public class GLRenderer implements GLSurfaceView.Renderer {
             // Publish the current camera image if necessary
             if (ROSManager.imagePublisher != null) {
                 Image image = frame.acquireCameraImage();
-                ROSManager.imagePublisher.publish(image, displayRotationHelper.getScreenOrientation());
+                try {
+                    ROSManager.imagePublisher.publish(image, displayRotationHelper.getScreenOrientation());
+                } finally {
+                    image.close();
+                }
             }
 
             // Remove the dynamic entities that are too far below the ground
@@ -443,6 +593,9 @@ public class GLRenderer implements GLSurfaceView.Renderer {
 
                     if (currentAction == Action.ADD_GOAL) {
 
+                        if (planner == null)
+                            break;
+
                         Vector3f offset = new Vector3f(0.0f, 0.0f, 0.0f);
                         AnchorEntity anchor = ARHits.createAnchorOnPlane(
                                 frame, camera, (int) gestureEvent.getX(), (int) gestureEvent.getY(),
@@ -456,25 +609,22 @@ public class GLRenderer implements GLSurfaceView.Renderer {
 
                         Material material = new Material();
                         material.ambient.set(0.0f, 0.2f, 0.0f, 1.0f);
-                        material.diffuse.set(0.0f, 0.6f, 0.0f, 1.0f);
+                        material.diffuse.set(VIA_POINT_COLOR);
                         material.specular.set(0.8f, 0.8f, 0.8f, 1.0f);
                         material.shininess = 20.0f;
 
-                        Mesh mesh2 = MeshManager.get(axisMesh);
-
                         CollisionShape shape = new SphereShape(0.04f * World.SCALE);
 
-                        createDynamicObject(anchor, mesh, material, shape, 0.0f, 0.0f,
-                                offset.add(0.0f, 0.0f, 0.0f), Transforms.IDENTITY);
-
-                        //createViaPoint(anchor, mesh, mesh2, material, null, shape, 0.0f, 0.0f,
-                        //        offset.add(0.0f, 0.04f, 0.0f), Transforms.IDENTITY);
+                        Entity entity = createViaPoint(anchor, mesh, null, material, null, shape,
+                                0.0f, 0.0f, offset.add(0.0f, VIA_POINT_HEIGHT, 0.0f),
+                                Transforms.IDENTITY);
 
-                        /*createDynamicObject(anchor, mesh2, null, shape, 0.0f, 0.0f,
-                                offset.add(0.0f, 0.04f, 0.0f), new Quaternionf(new AxisAngle4f(
-                                (float)(new Random().nextFloat() * Math.PI), Transforms.UNIT_Y)));*/
+                        // The new via-point is appended to the trajectory
+                        ViaPoint viaPoint = new ViaPoint(entity, material);
+                        getGoal(entity, viaPoint.position, viaPoint.orientation);
 
-                        //ellipsoides.add(anchor);
+                        viaPoints.add(viaPoint);
+                        planner.addViaPoint(viaPoint.position, viaPoint.orientation);
 
                     } else if (currentAction == Action.REMOVE){
 
@@ -485,6 +635,7 @@ public class GLRenderer implements GLSurfaceView.Renderer {
                         if (body != null) {
                             Entity entity = body.getEntity();
                             if (entity != null) {
+                                removeViaPoint(entity);
                                 entity.destroy(physicsWorld);
                                 anchors.remove(entity);
                             }
@@ -658,6 +809,16 @@ public class GLRenderer implements GLSurfaceView.Renderer {
 
                             robot = ROSManager.createPandaArm(physicsWorld);
                             robot.setParent(anchor);
+                            loadReachabilityMap(robot);
+
+                            // The via-points are planned in the background, and the markers of
+                            // the via-points are reached on purpose (not obstacles)
+                            planner = new TrajectoryPlanner(robot, trajectory -> plannedTrajectory = trajectory);
+
+                            validator = new TrajectoryValidator(robot, 2);
+                            validator.setIgnoredBodies(body -> isViaPoint(body.getEntity()));
+
+                            createTracker(robot);
 
                             anchors.add(anchor);
 
@@ -782,7 +943,7 @@ public class GLRenderer implements GLSurfaceView.Renderer {
                             Vector4f force = farPosition.sub(position).normalize();
                             force.mul(100.0f * World.SCALE);
 
-                            body.getRigidBody().applyForce(
+                            body.applyForce(
                                     new javax.vecmath.Vector3f(force.x, force.y, force.z),
                                     new javax.vecmath.Vector3f(0.0f, 0.0f, 0.0f)
                             );
@@ -832,17 +993,18 @@ public class GLRenderer implements GLSurfaceView.Renderer {
         body.setFriction(friction);
 
         if (new Vector3f(position.x(), 0.0f, position.z()).length() < 0.1f)
-            body.getRigidBody().setActivationState(CollisionObject.WANTS_DEACTIVATION);
+            body.setActivationState(CollisionObject.WANTS_DEACTIVATION);
     }
 
-    // combine the 3-axis mesh with the ellipsoid for the via-points
-    private void createViaPoint(AnchorEntity anchor, Mesh mesh1, Mesh mesh2, Material material1,
-                                Material material2, CollisionShape shape, float mass,
-                                float friction, Vector3fc position, Quaternionfc orientation) {
+    // combine the 3-axis mesh (optional) with the ellipsoid for the via-points
+    private Entity createViaPoint(AnchorEntity anchor, Mesh mesh1, Mesh mesh2, Material material1,
+                                  Material material2, CollisionShape shape, float mass,
+                                  float friction, Vector3fc position, Quaternionfc orientation) {
 
         Entity entity = new Entity();
         entity.addRenderable(new Renderable(mesh1, material1));
-        entity.addRenderable(new Renderable(mesh2, material2));
+        if (mesh2 != null)
+            entity.addRenderable(new Renderable(mesh2, material2));
         entity.setParent(anchor);
 
         entity.transforms.translate(position);
@@ -855,6 +1017,249 @@ public class GLRenderer implements GLSurfaceView.Renderer {
         body.setFriction(friction);
 
         if (new Vector3f(position.x(), 0.0f, position.z()).length() < 0.1f)
-            body.getRigidBody().setActivationState(CollisionObject.WANTS_DEACTIVATION);
+            body.setActivationState(CollisionObject.WANTS_DEACTIVATION);
+
+        return entity;
+    }
+
+
+    /** Compute the goal of the end-effector corresponding to a via-point, in the local
+     * coordinates of the robot
+     */
+    private void getGoal(Entity entity, Vector3f position, Quaternionf orientation) {
+        Quaternionf invertedRobotOrientation =
+                new Quaternionf(robot.transforms.getWorldOrientation()).invert();
+
+        position.set(entity.transforms.getWorldPosition()).sub(robot.transforms.getWorldPosition());
+        invertedRobotOrientation.transform(position);
+
+        invertedRobotOrientation.mul(entity.transforms.getWorldOrientation(), orientation);
+        orientation.mul(GRASP_ORIENTATION);
+    }
+
+
+    /** Give the goals of the via-points that moved (dragged with the manipulator, or relative
+     * to the robot) to the planner, which coalesces them
+     */
+    private void updateViaPoints() {
+        Vector3f position = new Vector3f();
+        Quaternionf orientation = new Quaternionf();
+
+        for (int i = 0; i < viaPoints.size(); ++i) {
+            ViaPoint viaPoint = viaPoints.get(i);
+
+            getGoal(viaPoint.entity, position, orientation);
+
+            // Angle between the orientations: 2 * acos(|dot|)
+            if ((position.distance(viaPoint.position) > VIA_POINT_POSITION_TOLERANCE) ||
+                (Math.abs(orientation.dot(viaPoint.orientation)) <
+                        Math.cos(VIA_POINT_ORIENTATION_TOLERANCE / 2.0))) {
+                viaPoint.position.set(position);
+                viaPoint.orientation.set(orientation);
+                planner.moveViaPoint(i, position, orientation);
+            }
+        }
+    }
+
+
+    /** Preview the last planned trajectory (if its waypoints changed) with the player, and
+     * schedule its validation
+     */
+    private void previewTrajectory() {
+        Trajectory trajectory = plannedTrajectory;
+        if ((trajectory == null) || (trajectory == previewedTrajectory))
+            return;
+
+        previewedTrajectory = trajectory;
+
+        // The planner notifies the trajectories asynchronously: ignore the ones planned
+        // before a via-point was added or removed
+        if (trajectory.getWaypointCount() != viaPoints.size() + 1)
+            return;
+
+        if (sweepToValidate.getAndSet(validator.prepare(trajectory)) == null)
+            validationExecutor.execute(this::validateTrajectory);
+
+        // The robot follows the dragged via-point instead (the preview restarts once released)
+        if (trackedViaPoint != null)
+            return;
+
+        // Can't preview while the robot follows the ROS topics
+        if ((mode == Mode.LISTENER) && ROSManager.isROSStarted())
+            return;
+
+        // Don't restart the preview of the same motion
+        if ((mode == Mode.PLAYBACK) && (playedTrajectory != null) &&
+            haveSameWaypoints(trajectory, playedTrajectory))
+            return;
+
+        playedTrajectory = trajectory;
+
+        ROSManager.playTrajectory(trajectory, robot);
+        mode = Mode.PLAYBACK;
+    }
+
+
+    private void createTracker(Robot robot) {
+        tracker = new IkTracker(robot);
+
+        int nbJoints = robot.getKinematicJointCount();
+        trackedJointIndices = new int[nbJoints];
+        trackedPositions = new float[nbJoints];
+
+        for (int i = 0; i < nbJoints; ++i) {
+            trackedJointIndices[i] =
+                    ROSManager.robotState.getJointIndex(robot.getKinematicJointName(i));
+        }
+    }
+
+
+    /** While a via-point is dragged with the manipulator, move the robot towards it with the
+     * differential inverse kinematics (one step per frame)
+     */
+    private void trackViaPoint() {
+        ViaPoint dragged = null;
+
+        // Can't move the robot while it follows the ROS topics
+        if (manipulator.isManipulating() && !((mode == Mode.LISTENER) && ROSManager.isROSStarted())) {
+            for (ViaPoint viaPoint : viaPoints) {
+                if (manipulator.isSelected(viaPoint.entity)) {
+                    dragged = viaPoint;
+                    break;
+                }
+            }
+        }
+
+        if (dragged == null) {
+            // Preview the last planned trajectory again
+            if (trackedViaPoint != null) {
+                trackedViaPoint = null;
+                previewedTrajectory = null;
+                playedTrajectory = null;
+            }
+
+            return;
+        }
+
+        if (trackedViaPoint == null) {
+            ROSManager.stopPlayback();
+            robot.setAnimateFromJointStates(true);
+            tracker.reset();
+        }
+
+        trackedViaPoint = dragged;
+
+        // The goal of the via-point was just updated by updateViaPoints()
+        tracker.setGoal(dragged.position, dragged.orientation);
+        tracker.step();
+        tracker.getPositions(trackedPositions);
+
+        long timestamp = System.nanoTime();
+
+        for (int i = 0; i < trackedJointIndices.length; ++i) {
+            ROSManager.robotState.putJointState(
+                    trackedJointIndices[i], timestamp, trackedPositions[i], 0.0f
+            );
+        }
+    }
+
+
+    /** Give its reachability map to the robot once read or built (on its own thread), so the
+     * planner rejects the via-points out of reach and seeds its searches from the map
+     */
+    private void loadReachabilityMap(Robot robot) {
+        File file = new File(context.getFilesDir(), REACHABILITY_MAP_FILE);
+
+        Thread thread = new Thread(() -> robot.setReachabilityMap(ReachabilityMap.readOrBuild(
+                file, robot, REACHABILITY_VOXEL_SIZE, REACHABILITY_NB_SAMPLES
+        )), "ReachabilityMap");
+
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+
+    /** Check the last trajectory to validate (on the validation thread)
+     */
+    private void validateTrajectory() {
+        TrajectoryValidator.Sweep sweep = sweepToValidate.getAndSet(null);
+        if (sweep != null)
+            validation = new Validation(sweep.getTrajectory(), validator.validate(sweep));
+    }
+
+
+    /** Show the via-points that can't be reached, or after which the robot collides with
+     * something, once the last trajectory was validated
+     */
+    private void showValidation() {
+        Validation validation = this.validation;
+        if ((validation == null) || (validation == shownValidation))
+            return;
+
+        shownValidation = validation;
+
+        Trajectory trajectory = validation.trajectory;
+        if (trajectory.getWaypointCount() != viaPoints.size() + 1)
+            return;
+
+        TrajectoryValidator.Collision collision = validation.collision;
+
+        // Waypoint 0 is the start of the trajectory, not a via-point
+        for (int i = 1; i < trajectory.getWaypointCount(); ++i) {
+            Material material = viaPoints.get(i - 1).material;
+
+            if (!trajectory.isWaypointReached(i))
+                material.diffuse.set(UNREACHED_VIA_POINT_COLOR);
+            else if ((collision != null) && (collision.time < trajectory.getWaypointTime(i)) &&
+                     (collision.time >= trajectory.getWaypointTime(i - 1)))
+                material.diffuse.set(COLLIDING_VIA_POINT_COLOR);
+            else
+                material.diffuse.set(VIA_POINT_COLOR);
+        }
+
+        if (collision != null)
+            Log.w(TAG, "The link " + collision.linkName + " collides at t=" + collision.time + "s");
+    }
+
+
+    private static boolean haveSameWaypoints(Trajectory trajectory1, Trajectory trajectory2) {
+        if (trajectory1.getWaypointCount() != trajectory2.getWaypointCount())
+            return false;
+
+        float[] waypoint1 = new float[trajectory1.getJointCount()];
+        float[] waypoint2 = new float[trajectory2.getJointCount()];
+
+        for (int i = 0; i < trajectory1.getWaypointCount(); ++i) {
+            trajectory1.getWaypoint(i, waypoint1);
+            trajectory2.getWaypoint(i, waypoint2);
+
+            for (int j = 0; j < waypoint1.length; ++j) {
+                if (Math.abs(waypoint1[j] - waypoint2[j]) > WAYPOINT_TOLERANCE)
+                    return false;
+            }
+        }
+
+        return true;
+    }
+
+
+    private boolean isViaPoint(Entity entity) {
+        for (ViaPoint viaPoint : viaPoints) {
+            if (viaPoint.entity == entity)
+                return true;
+        }
+
+        return false;
+    }
+
+
+    private void removeViaPoint(Entity entity) {
+        for (int i = 0; i < viaPoints.size(); ++i) {
+            if (viaPoints.get(i).entity == entity) {
+                viaPoints.remove(i);
+                planner.removeViaPoint(i);
+                return;
+            }
+        }
     }
 }
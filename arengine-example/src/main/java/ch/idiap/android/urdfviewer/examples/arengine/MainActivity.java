@@ -30,6 +30,7 @@ import android.os.Bundle;
 import android.util.Log;
 import android.view.GestureDetector;
 import android.view.MotionEvent;
+import android.view.Surface;
 import android.view.View;
 import android.view.WindowManager;
 import android.widget.Toast;
@@ -74,6 +75,8 @@ public class MainActivity extends Activity implements GLSurfaceView.Renderer {
 
     private static final String TAG = MainActivity.class.getSimpleName();
 
+    private static final float POINT_CLOUD_VOXEL_SIZE = 0.02f;
+
     private ARSession session;
     private GLSurfaceView surfaceView;
     private GestureDetector gestureDetector;
@@ -95,6 +98,13 @@ public class MainActivity extends Activity implements GLSurfaceView.Renderer {
     private ExternalCamera camera = null;
     private Light light = null;
 
+    // Inputs of the last intrinsics given to the depth publishers
+    private float depthProjectionX = 0.0f;
+    private float depthProjectionY = 0.0f;
+    private int depthWidth = 0;
+    private int depthHeight = 0;
+    private int depthOrientation = -1;
+
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -235,6 +245,7 @@ public class MainActivity extends Activity implements GLSurfaceView.Renderer {
             @Override
             public void onConnected() {
                 ROSManager.startListeners();
+                ROSManager.startDepthPublishing(POINT_CLOUD_VOXEL_SIZE);
             }
         });
     }
@@ -393,14 +404,23 @@ public class MainActivity extends Activity implements GLSurfaceView.Renderer {
             if (ROSManager.imagePublisher != null) {
                 Image image = frame.acquireCameraImage();
                 int screenOrientation = ((WindowManager) getSystemService(Context.WINDOW_SERVICE)).getDefaultDisplay().getRotation();
-                ROSManager.imagePublisher.publish(image, screenOrientation);
+                try {
+                    ROSManager.imagePublisher.publish(image, screenOrientation);
+                } finally {
+                    image.close();
+                }
             }
 
-            // Publish the current camera image if necessary
-            if (ROSManager.depthPublisher != null) {
+            // Publish the current depth image (and the point cloud computed from it) if necessary
+            if ((ROSManager.depthPublisher != null) || (ROSManager.pointCloudPublisher != null)) {
                 Image image = frame.acquireDepthImage();
                 int screenOrientation = ((WindowManager) getSystemService(Context.WINDOW_SERVICE)).getDefaultDisplay().getRotation();
-                ROSManager.depthPublisher.publish(image, screenOrientation);
+                try {
+                    setDepthCameraIntrinsics(projectionMatrix, image, screenOrientation);
+                    ROSManager.publishDepthImage(image, screenOrientation);
+                } finally {
+                    image.close();
+                }
             }
 
         } catch (Throwable t) {
@@ -409,6 +429,43 @@ public class MainActivity extends Activity implements GLSurfaceView.Renderer {
     }
 
 
+    /** AR Engine doesn't give the intrinsics of the depth camera: approximate them from the
+     * projection matrix of the (display oriented) camera, assuming that the depth image covers
+     * the same field of view than the color image
+     *
+     * The display crops the image along one axis, so only the other one gives the right focal
+     * length (the smallest one).
+     *
+     * The publishers are only updated when the projection, the size of the image or the
+     * orientation of the screen changes.
+     */
+    private void setDepthCameraIntrinsics(float[] projectionMatrix, Image image, int screenOrientation) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+
+        if ((projectionMatrix[0] == depthProjectionX) && (projectionMatrix[5] == depthProjectionY) &&
+            (width == depthWidth) && (height == depthHeight) &&
+            (screenOrientation == depthOrientation)) {
+            return;
+        }
+
+        depthProjectionX = projectionMatrix[0];
+        depthProjectionY = projectionMatrix[5];
+        depthWidth = width;
+        depthHeight = height;
+        depthOrientation = screenOrientation;
+
+        boolean portrait = (screenOrientation == Surface.ROTATION_0) ||
+                           (screenOrientation == Surface.ROTATION_180);
+
+        float focalX = (portrait ? projectionMatrix[5] : projectionMatrix[0]) * width / 2.0f;
+        float focalY = (portrait ? projectionMatrix[0] : projectionMatrix[5]) * height / 2.0f;
+        float focal = Math.min(focalX, focalY);
+
+        ROSManager.setDepthCameraIntrinsics(focal, focal, width / 2.0f, height / 2.0f);
+    }
+
+
     @Override
     protected void onDestroy() {
         if (session != null) {
@@ -20,10 +20,29 @@ import ch.idiap.android.glrenderer.entities.Transformable;
 import ch.idiap.android.glrenderer.entities.Transforms;
 
 
+/** Link between a rigid body and the transforms of the scene
+ *
+ * The simulation never touches the scene: it records the last two simulated poses of the
+ * dynamic bodies, applied (interpolated) by the rendering thread, and reads the poses of the
+ * kinematic bodies captured by the rendering thread. All the methods are called while holding
+ * the lock of the World.
+ */
 public class MotionState extends com.bulletphysics.linearmath.MotionState
 {
     protected Transformable transformable = null;
 
+    // Last two poses computed by the simulation
+    private final Transform previous = new Transform();
+    private final Transform current = new Transform();
+    private int nbPoses = 0;
+
+    // Pose of a kinematic body, captured from the scene
+    private final Transform captured = new Transform();
+    private boolean hasCaptured = false;
+
+    private final Quat4f rotation = new Quat4f();
+    private final Quat4f previousRotation = new Quat4f();
+
 
     public MotionState(Transformable transformable) {
         this.transformable = transformable;
@@ -31,23 +50,56 @@ public class MotionState extends com.bulletphysics.linearmath.MotionState
 
 
     public Transform getWorldTransform(Transform out) {
-        out.setIdentity();
+        if (hasCaptured) {
+            out.set(captured);
+            return out;
+        }
 
-        Vector3fc position = transformable.transforms.getWorldPosition();
-        out.origin.set(
-                position.x() * World.SCALE,
-                position.y() * World.SCALE,
-                position.z() * World.SCALE
-        );
+        return computeWorldTransform(out);
+    }
 
-        Quaternionfc rotation = transformable.transforms.getWorldOrientation();
-        out.setRotation(new Quat4f(rotation.x(), rotation.y(), rotation.z(), rotation.w()));
 
-        return out;
+    public void setWorldTransform(Transform worldTrans) {
+        previous.set(nbPoses > 0 ? current : worldTrans);
+        current.set(worldTrans);
+        nbPoses = Math.min(nbPoses + 1, 2);
     }
 
 
-    public void setWorldTransform(Transform worldTrans) {
+    /** Record the current pose of a kinematic body in the scene, for the simulation
+     */
+    void capture() {
+        computeWorldTransform(captured);
+        hasCaptured = true;
+
+        // Don't reuse the poses simulated before the body became kinematic
+        nbPoses = 0;
+    }
+
+
+    /** Compute the pose between the last two simulated ones ('alpha' in [0, 1])
+     *
+     * Returns false if the body wasn't simulated yet.
+     */
+    boolean interpolate(float alpha, Transform out) {
+        if (nbPoses == 0)
+            return false;
+
+        out.origin.interpolate(previous.origin, current.origin, alpha);
+
+        previous.getRotation(previousRotation);
+        current.getRotation(rotation);
+        rotation.interpolate(previousRotation, rotation, alpha);
+
+        out.setRotation(rotation);
+
+        return true;
+    }
+
+
+    /** Move the transforms of the scene to a simulated pose
+     */
+    void apply(Transform worldTrans) {
         Transforms targetTransforms = transformable.transforms.getParent();
 
         Quat4f rotation = new Quat4f();
@@ -71,4 +123,21 @@ public class MotionState extends com.bulletphysics.linearmath.MotionState
 
         targetTransforms.setWorldTransforms(targetPosition, targetOrientation);
     }
+
+
+    private Transform computeWorldTransform(Transform out) {
+        out.setIdentity();
+
+        Vector3fc position = transformable.transforms.getWorldPosition();
+        out.origin.set(
+                position.x() * World.SCALE,
+                position.y() * World.SCALE,
+                position.z() * World.SCALE
+        );
+
+        Quaternionfc rotation = transformable.transforms.getWorldOrientation();
+        out.setRotation(new Quat4f(rotation.x(), rotation.y(), rotation.z(), rotation.w()));
+
+        return out;
+    }
 }
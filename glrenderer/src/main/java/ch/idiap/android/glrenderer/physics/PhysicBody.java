@@ -25,6 +25,7 @@ public class PhysicBody extends Transformable
     protected RigidBody rigidBody = null;
     protected MotionState motionState = null;
     protected Entity entity = null;
+    protected World world = null;
 
 
     public PhysicBody() {
@@ -33,6 +34,8 @@ public class PhysicBody extends Transformable
 
 
     public void setDynamic(World world, float mass, CollisionShape shape) {
+        this.world = world;
+
         if (rigidBody != null)
         {
             world.removeRigidBody(rigidBody);
@@ -63,6 +66,8 @@ public class PhysicBody extends Transformable
 
 
     public void setStatic(World world, CollisionShape shape) {
+        this.world = world;
+
         if (rigidBody != null)
         {
             world.removeRigidBody(rigidBody);
@@ -84,6 +89,8 @@ public class PhysicBody extends Transformable
 
 
     public void setKinematic(World world, CollisionShape shape) {
+        this.world = world;
+
         if (rigidBody != null)
         {
             world.removeRigidBody(rigidBody);
@@ -135,11 +142,10 @@ public class PhysicBody extends Transformable
         if (!isKinematic())
             return;
 
-        if (rigidBody != null)
-        {
+        modify(() -> {
             rigidBody.setCollisionFlags(rigidBody.getCollisionFlags() & ~CollisionFlags.KINEMATIC_OBJECT);
             rigidBody.setActivationState(CollisionObject.ACTIVE_TAG);
-        }
+        });
     }
 
 
@@ -147,17 +153,30 @@ public class PhysicBody extends Transformable
         if (!isDynamic())
             return;
 
-        if (rigidBody != null)
-        {
+        modify(() -> {
             rigidBody.setCollisionFlags(rigidBody.getCollisionFlags() | CollisionFlags.KINEMATIC_OBJECT);
             rigidBody.setActivationState(CollisionObject.DISABLE_DEACTIVATION);
-        }
+        });
     }
 
 
     public void setFriction(float friction) {
         if (rigidBody != null)
-            rigidBody.setFriction(friction);
+            modify(() -> rigidBody.setFriction(friction));
+    }
+
+
+    public void setActivationState(int state) {
+        if (rigidBody != null)
+            modify(() -> rigidBody.setActivationState(state));
+    }
+
+
+    /** Apply a force (in the physics world units) at a position relative to the center of mass
+     */
+    public void applyForce(Vector3f force, Vector3f relativePosition) {
+        if (rigidBody != null)
+            modify(() -> rigidBody.applyForce(force, relativePosition));
     }
 
 
@@ -171,6 +190,17 @@ public class PhysicBody extends Transformable
     }
 
 
+    /** The rigid body must only be modified while the simulation isn't running (it may run on
+     * its own thread)
+     */
+    private void modify(Runnable modification) {
+        if (world != null)
+            world.run(modification);
+        else
+            modification.run();
+    }
+
+
     @NonNull
     @Override
     public String toString() {
@@ -11,12 +11,17 @@ import com.bulletphysics.collision.broadphase.BroadphaseInterface;
 import com.bulletphysics.collision.broadphase.DbvtBroadphase;
 import com.bulletphysics.collision.dispatch.CollisionConfiguration;
 import com.bulletphysics.collision.dispatch.CollisionDispatcher;
+import com.bulletphysics.collision.dispatch.CollisionObject;
 import com.bulletphysics.collision.dispatch.CollisionWorld;
 import com.bulletphysics.collision.dispatch.DefaultCollisionConfiguration;
 import com.bulletphysics.dynamics.DiscreteDynamicsWorld;
 import com.bulletphysics.dynamics.RigidBody;
 import com.bulletphysics.dynamics.constraintsolver.SequentialImpulseConstraintSolver;
 import com.bulletphysics.extras.gimpact.GImpactCollisionAlgorithm;
+import com.bulletphysics.linearmath.Transform;
+import com.bulletphysics.util.ObjectArrayList;
+
+import java.util.concurrent.locks.LockSupport;
 
 import javax.vecmath.Vector3f;
 
@@ -25,9 +30,37 @@ import ch.idiap.android.glrenderer.physics.helpers.DebugDrawer;
 import ch.idiap.android.glrenderer.rays.Ray;
 
 
+/** The physics world, simulated with a fixed time step
+ *
+ * The simulation is either advanced by step() on the rendering thread, or runs on its own
+ * thread (see startSimulationThread()). In both cases, the number of steps done at once is
+ * limited (the simulation slows down instead of spiraling when it can't keep up), and the
+ * rendered poses of the dynamic bodies are interpolated between their last two simulated
+ * states.
+ */
 public class World
 {
     static public final float SCALE = 100.0f;
+    static public final float FIXED_TIME_STEP = 0.006f;
+    static public final int DEFAULT_MAX_SUBSTEPS = 8;
+
+
+    /** Statistics about the simulation
+     */
+    static public class Metrics {
+        public float stepTime = 0.0f;       // duration of the last step, in seconds
+        public int nbSubSteps = 0;          // number of steps done by the last update
+        public long totalSteps = 0;
+        public float droppedTime = 0.0f;    // simulated time skipped to respect the budget, in seconds
+
+        void set(Metrics other) {
+            stepTime = other.stepTime;
+            nbSubSteps = other.nbSubSteps;
+            totalSteps = other.totalSteps;
+            droppedTime = other.droppedTime;
+        }
+    }
+
 
     private CollisionConfiguration collisionConfiguration = null;
     private CollisionDispatcher collisionDispatcher = null;
@@ -35,6 +68,19 @@ public class World
     private SequentialImpulseConstraintSolver solver = null;
     private DiscreteDynamicsWorld world = null;
 
+    // Protects the simulated world, shared by the rendering and simulation threads
+    private final Object lock = new Object();
+
+    private int maxSubSteps = DEFAULT_MAX_SUBSTEPS;
+    private float accumulator = 0.0f;
+    private long lastStepTime = 0;
+    private final Metrics metrics = new Metrics();
+
+    private volatile Thread simulationThread = null;
+    private volatile boolean simulationRunning = false;
+
+    private final Transform interpolated = new Transform();
+
 
     public World() {
         collisionConfiguration = new DefaultCollisionConfiguration();
@@ -52,18 +98,142 @@ public class World
     }
 
 
+    /** Must be called by the rendering thread before drawing each frame
+     *
+     * Advance the simulation by 'elapsed' seconds, unless it runs on its own thread, then
+     * update the poses of the bodies.
+     */
     public void step(float elapsed) {
-        world.stepSimulation(elapsed, 100, 0.006f);
+        synchronized (lock) {
+            // The kinematic bodies are moved by the rendering thread
+            captureKinematicBodies();
+
+            float alpha;
+
+            if (simulationThread == null) {
+                accumulator = advance(accumulator + elapsed);
+                alpha = accumulator / FIXED_TIME_STEP;
+            } else {
+                alpha = Math.min((System.nanoTime() - lastStepTime) * 1e-9f / FIXED_TIME_STEP, 1.0f);
+            }
+
+            applyPoses(alpha);
+        }
+    }
+
+
+    /** Run the simulation on a dedicated thread, at a fixed rate, until stopSimulationThread()
+     * is called
+     */
+    public synchronized void startSimulationThread() {
+        if (simulationThread != null)
+            return;
+
+        simulationRunning = true;
+
+        simulationThread = new Thread(this::simulate, "PhysicsSimulation");
+        simulationThread.setDaemon(true);
+        simulationThread.start();
+    }
+
+
+    public synchronized void stopSimulationThread() {
+        if (simulationThread == null)
+            return;
+
+        simulationRunning = false;
+
+        try {
+            simulationThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        simulationThread = null;
+    }
+
+
+    /** Set the maximum number of steps done at once: beyond that, the simulation slows down
+     */
+    public void setMaxSubSteps(int maxSubSteps) {
+        this.maxSubSteps = Math.max(maxSubSteps, 1);
+    }
+
+
+    public Metrics getMetrics(Metrics out) {
+        synchronized (lock) {
+            out.set(metrics);
+        }
+
+        return out;
+    }
+
+
+    /** Execute a modification of the simulated world (or of its bodies) while the simulation
+     * isn't running
+     */
+    public void run(Runnable modification) {
+        synchronized (lock) {
+            modification.run();
+        }
     }
 
 
     public void addRigidBody(RigidBody body) {
-        world.addRigidBody(body);
+        synchronized (lock) {
+            world.addRigidBody(body);
+        }
     }
 
 
     public void removeRigidBody(RigidBody body) {
-        world.removeRigidBody(body);
+        synchronized (lock) {
+            world.removeRigidBody(body);
+        }
+    }
+
+
+    /** Returns a snapshot of all the objects of the world
+     */
+    public ObjectArrayList<CollisionObject> getCollisionObjects() {
+        synchronized (lock) {
+            ObjectArrayList<CollisionObject> objects = world.getCollisionObjectArray();
+
+            ObjectArrayList<CollisionObject> result = new ObjectArrayList<>(objects.size());
+            for (int i = 0; i < objects.size(); ++i)
+                result.add(objects.getQuick(i));
+
+            return result;
+        }
+    }
+
+
+    /** Returns a copy of all the objects of the world (collision shape, transform and user
+     * pointer), consistent even while the simulation runs on its own thread
+     *
+     * The copies aren't part of any world, and can be added to another one (the shapes are
+     * shared).
+     */
+    public ObjectArrayList<CollisionObject> copyCollisionObjects() {
+        Transform transform = new Transform();
+
+        synchronized (lock) {
+            ObjectArrayList<CollisionObject> objects = world.getCollisionObjectArray();
+
+            ObjectArrayList<CollisionObject> result = new ObjectArrayList<>(objects.size());
+            for (int i = 0; i < objects.size(); ++i) {
+                CollisionObject source = objects.getQuick(i);
+
+                CollisionObject copy = new CollisionObject();
+                copy.setCollisionShape(source.getCollisionShape());
+                copy.setWorldTransform(source.getWorldTransform(transform));
+                copy.setUserPointer(source.getUserPointer());
+
+                result.add(copy);
+            }
+
+            return result;
+        }
     }
 
 
@@ -73,7 +243,9 @@ public class World
 
 
     public void debugDraw() {
-        world.debugDrawWorld();
+        synchronized (lock) {
+            world.debugDrawWorld();
+        }
     }
 
 
@@ -87,7 +259,9 @@ public class World
         CollisionWorld.ClosestRayResultCallback callback =
                 new CollisionWorld.ClosestRayResultCallback(from, to);
 
-        world.rayTest(from, to, callback);
+        synchronized (lock) {
+            world.rayTest(from, to, callback);
+        }
 
         if (callback.collisionObject != null)
             return PhysicBody.class.cast(callback.collisionObject.getUserPointer());
@@ -95,4 +269,88 @@ public class World
         return null;
     }
 
+
+    private void simulate() {
+        long previousTime = System.nanoTime();
+        float remaining = 0.0f;
+
+        while (simulationRunning) {
+            long currentTime = System.nanoTime();
+            remaining += (currentTime - previousTime) * 1e-9f;
+            previousTime = currentTime;
+
+            remaining = advance(remaining);
+
+            // Wait for the next step
+            LockSupport.parkNanos((long) ((FIXED_TIME_STEP - remaining) * 1e9f));
+        }
+    }
+
+
+    /** Do as many fixed steps as fit in 'time' (within the budget), returns the time left
+     */
+    private float advance(float time) {
+        int nbSteps = (int) (time / FIXED_TIME_STEP);
+        time -= nbSteps * FIXED_TIME_STEP;
+
+        if (nbSteps > maxSubSteps) {
+            synchronized (lock) {
+                metrics.droppedTime += (nbSteps - maxSubSteps) * FIXED_TIME_STEP;
+            }
+            nbSteps = maxSubSteps;
+        }
+
+        for (int i = 0; i < nbSteps; ++i) {
+            // Release the lock between the steps, so the rendering thread isn't blocked long
+            synchronized (lock) {
+                long start = System.nanoTime();
+
+                // Exactly one step, without any interpolation by JBullet
+                world.stepSimulation(FIXED_TIME_STEP, 1, FIXED_TIME_STEP);
+
+                lastStepTime = System.nanoTime();
+
+                metrics.stepTime = (lastStepTime - start) * 1e-9f;
+                metrics.totalSteps++;
+            }
+        }
+
+        synchronized (lock) {
+            metrics.nbSubSteps = nbSteps;
+        }
+
+        return time;
+    }
+
+
+    private void captureKinematicBodies() {
+        ObjectArrayList<CollisionObject> objects = world.getCollisionObjectArray();
+
+        for (int i = 0; i < objects.size(); ++i) {
+            RigidBody body = RigidBody.upcast(objects.getQuick(i));
+
+            if ((body != null) && body.isKinematicObject() && (body.getMotionState() instanceof MotionState))
+                ((MotionState) body.getMotionState()).capture();
+        }
+    }
+
+
+    private void applyPoses(float alpha) {
+        ObjectArrayList<CollisionObject> objects = world.getCollisionObjectArray();
+
+        for (int i = 0; i < objects.size(); ++i) {
+            RigidBody body = RigidBody.upcast(objects.getQuick(i));
+
+            if ((body == null) || body.isStaticOrKinematicObject() ||
+                !(body.getMotionState() instanceof MotionState)) {
+                continue;
+            }
+
+            MotionState motionState = (MotionState) body.getMotionState();
+
+            // The sleeping bodies don't move anymore
+            if (motionState.interpolate(body.isActive() ? alpha : 1.0f, interpolated))
+                motionState.apply(interpolated);
+        }
+    }
 }
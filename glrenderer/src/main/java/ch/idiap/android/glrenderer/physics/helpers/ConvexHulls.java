@@ -0,0 +1,220 @@
+/*
+ * Copyright (C) 2020 Idiap Research Institute
+ *
+ * Authors:
+ *   philip.abbet@idiap.ch (Philip Abbet)
+ */
+
+package ch.idiap.android.glrenderer.physics.helpers;
+
+import android.content.Context;
+import android.content.pm.PackageManager;
+import android.util.Log;
+
+import com.bulletphysics.collision.shapes.ConvexHullShape;
+import com.bulletphysics.collision.shapes.ShapeHull;
+import com.bulletphysics.util.ObjectArrayList;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.vecmath.Vector3f;
+
+import ch.idiap.android.glrenderer.meshes.Mesh;
+import ch.idiap.android.glrenderer.meshes.SubMesh;
+import ch.idiap.android.glrenderer.physics.World;
+
+
+/** Simplified convex hulls of meshes, used as collision shapes instead of the triangles of the
+ * meshes (much faster to test for collisions)
+ *
+ * The hulls can be precomputed offline (see compute() and write()) and shipped in the assets
+ * next to the mesh files ('<mesh file>.hull'). Otherwise they are computed at load time, then
+ * saved in the cache directory of the application (and computed again when the application
+ * is updated). In all cases, they are kept in memory.
+ *
+ * Layout of a file (all values are little-endian):
+ *
+ *   int magic ('UHLL'), int version, int nbVertices
+ *   float vertices[nbVertices * 3] (in the coordinates of the mesh)
+ */
+public class ConvexHulls {
+    private static final String TAG = ConvexHulls.class.getSimpleName();
+
+    public static final int MAGIC = 0x4c4c4855;     // 'UHLL'
+    public static final int VERSION = 1;
+    public static final String EXTENSION = ".hull";
+
+    private static final int HEADER_SIZE = 12;
+    private static final String CACHE_FOLDER = "hulls";
+
+    private static final Map<String, float[]> hulls = new HashMap<>();
+
+
+    /** Returns a convex hull shape of a mesh, 'name' identifying the mesh (usually its file)
+     */
+    public static ConvexHullShape get(Context context, String name, Mesh mesh) {
+        float[] vertices;
+
+        synchronized (hulls) {
+            vertices = hulls.get(name);
+        }
+
+        if (vertices == null) {
+            vertices = load(context, name, mesh);
+
+            synchronized (hulls) {
+                hulls.put(name, vertices);
+            }
+        }
+
+        return createShape(vertices);
+    }
+
+
+    /** Compute the simplified convex hull of all the submeshes of a mesh (slow)
+     *
+     * Returns the vertices of the hull, in the coordinates of the mesh.
+     */
+    public static float[] compute(Mesh mesh) {
+        ObjectArrayList<Vector3f> points = new ObjectArrayList<>();
+
+        for (SubMesh submesh : mesh.getSubMeshes()) {
+            for (int i = 0; i < submesh.nbVertices; ++i) {
+                int offset = i * submesh.vertexSize + SubMesh.POSITION_OFFSET;
+
+                points.add(new Vector3f(
+                        submesh.verticesBuffer.get(offset) * World.SCALE,
+                        submesh.verticesBuffer.get(offset + 1) * World.SCALE,
+                        submesh.verticesBuffer.get(offset + 2) * World.SCALE
+                ));
+            }
+        }
+
+        // Keep only a limited number of points of the hull, in the directions sampled by
+        // ShapeHull
+        ConvexHullShape fullHull = new ConvexHullShape(points);
+
+        ShapeHull shapeHull = new ShapeHull(fullHull);
+        if (!shapeHull.buildHull(fullHull.getMargin())) {
+            Log.w(TAG, "Failed to simplify the convex hull of the mesh " + mesh.getName());
+            return toArray(points);
+        }
+
+        return toArray(shapeHull.getVertexPointer());
+    }
+
+
+    public static float[] read(InputStream inputStream) throws IOException {
+        DataInputStream input = new DataInputStream(inputStream);
+
+        ByteBuffer header = readBlock(input, HEADER_SIZE);
+
+        if ((header.getInt() != MAGIC) || (header.getInt() != VERSION))
+            throw new IOException("Not a convex hull, or unsupported version");
+
+        float[] vertices = new float[header.getInt() * 3];
+        readBlock(input, vertices.length * 4).asFloatBuffer().get(vertices);
+
+        return vertices;
+    }
+
+
+    public static void write(float[] vertices, OutputStream output) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + vertices.length * 4)
+                                      .order(ByteOrder.LITTLE_ENDIAN);
+
+        buffer.putInt(MAGIC).putInt(VERSION).putInt(vertices.length / 3);
+        buffer.asFloatBuffer().put(vertices);
+
+        output.write(buffer.array());
+    }
+
+
+    private static float[] load(Context context, String name, Mesh mesh) {
+        // Precomputed hull in the assets
+        try (InputStream input = context.getAssets().open(name + EXTENSION)) {
+            return read(input);
+        } catch (IOException ignored) {
+        }
+
+        // Hull computed during a previous run
+        File file = new File(new File(context.getCacheDir(), CACHE_FOLDER),
+                             name.replaceAll("[^A-Za-z0-9_.-]", "_") + EXTENSION);
+
+        // Only valid if computed since the last update of the application (which may change
+        // the meshes)
+        if (file.exists() && (file.lastModified() >= getLastUpdateTime(context))) {
+            try (InputStream input = new FileInputStream(file)) {
+                return read(input);
+            } catch (IOException e) {
+                Log.w(TAG, "Invalid cached convex hull: " + file, e);
+            }
+        }
+
+        Log.v(TAG, "Computing the convex hull of: " + name);
+        float[] vertices = compute(mesh);
+
+        file.getParentFile().mkdirs();
+
+        try (OutputStream output = new FileOutputStream(file)) {
+            write(vertices, output);
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to cache the convex hull: " + file, e);
+        }
+
+        return vertices;
+    }
+
+
+    private static long getLastUpdateTime(Context context) {
+        try {
+            return context.getPackageManager().getPackageInfo(context.getPackageName(), 0).lastUpdateTime;
+        } catch (PackageManager.NameNotFoundException e) {
+            return Long.MAX_VALUE;
+        }
+    }
+
+
+    private static ConvexHullShape createShape(float[] vertices) {
+        ObjectArrayList<Vector3f> points = new ObjectArrayList<>(vertices.length / 3);
+
+        for (int i = 0; i < vertices.length; i += 3) {
+            points.add(new Vector3f(
+                    vertices[i] * World.SCALE, vertices[i + 1] * World.SCALE, vertices[i + 2] * World.SCALE
+            ));
+        }
+
+        return new ConvexHullShape(points);
+    }
+
+
+    private static float[] toArray(ObjectArrayList<Vector3f> points) {
+        float[] vertices = new float[points.size() * 3];
+
+        for (int i = 0; i < points.size(); ++i) {
+            Vector3f point = points.getQuick(i);
+            vertices[i * 3] = point.x / World.SCALE;
+            vertices[i * 3 + 1] = point.y / World.SCALE;
+            vertices[i * 3 + 2] = point.z / World.SCALE;
+        }
+
+        return vertices;
+    }
+
+
+    private static ByteBuffer readBlock(DataInputStream input, int size) throws IOException {
+        byte[] data = new byte[size];
+        input.readFully(data);
+        return ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN);
+    }
+}
@@ -15,37 +15,58 @@ import ch.idiap.android.glrenderer.meshes.SubMesh;
 import ch.idiap.android.glrenderer.physics.World;
 
 
+/** Vertices and indices of a submesh, as seen by the physics engine
+ *
+ * The positions are copied once, already scaled to the physics world, in a tightly packed
+ * array (3 floats per vertex), so the queries don't touch the rendering buffers.
+ */
 public class SubMeshVertexData extends VertexData {
 
-    private SubMesh submesh = null;
+    private final float[] positions;
+    private final int[] indices;
 
 
     public SubMeshVertexData(SubMesh submesh) {
-        this.submesh = submesh;
+        positions = new float[submesh.nbVertices * 3];
+
+        for (int i = 0; i < submesh.nbVertices; ++i) {
+            int offset = i * submesh.vertexSize + SubMesh.POSITION_OFFSET;
+
+            positions[i * 3] = submesh.verticesBuffer.get(offset) * World.SCALE;
+            positions[i * 3 + 1] = submesh.verticesBuffer.get(offset + 1) * World.SCALE;
+            positions[i * 3 + 2] = submesh.verticesBuffer.get(offset + 2) * World.SCALE;
+        }
+
+        if (submesh.indicesBuffer != null) {
+            indices = new int[submesh.indicesBuffer.capacity()];
+
+            for (int i = 0; i < indices.length; ++i)
+                indices[i] = submesh.indicesBuffer.get(i);
+        } else {
+            indices = null;
+        }
     }
 
 
     public int getVertexCount() {
-        return submesh.nbVertices;
+        return positions.length / 3;
     }
 
 
     public int getIndexCount() {
-        if (submesh.indicesBuffer != null)
-            return submesh.indicesBuffer.capacity();
+        if (indices != null)
+            return indices.length;
 
         return getVertexCount();
     }
 
 
     public <T extends Tuple3f> T getVertex(int idx, T out) {
-        int offset = idx * submesh.vertexSize + SubMesh.POSITION_OFFSET;
-
-        submesh.verticesBuffer.position(0);
+        int offset = idx * 3;
 
-        out.x = submesh.verticesBuffer.get(offset) * World.SCALE;
-        out.y = submesh.verticesBuffer.get(offset + 1) * World.SCALE;
-        out.z = submesh.verticesBuffer.get(offset + 2) * World.SCALE;
+        out.x = positions[offset];
+        out.y = positions[offset + 1];
+        out.z = positions[offset + 2];
 
         return out;
     }
@@ -56,8 +77,8 @@ public class SubMeshVertexData extends VertexData {
 
 
     public int getIndex(int idx) {
-        if (submesh.indicesBuffer != null)
-            return submesh.indicesBuffer.get(idx);
+        if (indices != null)
+            return indices[idx];
 
         return idx;
     }
@@ -10,26 +10,39 @@ package ch.idiap.android.glrenderer.physics.helpers;
 import com.bulletphysics.collision.shapes.StridingMeshInterface;
 import com.bulletphysics.collision.shapes.VertexData;
 
+import java.util.Map;
+import java.util.WeakHashMap;
+
 import ch.idiap.android.glrenderer.meshes.SubMesh;
 
 
 public class SubMeshWrapper extends StridingMeshInterface
 {
-    private SubMesh submesh = null;
+    // The vertex data of a submesh is built once, and shared by all the shapes using it
+    private static final Map<SubMesh, SubMeshVertexData> vertexDatas = new WeakHashMap<>();
+
+    private SubMeshVertexData vertexData = null;
 
 
     public SubMeshWrapper(SubMesh submesh) {
-        this.submesh = submesh;
+        synchronized (vertexDatas) {
+            vertexData = vertexDatas.get(submesh);
+
+            if (vertexData == null) {
+                vertexData = new SubMeshVertexData(submesh);
+                vertexDatas.put(submesh, vertexData);
+            }
+        }
     }
 
 
     public VertexData getLockedVertexIndexBase(int subpart/*=0*/) {
-        return new SubMeshVertexData(submesh);
+        return vertexData;
     }
 
 
     public VertexData getLockedReadOnlyVertexIndexBase(int subpart/*=0*/) {
-        return new SubMeshVertexData(submesh);
+        return vertexData;
     }
 
 
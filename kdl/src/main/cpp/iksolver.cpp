@@ -0,0 +1,60 @@
+/*
+ * Copyright (C) 2020 Idiap Research Institute
+ *
+ * Authors:
+ *   philip.abbet@idiap.ch (Philip Abbet)
+ */
+
+#include "iksolver.h"
+#include "robot.h"
+
+
+IkSolver::IkSolver(const KDL::Chain& chain)
+: chain(chain), solver(this->chain), fkSolver(this->chain), start(chain.getNrOfJoints()),
+  solution(chain.getNrOfJoints())
+{
+}
+
+
+int IkSolver::solve(const float* initialPositions, const float* goals, float* result, float* errors,
+					int* status, int count)
+{
+	const unsigned int nbJoints = getNbJoints();
+	int nbConverged = 0;
+
+	for (unsigned int j = 0; j < nbJoints; ++j)
+		start(j) = initialPositions[j];
+
+	for (int i = 0; i < count; ++i)
+	{
+		status[i] = solver.CartToJnt(start, Robot::readFrame(goals + i * 7), solution);
+		errors[i] = (float) solver.lastDifference;
+
+		for (unsigned int j = 0; j < nbJoints; ++j)
+			result[i * nbJoints + j] = (float) solution(j);
+
+		// Consecutive via-points are close to each other: warm-start the next search
+		if (status[i] == KDL::SolverI::E_NOERROR)
+		{
+			start = solution;
+			++nbConverged;
+		}
+	}
+
+	return nbConverged;
+}
+
+
+void IkSolver::forwardKinematics(const float* positions, float* result, int count)
+{
+	const unsigned int nbJoints = getNbJoints();
+
+	for (int i = 0; i < count; ++i)
+	{
+		for (unsigned int j = 0; j < nbJoints; ++j)
+			start(j) = positions[i * nbJoints + j];
+
+		fkSolver.JntToCart(start, pose);
+		Robot::writeFrame(pose, result + i * 7);
+	}
+}
@@ -0,0 +1,60 @@
+/*
+ * Copyright (C) 2020 Idiap Research Institute
+ *
+ * Authors:
+ *   philip.abbet@idiap.ch (Philip Abbet)
+ */
+
+#pragma once
+
+#include <kdl/chain.hpp>
+#include <kdl/jntarray.hpp>
+#include <kdl/chainiksolverpos_lma.hpp>
+#include <kdl/chainfksolverpos_recursive.hpp>
+
+class IkSolver
+{
+public:
+	/**
+	 * The solver keeps its own copy of the chain, so several solvers can be used in parallel
+	 */
+	IkSolver(const KDL::Chain& chain);
+
+
+public:
+	/**
+	 * Compute the inverse kinematics for a sequence of goals, each search starting from the
+	 * solution of the previous goal (or from the initial positions, until a goal converges)
+	 * @param initialPositions the joint positions from which to start the search
+	 * @param goals 7 floats per goal: the end-effector position and orientation
+	 * @param result the joint positions of each goal
+	 * @param errors the remaining distance to each goal (weighted position and rotation error)
+	 * @param status the status of each goal (0 if it converged, see KDL::SolverI)
+	 * @param count the number of goals
+	 * @return the number of goals that converged
+	 */
+	int solve(const float* initialPositions, const float* goals, float* result, float* errors,
+			  int* status, int count);
+
+	/**
+	 * Compute the forward kinematics for several joint configurations (like
+	 * Robot::forwardKinematics(), but usable from the thread of the solver)
+	 * @param positions the joint positions of each configuration
+	 * @param result 7 floats per configuration: the end-effector position and orientation
+	 * @param count the number of configurations
+	 */
+	void forwardKinematics(const float* positions, float* result, int count);
+
+	inline unsigned int getNbJoints() const
+	{
+		return chain.getNrOfJoints();
+	}
+
+private:
+	KDL::Chain chain;
+	KDL::ChainIkSolverPos_LMA solver;
+	KDL::ChainFkSolverPos_recursive fkSolver;
+	KDL::JntArray start;
+	KDL::JntArray solution;
+	KDL::Frame pose;
+};
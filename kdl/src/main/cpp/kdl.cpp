@@ -85,133 +85,287 @@ extern "C" JNIEXPORT jboolean JNICALL Java_ch_idiap_android_kdl_KDL_setKinematic
 }
 
 
-extern "C" JNIEXPORT jobjectArray JNICALL Java_ch_idiap_android_kdl_KDL_getJointNames(
+extern "C" JNIEXPORT jint JNICALL Java_ch_idiap_android_kdl_KDL_getJointCount(
 	JNIEnv* env, jclass cls, jlong robotHandle)
 {
 	Robot* robot = reinterpret_cast<Robot*>(robotHandle);
 
-	auto jointNames = robot->getJointNames();
+	return (jint) robot->getNbJoints();
+}
+
 
-	jobjectArray result = (jobjectArray) env->NewObjectArray(
-		jointNames.size(), env->FindClass("java/lang/String"), nullptr);
+extern "C" JNIEXPORT jstring JNICALL Java_ch_idiap_android_kdl_KDL_getJointName(
+	JNIEnv* env, jclass cls, jlong robotHandle, jint id)
+{
+	Robot* robot = reinterpret_cast<Robot*>(robotHandle);
 
-	for (int i = 0; i < jointNames.size(); ++i)
-		env->SetObjectArrayElement(result, i, env->NewStringUTF(jointNames[i].c_str()));
+	auto& jointNames = robot->getJointNames();
+	if ((id < 0) || (id >= jointNames.size()))
+		return nullptr;
 
-	return result;
+	return env->NewStringUTF(jointNames[id].c_str());
+}
+
+
+extern "C" JNIEXPORT jint JNICALL Java_ch_idiap_android_kdl_KDL_getJointId(
+	JNIEnv* env, jclass cls, jlong robotHandle, jstring jName)
+{
+	Robot* robot = reinterpret_cast<Robot*>(robotHandle);
+
+	return robot->getJointId(convertJString(env, jName));
 }
 
 
 extern "C" JNIEXPORT void JNICALL Java_ch_idiap_android_kdl_KDL_computeJacobian(
-	JNIEnv* env, jclass cls, jlong robotHandle, jfloatArray jPositionsArray)
+	JNIEnv* env, jclass cls, jlong robotHandle, jobject jPositions, jobject jResult)
 {
 	Robot* robot = reinterpret_cast<Robot*>(robotHandle);
 
-    // transfer the initial joint positions to robot
-	KDL::JntArray& positions = robot->getJointPositions();
-	auto jointNames = robot->getJointNames();
-	jfloat* jPositions = env->GetFloatArrayElements(jPositionsArray, 0);
-	for (int i = 0; i < jointNames.size(); ++i)
-		positions(i) = jPositions[i];
-	env->ReleaseFloatArrayElements(jPositionsArray, jPositions, 0);
+	const jlong nbJoints = robot->getNbJoints();
 
-	robot->computeJacobian();
+	float* positions = getFloatBuffer(env, jPositions, nbJoints);
+	if (positions == nullptr)
+		return;
+
+	float* result = getFloatBuffer(env, jResult, nbJoints * 6);
+	if (result == nullptr)
+		return;
+
+	robot->computeJacobian(positions, result);
 }
 
 
-extern "C" JNIEXPORT jfloatArray JNICALL Java_ch_idiap_android_kdl_KDL_processJointPosition(
-		JNIEnv* env, jclass cls, jlong robotHandle, jstring jName, jfloat jPosition)
+extern "C" JNIEXPORT void JNICALL Java_ch_idiap_android_kdl_KDL_processJointPositions(
+	JNIEnv* env, jclass cls, jlong robotHandle, jobject jPositions, jobject jResult)
 {
 	Robot* robot = reinterpret_cast<Robot*>(robotHandle);
 
-	std::string name = convertJString(env, jName);
+	const jlong nbJoints = robot->getNbJoints();
+
+	float* positions = getFloatBuffer(env, jPositions, nbJoints);
+	if (positions == nullptr)
+		return;
+
+	float* result = getFloatBuffer(env, jResult, nbJoints * 7);
+	if (result == nullptr)
+		return;
+
+	robot->processJointPositions(positions, result);
+}
+
+
+extern "C" JNIEXPORT void JNICALL Java_ch_idiap_android_kdl_KDL_forwardKinematics(
+	JNIEnv* env, jclass cls, jlong robotHandle, jobject jPositions, jobject jResult, jint count)
+{
+	Robot* robot = reinterpret_cast<Robot*>(robotHandle);
+
+	const jlong nbJoints = robot->getNbJoints();
+
+	float* positions = getFloatBuffer(env, jPositions, nbJoints * count);
+	if (positions == nullptr)
+		return;
+
+	float* result = getFloatBuffer(env, jResult, 7 * count);
+	if (result == nullptr)
+		return;
+
+	robot->forwardKinematics(positions, result, count);
+}
+
+
+/**
+ * Check the buffers given to an inverse kinematics query and solve it
+ */
+static jint solveInverseKinematics(
+	JNIEnv* env, IkSolver* solver, jobject jInitialPositions, jobject jGoals, jobject jResult,
+	jobject jErrors, jobject jStatus, jint count)
+{
+	if (solver == nullptr)
+		return 0;
+
+	const jlong nbJoints = solver->getNbJoints();
+
+	float* initialPositions = getFloatBuffer(env, jInitialPositions, nbJoints);
+	if (initialPositions == nullptr)
+		return 0;
+
+	float* goals = getFloatBuffer(env, jGoals, 7 * count);
+	if (goals == nullptr)
+		return 0;
+
+	float* result = getFloatBuffer(env, jResult, nbJoints * count);
+	if (result == nullptr)
+		return 0;
+
+	float* errors = getFloatBuffer(env, jErrors, count);
+	if (errors == nullptr)
+		return 0;
+
+	int* status = getIntBuffer(env, jStatus, count);
+	if (status == nullptr)
+		return 0;
+
+	return solver->solve(initialPositions, goals, result, errors, status, count);
+}
+
+
+extern "C" JNIEXPORT jint JNICALL Java_ch_idiap_android_kdl_KDL_inverseKinematics(
+	JNIEnv* env, jclass cls, jlong robotHandle, jobject jInitialPositions, jobject jGoals,
+	jobject jResult, jobject jErrors, jobject jStatus, jint count)
+{
+	Robot* robot = reinterpret_cast<Robot*>(robotHandle);
+
+	return solveInverseKinematics(env, robot->getIkSolver(), jInitialPositions, jGoals, jResult,
+								  jErrors, jStatus, count);
+}
+
+
+extern "C" JNIEXPORT jlong JNICALL Java_ch_idiap_android_kdl_KDL_createIkSolver(
+	JNIEnv* env, jclass cls, jlong robotHandle)
+{
+	Robot* robot = reinterpret_cast<Robot*>(robotHandle);
+
+	IkSolver* solver = robot->createIkSolver();
+	return reinterpret_cast<jlong>(solver);
+}
+
+
+extern "C" JNIEXPORT void JNICALL Java_ch_idiap_android_kdl_KDL_releaseIkSolver(
+	JNIEnv* env, jclass cls, jlong solverHandle)
+{
+	IkSolver* solver = reinterpret_cast<IkSolver*>(solverHandle);
+	delete solver;
+}
+
+
+extern "C" JNIEXPORT jint JNICALL Java_ch_idiap_android_kdl_KDL_solveInverseKinematics(
+	JNIEnv* env, jclass cls, jlong solverHandle, jobject jInitialPositions, jobject jGoals,
+	jobject jResult, jobject jErrors, jobject jStatus, jint count)
+{
+	IkSolver* solver = reinterpret_cast<IkSolver*>(solverHandle);
+
+	return solveInverseKinematics(env, solver, jInitialPositions, jGoals, jResult, jErrors,
+								  jStatus, count);
+}
+
+
+extern "C" JNIEXPORT void JNICALL Java_ch_idiap_android_kdl_KDL_solverForwardKinematics(
+	JNIEnv* env, jclass cls, jlong solverHandle, jobject jPositions, jobject jResult, jint count)
+{
+	IkSolver* solver = reinterpret_cast<IkSolver*>(solverHandle);
+
+	const jlong nbJoints = solver->getNbJoints();
+
+	float* positions = getFloatBuffer(env, jPositions, nbJoints * count);
+	if (positions == nullptr)
+		return;
+
+	float* result = getFloatBuffer(env, jResult, 7 * count);
+	if (result == nullptr)
+		return;
+
+	solver->forwardKinematics(positions, result, count);
+}
+
+
+extern "C" JNIEXPORT jint JNICALL Java_ch_idiap_android_kdl_KDL_getSegmentCount(
+	JNIEnv* env, jclass cls, jlong robotHandle)
+{
+	Robot* robot = reinterpret_cast<Robot*>(robotHandle);
+
+	return (jint) robot->getSegmentNames().size();
+}
 
-	const KDL::Frame frame = robot->processJointPosition(name, jPosition);
 
-	double x, y, z, w;
-	frame.M.GetQuaternion(x, y, z, w);
+extern "C" JNIEXPORT jstring JNICALL Java_ch_idiap_android_kdl_KDL_getSegmentName(
+	JNIEnv* env, jclass cls, jlong robotHandle, jint id)
+{
+	Robot* robot = reinterpret_cast<Robot*>(robotHandle);
 
-    jfloatArray jRotation = env->NewFloatArray(4);
+	auto& segmentNames = robot->getSegmentNames();
+	if ((id < 0) || (id >= segmentNames.size()))
+		return nullptr;
 
-    jfloat* jElements = env->GetFloatArrayElements(jRotation, 0);
+	return env->NewStringUTF(segmentNames[id].c_str());
+}
 
-    jElements[0] = (float) x;
-    jElements[1] = (float) y;
-    jElements[2] = (float) z;
-    jElements[3] = (float) w;
 
-    env->ReleaseFloatArrayElements(jRotation, jElements, 0);
+extern "C" JNIEXPORT jint JNICALL Java_ch_idiap_android_kdl_KDL_getSegmentId(
+	JNIEnv* env, jclass cls, jlong robotHandle, jstring jName)
+{
+	Robot* robot = reinterpret_cast<Robot*>(robotHandle);
 
-    return jRotation;
+	return robot->getSegmentId(convertJString(env, jName));
 }
 
-extern "C" JNIEXPORT jfloatArray JNICALL Java_ch_idiap_android_kdl_KDL_forwardKinematics(
-        JNIEnv* env, jclass cls, jlong robotHandle, jfloatArray jPositionsArray)
+
+extern "C" JNIEXPORT jint JNICALL Java_ch_idiap_android_kdl_KDL_getTreeJointCount(
+	JNIEnv* env, jclass cls, jlong robotHandle)
 {
-    Robot* robot = reinterpret_cast<Robot*>(robotHandle);
+	Robot* robot = reinterpret_cast<Robot*>(robotHandle);
+
+	return (jint) robot->getNbTreeJoints();
+}
 
-    // transfer the initial joint positions to robot
-    auto jointNames = robot->getJointNames();
-    KDL::JntArray& positions = robot->getJointPositions();
-    jfloat* jPositions = env->GetFloatArrayElements(jPositionsArray, 0);
-    for (int i = 0; i < jointNames.size(); ++i)
-        positions(i) = jPositions[i];
-    env->ReleaseFloatArrayElements(jPositionsArray, jPositions, 0);
 
-    // compute the forward kinematics
-	KDL::Frame& cartPos = robot->forwardKinematics();
+extern "C" JNIEXPORT jstring JNICALL Java_ch_idiap_android_kdl_KDL_getTreeJointName(
+	JNIEnv* env, jclass cls, jlong robotHandle, jint id)
+{
+	Robot* robot = reinterpret_cast<Robot*>(robotHandle);
 
-	//convert the output (we only need to keep the positions)
-	jfloatArray result = env->NewFloatArray(3);
-	jfloat* jCartPos = env->GetFloatArrayElements(result, 0);
-	jCartPos[0] = cartPos.p.x();
-	jCartPos[1] = cartPos.p.y();
-	jCartPos[2] = cartPos.p.z();
-    env->ReleaseFloatArrayElements(result, jCartPos, 0);
+	auto& jointNames = robot->getTreeJointNames();
+	if ((id < 0) || (id >= jointNames.size()))
+		return nullptr;
 
-    return result;
+	return env->NewStringUTF(jointNames[id].c_str());
 }
 
-extern "C" JNIEXPORT jfloatArray JNICALL Java_ch_idiap_android_kdl_KDL_inverseKinematics(
-        JNIEnv* env, jclass cls, jlong robotHandle, jfloatArray jPositionsArray, jfloatArray jgoalPos, jfloatArray jgoalOrient)
+
+extern "C" JNIEXPORT jint JNICALL Java_ch_idiap_android_kdl_KDL_getTreeJointId(
+	JNIEnv* env, jclass cls, jlong robotHandle, jstring jName)
 {
-    Robot* robot = reinterpret_cast<Robot*>(robotHandle);
+	Robot* robot = reinterpret_cast<Robot*>(robotHandle);
+
+	return robot->getTreeJointId(convertJString(env, jName));
+}
+
+
+extern "C" JNIEXPORT void JNICALL Java_ch_idiap_android_kdl_KDL_treeForwardKinematics(
+	JNIEnv* env, jclass cls, jlong robotHandle, jobject jPositions, jobject jResult, jboolean local)
+{
+	Robot* robot = reinterpret_cast<Robot*>(robotHandle);
+
+	float* positions = getFloatBuffer(env, jPositions, robot->getNbTreeJoints());
+	if (positions == nullptr)
+		return;
+
+	float* result = getFloatBuffer(env, jResult, robot->getSegmentNames().size() * 7);
+	if (result == nullptr)
+		return;
 
-	auto jointNames = robot->getJointNames();
+	robot->treeForwardKinematics(positions, result, local);
+}
 
-    // transfer the initial joint positions to robot
-    /*KDL::JntArray& positions = robot->getJointPositions();
-    jfloat* jPositions = env->GetFloatArrayElements(jPositionsArray, 0);
-    for (int i = 0; i < jointNames.size(); ++i)
-        positions(i) = jPositions[i];
-    env->ReleaseFloatArrayElements(jPositionsArray, jPositions, 0);*/
 
-    // transfer the goal position in a Vector variable
-    jfloat* goalPosFloat = env->GetFloatArrayElements(jgoalPos, 0);
-    KDL::Vector* goalPosVector;
-    goalPosVector->x(goalPosFloat[0]);
-    goalPosVector->y(goalPosFloat[1]);
-    goalPosVector->z(goalPosFloat[2]);
-    env->ReleaseFloatArrayElements(jgoalPos, goalPosFloat, 0);
+extern "C" JNIEXPORT jfloat JNICALL Java_ch_idiap_android_kdl_KDL_differentialIkStep(
+	JNIEnv* env, jclass cls, jlong robotHandle, jobject jPositions, jobject jGoal, jobject jLimits,
+	jfloat damping, jfloat maxStep, jfloat limitsGain)
+{
+	Robot* robot = reinterpret_cast<Robot*>(robotHandle);
 
-	// transfer the goal orientation in a Rotation variable
-	jfloat* goalOrientFloat = env->GetFloatArrayElements(jgoalOrient, 0);
-	KDL::Rotation goalOrientRot = KDL::Rotation::Quaternion((double)goalOrientFloat[0],
-			(double)goalOrientFloat[1], (double)goalOrientFloat[2],(double) goalOrientFloat[3]);
-	env->ReleaseFloatArrayElements(jgoalOrient, goalOrientFloat, 0);
+	const jlong nbJoints = robot->getNbJoints();
 
-	// transfer the goal position and orientation in a Frame variable
-    KDL::Frame* goalFrame = new KDL::Frame(goalOrientRot, *goalPosVector);
+	float* positions = getFloatBuffer(env, jPositions, nbJoints);
+	if (positions == nullptr)
+		return 0.0f;
 
-    //compute the inverse kinematics
-	KDL::JntArray jointGoal = robot->inverseKinematics(*goalFrame); //&
+	float* goal = getFloatBuffer(env, jGoal, 7);
+	if (goal == nullptr)
+		return 0.0f;
 
-    //convert the output
-    jfloatArray result = env->NewFloatArray(jointNames.size());
-    jfloat* jGoal = env->GetFloatArrayElements(result, 0);
-    for (int i = 0; i < jointNames.size(); ++i)
-        jGoal[i] = jointGoal(i);
-	env->ReleaseFloatArrayElements(result, jGoal, 0);
+	float* limits = getFloatBuffer(env, jLimits, nbJoints * 2);
+	if (limits == nullptr)
+		return 0.0f;
 
-    return result;
+	return robot->differentialIkStep(positions, goal, limits, damping, maxStep, limitsGain);
 }
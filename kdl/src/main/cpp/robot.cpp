@@ -10,7 +10,7 @@
 
 
 Robot::Robot(const std::string& rootName)
-: tree(rootName), jacobianSolver(nullptr)
+: tree(rootName), jacobianSolver(nullptr), treeDirty(true), fkSolver(nullptr), ikSolver(nullptr)
 {
 }
 
@@ -26,6 +26,7 @@ Robot::~Robot()
 void Robot::addSegment(const KDL::Segment& segment, const std::string& parentLinkName)
 {
 	tree.addSegment(segment, parentLinkName);
+	treeDirty = true;
 }
 
 
@@ -36,13 +37,23 @@ bool Robot::init(const std::string& root, const std::string& tip)
 
 	jacobian = KDL::Jacobian(chain.getNrOfJoints());
 	positions.resize(chain.getNrOfJoints());
-    jointPosGoal.resize(chain.getNrOfJoints());
+
+	pseudoInverse.resize(chain.getNrOfJoints(), 6);
+	nullspace.resize(chain.getNrOfJoints(), chain.getNrOfJoints());
+	jointStep.resize(chain.getNrOfJoints());
+	secondaryStep.resize(chain.getNrOfJoints());
 
     // solvers
+	delete jacobianSolver;
+	delete ikSolver;
+	delete fkSolver;
+
 	jacobianSolver = new KDL::ChainJntToJacSolver(chain);
-	ikSolver = new KDL::ChainIkSolverPos_LMA(chain);
+	ikSolver = new IkSolver(chain);
 	fkSolver = new KDL::ChainFkSolverPos_recursive(chain);
 
+	jointNames.clear();
+
 	for (int i = 0; i < chain.getNrOfSegments(); ++i) {
 		KDL::Segment segment = chain.getSegment(i);
 		KDL::Joint joint = segment.getJoint();
@@ -58,32 +69,230 @@ bool Robot::init(const std::string& root, const std::string& tip)
 }
 
 
-void Robot::computeJacobian()
+int Robot::getJointId(const std::string& name) const
+{
+	auto iter = std::find(jointNames.begin(), jointNames.end(), name);
+	return (iter != jointNames.end() ? int(iter - jointNames.begin()) : -1);
+}
+
+
+void Robot::computeJacobian(const float* positions, float* result)
+{
+	setPositions(positions);
+
+	jacobianSolver->JntToJac(this->positions, jacobian);
+
+	for (unsigned int j = 0; j < jacobian.columns(); ++j)
+	{
+		for (unsigned int i = 0; i < 6; ++i)
+			result[j * 6 + i] = (float) jacobian(i, j);
+	}
+}
+
+
+void Robot::processJointPositions(const float* positions, float* result)
+{
+	int index = 0;
+
+	for (const KDL::Segment& segment : chain.segments)
+	{
+		if (segment.getJoint().getType() == KDL::Joint::None)
+			continue;
+
+		writeFrame(segment.pose(positions[index]), result + index * 7);
+		++index;
+	}
+}
+
+
+void Robot::forwardKinematics(const float* positions, float* result, int count)
+{
+	const unsigned int nbJoints = getNbJoints();
+
+	for (int i = 0; i < count; ++i)
+	{
+		setPositions(positions + i * nbJoints);
+		fkSolver->JntToCart(this->positions, cartPos);
+		writeFrame(cartPos, result + i * 7);
+	}
+}
+
+
+float Robot::differentialIkStep(float* positions, const float* goal, const float* limits,
+								float damping, float maxStep, float limitsGain)
+{
+	const unsigned int nbJoints = getNbJoints();
+
+	setPositions(positions);
+
+	fkSolver->JntToCart(this->positions, cartPos);
+	jacobianSolver->JntToJac(this->positions, jacobian);
+
+	// Error of the end-effector, as a twist expressed in the base frame
+	const KDL::Twist error = KDL::diff(cartPos, readFrame(goal));
+
+	Eigen::Matrix<double, 6, 1> e;
+	e << error.vel.x(), error.vel.y(), error.vel.z(), error.rot.x(), error.rot.y(), error.rot.z();
+
+	// Damped pseudo-inverse: J^T (J J^T + lambda^2 I)^-1 (the 6x6 part needs no allocation)
+	Eigen::Matrix<double, 6, 6> jjt;
+	jjt.noalias() = jacobian.data * jacobian.data.transpose();
+	jjt.diagonal().array() += double(damping) * damping;
+
+	pseudoInverse.noalias() = jacobian.data.transpose() * jjt.ldlt().solve(Eigen::Matrix<double, 6, 6>::Identity());
+
+	jointStep.noalias() = pseudoInverse * e;
+
+	// Secondary task: move the joints towards the middle of their range
+	nullspace.noalias() = -pseudoInverse * jacobian.data;
+	nullspace.diagonal().array() += 1.0;
+
+	for (unsigned int i = 0; i < nbJoints; ++i)
+	{
+		const double range = std::max(double(limits[nbJoints + i] - limits[i]), 1e-6);
+		const double middle = 0.5 * (limits[i] + limits[nbJoints + i]);
+		secondaryStep(i) = -limitsGain * (this->positions(i) - middle) / (range * range);
+	}
+
+	jointStep.noalias() += nullspace * secondaryStep;
+
+	// Limit the size of the step, so the target is tracked smoothly
+	const double largest = jointStep.cwiseAbs().maxCoeff();
+	if (largest > maxStep)
+		jointStep *= maxStep / largest;
+
+	for (unsigned int i = 0; i < nbJoints; ++i)
+	{
+		const double position = this->positions(i) + jointStep(i);
+		positions[i] = (float) std::min(std::max(position, double(limits[i])), double(limits[nbJoints + i]));
+	}
+
+	return (float) error.vel.Norm();
+}
+
+
+IkSolver* Robot::createIkSolver() const
+{
+	return new IkSolver(chain);
+}
+
+
+void Robot::treeForwardKinematics(const float* positions, float* result, bool local)
+{
+	prepareTree();
+
+	for (size_t i = 0; i < treeSegments.size(); ++i)
+	{
+		const TreeSegment& entry = treeSegments[i];
+
+		KDL::Frame pose = entry.segment->pose(entry.joint >= 0 ? positions[entry.joint] : 0.0);
+
+		// The parent always comes first, so its frame is already computed
+		if (entry.parent >= 0)
+			treeFrames[i] = treeFrames[entry.parent] * pose;
+		else
+			treeFrames[i] = pose;
+
+		writeFrame(local ? pose : treeFrames[i], result + i * 7);
+	}
+}
+
+
+int Robot::getSegmentId(const std::string& name)
 {
-	jacobianSolver->JntToJac(positions, jacobian);
+	prepareTree();
+
+	auto iter = std::find(segmentNames.begin(), segmentNames.end(), name);
+	return (iter != segmentNames.end() ? int(iter - segmentNames.begin()) : -1);
+}
+
+
+int Robot::getTreeJointId(const std::string& name)
+{
+	prepareTree();
+
+	auto iter = std::find(treeJointNames.begin(), treeJointNames.end(), name);
+	return (iter != treeJointNames.end() ? int(iter - treeJointNames.begin()) : -1);
 }
 
 
-KDL::Frame Robot::processJointPosition(const std::string& name, float position)
+void Robot::prepareTree()
 {
-	for (auto segment : chain.segments)
+	if (!treeDirty)
+		return;
+
+	treeSegments.clear();
+	segmentNames.clear();
+	treeJointNames.assign(tree.getNrOfJoints(), std::string());
+
+	// Breadth-first traversal from the root (which isn't part of the result)
+	std::vector<KDL::SegmentMap::const_iterator> elements;
+	std::vector<int> parents;
+
+	KDL::SegmentMap::const_iterator root = tree.getRootSegment();
+	for (auto child : GetTreeElementChildren(root->second))
 	{
-		if (segment.getJoint().getName() == name)
-			return segment.pose(position);
+		elements.push_back(child);
+		parents.push_back(-1);
 	}
 
-	return KDL::Frame();
+	for (size_t i = 0; i < elements.size(); ++i)
+	{
+		const KDL::TreeElementType& element = elements[i]->second;
+		const KDL::Segment& segment = GetTreeElementSegment(element);
+
+		TreeSegment entry;
+		entry.segment = &segment;
+		entry.parent = parents[i];
+		entry.joint = -1;
+
+		if (segment.getJoint().getType() != KDL::Joint::None)
+		{
+			entry.joint = (int) GetTreeElementQNr(element);
+			treeJointNames[entry.joint] = segment.getJoint().getName();
+		}
+
+		treeSegments.push_back(entry);
+		segmentNames.push_back(segment.getName());
+
+		for (auto child : GetTreeElementChildren(element))
+		{
+			elements.push_back(child);
+			parents.push_back((int) i);
+		}
+	}
+
+	treeFrames.resize(treeSegments.size());
+	treeDirty = false;
 }
 
 
-KDL::Frame& Robot::forwardKinematics() //&
+void Robot::setPositions(const float* src)
 {
-	fkSolver->JntToCart(positions, cartPos);
-	return cartPos;
+	for (unsigned int i = 0; i < positions.rows(); ++i)
+		positions(i) = src[i];
 }
 
-KDL::JntArray Robot::inverseKinematics(KDL::Frame goal) //&
+
+void Robot::writeFrame(const KDL::Frame& frame, float* dst)
 {
-	ikSolver->CartToJnt(positions, goal, jointPosGoal);
-	return jointPosGoal;
-}
\ No newline at end of file
+	double x, y, z, w;
+	frame.M.GetQuaternion(x, y, z, w);
+
+	dst[0] = (float) frame.p.x();
+	dst[1] = (float) frame.p.y();
+	dst[2] = (float) frame.p.z();
+	dst[3] = (float) x;
+	dst[4] = (float) y;
+	dst[5] = (float) z;
+	dst[6] = (float) w;
+}
+
+
+KDL::Frame Robot::readFrame(const float* src)
+{
+	return KDL::Frame(
+		KDL::Rotation::Quaternion(src[3], src[4], src[5], src[6]),
+		KDL::Vector(src[0], src[1], src[2])
+	);
+}
@@ -13,10 +13,11 @@
 #include <kdl/chain.hpp>
 #include <kdl/segment.hpp>
 #include <kdl/chainjnttojacsolver.hpp>
-#include <kdl/chainiksolverpos_lma.hpp>
 #include <kdl/chainfksolverpos_recursive.hpp>
 #include <android/log.h>
 
+#include "iksolver.h"
+
 class Robot
 {
 public:
@@ -29,46 +30,152 @@ public:
 
 	bool init(const std::string& root, const std::string& tip);
 
-	void computeJacobian();
+	/**
+	 * Returns the index of a joint of the kinematic chain, or -1
+	 */
+	int getJointId(const std::string& name) const;
+
+	/**
+	 * Compute the jacobian of the end-effector
+	 * @param positions the joint positions
+	 * @param result 6 floats per joint (linear then angular velocity)
+	 */
+	void computeJacobian(const float* positions, float* result);
+
+	/**
+	 * Compute the pose of each segment of the chain relative to its parent
+	 * @param positions the joint positions
+	 * @param result 7 floats per joint (position, then orientation as a quaternion x, y, z, w)
+	 */
+	void processJointPositions(const float* positions, float* result);
 
-	KDL::Frame processJointPosition(const std::string& name, float position);
+	/**
+	 * Compute the forward kinematics for several joint configurations
+	 * @param positions the joint positions of each configuration
+	 * @param result 7 floats per configuration: the end-effector position and orientation
+	 * @param count the number of configurations
+	 */
+	void forwardKinematics(const float* positions, float* result, int count);
 
 	/**
-	 * Compute the forward kinematics
-	 * @return the end-effector 3D position
+	 * Create a new inverse kinematics solver for the kinematic chain, independent from this
+	 * object (and thus usable from another thread)
 	 */
-	KDL::Frame& forwardKinematics();
+	IkSolver* createIkSolver() const;
 
 	/**
-	 * Compute the inverse kinematics
-	 * @param the goal position and orientation for the end-effector
-	 * @return an array of all the joint angles in the goal position
+	 * Move the joints one damped least squares step towards a goal of the end-effector, with
+	 * a secondary task (in the nullspace of the jacobian) pushing them away from their limits
+	 * @param positions the joint positions, updated
+	 * @param goal 7 floats: the end-effector position and orientation
+	 * @param limits the lower limits of the joints, followed by the upper ones (-/+FLT_MAX
+	 *               for the unbounded joints, which the secondary task then ignores)
+	 * @param damping the damping factor (avoids large steps near singularities)
+	 * @param maxStep the maximum change of any joint position during the step
+	 * @param limitsGain the gain of the secondary task
+	 * @return the remaining position error of the end-effector, before the step
 	 */
-	KDL::JntArray inverseKinematics(KDL::Frame goal); //&
+	float differentialIkStep(float* positions, const float* goal, const float* limits,
+							 float damping, float maxStep, float limitsGain);
+
+	/**
+	 * Compute the pose of every segment of the tree, in one recursive pass
+	 * @param positions the positions of the joints of the tree, by tree joint id
+	 * @param result 7 floats per segment, by segment id (position, then orientation as a
+	 *               quaternion x, y, z, w)
+	 * @param local if true, the poses are relative to the parent segment instead of the root
+	 */
+	void treeForwardKinematics(const float* positions, float* result, bool local);
+
+	/**
+	 * Returns the index of a segment of the tree (excluding the root), or -1
+	 */
+	int getSegmentId(const std::string& name);
+
+	/**
+	 * Returns the index of a joint of the tree (excluding the fixed ones), or -1
+	 */
+	int getTreeJointId(const std::string& name);
 
 	inline const std::vector<std::string>& getJointNames() const
 	{
 		return jointNames;
 	}
 
-	inline KDL::JntArray& getJointPositions()
+	inline const std::vector<std::string>& getSegmentNames()
+	{
+		prepareTree();
+		return segmentNames;
+	}
+
+	inline const std::vector<std::string>& getTreeJointNames()
 	{
-		return positions;
+		prepareTree();
+		return treeJointNames;
 	}
 
+	inline unsigned int getNbTreeJoints() const
+	{
+		return tree.getNrOfJoints();
+	}
+
+	inline unsigned int getNbJoints() const
+	{
+		return chain.getNrOfJoints();
+	}
+
+	/**
+	 * Returns the inverse kinematics solver of the kinematic chain
+	 */
+	inline IkSolver* getIkSolver()
+	{
+		return ikSolver;
+	}
+
+	static void writeFrame(const KDL::Frame& frame, float* dst);
+
+	static KDL::Frame readFrame(const float* src);
+
+private:
+	struct TreeSegment
+	{
+		const KDL::Segment* segment;
+		int parent;		// index of the parent segment, -1 for the root
+		int joint;		// tree joint id, -1 for a fixed joint
+	};
+
+	/**
+	 * Sort the segments of the tree so that each one comes after its parent, once per
+	 * modification of the tree
+	 */
+	void prepareTree();
+
+	void setPositions(const float* src);
+
 private:
 	KDL::Tree tree;
 	KDL::Chain chain;
 	KDL::Jacobian jacobian;
+
+	// Preallocated storage of the differential inverse kinematics
+	Eigen::MatrixXd pseudoInverse;
+	Eigen::MatrixXd nullspace;
+	Eigen::VectorXd jointStep;
+	Eigen::VectorXd secondaryStep;
 	KDL::ChainJntToJacSolver* jacobianSolver;
 	std::vector<std::string> jointNames;
 	KDL::JntArray positions;
 
+	std::vector<TreeSegment> treeSegments;
+	std::vector<KDL::Frame> treeFrames;
+	std::vector<std::string> segmentNames;
+	std::vector<std::string> treeJointNames;
+	bool treeDirty;
+
 	KDL::ChainFkSolverPos_recursive* fkSolver;
 	KDL::Frame cartPos; // to store the result of the end-effector position
 
-	KDL::ChainIkSolverPos_LMA* ikSolver;
-	KDL::JntArray jointPosGoal; // to store the result of the joints positions
+	IkSolver* ikSolver;
 
 	// Frame = vector double[3] + rotation double[9]
 	// JntArray is like a floatArray
@@ -19,3 +19,39 @@ std::string convertJString(JNIEnv* env, jstring jstr)
 
 	return result;
 }
+
+
+float* getFloatBuffer(JNIEnv* env, jobject buffer, jlong size)
+{
+	float* data = nullptr;
+
+	if (buffer != nullptr)
+		data = static_cast<float*>(env->GetDirectBufferAddress(buffer));
+
+	if ((data == nullptr) || (env->GetDirectBufferCapacity(buffer) < size))
+	{
+		env->ThrowNew(env->FindClass("java/lang/IllegalArgumentException"),
+					  "A direct FloatBuffer large enough is required");
+		return nullptr;
+	}
+
+	return data;
+}
+
+
+int* getIntBuffer(JNIEnv* env, jobject buffer, jlong size)
+{
+	int* data = nullptr;
+
+	if (buffer != nullptr)
+		data = static_cast<int*>(env->GetDirectBufferAddress(buffer));
+
+	if ((data == nullptr) || (env->GetDirectBufferCapacity(buffer) < size))
+	{
+		env->ThrowNew(env->FindClass("java/lang/IllegalArgumentException"),
+					  "A direct IntBuffer large enough is required");
+		return nullptr;
+	}
+
+	return data;
+}
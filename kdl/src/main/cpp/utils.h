@@ -12,3 +12,15 @@
 
 
 std::string convertJString(JNIEnv* env, jstring jstr);
+
+/**
+ * Returns the content of a direct FloatBuffer, or throws an IllegalArgumentException (and
+ * returns nullptr) if the buffer isn't direct or holds less than 'size' floats
+ */
+float* getFloatBuffer(JNIEnv* env, jobject buffer, jlong size);
+
+/**
+ * Returns the content of a direct IntBuffer, or throws an IllegalArgumentException (and
+ * returns nullptr) if the buffer isn't direct or holds less than 'size' ints
+ */
+int* getIntBuffer(JNIEnv* env, jobject buffer, jlong size);
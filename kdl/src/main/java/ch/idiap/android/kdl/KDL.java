@@ -7,6 +7,11 @@
 
 package ch.idiap.android.kdl;
 
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+
 
 public class KDL {
 
@@ -27,13 +32,111 @@ public class KDL {
 
     static public native boolean setKinematicChain(long robot, String root, String tip);
 
-    static public native String[] getJointNames(long robot);
+    static public native int getJointCount(long robot);
+
+    /** Returns the name of a joint of the kinematic chain, from its id (index in the chain)
+     */
+    static public native String getJointName(long robot, int id);
+
+    /** Returns the id of a joint of the kinematic chain, or -1
+     */
+    static public native int getJointId(long robot, String name);
+
+
+    /* The following methods read and write caller-owned direct buffers (see allocateBuffer()),
+     * from their start, so no memory is allocated per call. The joint positions are given in
+     * the order of the ids of the joints, and the poses as 7 floats: position, then orientation
+     * as a quaternion (x, y, z, w).
+     */
+
+    /** Compute the jacobian of the end-effector (6 floats per joint: linear, then angular
+     * velocity)
+     */
+    static public native void computeJacobian(long robot, FloatBuffer positions, FloatBuffer result);
+
+    /** Compute the pose of the segment of each joint relative to its parent
+     */
+    static public native void processJointPositions(long robot, FloatBuffer positions, FloatBuffer result);
+
+    /** Compute the pose of the end-effector for 'count' joint configurations
+     */
+    static public native void forwardKinematics(long robot, FloatBuffer positions, FloatBuffer result,
+                                                int count);
+
+    /** Compute the joint positions reaching a sequence of 'count' end-effector poses
+     *
+     * The search starts from 'initialPositions', then from the solution of the previous goal
+     * once one converged. For each goal, 'errors' receives the remaining distance to the goal
+     * and 'status' 0 if the search converged (a negative error code of KDL otherwise).
+     *
+     * Returns the number of goals that converged.
+     */
+    static public native int inverseKinematics(long robot, FloatBuffer initialPositions,
+                                               FloatBuffer goals, FloatBuffer result,
+                                               FloatBuffer errors, IntBuffer status, int count);
+
+    /** Create an inverse kinematics solver for the kinematic chain, with its own state: each
+     * one can be used by a different thread
+     */
+    static public native long createIkSolver(long robot);
+
+    static public native void releaseIkSolver(long solver);
+
+    /** Same as inverseKinematics(), using a solver created by createIkSolver()
+     */
+    static public native int solveInverseKinematics(long solver, FloatBuffer initialPositions,
+                                                    FloatBuffer goals, FloatBuffer result,
+                                                    FloatBuffer errors, IntBuffer status, int count);
 
-    static public native void computeJacobian(long robot, float[] positions);
+    /** Same as forwardKinematics(), using a solver created by createIkSolver() (so it can be
+     * called from another thread than the one using the robot)
+     */
+    static public native void solverForwardKinematics(long solver, FloatBuffer positions,
+                                                      FloatBuffer result, int count);
 
-    static public native float[] processJointPosition(long robot, String name, float position);
+    /** Move the joints one damped least squares step towards an end-effector pose, with a
+     * secondary task pushing them away from their limits ('limits': the lower limits of the
+     * joints, followed by the upper ones, -/+Float.MAX_VALUE for the unbounded joints).
+     * 'positions' is updated.
+     *
+     * Returns the position error of the end-effector before the step.
+     */
+    static public native float differentialIkStep(long robot, FloatBuffer positions, FloatBuffer goal,
+                                                   FloatBuffer limits, float damping, float maxStep,
+                                                   float limitsGain);
 
-    static public native float[] forwardKinematics(long robot, float[] positions);
 
-    static public native float[] inverseKinematics(long robot, float[] positions, float[] goalPos, float[] goalOrient);
+    /* The whole tree (not only the kinematic chain) can also be processed. Its segments and
+     * joints have their own ids: each segment comes after its parent, the root excluded, and
+     * the fixed joints have no id.
+     */
+
+    static public native int getSegmentCount(long robot);
+
+    static public native String getSegmentName(long robot, int id);
+
+    static public native int getSegmentId(long robot, String name);
+
+    static public native int getTreeJointCount(long robot);
+
+    static public native String getTreeJointName(long robot, int id);
+
+    static public native int getTreeJointId(long robot, String name);
+
+    /** Compute the pose of all the segments of the tree in one pass (7 floats per segment),
+     * relative to the root, or to the parent segment if 'local' is true
+     */
+    static public native void treeForwardKinematics(long robot, FloatBuffer positions, FloatBuffer result,
+                                                    boolean local);
+
+
+    /** Allocate a buffer usable with the methods of this class
+     */
+    static public FloatBuffer allocateBuffer(int size) {
+        return ByteBuffer.allocateDirect(size * 4).order(ByteOrder.nativeOrder()).asFloatBuffer();
+    }
+
+    static public IntBuffer allocateIntBuffer(int size) {
+        return ByteBuffer.allocateDirect(size * 4).order(ByteOrder.nativeOrder()).asIntBuffer();
+    }
 }
@@ -14,6 +14,7 @@ import android.content.Context;
 import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.SharedPreferences;
+import android.media.Image;
 import android.text.InputType;
 import android.util.Log;
 import android.widget.EditText;
@@ -25,6 +26,7 @@ import org.ros.namespace.GraphName;
 import org.ros.node.NodeConfiguration;
 import org.ros.node.NodeMainExecutor;
 
+import java.io.File;
 import java.io.IOException;
 import java.net.URI;
 
@@ -32,11 +34,18 @@ import ch.idiap.android.glrenderer.physics.World;
 import ch.idiap.android.ros.internal.NodeMainExecutorServiceConnection;
 import ch.idiap.android.ros.listeners.JointsListener;
 import ch.idiap.android.ros.listeners.TfListener;
+import ch.idiap.android.ros.publishers.CompressedImagePublisher;
 import ch.idiap.android.ros.publishers.DepthPublisher;
 import ch.idiap.android.ros.publishers.ImagePublisher;
+import ch.idiap.android.ros.publishers.PointCloudPublisher;
+import ch.idiap.android.ros.tf.TfBuffer;
 import ch.idiap.android.urdf.robot.Robot;
 import ch.idiap.android.urdf.robot.RobotState;
+import ch.idiap.android.urdf.robot.Trajectory;
 import ch.idiap.android.ros.playback.Player;
+import ch.idiap.android.ros.playback.Recorder;
+import ch.idiap.android.ros.playback.Recording;
+import ch.idiap.android.ros.playback.TrajectorySampler;
 import ch.idiap.android.urdf.UrdfLoader;
 
 
@@ -50,12 +59,22 @@ public class ROSManager {
 
     private static final String TAG = ROSManager.class.getSimpleName();
 
+    // Delay used to render the robot state received from ROS, so the rendering can
+    // always interpolate between two received samples (in nanoseconds)
+    public static final long LISTENERS_RENDER_DELAY = 100000000L;
+
+    // Minimal interval between two samples kept in the history of the robot state when
+    // receiving high-rate streams (in nanoseconds)
+    public static final long LISTENERS_COALESCING_INTERVAL = 10000000L;
+
     private static NodeMainExecutorServiceConnection nodeMainExecutorServiceConnection = null;
 
     private static NodeConfiguration nodeConfiguration = null;
 
     public static final RobotState robotState = new RobotState();
 
+    public static final TfBuffer tfBuffer = new TfBuffer();
+
     public static TfListener tfListener = null;
 
     public static JointsListener jointsListener = null;
@@ -64,8 +83,12 @@ public class ROSManager {
 
     public static DepthPublisher depthPublisher = null;
 
+    public static PointCloudPublisher pointCloudPublisher = null;
+
     public static Player player = null;
 
+    public static Recorder recorder = null;
+
     public static Context context = null;
 
 
@@ -184,6 +207,10 @@ public class ROSManager {
 
         nodeMainExecutorServiceConnection = null;
         nodeConfiguration = null;
+
+        imagePublisher = null;
+        depthPublisher = null;
+        pointCloudPublisher = null;
     }
 
 
@@ -192,18 +219,35 @@ public class ROSManager {
         if ((nodeMainExecutorServiceConnection == null) || (tfListener != null))
             return;
 
-        if (nodeConfiguration == null) {
-            nodeConfiguration = NodeConfiguration.newPublic(
-                    nodeMainExecutorServiceConnection.getDefaultHostAddress());
+        createNodeConfiguration();
 
-            nodeConfiguration.setMasterUri(nodeMainExecutorServiceConnection.getMasterUri());
-        }
-
-        tfListener = new TfListener(robotState);
+        tfListener = new TfListener(robotState, tfBuffer);
         nodeMainExecutorServiceConnection.getMainExecutor().execute(tfListener, nodeConfiguration);
 
         jointsListener = new JointsListener(robotState);
         nodeMainExecutorServiceConnection.getMainExecutor().execute(jointsListener, nodeConfiguration);
+
+        tfListener.setRecorder(recorder);
+        jointsListener.setRecorder(recorder);
+
+        robotState.setRenderDelay(LISTENERS_RENDER_DELAY);
+        robotState.setCoalescingInterval(LISTENERS_COALESCING_INTERVAL);
+    }
+
+
+    /** Start the publication of the depth image and of the point cloud computed from it (see
+     * ROSManager#publishDepthImage(Image, int)), on the ROS node started by
+     * ROSManager#startRos(ROSConnectionListener)
+     */
+    public static void startDepthPublishing(float voxelSize) {
+
+        if (nodeMainExecutorServiceConnection == null)
+            return;
+
+        createNodeConfiguration();
+
+        enableDepthImagePublishing(nodeMainExecutorServiceConnection.getMainExecutor());
+        enablePointCloudPublishing(nodeMainExecutorServiceConnection.getMainExecutor(), voxelSize);
     }
 
 
@@ -217,6 +261,55 @@ public class ROSManager {
 
         tfListener = null;
         jointsListener = null;
+
+        robotState.setRenderDelay(0);
+        robotState.setCoalescingInterval(0);
+    }
+
+
+    /** Start recording the messages received by the listeners, in files written in the given
+     * folder (see Recorder)
+     *
+     * The recording only captures messages while the listeners are running.
+     */
+    public static void startRecording(File directory) {
+        if (recorder != null)
+            return;
+
+        recorder = new Recorder(directory);
+        recorder.start();
+
+        if (tfListener != null) {
+            tfListener.setRecorder(recorder);
+            jointsListener.setRecorder(recorder);
+        }
+    }
+
+
+    /** Stop the recording (if any), once all the received messages are written
+     */
+    public static void stopRecording() {
+        if (recorder == null)
+            return;
+
+        if (tfListener != null) {
+            tfListener.setRecorder(null);
+            jointsListener.setRecorder(null);
+        }
+
+        recorder.stop();
+        recorder = null;
+    }
+
+
+    private static void createNodeConfiguration() {
+        if (nodeConfiguration != null)
+            return;
+
+        nodeConfiguration = NodeConfiguration.newPublic(
+                nodeMainExecutorServiceConnection.getDefaultHostAddress());
+
+        nodeConfiguration.setMasterUri(nodeMainExecutorServiceConnection.getMasterUri());
     }
 
 
@@ -280,6 +373,38 @@ public class ROSManager {
     }
 
 
+    /** Replace the recording played back by a (looping) preview of a planned trajectory of
+     * the robot, and start it
+     *
+     * The robot is animated from the joint states from now on (see TrajectorySampler), and
+     * ROSManager#updatePlayback() must be called regularly, like for the other recordings.
+     */
+    public static void playTrajectory(Trajectory trajectory, Robot robot) {
+        if (tfListener != null) {
+            Log.e(TAG, "Can't use the ROS listeners and a playback player at the same time");
+            return;
+        }
+
+        Recording recording;
+        try {
+            recording = TrajectorySampler.sample(trajectory, robot);
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to sample the trajectory", e);
+            return;
+        }
+
+        if (player != null)
+            player.stop();
+
+        player = new Player(recording);
+        player.setLooping(true);
+
+        robot.setAnimateFromJointStates(true);
+
+        player.start(robotState);
+    }
+
+
     /** Enable the publication of the RGB image captured by the camera
      *
      * Call this method after ROSManager#startRos(NodeMainExecutor, String, URI)
@@ -294,6 +419,23 @@ public class ROSManager {
     }
 
 
+    /** Enable the publication of the image captured by the camera as JPEG, on the
+     * 'android_camera/compressed' topic, instead of raw RGB
+     *
+     * The image is downscaled by the given factor (1 to keep the resolution of the camera).
+     * Call this method after ROSManager#startRos(NodeMainExecutor, String, URI)
+     */
+    public static void enableCompressedImagePublishing(NodeMainExecutor nodeMainExecutor,
+                                                       int quality, int scale) {
+
+        if (imagePublisher != null)
+            return;
+
+        imagePublisher = new CompressedImagePublisher(quality, scale);
+        nodeMainExecutor.execute(imagePublisher, nodeConfiguration);
+    }
+
+
     /** Enable the publication of the depth image captured by the camera
      *
      * Call this method after ROSManager#startRos(NodeMainExecutor, String, URI)
@@ -308,6 +450,51 @@ public class ROSManager {
     }
 
 
+    /** Enable the publication of the point cloud computed from the depth image captured by
+     * the camera, downsampled with a voxel grid of the given resolution (in meters)
+     *
+     * No point cloud is published until the intrinsics of the camera are given with
+     * ROSManager#setDepthCameraIntrinsics(float, float, float, float).
+     * Call this method after ROSManager#startRos(NodeMainExecutor, String, URI)
+     */
+    public static void enablePointCloudPublishing(NodeMainExecutor nodeMainExecutor, float voxelSize) {
+
+        if (pointCloudPublisher != null)
+            return;
+
+        pointCloudPublisher = new PointCloudPublisher();
+        pointCloudPublisher.setVoxelSize(voxelSize);
+        nodeMainExecutor.execute(pointCloudPublisher, nodeConfiguration);
+    }
+
+
+    /** Set the intrinsics of the depth camera (in pixels, for the unrotated image), used by
+     * both the depth and point cloud publishers
+     */
+    public static void setDepthCameraIntrinsics(float fx, float fy, float cx, float cy) {
+        if (depthPublisher != null)
+            depthPublisher.setCameraIntrinsics(fx, fy, cx, cy);
+
+        if (pointCloudPublisher != null)
+            pointCloudPublisher.setCameraIntrinsics(fx, fy, cx, cy);
+    }
+
+
+    /** Give a depth image to all the enabled depth publishers (depth image and point cloud),
+     * each one copying it once
+     *
+     * Like with the publishers, the image isn't closed: the caller must close it as soon as
+     * possible, so the camera can reuse its memory.
+     */
+    public static void publishDepthImage(Image depthImage, int orientation) {
+        if (depthPublisher != null)
+            depthPublisher.publish(depthImage, orientation);
+
+        if (pointCloudPublisher != null)
+            pointCloudPublisher.publish(depthImage);
+    }
+
+
     /** Helper method to load the assets needed for the Panda Arm robot
      */
     public static boolean loadPandaArmAssets() {
@@ -7,7 +7,6 @@
 
 package ch.idiap.android.ros.listeners;
 
-import org.ros.message.MessageListener;
 import org.ros.namespace.GraphName;
 import org.ros.node.AbstractNodeMain;
 import org.ros.node.ConnectedNode;
@@ -15,12 +14,20 @@ import org.ros.node.topic.Subscriber;
 
 import java.util.List;
 
+import ch.idiap.android.ros.playback.Recorder;
 import ch.idiap.android.urdf.robot.RobotState;
 
 
 public class JointsListener extends AbstractNodeMain {
 
     private RobotState robotState = null;
+    private final StampConverter stampConverter = new StampConverter();
+    private volatile Recorder recorder = null;
+
+    // Mapping between the joint names of the last message and their index in the robot state,
+    // only recomputed when the list of names changes
+    private String[] names = new String[0];
+    private int[] indices = new int[0];
 
 
     public JointsListener(RobotState robotState) {
@@ -28,6 +35,13 @@ public class JointsListener extends AbstractNodeMain {
     }
 
 
+    /** Set the recorder receiving the messages (null to disable the recording)
+     */
+    public void setRecorder(Recorder recorder) {
+        this.recorder = recorder;
+    }
+
+
     @Override
     public GraphName getDefaultNodeName() {
         return GraphName.of("AndroidUrdflib/joints_listener");
@@ -36,35 +50,53 @@ public class JointsListener extends AbstractNodeMain {
 
     @Override
     public void onStart(ConnectedNode connectedNode) {
+        Subscriber<sensor_msgs.JointState> subscriber = connectedNode.newSubscriber("/joint_states","sensor_msgs/JointState");
+        subscriber.addMessageListener(this::onNewMessage);
+    }
+
 
-        MessageListener<sensor_msgs.JointState> listener = new MessageListener<sensor_msgs.JointState>() {
-            @Override
-            public void onNewMessage(sensor_msgs.JointState message) {
-                if (robotState == null)
-                    return;
+    /** Process a received message (without any allocation once the mapping of the joint
+     * names is known)
+     */
+    void onNewMessage(sensor_msgs.JointState message) {
+        Recorder recorder = this.recorder;
+        if (recorder != null)
+            recorder.recordJointStates(message);
 
-                List<String> names = message.getName();
-                double[] positions = message.getPosition();
-                double[] velocities = message.getVelocity();
+        if (robotState == null)
+            return;
 
-                for (int i = 0; i < names.size(); ++i) {
-                    float position = 0.0f;
-                    float velocity = 0.0f;
+        long timestamp = stampConverter.convert(message.getHeader().getStamp());
 
-                    if (positions.length > i)
-                        position = (float) positions[i];
+        List<String> names = message.getName();
+        if (!isMappingValid(names))
+            updateMapping(names);
 
-                    if (velocities.length > i)
-                        velocity = (float) velocities[i];
+        robotState.putJointStates(
+                indices, names.size(), timestamp, message.getPosition(), message.getVelocity()
+        );
+    }
 
-                    robotState.putJointState(names.get(i), position, velocity);
-                }
-            }
-        };
 
+    private boolean isMappingValid(List<String> names) {
+        if (names.size() != this.names.length)
+            return false;
 
-        Subscriber<sensor_msgs.JointState> subscriber = connectedNode.newSubscriber("/joint_states","sensor_msgs/JointState");
-        subscriber.addMessageListener(listener);
+        for (int i = 0; i < this.names.length; ++i) {
+            if (!this.names[i].equals(names.get(i)))
+                return false;
+        }
+
+        return true;
+    }
+
+
+    private void updateMapping(List<String> names) {
+        this.names = names.toArray(new String[0]);
+        this.indices = new int[this.names.length];
+
+        for (int i = 0; i < this.names.length; ++i)
+            this.indices[i] = robotState.getJointIndex(this.names[i]);
     }
 
 }
@@ -0,0 +1,55 @@
+/*
+ * Copyright (C) 2020 Idiap Research Institute
+ *
+ * Authors:
+ *   philip.abbet@idiap.ch (Philip Abbet)
+ */
+
+package ch.idiap.android.ros.listeners;
+
+import org.ros.message.Time;
+
+
+/** Converts the timestamps of the received messages to the System#nanoTime() clock
+ *
+ * The offset between both clocks is estimated from the message received with the lowest
+ * latency, and slowly relaxed to follow the drift between the clocks. Contrary to the
+ * reception time, the converted timestamps keep the intervals between the samples, so the
+ * network jitter doesn't end up in the rendering.
+ */
+class StampConverter {
+
+    // Relaxation of the offset, in nanoseconds per second
+    private static final long RELAXATION = 1000000;
+
+    private long offset = 0;
+    private long lastUpdate = 0;
+    private boolean initialised = false;
+
+
+    public synchronized long convert(Time stamp) {
+        long now = System.nanoTime();
+
+        if (stamp == null)
+            return now;
+
+        long nsecs = stamp.totalNsecs();
+        if (nsecs == 0)
+            return now;
+
+        long observed = now - nsecs;
+
+        if (!initialised) {
+            offset = observed;
+            initialised = true;
+        } else {
+            offset += (now - lastUpdate) * RELAXATION / 1000000000L;
+            if (observed < offset)
+                offset = observed;
+        }
+
+        lastUpdate = now;
+
+        return nsecs + offset;
+    }
+}
@@ -7,8 +7,6 @@
 
 package ch.idiap.android.ros.listeners;
 
-import org.joml.Quaternionf;
-import org.joml.Vector3f;
 import org.ros.message.MessageListener;
 import org.ros.namespace.GraphName;
 import org.ros.node.AbstractNodeMain;
@@ -17,6 +15,8 @@ import org.ros.node.topic.Subscriber;
 
 import java.util.List;
 
+import ch.idiap.android.ros.playback.Recorder;
+import ch.idiap.android.ros.tf.TfBuffer;
 import ch.idiap.android.urdf.robot.RobotState;
 import geometry_msgs.Quaternion;
 import geometry_msgs.TransformStamped;
@@ -26,10 +26,26 @@ import geometry_msgs.Vector3;
 public class TfListener extends AbstractNodeMain {
 
     private RobotState robotState = null;
+    private TfBuffer tfBuffer = null;
+    private final StampConverter stampConverter = new StampConverter();
+    private volatile Recorder recorder = null;
 
 
     public TfListener(RobotState robotState) {
+        this(robotState, null);
+    }
+
+
+    public TfListener(RobotState robotState, TfBuffer tfBuffer) {
         this.robotState = robotState;
+        this.tfBuffer = tfBuffer;
+    }
+
+
+    /** Set the recorder receiving the messages (null to disable the recording)
+     */
+    public void setRecorder(Recorder recorder) {
+        this.recorder = recorder;
     }
 
 
@@ -42,34 +58,63 @@ public class TfListener extends AbstractNodeMain {
     @Override
     public void onStart(ConnectedNode connectedNode) {
 
-        MessageListener<tf2_msgs.TFMessage> listener = new MessageListener<tf2_msgs.TFMessage>() {
-            @Override
-            public void onNewMessage(tf2_msgs.TFMessage message) {
-                if (robotState == null)
-                    return;
+        Subscriber<tf2_msgs.TFMessage> subscriber = connectedNode.newSubscriber("/tf","tf2_msgs/TFMessage");
+        subscriber.addMessageListener(new Listener(false));
 
-                final List<TransformStamped> transforms = message.getTransforms();
-                Vector3f position = new Vector3f();
-                Quaternionf orientation = new Quaternionf();
+        Subscriber<tf2_msgs.TFMessage> subscriber2 = connectedNode.newSubscriber("/tf_static","tf2_msgs/TFMessage");
+        subscriber2.addMessageListener(new Listener(true));
+    }
 
-                for (TransformStamped transform: transforms) {
-                    Vector3 pos = transform.getTransform().getTranslation();
-                    Quaternion rot = transform.getTransform().getRotation();
 
-                    position.set(pos.getX(), pos.getY(), pos.getZ());
-                    orientation.set((float) rot.getX(), (float) rot.getY(), (float) rot.getZ(), (float) rot.getW());
+    private class Listener implements MessageListener<tf2_msgs.TFMessage> {
 
-                    robotState.putTransforms(transform.getChildFrameId(), position, orientation);
-                }
-            }
-        };
+        private final boolean isStatic;
 
 
-        Subscriber<tf2_msgs.TFMessage> subscriber = connectedNode.newSubscriber("/tf","tf2_msgs/TFMessage");
-        subscriber.addMessageListener(listener);
+        Listener(boolean isStatic) {
+            this.isStatic = isStatic;
+        }
 
-        Subscriber<tf2_msgs.TFMessage> subscriber2 = connectedNode.newSubscriber("/tf_static","tf2_msgs/TFMessage");
-        subscriber2.addMessageListener(listener);
+
+        @Override
+        public void onNewMessage(tf2_msgs.TFMessage message) {
+            Recorder recorder = TfListener.this.recorder;
+            if (recorder != null)
+                recorder.recordTransforms(message, isStatic);
+
+            final List<TransformStamped> transforms = message.getTransforms();
+
+            for (int i = 0; i < transforms.size(); ++i) {
+                TransformStamped transform = transforms.get(i);
+
+                Vector3 pos = transform.getTransform().getTranslation();
+                Quaternion rot = transform.getTransform().getRotation();
+
+                float x = (float) pos.getX();
+                float y = (float) pos.getY();
+                float z = (float) pos.getZ();
+                float qx = (float) rot.getX();
+                float qy = (float) rot.getY();
+                float qz = (float) rot.getZ();
+                float qw = (float) rot.getW();
+
+                if (tfBuffer != null) {
+                    tfBuffer.setTransform(
+                            transform.getHeader().getFrameId(), transform.getChildFrameId(),
+                            transform.getHeader().getStamp().totalNsecs(), isStatic,
+                            x, y, z, qx, qy, qz, qw
+                    );
+                }
+
+                if (robotState != null) {
+                    long timestamp = stampConverter.convert(transform.getHeader().getStamp());
+
+                    robotState.putTransforms(
+                            transform.getChildFrameId(), timestamp, x, y, z, qx, qy, qz, qw
+                    );
+                }
+            }
+        }
     }
 
 }
@@ -0,0 +1,163 @@
+/*
+ * Copyright (C) 2020 Idiap Research Institute
+ *
+ * Authors:
+ *   philip.abbet@idiap.ch (Philip Abbet)
+ */
+
+package ch.idiap.android.ros.playback;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+
+
+/** Incremental reader of the messages of a joint_states topic, in the text format produced
+ * by 'rostopic echo'
+ *
+ * The arrays of a message are reused when the next message read into it has the same
+ * number of joints, and the array of names is shared between all the messages with the
+ * same joints.
+ */
+public class JointStatesReader implements ReadAheadReader.Source<PlaybackJointStates> {
+
+    private static final String[] NO_NAMES = new String[0];
+    private static final float[] NO_VALUES = new float[0];
+
+    private final BufferedReader reader;
+    private final StringBuilder text = new StringBuilder();
+    private String namesText = null;
+    private String[] names = null;
+
+
+    public JointStatesReader(InputStream inputStream) {
+        reader = new BufferedReader(new InputStreamReader(inputStream, Charset.defaultCharset()));
+    }
+
+
+    @Override
+    public PlaybackJointStates create() {
+        return new PlaybackJointStates();
+    }
+
+
+    /** Read the next message into 'message', returns false at the end of the stream
+     */
+    @Override
+    public boolean read(PlaybackJointStates message) throws IOException {
+        String line;
+        String field = null;
+        boolean started = false;
+        int seen = 0;
+
+        while ((line = reader.readLine()) != null) {
+            line = line.trim();
+
+            // Arrays can span several lines
+            if (field != null) {
+                text.append(line);
+
+                if (line.contains("]")) {
+                    seen |= setArray(message, field);
+                    field = null;
+                }
+
+            } else if (line.equals("header:")) {
+                started = true;
+                message.timestamp.secs = 0;
+                message.timestamp.nsecs = 0;
+                seen = 0;
+
+            } else if (line.equals("---")) {
+                if (started) {
+                    clearMissingArrays(message, seen);
+                    return true;
+                }
+
+            } else if (!started) {
+                continue;
+
+            } else if (line.startsWith("secs:")) {
+                message.timestamp.secs = Integer.parseInt(Parser.value(line));
+
+            } else if (line.startsWith("nsecs:")) {
+                message.timestamp.nsecs = Integer.parseInt(Parser.value(line));
+
+            } else if (line.startsWith("name:") || line.startsWith("position:") ||
+                       line.startsWith("velocity:") || line.startsWith("effort:")) {
+                field = line.substring(0, line.indexOf(':'));
+
+                text.setLength(0);
+                text.append(Parser.value(line));
+
+                if (line.contains("]")) {
+                    seen |= setArray(message, field);
+                    field = null;
+                }
+            }
+        }
+
+        // Last message, without separator
+        if (started)
+            clearMissingArrays(message, seen);
+
+        return started;
+    }
+
+
+    @Override
+    public void close() throws IOException {
+        reader.close();
+    }
+
+
+    /** Parse the array of the given field from the accumulated text, returns a bit
+     * identifying the field
+     */
+    private int setArray(PlaybackJointStates message, String field) {
+        switch (field) {
+            case "name":
+                String s = text.toString();
+                if (!s.equals(namesText)) {
+                    namesText = s;
+                    names = Parser.parseStrings(s);
+                }
+
+                message.names = names;
+                return 1;
+
+            case "position":
+                message.positions = Parser.parseFloats(text, message.positions);
+                return 2;
+
+            case "velocity":
+                message.velocities = Parser.parseFloats(text, message.velocities);
+                return 4;
+
+            case "effort":
+                message.efforts = Parser.parseFloats(text, message.efforts);
+                return 8;
+        }
+
+        return 0;
+    }
+
+
+    /** Empty the arrays that weren't present in the last message read into 'message'
+     */
+    private static void clearMissingArrays(PlaybackJointStates message, int seen) {
+        if ((seen & 1) == 0)
+            message.names = NO_NAMES;
+
+        if ((seen & 2) == 0)
+            message.positions = NO_VALUES;
+
+        if ((seen & 4) == 0)
+            message.velocities = NO_VALUES;
+
+        if ((seen & 8) == 0)
+            message.efforts = NO_VALUES;
+    }
+}
@@ -9,189 +9,156 @@ package ch.idiap.android.ros.playback;
 
 import android.content.Context;
 
-import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.nio.charset.Charset;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
-import ch.idiap.android.urdf.robot.RobotState;
-
 
+/** Parse a whole recording in the text format produced by 'rostopic echo'
+ *
+ * For long recordings, prefer TransformsReader and JointStatesReader (possibly with a
+ * ReadAheadReader), which only keep one message in memory at a time.
+ */
 public class Parser {
 
     static public List< List<PlaybackTransform> > parseTransforms(Context context, String filename) throws IOException {
-        InputStream inputStream = context.getAssets().open(filename);
-
-        String line;
-        boolean isParsingTranslation = true;
+        return parseTransforms(context.getAssets().open(filename));
+    }
 
-        PlaybackTransform transform = null;
-        List<PlaybackTransform> entry = null;
 
+    static public List< List<PlaybackTransform> > parseTransforms(InputStream inputStream) throws IOException {
         List< List<PlaybackTransform> > result = new ArrayList<>();
 
-        try (BufferedReader bufferedReader = new BufferedReader(new InputStreamReader(inputStream, Charset.defaultCharset()))) {
-            while ((line = bufferedReader.readLine()) != null) {
-                line = line.trim();
-
-                if (line.equals("transforms:")) {
-                    entry = new ArrayList<>();
-
-                } else if (line.equals("---")) {
-                    if (entry != null) {
-                        if (transform != null) {
-                            entry.add(transform);
-                            transform = null;
-                        }
-
-                        result.add(entry);
-                    }
-
-                    entry = null;
-
-                } else if (line.equals("-")) {
-                    if (transform != null)
-                        entry.add(transform);
+        try (TransformsReader reader = new TransformsReader(inputStream)) {
+            PlaybackTransforms message = reader.create();
 
-                    transform = new PlaybackTransform();
+            while (reader.read(message)) {
+                result.add(new ArrayList<>(Arrays.asList(message.transforms).subList(0, message.count)));
 
-                } else if (line.startsWith("secs:")) {
-                    int v = Integer.parseInt(line.substring(line.indexOf(" ") + 1).trim());
-                    transform.timestamp.secs = v;
-
-                } else if (line.startsWith("nsecs:")) {
-                    int v = Integer.parseInt(line.substring(line.indexOf(" ") + 1).trim());
-                    transform.timestamp.nsecs = v;
-
-                } else if (line.startsWith("child_frame_id:")) {
-                    transform.linkName = line.substring(line.indexOf('"') + 1, line.length() - 1).trim();
-
-                } else if (line.startsWith("translation:")) {
-                    isParsingTranslation = true;
-
-                } else if (line.startsWith("rotation:")) {
-                    isParsingTranslation = false;
-
-                } else if (line.startsWith("x:")) {
-                    double v = Double.parseDouble(line.substring(line.indexOf(" ") + 1).trim());
+                // The entries now belong to the list
+                message = reader.create();
+            }
+        }
 
-                    if (isParsingTranslation)
-                        transform.transforms.position.x = (float) v;
-                    else
-                        transform.transforms.orientation.x = (float) v;
+        return result;
+    }
 
-                } else if (line.startsWith("y:")) {
-                    double v = Double.parseDouble(line.substring(line.indexOf(" ") + 1).trim());
 
-                    if (isParsingTranslation)
-                        transform.transforms.position.y = (float) v;
-                    else
-                        transform.transforms.orientation.y = (float) v;
+    static public List<PlaybackJointStates> parseJointStates(Context context, String filename) throws IOException {
+        return parseJointStates(context.getAssets().open(filename));
+    }
 
-                } else if (line.startsWith("z:")) {
-                    double v = Double.parseDouble(line.substring(line.indexOf(" ") + 1).trim());
 
-                    if (isParsingTranslation)
-                        transform.transforms.position.z = (float) v;
-                    else
-                        transform.transforms.orientation.z = (float) v;
+    static public List<PlaybackJointStates> parseJointStates(InputStream inputStream) throws IOException {
+        List<PlaybackJointStates> result = new ArrayList<>();
 
-                } else if (line.startsWith("w:")) {
-                    double v = Double.parseDouble(line.substring(line.indexOf(" ") + 1).trim());
+        try (JointStatesReader reader = new JointStatesReader(inputStream)) {
+            PlaybackJointStates message = reader.create();
 
-                    if (!isParsingTranslation)
-                        transform.transforms.orientation.w = (float) v;
-                }
+            while (reader.read(message)) {
+                result.add(message);
+                message = reader.create();
             }
         }
 
-        inputStream.close();
-
         return result;
     }
 
 
-    static public List<PlaybackJointStates> parseJointStates(Context context, String filename) throws IOException {
-        InputStream inputStream = context.getAssets().open(filename);
+    /** Returns the value of a 'key: value' line
+     */
+    static String value(String line) {
+        return line.substring(line.indexOf(':') + 1).trim();
+    }
 
-        String line;
-        String names = null;
 
-        PlaybackJointStates jointStates = null;
-        List<PlaybackJointStates> result = new ArrayList<>();
+    /** Remove the quotes around a string value
+     */
+    static String unquote(String value) {
+        int length = value.length();
 
-        try (BufferedReader bufferedReader = new BufferedReader(new InputStreamReader(inputStream, Charset.defaultCharset()))) {
-            while ((line = bufferedReader.readLine()) != null) {
-                line = line.trim();
+        if ((length >= 2) &&
+            (((value.charAt(0) == '"') && (value.charAt(length - 1) == '"')) ||
+             ((value.charAt(0) == '\'') && (value.charAt(length - 1) == '\'')))) {
+            return value.substring(1, length - 1);
+        }
 
-                if (names != null) {
-                    names += line;
+        return value;
+    }
 
-                    if (names.contains("]")) {
-                        jointStates.names = names.replace("[", "").replace("]", "").replace(" ", "").split(",");
-                        names = null;
-                    }
 
-                } else if (line.equals("header:")) {
-                    jointStates = new PlaybackJointStates();
+    /** Parse an array of strings like '[a, b, c]'
+     */
+    static String[] parseStrings(CharSequence text) {
+        int start = indexOf(text, '[', 0) + 1;
+        int end = indexOf(text, ']', start);
+        if (end == -1)
+            end = text.length();
 
-                } else if (line.equals("---")) {
-                    if (jointStates != null)
-                        result.add(jointStates);
+        String[] result = new String[countItems(text, start, end)];
 
-                    jointStates = null;
+        for (int i = 0; i < result.length; ++i) {
+            int next = indexOf(text, ',', start);
+            if ((next == -1) || (next > end))
+                next = end;
+
+            result[i] = unquote(text.subSequence(start, next).toString().trim());
+            start = next + 1;
+        }
 
-                } else if (line.startsWith("secs:")) {
-                    int v = Integer.parseInt(line.substring(line.indexOf(" ") + 1).trim());
-                    jointStates.timestamp.secs = v;
+        return result;
+    }
 
-                } else if (line.startsWith("nsecs:")) {
-                    int v = Integer.parseInt(line.substring(line.indexOf(" ") + 1).trim());
-                    jointStates.timestamp.nsecs = v;
 
-                } else if (line.startsWith("name:")) {
-                    names = line.substring(line.indexOf(" ") + 1).trim();
+    /** Parse an array of numbers like '[1.0, 2.0, 3.0]', reusing the given array if it has
+     * the right length
+     */
+    static float[] parseFloats(CharSequence text, float[] reuse) {
+        int start = indexOf(text, '[', 0) + 1;
+        int end = indexOf(text, ']', start);
+        if (end == -1)
+            end = text.length();
 
-                    if (names.contains("]")) {
-                        jointStates.names = names.replace("[", "").replace("]", "").replace(" ", "").split(",");
-                        names = null;
-                    }
+        int count = countItems(text, start, end);
+        float[] result = ((reuse != null) && (reuse.length == count) ? reuse : new float[count]);
 
-                } else if (line.startsWith("position:")) {
-                    line = line.substring(line.indexOf(" ") + 1).trim();
-                    String[] values = line.replace("[", "").replace("]", "").replace(" ", "").split(",");
+        for (int i = 0; i < count; ++i) {
+            int next = indexOf(text, ',', start);
+            if ((next == -1) || (next > end))
+                next = end;
 
-                    jointStates.positions = new float[values.length];
+            result[i] = Float.parseFloat(text.subSequence(start, next).toString().trim());
+            start = next + 1;
+        }
 
-                    for (int i = 0; i < values.length; ++i)
-                        jointStates.positions[i] = Float.parseFloat(values[i]);
+        return result;
+    }
 
-                } else if (line.startsWith("velocity:")) {
-                    line = line.substring(line.indexOf(" ") + 1).trim();
-                    String[] values = line.replace("[", "").replace("]", "").replace(" ", "").split(",");
 
-                    jointStates.velocities = new float[values.length];
+    private static int countItems(CharSequence text, int start, int end) {
+        boolean empty = true;
+        int count = 1;
 
-                    for (int i = 0; i < values.length; ++i)
-                        jointStates.velocities[i] = Float.parseFloat(values[i]);
+        for (int i = start; i < end; ++i) {
+            char c = text.charAt(i);
+            if (c == ',')
+                ++count;
+            else if (c != ' ')
+                empty = false;
+        }
 
-                } else if (line.startsWith("effort:")) {
-                    line = line.substring(line.indexOf(" ") + 1).trim();
-                    String[] values = line.replace("[", "").replace("]", "").replace(" ", "").split(",");
+        return (empty ? 0 : count);
+    }
 
-                    jointStates.efforts = new float[values.length];
 
-                    for (int i = 0; i < values.length; ++i)
-                        jointStates.efforts[i] = Float.parseFloat(values[i]);
-                }
-            }
+    private static int indexOf(CharSequence text, char c, int from) {
+        for (int i = from; i < text.length(); ++i) {
+            if (text.charAt(i) == c)
+                return i;
         }
 
-        inputStream.close();
-
-        return result;
+        return -1;
     }
 }
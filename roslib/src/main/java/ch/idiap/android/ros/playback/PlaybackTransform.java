@@ -15,6 +15,7 @@ import ch.idiap.android.urdf.robot.RobotState.Transforms;
 public class PlaybackTransform {
 
     public String linkName;
+    public String parentName;
     public Time timestamp = new Time();
     public Transforms transforms = new Transforms();
 
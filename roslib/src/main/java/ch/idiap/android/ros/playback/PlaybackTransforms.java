@@ -0,0 +1,36 @@
+/*
+ * Copyright (C) 2020 Idiap Research Institute
+ *
+ * Authors:
+ *   philip.abbet@idiap.ch (Philip Abbet)
+ */
+
+package ch.idiap.android.ros.playback;
+
+
+/** One message of a tf topic, whose entries are reused from one message to the next by
+ * the readers
+ */
+public class PlaybackTransforms {
+
+    public int count = 0;
+    public PlaybackTransform[] transforms = new PlaybackTransform[0];
+
+
+    /** Returns the next entry, reusing an existing object if possible
+     */
+    PlaybackTransform add() {
+        if (count == transforms.length) {
+            PlaybackTransform[] array = new PlaybackTransform[Math.max(count * 2, 8)];
+            System.arraycopy(transforms, 0, array, 0, count);
+
+            for (int i = count; i < array.length; ++i)
+                array[i] = new PlaybackTransform();
+
+            transforms = array;
+        }
+
+        return transforms[count++];
+    }
+
+}
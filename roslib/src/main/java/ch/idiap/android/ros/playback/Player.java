@@ -10,112 +10,328 @@ package ch.idiap.android.ros.playback;
 
 import android.content.Context;
 
-import org.ros.message.Time;
+import org.joml.Quaternionf;
+import org.joml.Vector3f;
 
 import java.io.IOException;
-import java.util.List;
 
 import ch.idiap.android.urdf.robot.RobotState;
 
 
+/** Play a recording, driven by the System#nanoTime() clock
+ *
+ * At each update, the playback position is advanced by the elapsed time multiplied by the
+ * playback rate (which can be negative to play backward), and the state of the robot at
+ * that position is interpolated between the two surrounding samples of each stream. The
+ * streams are aligned by their timestamps, and are independent from each other.
+ */
 public class Player {
 
-    private List< List<PlaybackTransform> > transforms_static = null;
-    private List< List<PlaybackTransform> > transforms = null;
-    private List<PlaybackJointStates> jointStates = null;
-    private int currentIndex = -1;
+    private final Recording recording;
+    private final long startTime;
+    private final long endTime;
+
+    private boolean playing = false;
+    private boolean looping = true;
+    private double rate = 1.0;
+    private long position;
     private long lastTime;
-    private long timeCounter;
-    private long delayToWait;
 
+    private RobotState mappedRobotState = null;
+    private int[] jointIndices = null;
 
+    private final Vector3f position1 = new Vector3f();
+    private final Vector3f position2 = new Vector3f();
+    private final Quaternionf orientation1 = new Quaternionf();
+    private final Quaternionf orientation2 = new Quaternionf();
+
+
+    /** Load a recording from the assets, converting it to the binary format the first time
+     * (see RecordingConverter#convertAsset())
+     */
     public static Player load(Context context, String modelName) throws IOException {
-        Player player = new Player();
+        return new Player(Recording.open(RecordingConverter.convertAsset(context, "recordings/" + modelName)));
+    }
 
-        player.transforms_static = Parser.parseTransforms(context, "recordings/" + modelName + "/tf_static.txt");
-        player.transforms = Parser.parseTransforms(context, "recordings/" + modelName + "/tf.txt");
-        player.jointStates = Parser.parseJointStates(context, "recordings/" + modelName + "/joint_states.txt");
 
-        return player;
+    public Player(Recording recording) {
+        this.recording = recording;
+
+        Recording.TransformsStream transforms = recording.getTransforms();
+        Recording.JointStatesStream jointStates = recording.getJointStates();
+
+        long start = Long.MAX_VALUE;
+        long end = Long.MIN_VALUE;
+
+        if (transforms.getSampleCount() > 0) {
+            start = transforms.getTimestamp(0);
+            end = transforms.getTimestamp(transforms.getSampleCount() - 1);
+        }
+
+        if (jointStates.getSampleCount() > 0) {
+            start = Math.min(start, jointStates.getTimestamp(0));
+            end = Math.max(end, jointStates.getTimestamp(jointStates.getSampleCount() - 1));
+        }
+
+        if (start > end) {
+            start = 0;
+            end = 0;
+        }
+
+        startTime = start;
+        endTime = end;
+        position = start;
+    }
+
+
+    public Recording getRecording() {
+        return recording;
     }
 
 
+    /** Start the playback from the beginning (or the end when playing backward)
+     */
     public void start(RobotState robotState) {
-        for (PlaybackTransform t: transforms_static.get(0))
-            robotState.putTransforms(t.linkName, t.transforms.position, t.transforms.orientation);
+        Recording.TransformsStream staticTransforms = recording.getStaticTransforms();
+        if (staticTransforms.getSampleCount() > 0)
+            putStaticTransforms(robotState, staticTransforms);
 
-        currentIndex = 0;
-        timeCounter = 0;
+        position = (rate >= 0.0 ? startTime : endTime);
         lastTime = System.nanoTime();
-        delayToWait = -1;
+        playing = true;
 
-        for (PlaybackTransform t: transforms.get(currentIndex))
-            robotState.putTransforms(t.linkName, t.transforms.position, t.transforms.orientation);
+        putState(robotState);
+    }
 
-        PlaybackJointStates jointStates = this.jointStates.get(currentIndex);
-        for (int i = 0; i < jointStates.names.length; ++i) {
-            float position = 0.0f;
-            float velocity = 0.0f;
 
-            if (jointStates.positions.length > i)
-                position = (float) jointStates.positions[i];
+    public void stop() {
+        playing = false;
+    }
 
-            if (jointStates.velocities.length > i)
-                velocity = (float) jointStates.velocities[i];
 
-            robotState.putJointState(jointStates.names[i], position, velocity);
+    public boolean isPlaying() {
+        return playing;
+    }
+
+
+    public void update(RobotState robotState) {
+        if (!playing)
+            return;
+
+        long currentTime = System.nanoTime();
+        long elapsed = currentTime - lastTime;
+        lastTime = currentTime;
+
+        position += (long) (elapsed * rate);
+
+        if ((position > endTime) || (position < startTime)) {
+            long duration = endTime - startTime;
+
+            if (looping && (duration > 0)) {
+                position = startTime + Math.floorMod(position - startTime, duration);
+            } else {
+                position = Math.max(startTime, Math.min(position, endTime));
+                playing = false;
+            }
         }
 
+        putState(robotState);
     }
 
 
-    public void stop() {
-        currentIndex = -1;
+    /** Move the playback position to a time relative to the beginning of the recording
+     * (in nanoseconds)
+     *
+     * The robot state is updated at the next call to Player#update().
+     */
+    public void seek(long time) {
+        position = startTime + Math.max(0, Math.min(time, endTime - startTime));
     }
 
 
-    public void update(RobotState robotState) {
-        if (currentIndex == -1)
-            return;
+    /** Returns the playback position, relative to the beginning of the recording (in
+     * nanoseconds)
+     */
+    public long getPosition() {
+        return position - startTime;
+    }
 
-        int nextIndex = currentIndex + 1;
-        if (nextIndex >= transforms.size()) {
-            start(robotState);
-            return;
+
+    /** Returns the duration of the recording (in nanoseconds)
+     */
+    public long getDuration() {
+        return endTime - startTime;
+    }
+
+
+    /** Set the playback rate: 1 for real time, 2 for twice as fast, a negative value to
+     * play backward, 0 to pause
+     */
+    public void setRate(double rate) {
+        this.rate = rate;
+    }
+
+
+    public double getRate() {
+        return rate;
+    }
+
+
+    /** Indicates if the playback restarts once the end (or the beginning when playing
+     * backward) of the recording is reached, instead of stopping there
+     */
+    public void setLooping(boolean looping) {
+        this.looping = looping;
+    }
+
+
+    public boolean isLooping() {
+        return looping;
+    }
+
+
+    private void putState(RobotState robotState) {
+        long timestamp = System.nanoTime();
+
+        putTransforms(robotState, timestamp);
+        putJointStates(robotState, timestamp);
+    }
+
+
+    private void putStaticTransforms(RobotState robotState, Recording.TransformsStream stream) {
+        long timestamp = System.nanoTime();
+
+        for (int sample = 0; sample < stream.getSampleCount(); ++sample) {
+            int nbEntries = stream.getEntryCount(sample);
+            for (int i = 0; i < nbEntries; ++i) {
+                robotState.putTransforms(
+                        recording.getName(stream.getChildId(sample, i)), timestamp,
+                        stream.getValue(sample, i, 0), stream.getValue(sample, i, 1),
+                        stream.getValue(sample, i, 2), stream.getValue(sample, i, 3),
+                        stream.getValue(sample, i, 4), stream.getValue(sample, i, 5),
+                        stream.getValue(sample, i, 6)
+                );
+            }
         }
+    }
 
-        long currentTime = System.nanoTime();
-        timeCounter += currentTime - lastTime;
-        lastTime = currentTime;
 
-        if (delayToWait == -1) {
-            Time currentTimestamp = transforms.get(currentIndex).get(0).timestamp;
-            Time nextTimestamp = transforms.get(nextIndex).get(0).timestamp;
+    private void putTransforms(RobotState robotState, long timestamp) {
+        Recording.TransformsStream stream = recording.getTransforms();
+        int nbSamples = stream.getSampleCount();
+        if (nbSamples == 0)
+            return;
+
+        int sample = Math.max(stream.findSample(position), 0);
+        int next = Math.min(sample + 1, nbSamples - 1);
+        float alpha = interpolationFactor(stream, sample, next);
+
+        int nbEntries = stream.getEntryCount(sample);
+        int nbNextEntries = stream.getEntryCount(next);
+
+        for (int i = 0; i < nbEntries; ++i) {
+            int childId = stream.getChildId(sample, i);
+
+            // Unnamed frame (in the recordings written before those were skipped)
+            if (childId < 0)
+                continue;
+
+            position1.set(stream.getValue(sample, i, 0), stream.getValue(sample, i, 1),
+                          stream.getValue(sample, i, 2));
+
+            orientation1.set(stream.getValue(sample, i, 3), stream.getValue(sample, i, 4),
+                             stream.getValue(sample, i, 5), stream.getValue(sample, i, 6));
+
+            if (alpha > 0.0f) {
+                // Look for the same frame in the next sample, most likely at the same index
+                int j = -1;
+                if ((i < nbNextEntries) && (stream.getChildId(next, i) == childId)) {
+                    j = i;
+                } else {
+                    for (int k = 0; k < nbNextEntries; ++k) {
+                        if (stream.getChildId(next, k) == childId) {
+                            j = k;
+                            break;
+                        }
+                    }
+                }
+
+                if (j != -1) {
+                    position2.set(stream.getValue(next, j, 0), stream.getValue(next, j, 1),
+                                  stream.getValue(next, j, 2));
+
+                    orientation2.set(stream.getValue(next, j, 3), stream.getValue(next, j, 4),
+                                     stream.getValue(next, j, 5), stream.getValue(next, j, 6));
+
+                    position1.lerp(position2, alpha);
+                    orientation1.slerp(orientation2, alpha);
+                }
+            }
 
-            delayToWait = nextTimestamp.totalNsecs() - currentTimestamp.totalNsecs();
+            robotState.putTransforms(recording.getName(childId), timestamp,
+                                     position1.x, position1.y, position1.z,
+                                     orientation1.x, orientation1.y, orientation1.z, orientation1.w);
         }
+    }
+
+
+    private void putJointStates(RobotState robotState, long timestamp) {
+        Recording.JointStatesStream stream = recording.getJointStates();
+        int nbSamples = stream.getSampleCount();
+        if (nbSamples == 0)
+            return;
+
+        int sample = Math.max(stream.findSample(position), 0);
+        int next = Math.min(sample + 1, nbSamples - 1);
+        float alpha = interpolationFactor(stream, sample, next);
 
-        if (timeCounter >= delayToWait) {
-            currentIndex = nextIndex;
-            timeCounter -= delayToWait;
-            delayToWait = -1;
+        // The joint indices of the robot state are retrieved only once per joint
+        if ((robotState != mappedRobotState) || (jointIndices.length != recording.getNameCount())) {
+            jointIndices = new int[recording.getNameCount()];
+            for (int i = 0; i < jointIndices.length; ++i)
+                jointIndices[i] = -1;
 
-            for (PlaybackTransform t: transforms.get(currentIndex))
-                robotState.putTransforms(t.linkName, t.transforms.position, t.transforms.orientation);
+            mappedRobotState = robotState;
+        }
+
+        int nbJoints = stream.getJointCount(sample);
+        boolean sameJoints = (stream.getJointCount(next) == nbJoints);
 
-            PlaybackJointStates jointStates = this.jointStates.get(currentIndex);
-            for (int i = 0; i < jointStates.names.length; ++i) {
-                float position = 0.0f;
-                float velocity = 0.0f;
+        for (int i = 0; i < nbJoints; ++i) {
+            int id = stream.getJointId(sample, i);
 
-                if (jointStates.positions.length > i)
-                    position = (float) jointStates.positions[i];
+            // Unnamed joint (in the recordings written before those were skipped)
+            if (id < 0)
+                continue;
 
-                if (jointStates.velocities.length > i)
-                    velocity = (float) jointStates.velocities[i];
+            float jointPosition = stream.getPosition(sample, i);
+            float jointVelocity = stream.getVelocity(sample, i);
 
-                robotState.putJointState(jointStates.names[i], position, velocity);
+            if ((alpha > 0.0f) && sameJoints && (stream.getJointId(next, i) == id)) {
+                jointPosition += (stream.getPosition(next, i) - jointPosition) * alpha;
+                jointVelocity += (stream.getVelocity(next, i) - jointVelocity) * alpha;
             }
+
+            if (jointIndices[id] == -1)
+                jointIndices[id] = robotState.getJointIndex(recording.getName(id));
+
+            robotState.putJointState(jointIndices[id], timestamp, jointPosition, jointVelocity);
         }
     }
+
+
+    /** Returns the interpolation factor of the current position between two samples
+     */
+    private float interpolationFactor(Recording.Stream stream, int sample, int next) {
+        if (sample == next)
+            return 0.0f;
+
+        long t1 = stream.getTimestamp(sample);
+        long t2 = stream.getTimestamp(next);
+
+        if ((position <= t1) || (t2 <= t1))
+            return 0.0f;
+
+        return Math.min((float) (position - t1) / (float) (t2 - t1), 1.0f);
+    }
 }
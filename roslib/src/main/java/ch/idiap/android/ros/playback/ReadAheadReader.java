@@ -0,0 +1,155 @@
+/*
+ * Copyright (C) 2020 Idiap Research Institute
+ *
+ * Authors:
+ *   philip.abbet@idiap.ch (Philip Abbet)
+ */
+
+package ch.idiap.android.ros.playback;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+
+
+/** Read the samples of a source on a background thread, a few samples ahead of the consumer
+ *
+ * The samples are stored in a fixed ring of reusable objects, so the memory used doesn't
+ * depend on the length of the source.
+ */
+public class ReadAheadReader<T> implements Closeable {
+
+    public static final int DEFAULT_WINDOW_SIZE = 16;
+
+
+    /** Source of samples, read one at a time into reused objects
+     */
+    public interface Source<T> extends Closeable {
+
+        T create();
+
+        /** Read the next sample into 'sample', returns false at the end of the source
+         */
+        boolean read(T sample) throws IOException;
+
+    }
+
+
+    private final Source<T> source;
+    private final Object[] samples;
+
+    private int first = 0;
+    private int count = 0;
+    private boolean holding = false;
+    private boolean finished = false;
+    private boolean closed = false;
+    private IOException error = null;
+
+
+    public ReadAheadReader(Source<T> source) {
+        this(source, DEFAULT_WINDOW_SIZE);
+    }
+
+
+    /** Start reading ahead up to 'windowSize' samples of the source (which is closed when
+     * the end is reached or the reader is closed)
+     */
+    public ReadAheadReader(Source<T> source, int windowSize) {
+        this.source = source;
+
+        // One more slot for the sample held by the consumer
+        samples = new Object[Math.max(windowSize, 1) + 1];
+        for (int i = 0; i < samples.length; ++i)
+            samples[i] = source.create();
+
+        Thread thread = new Thread(this::readLoop, "RecordingReadAhead");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+
+    /** Returns the next sample, waiting for it to be read if necessary, or null at the end
+     * of the source
+     *
+     * The sample is only valid until the next call.
+     */
+    @SuppressWarnings("unchecked")
+    public synchronized T next() throws IOException {
+        if (holding) {
+            first = (first + 1) % samples.length;
+            --count;
+            holding = false;
+            notifyAll();
+        }
+
+        while ((count == 0) && !finished && !closed) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+        }
+
+        if (count == 0) {
+            if (error != null)
+                throw error;
+
+            return null;
+        }
+
+        holding = true;
+        return (T) samples[first];
+    }
+
+
+    @Override
+    public synchronized void close() {
+        closed = true;
+        notifyAll();
+    }
+
+
+    @SuppressWarnings("unchecked")
+    private void readLoop() {
+        try {
+            while (true) {
+                int slot;
+
+                synchronized (this) {
+                    while ((count == samples.length) && !closed)
+                        wait();
+
+                    if (closed)
+                        break;
+
+                    slot = (first + count) % samples.length;
+                }
+
+                // The slot isn't visible to the consumer until 'count' is incremented
+                if (!source.read((T) samples[slot]))
+                    break;
+
+                synchronized (this) {
+                    ++count;
+                    notifyAll();
+                }
+            }
+        } catch (IOException e) {
+            synchronized (this) {
+                error = e;
+            }
+        } catch (InterruptedException ignored) {
+        } finally {
+            try {
+                source.close();
+            } catch (IOException ignored) {
+            }
+
+            synchronized (this) {
+                finished = true;
+                notifyAll();
+            }
+        }
+    }
+}
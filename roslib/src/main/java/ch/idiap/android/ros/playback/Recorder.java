@@ -0,0 +1,453 @@
+/*
+ * Copyright (C) 2020 Idiap Research Institute
+ *
+ * Authors:
+ *   philip.abbet@idiap.ch (Philip Abbet)
+ */
+
+package ch.idiap.android.ros.playback;
+
+import android.util.Log;
+
+import org.ros.message.Time;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import geometry_msgs.Quaternion;
+import geometry_msgs.TransformStamped;
+import geometry_msgs.Vector3;
+
+
+/** Record the tf, tf_static and joint_states messages into files in the binary format read by
+ * Recording (and thus playable by Player)
+ *
+ * The listener threads only copy the content of the messages into preallocated slots of
+ * lock-free queues (one per topic, so each method must only be called from one thread at a
+ * time), and never wait: when a queue is full, the message is dropped and counted. A writer
+ * thread empties the queues into the current file, which is replaced by a new one once it is
+ * too big or too old.
+ */
+public class Recorder {
+
+    /** When the data written in the files is forced to the storage device
+     */
+    public enum SyncPolicy {
+        NEVER,          // Left to the operating system
+        ON_ROTATE,      // When a file is completed
+        PERIODIC,       // Periodically, and when a file is completed
+    }
+
+
+    private static final String TAG = Recorder.class.getSimpleName();
+
+    public static final int DEFAULT_QUEUE_CAPACITY = 1024;
+    public static final long DEFAULT_MAX_FILE_SIZE = 256L * 1024L * 1024L;
+    public static final long DEFAULT_SYNC_PERIOD = 5000000000L;
+
+    // Time to wait when the queues are empty (in nanoseconds)
+    private static final long IDLE_WAIT = 2000000L;
+
+
+    private static class TransformsMessage {
+        long timestamp;
+        int count = 0;
+        String[] children = new String[16];
+        String[] parents = new String[16];
+        float[] values = new float[16 * 7];
+
+        void ensureCapacity(int capacity) {
+            if (children.length < capacity) {
+                children = new String[capacity];
+                parents = new String[capacity];
+                values = new float[capacity * 7];
+            }
+        }
+    }
+
+
+    private static class JointStatesMessage {
+        long timestamp;
+        int count = 0;
+        String[] names = new String[16];
+        float[] positions = new float[16];
+        float[] velocities = new float[16];
+        float[] efforts = new float[16];
+
+        void ensureCapacity(int capacity) {
+            if (names.length < capacity) {
+                names = new String[capacity];
+                positions = new float[capacity];
+                velocities = new float[capacity];
+                efforts = new float[capacity];
+            }
+        }
+    }
+
+
+    private static class StaticFrame {
+        String parent;
+        final float[] values = new float[7];
+    }
+
+
+    private final File directory;
+    private final String prefix;
+
+    private long maxFileSize = DEFAULT_MAX_FILE_SIZE;
+    private long maxFileDuration = 0;
+    private SyncPolicy syncPolicy = SyncPolicy.ON_ROTATE;
+    private long syncPeriod = DEFAULT_SYNC_PERIOD;
+
+    private final SpscQueue<TransformsMessage> transformsQueue;
+    private final SpscQueue<TransformsMessage> staticTransformsQueue;
+    private final SpscQueue<JointStatesMessage> jointStatesQueue;
+    private final AtomicLong droppedCount = new AtomicLong();
+
+    private volatile boolean running = false;
+    private Thread thread = null;
+
+    // Only accessed by the writer thread
+    private FileChannel channel = null;
+    private RecordingWriter writer = null;
+    private File file = null;
+    private int fileIndex = 0;
+    private long fileStartTime;
+    private long lastSyncTime;
+    private long lastTransformsTimestamp = Long.MIN_VALUE;
+    private long lastStaticTransformsTimestamp = Long.MIN_VALUE;
+    private long lastJointStatesTimestamp = Long.MIN_VALUE;
+    private final Map<String, StaticFrame> staticFrames = new LinkedHashMap<>();
+    private int[] jointIds = new int[16];
+
+
+    public Recorder(File directory) {
+        this(directory, "recording", DEFAULT_QUEUE_CAPACITY);
+    }
+
+
+    /** Each file is named '<prefix>-<date>-<time>-<index>.rec', and the queues can hold up
+     * to 'queueCapacity' messages each
+     */
+    public Recorder(File directory, String prefix, int queueCapacity) {
+        this.directory = directory;
+        this.prefix = prefix;
+
+        transformsQueue = new SpscQueue<>(queueCapacity, TransformsMessage::new);
+        staticTransformsQueue = new SpscQueue<>(queueCapacity, TransformsMessage::new);
+        jointStatesQueue = new SpscQueue<>(queueCapacity, JointStatesMessage::new);
+    }
+
+
+    /** Set the size (in bytes) above which a new file is started (0 for no limit)
+     */
+    public void setMaxFileSize(long size) {
+        maxFileSize = size;
+    }
+
+
+    /** Set the duration (in nanoseconds) after which a new file is started (0 for no limit)
+     */
+    public void setMaxFileDuration(long duration) {
+        maxFileDuration = duration;
+    }
+
+
+    /** Set when the data is forced to the storage device, and the period (in nanoseconds)
+     * used by SyncPolicy.PERIODIC
+     */
+    public void setSyncPolicy(SyncPolicy policy, long period) {
+        syncPolicy = policy;
+        syncPeriod = period;
+    }
+
+
+    public synchronized void start() {
+        if (running)
+            return;
+
+        running = true;
+
+        thread = new Thread(this::writeLoop, "Recorder");
+        thread.start();
+    }
+
+
+    /** Stop the recording, once all the queued messages are written
+     */
+    public synchronized void stop() {
+        if (thread == null)
+            return;
+
+        running = false;
+
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        thread = null;
+    }
+
+
+    public boolean isRecording() {
+        return running;
+    }
+
+
+    /** Returns the number of messages dropped because the writer thread didn't keep up
+     */
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+
+    /** Record a tf or tf_static message (only call from one thread at a time for each topic)
+     */
+    public void recordTransforms(tf2_msgs.TFMessage message, boolean isStatic) {
+        if (!running)
+            return;
+
+        SpscQueue<TransformsMessage> queue = (isStatic ? staticTransformsQueue : transformsQueue);
+
+        TransformsMessage slot = queue.claim();
+        if (slot == null) {
+            droppedCount.incrementAndGet();
+            return;
+        }
+
+        List<TransformStamped> transforms = message.getTransforms();
+        int count = transforms.size();
+
+        slot.ensureCapacity(count);
+        slot.count = count;
+        slot.timestamp = (count > 0 ? toNsecs(transforms.get(0).getHeader().getStamp()) : 0);
+
+        for (int i = 0; i < count; ++i) {
+            TransformStamped transform = transforms.get(i);
+
+            Vector3 pos = transform.getTransform().getTranslation();
+            Quaternion rot = transform.getTransform().getRotation();
+
+            slot.children[i] = transform.getChildFrameId();
+            slot.parents[i] = transform.getHeader().getFrameId();
+
+            int offset = i * 7;
+            slot.values[offset] = (float) pos.getX();
+            slot.values[offset + 1] = (float) pos.getY();
+            slot.values[offset + 2] = (float) pos.getZ();
+            slot.values[offset + 3] = (float) rot.getX();
+            slot.values[offset + 4] = (float) rot.getY();
+            slot.values[offset + 5] = (float) rot.getZ();
+            slot.values[offset + 6] = (float) rot.getW();
+        }
+
+        queue.publish();
+    }
+
+
+    /** Record a joint_states message (only call from one thread at a time)
+     */
+    public void recordJointStates(sensor_msgs.JointState message) {
+        if (!running)
+            return;
+
+        JointStatesMessage slot = jointStatesQueue.claim();
+        if (slot == null) {
+            droppedCount.incrementAndGet();
+            return;
+        }
+
+        List<String> names = message.getName();
+        double[] positions = message.getPosition();
+        double[] velocities = message.getVelocity();
+        double[] efforts = message.getEffort();
+        int count = names.size();
+
+        slot.ensureCapacity(count);
+        slot.count = count;
+        slot.timestamp = toNsecs(message.getHeader().getStamp());
+
+        for (int i = 0; i < count; ++i) {
+            slot.names[i] = names.get(i);
+            slot.positions[i] = (positions.length > i ? (float) positions[i] : 0.0f);
+            slot.velocities[i] = (velocities.length > i ? (float) velocities[i] : 0.0f);
+            slot.efforts[i] = (efforts.length > i ? (float) efforts[i] : 0.0f);
+        }
+
+        jointStatesQueue.publish();
+    }
+
+
+    private static long toNsecs(Time stamp) {
+        if ((stamp == null) || stamp.isZero())
+            return System.currentTimeMillis() * 1000000L;
+
+        return stamp.totalNsecs();
+    }
+
+
+    private void writeLoop() {
+        try {
+            openFile();
+
+            while (running) {
+                boolean idle = !drainQueues();
+
+                long now = System.nanoTime();
+
+                if (((maxFileSize > 0) && (writer.getBytesWritten() >= maxFileSize)) ||
+                    ((maxFileDuration > 0) && (now - fileStartTime >= maxFileDuration))) {
+                    closeFile();
+                    openFile();
+                } else if ((syncPolicy == SyncPolicy.PERIODIC) && (now - lastSyncTime >= syncPeriod)) {
+                    writer.flush();
+                    channel.force(false);
+                    lastSyncTime = now;
+                }
+
+                if (idle)
+                    LockSupport.parkNanos(IDLE_WAIT);
+            }
+
+            drainQueues();
+            closeFile();
+
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to write the recording " + file, e);
+            running = false;
+
+            try {
+                if (channel != null)
+                    channel.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+
+    /** Write all the queued messages, returns false if there weren't any
+     */
+    private boolean drainQueues() throws IOException {
+        boolean written = false;
+
+        TransformsMessage transforms;
+        while ((transforms = staticTransformsQueue.peek()) != null) {
+            lastStaticTransformsTimestamp = Math.max(transforms.timestamp, lastStaticTransformsTimestamp);
+            writeTransforms(transforms, true, lastStaticTransformsTimestamp);
+
+            for (int i = 0; i < transforms.count; ++i) {
+                StaticFrame frame = staticFrames.get(transforms.children[i]);
+                if (frame == null) {
+                    frame = new StaticFrame();
+                    staticFrames.put(transforms.children[i], frame);
+                }
+
+                frame.parent = transforms.parents[i];
+                System.arraycopy(transforms.values, i * 7, frame.values, 0, 7);
+            }
+
+            staticTransformsQueue.release();
+            written = true;
+        }
+
+        while ((transforms = transformsQueue.peek()) != null) {
+            // The samples of a stream must be in chronological order
+            lastTransformsTimestamp = Math.max(transforms.timestamp, lastTransformsTimestamp);
+            writeTransforms(transforms, false, lastTransformsTimestamp);
+
+            transformsQueue.release();
+            written = true;
+        }
+
+        JointStatesMessage jointStates;
+        while ((jointStates = jointStatesQueue.peek()) != null) {
+            if (jointIds.length < jointStates.count)
+                jointIds = new int[jointStates.count];
+
+            for (int i = 0; i < jointStates.count; ++i)
+                jointIds[i] = writer.getNameId(jointStates.names[i]);
+
+            lastJointStatesTimestamp = Math.max(jointStates.timestamp, lastJointStatesTimestamp);
+
+            writer.addJointStates(lastJointStatesTimestamp, jointIds, jointStates.count,
+                                  jointStates.positions, jointStates.velocities,
+                                  jointStates.efforts);
+
+            jointStatesQueue.release();
+            written = true;
+        }
+
+        return written;
+    }
+
+
+    private void writeTransforms(TransformsMessage message, boolean isStatic, long timestamp) throws IOException {
+        writer.beginTransforms(isStatic, timestamp);
+
+        for (int i = 0; i < message.count; ++i) {
+            int offset = i * 7;
+
+            writer.addTransform(
+                    writer.getNameId(message.children[i]), writer.getNameId(message.parents[i]),
+                    message.values[offset], message.values[offset + 1], message.values[offset + 2],
+                    message.values[offset + 3], message.values[offset + 4],
+                    message.values[offset + 5], message.values[offset + 6]
+            );
+        }
+    }
+
+
+    private void openFile() throws IOException {
+        if (!directory.exists() && !directory.mkdirs())
+            throw new IOException("Failed to create the folder " + directory);
+
+        String date = new SimpleDateFormat("yyyyMMdd-HHmmss", Locale.US).format(new Date());
+        file = new File(directory, prefix + "-" + date + "-" + fileIndex + ".rec");
+        ++fileIndex;
+
+        channel = new FileOutputStream(file).getChannel();
+        writer = new RecordingWriter(channel);
+
+        fileStartTime = System.nanoTime();
+        lastSyncTime = fileStartTime;
+
+        // Each file must be playable on its own, so it starts with the known static frames
+        if (!staticFrames.isEmpty()) {
+            writer.beginTransforms(true, lastStaticTransformsTimestamp);
+
+            for (Map.Entry<String, StaticFrame> entry: staticFrames.entrySet()) {
+                float[] values = entry.getValue().values;
+
+                writer.addTransform(
+                        writer.getNameId(entry.getKey()), writer.getNameId(entry.getValue().parent),
+                        values[0], values[1], values[2], values[3], values[4], values[5], values[6]
+                );
+            }
+        }
+    }
+
+
+    private void closeFile() throws IOException {
+        writer.flush();
+
+        if (syncPolicy != SyncPolicy.NEVER)
+            channel.force(false);
+
+        writer.close();
+
+        channel = null;
+        writer = null;
+    }
+}
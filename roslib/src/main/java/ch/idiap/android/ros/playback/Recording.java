@@ -0,0 +1,470 @@
+/*
+ * Copyright (C) 2020 Idiap Research Institute
+ *
+ * Authors:
+ *   philip.abbet@idiap.ch (Philip Abbet)
+ */
+
+package ch.idiap.android.ros.playback;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import ch.idiap.android.urdf.robot.RobotState;
+
+
+/** Read-only access to a recording in the binary format written by RecordingWriter
+ *
+ * The file is memory-mapped: only a small index of its blocks is kept in memory, the samples
+ * are read from the mapping when accessed.
+ *
+ * Layout of the file (all values are little-endian):
+ *
+ *   int magic ('URDR'), int version
+ *   followed by blocks made of: int type, int size of the payload (in bytes), payload
+ *
+ * NAMES block:
+ *   int first id, int nbNames, then for each name: short length, UTF-8 bytes
+ *
+ * TRANSFORMS and STATIC_TRANSFORMS blocks (one chunk of consecutive samples):
+ *   int nbSamples, int nbEntries, long timestamps[nbSamples] (in nanoseconds),
+ *   int firstEntries[nbSamples + 1], int childIds[nbEntries], int parentIds[nbEntries],
+ *   float values[nbEntries * 7] (x, y, z, qx, qy, qz, qw)
+ *
+ * JOINT_STATES block (one chunk of consecutive samples sharing the same joints):
+ *   int nbSamples, int nbJoints, int jointIds[nbJoints], long timestamps[nbSamples],
+ *   float positions[nbSamples * nbJoints], float velocities[nbSamples * nbJoints],
+ *   float efforts[nbSamples * nbJoints]
+ *
+ * The blocks of a stream are stored in chronological order. An incomplete block at the end
+ * of the file (for instance after a crash during a recording) is ignored.
+ */
+public class Recording {
+
+    public static final int MAGIC = 0x52445255;     // 'URDR'
+    public static final int VERSION = 1;
+
+    static final int HEADER_SIZE = 8;
+    static final int BLOCK_HEADER_SIZE = 8;
+
+    static final int BLOCK_NAMES = 1;
+    static final int BLOCK_TRANSFORMS = 2;
+    static final int BLOCK_STATIC_TRANSFORMS = 3;
+    static final int BLOCK_JOINT_STATES = 4;
+
+
+    /** Base class of the streams of samples, giving access to the timestamps
+     *
+     * Accessing a stream isn't thread-safe, since the chunk of the last accessed sample is
+     * cached.
+     */
+    public static abstract class Stream {
+        final ByteBuffer buffer;
+
+        int nbChunks = 0;
+        int nbSamples = 0;
+        int[] chunkOffsets = new int[16];
+        int[] chunkFirstSamples = new int[16];
+        int[] chunkSampleCounts = new int[16];
+        int[] chunkCounts = new int[16];
+        long[] chunkFirstTimestamps = new long[16];
+
+        private int currentChunk = 0;
+
+
+        Stream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+
+        public int getSampleCount() {
+            return nbSamples;
+        }
+
+
+        /** Returns the timestamp of a sample (in nanoseconds)
+         */
+        public long getTimestamp(int sample) {
+            int chunk = locate(sample);
+            return buffer.getLong(timestampsOffset(chunk) + (sample - chunkFirstSamples[chunk]) * 8);
+        }
+
+
+        /** Returns the index of the last sample with a timestamp not after the given one, or
+         * -1 if all the samples are after it
+         */
+        public int findSample(long timestamp) {
+            if ((nbSamples == 0) || (timestamp < chunkFirstTimestamps[0]))
+                return -1;
+
+            // Binary search of the chunk, then of the sample in the chunk
+            int low = 0;
+            int high = nbChunks - 1;
+            while (low < high) {
+                int middle = (low + high + 1) >>> 1;
+                if (chunkFirstTimestamps[middle] <= timestamp)
+                    low = middle;
+                else
+                    high = middle - 1;
+            }
+
+            int chunk = low;
+            int offset = timestampsOffset(chunk);
+
+            low = 0;
+            high = chunkSampleCounts[chunk] - 1;
+            while (low < high) {
+                int middle = (low + high + 1) >>> 1;
+                if (buffer.getLong(offset + middle * 8) <= timestamp)
+                    low = middle;
+                else
+                    high = middle - 1;
+            }
+
+            currentChunk = chunk;
+            return chunkFirstSamples[chunk] + low;
+        }
+
+
+        void addChunk(int offset, int nbSamples, int count, long firstTimestamp) {
+            if (nbChunks == chunkOffsets.length) {
+                int capacity = nbChunks * 2;
+                chunkOffsets = Arrays.copyOf(chunkOffsets, capacity);
+                chunkFirstSamples = Arrays.copyOf(chunkFirstSamples, capacity);
+                chunkSampleCounts = Arrays.copyOf(chunkSampleCounts, capacity);
+                chunkCounts = Arrays.copyOf(chunkCounts, capacity);
+                chunkFirstTimestamps = Arrays.copyOf(chunkFirstTimestamps, capacity);
+            }
+
+            chunkOffsets[nbChunks] = offset;
+            chunkFirstSamples[nbChunks] = this.nbSamples;
+            chunkSampleCounts[nbChunks] = nbSamples;
+            chunkCounts[nbChunks] = count;
+            chunkFirstTimestamps[nbChunks] = firstTimestamp;
+
+            ++nbChunks;
+            this.nbSamples += nbSamples;
+        }
+
+
+        /** Returns the index of the chunk containing a sample
+         */
+        int locate(int sample) {
+            if ((sample < 0) || (sample >= nbSamples))
+                throw new IndexOutOfBoundsException("Invalid sample index: " + sample);
+
+            int chunk = currentChunk;
+            if ((sample >= chunkFirstSamples[chunk]) &&
+                (sample < chunkFirstSamples[chunk] + chunkSampleCounts[chunk])) {
+                return chunk;
+            }
+
+            int low = 0;
+            int high = nbChunks - 1;
+            while (low < high) {
+                int middle = (low + high + 1) >>> 1;
+                if (chunkFirstSamples[middle] <= sample)
+                    low = middle;
+                else
+                    high = middle - 1;
+            }
+
+            currentChunk = low;
+            return low;
+        }
+
+
+        abstract int timestampsOffset(int chunk);
+    }
+
+
+    /** Stream of samples made of a variable number of transforms
+     */
+    public static class TransformsStream extends Stream {
+
+        TransformsStream(ByteBuffer buffer) {
+            super(buffer);
+        }
+
+
+        public int getEntryCount(int sample) {
+            int chunk = locate(sample);
+            int offset = firstEntriesOffset(chunk) + (sample - chunkFirstSamples[chunk]) * 4;
+            return buffer.getInt(offset + 4) - buffer.getInt(offset);
+        }
+
+
+        public int getChildId(int sample, int entry) {
+            int chunk = locate(sample);
+            return buffer.getInt(childIdsOffset(chunk) + entryIndex(chunk, sample, entry) * 4);
+        }
+
+
+        /** Returns the id of the parent frame of an entry, or -1 if it has none
+         */
+        public int getParentId(int sample, int entry) {
+            int chunk = locate(sample);
+            return buffer.getInt(parentIdsOffset(chunk) + entryIndex(chunk, sample, entry) * 4);
+        }
+
+
+        /** Returns one of the components of the transforms of an entry, in the order
+         * (x, y, z, qx, qy, qz, qw)
+         */
+        public float getValue(int sample, int entry, int component) {
+            int chunk = locate(sample);
+            return buffer.getFloat(valuesOffset(chunk) + (entryIndex(chunk, sample, entry) * 7 + component) * 4);
+        }
+
+
+        public void getTransforms(int sample, int entry, RobotState.Transforms out) {
+            int chunk = locate(sample);
+            int offset = valuesOffset(chunk) + entryIndex(chunk, sample, entry) * 28;
+
+            out.position.set(buffer.getFloat(offset), buffer.getFloat(offset + 4),
+                             buffer.getFloat(offset + 8));
+
+            out.orientation.set(buffer.getFloat(offset + 12), buffer.getFloat(offset + 16),
+                                buffer.getFloat(offset + 20), buffer.getFloat(offset + 24));
+        }
+
+
+        private int entryIndex(int chunk, int sample, int entry) {
+            return buffer.getInt(firstEntriesOffset(chunk) + (sample - chunkFirstSamples[chunk]) * 4) + entry;
+        }
+
+
+        @Override
+        int timestampsOffset(int chunk) {
+            return chunkOffsets[chunk] + 8;
+        }
+
+
+        private int firstEntriesOffset(int chunk) {
+            return timestampsOffset(chunk) + chunkSampleCounts[chunk] * 8;
+        }
+
+
+        private int childIdsOffset(int chunk) {
+            return firstEntriesOffset(chunk) + (chunkSampleCounts[chunk] + 1) * 4;
+        }
+
+
+        private int parentIdsOffset(int chunk) {
+            return childIdsOffset(chunk) + chunkCounts[chunk] * 4;
+        }
+
+
+        private int valuesOffset(int chunk) {
+            return parentIdsOffset(chunk) + chunkCounts[chunk] * 4;
+        }
+    }
+
+
+    /** Stream of joint states samples
+     */
+    public static class JointStatesStream extends Stream {
+
+        JointStatesStream(ByteBuffer buffer) {
+            super(buffer);
+        }
+
+
+        public int getJointCount(int sample) {
+            return chunkCounts[locate(sample)];
+        }
+
+
+        public int getJointId(int sample, int joint) {
+            int chunk = locate(sample);
+            return buffer.getInt(chunkOffsets[chunk] + 8 + joint * 4);
+        }
+
+
+        public float getPosition(int sample, int joint) {
+            int chunk = locate(sample);
+            return buffer.getFloat(positionsOffset(chunk) + valueIndex(chunk, sample, joint) * 4);
+        }
+
+
+        public float getVelocity(int sample, int joint) {
+            int chunk = locate(sample);
+            return buffer.getFloat(velocitiesOffset(chunk) + valueIndex(chunk, sample, joint) * 4);
+        }
+
+
+        public float getEffort(int sample, int joint) {
+            int chunk = locate(sample);
+            return buffer.getFloat(effortsOffset(chunk) + valueIndex(chunk, sample, joint) * 4);
+        }
+
+
+        private int valueIndex(int chunk, int sample, int joint) {
+            return (sample - chunkFirstSamples[chunk]) * chunkCounts[chunk] + joint;
+        }
+
+
+        @Override
+        int timestampsOffset(int chunk) {
+            return chunkOffsets[chunk] + 8 + chunkCounts[chunk] * 4;
+        }
+
+
+        private int positionsOffset(int chunk) {
+            return timestampsOffset(chunk) + chunkSampleCounts[chunk] * 8;
+        }
+
+
+        private int velocitiesOffset(int chunk) {
+            return positionsOffset(chunk) + chunkSampleCounts[chunk] * chunkCounts[chunk] * 4;
+        }
+
+
+        private int effortsOffset(int chunk) {
+            return velocitiesOffset(chunk) + chunkSampleCounts[chunk] * chunkCounts[chunk] * 4;
+        }
+    }
+
+
+    private final ByteBuffer buffer;
+    private final List<String> names = new ArrayList<>();
+    private final TransformsStream transforms;
+    private final TransformsStream staticTransforms;
+    private final JointStatesStream jointStates;
+
+
+    /** Memory-map a recording file
+     */
+    public static Recording open(File file) throws IOException {
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+             FileChannel channel = randomAccessFile.getChannel()) {
+            return new Recording(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+
+    /** Read a recording from the remaining bytes of a buffer (which isn't modified)
+     */
+    public static Recording wrap(ByteBuffer buffer) throws IOException {
+        return new Recording(buffer.slice());
+    }
+
+
+    private Recording(ByteBuffer buffer) throws IOException {
+        this.buffer = buffer.order(ByteOrder.LITTLE_ENDIAN);
+
+        transforms = new TransformsStream(this.buffer);
+        staticTransforms = new TransformsStream(this.buffer);
+        jointStates = new JointStatesStream(this.buffer);
+
+        int limit = this.buffer.limit();
+
+        if ((limit < HEADER_SIZE) || (this.buffer.getInt(0) != MAGIC))
+            throw new IOException("Not a recording");
+
+        int version = this.buffer.getInt(4);
+        if (version != VERSION)
+            throw new IOException("Unsupported recording version: " + version);
+
+        int position = HEADER_SIZE;
+        while (position + BLOCK_HEADER_SIZE <= limit) {
+            int type = this.buffer.getInt(position);
+            int size = this.buffer.getInt(position + 4);
+            int payload = position + BLOCK_HEADER_SIZE;
+
+            if ((size < 0) || (size > limit - payload))
+                break;
+
+            switch (type) {
+                case BLOCK_NAMES:
+                    readNames(payload);
+                    break;
+
+                case BLOCK_TRANSFORMS:
+                    addChunk(transforms, payload, 8);
+                    break;
+
+                case BLOCK_STATIC_TRANSFORMS:
+                    addChunk(staticTransforms, payload, 8);
+                    break;
+
+                case BLOCK_JOINT_STATES:
+                    addChunk(jointStates, payload, 8 + this.buffer.getInt(payload + 4) * 4);
+                    break;
+
+                default:
+                    // Unknown blocks are skipped, for forward compatibility
+                    break;
+            }
+
+            position = payload + size;
+        }
+    }
+
+
+    public TransformsStream getTransforms() {
+        return transforms;
+    }
+
+
+    public TransformsStream getStaticTransforms() {
+        return staticTransforms;
+    }
+
+
+    public JointStatesStream getJointStates() {
+        return jointStates;
+    }
+
+
+    public int getNameCount() {
+        return names.size();
+    }
+
+
+    /** Returns the name of a frame or joint from its id
+     */
+    public String getName(int id) {
+        return ((id >= 0) && (id < names.size()) ? names.get(id) : null);
+    }
+
+
+    private void readNames(int position) throws IOException {
+        int firstId = buffer.getInt(position);
+        int count = buffer.getInt(position + 4);
+
+        if (firstId != names.size())
+            throw new IOException("Invalid names block");
+
+        position += 8;
+
+        for (int i = 0; i < count; ++i) {
+            int length = buffer.getShort(position) & 0xFFFF;
+
+            byte[] bytes = new byte[length];
+            for (int j = 0; j < length; ++j)
+                bytes[j] = buffer.get(position + 2 + j);
+
+            names.add(new String(bytes, StandardCharsets.UTF_8));
+            position += 2 + length;
+        }
+    }
+
+
+    private void addChunk(Stream stream, int position, int timestampsOffset) {
+        int nbSamples = buffer.getInt(position);
+        if (nbSamples <= 0)
+            return;
+
+        stream.addChunk(position, nbSamples, buffer.getInt(position + 4),
+                        buffer.getLong(position + timestampsOffset));
+    }
+}
@@ -0,0 +1,180 @@
+/*
+ * Copyright (C) 2020 Idiap Research Institute
+ *
+ * Authors:
+ *   philip.abbet@idiap.ch (Philip Abbet)
+ */
+
+package ch.idiap.android.ros.playback;
+
+import android.content.Context;
+import android.content.pm.PackageManager;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+
+/** Convert recordings in the text format produced by 'rostopic echo' (one file per topic)
+ * into the binary format described in Recording
+ */
+public class RecordingConverter {
+
+    /** Name of a recording already converted to the binary format, in a recording folder
+     */
+    public static final String BINARY_RECORDING = "recording.rec";
+
+
+    /** Returns a binary recording of the recording folder found in the assets (containing
+     * either 'recording.rec' or the files 'tf_static.txt', 'tf.txt' and 'joint_states.txt')
+     *
+     * The binary recording is stored in the cache directory of the application, and only
+     * created again when the application is updated.
+     */
+    public static File convertAsset(Context context, String folder) throws IOException {
+        File output = new File(context.getCacheDir(), folder + ".rec");
+
+        if (output.exists() && (output.lastModified() >= getLastUpdateTime(context)))
+            return output;
+
+        File directory = output.getParentFile();
+        if ((directory != null) && !directory.exists() && !directory.mkdirs())
+            throw new IOException("Failed to create the folder " + directory);
+
+        File tmp = new File(output.getPath() + ".tmp");
+
+        try {
+            InputStream binary = null;
+            try {
+                binary = context.getAssets().open(folder + "/" + BINARY_RECORDING);
+            } catch (FileNotFoundException ignored) {
+            }
+
+            if (binary != null) {
+                try (InputStream inputStream = binary;
+                     OutputStream outputStream = new FileOutputStream(tmp)) {
+                    byte[] bytes = new byte[64 * 1024];
+                    int count;
+                    while ((count = inputStream.read(bytes)) != -1)
+                        outputStream.write(bytes, 0, count);
+                }
+            } else {
+                try (InputStream tfStatic = context.getAssets().open(folder + "/tf_static.txt");
+                     InputStream tf = context.getAssets().open(folder + "/tf.txt");
+                     InputStream jointStates = context.getAssets().open(folder + "/joint_states.txt");
+                     FileChannel channel = new FileOutputStream(tmp).getChannel()) {
+                    convert(tfStatic, tf, jointStates, channel);
+                }
+            }
+
+            if (!tmp.renameTo(output))
+                throw new IOException("Failed to create the file " + output);
+
+        } finally {
+            tmp.delete();
+        }
+
+        return output;
+    }
+
+
+    /** Convert a recording from the text format to the binary one
+     *
+     * The text files are parsed incrementally (on background threads for the dynamic
+     * topics), so the memory used doesn't depend on the length of the recording. The input
+     * streams are closed, but not the output channel.
+     */
+    public static void convert(InputStream tfStatic, InputStream tf, InputStream jointStates,
+                               WritableByteChannel output) throws IOException {
+        RecordingWriter writer = new RecordingWriter(output);
+
+        try (TransformsReader staticReader = new TransformsReader(tfStatic)) {
+            PlaybackTransforms message = staticReader.create();
+            while (staticReader.read(message))
+                writeTransforms(writer, message, true);
+        }
+
+        try (ReadAheadReader<PlaybackTransforms> tfReader = new ReadAheadReader<>(new TransformsReader(tf));
+             ReadAheadReader<PlaybackJointStates> jointStatesReader = new ReadAheadReader<>(new JointStatesReader(jointStates))) {
+
+            PlaybackTransforms message;
+            while ((message = tfReader.next()) != null)
+                writeTransforms(writer, message, false);
+
+            int[] jointIds = new int[0];
+
+            PlaybackJointStates sample;
+            while ((sample = jointStatesReader.next()) != null) {
+                if (jointIds.length < sample.names.length)
+                    jointIds = new int[sample.names.length];
+
+                for (int i = 0; i < sample.names.length; ++i)
+                    jointIds[i] = writer.getNameId(sample.names[i]);
+
+                writer.addJointStates(sample.timestamp.totalNsecs(), jointIds,
+                                      sample.names.length, sample.positions,
+                                      sample.velocities, sample.efforts);
+            }
+        }
+
+        writer.flush();
+    }
+
+
+    /** Convert a recording folder offline, so the binary recording can be shipped in the
+     * assets instead of the text files
+     *
+     * Usage: RecordingConverter <recording folder> [<output file>]
+     */
+    public static void main(String[] args) throws IOException {
+        if ((args.length < 1) || (args.length > 2)) {
+            System.err.println("Usage: RecordingConverter <recording folder> [<output file>]");
+            System.exit(1);
+        }
+
+        File folder = new File(args[0]);
+        File output = (args.length == 2 ? new File(args[1]) : new File(folder, BINARY_RECORDING));
+
+        try (InputStream tfStatic = new FileInputStream(new File(folder, "tf_static.txt"));
+             InputStream tf = new FileInputStream(new File(folder, "tf.txt"));
+             InputStream jointStates = new FileInputStream(new File(folder, "joint_states.txt"));
+             FileChannel channel = new FileOutputStream(output).getChannel()) {
+            convert(tfStatic, tf, jointStates, channel);
+        }
+    }
+
+
+    private static void writeTransforms(RecordingWriter writer, PlaybackTransforms message,
+                                        boolean isStatic) throws IOException {
+        if (message.count == 0)
+            return;
+
+        writer.beginTransforms(isStatic, message.transforms[0].timestamp.totalNsecs());
+
+        for (int i = 0; i < message.count; ++i) {
+            PlaybackTransform t = message.transforms[i];
+
+            writer.addTransform(
+                    writer.getNameId(t.linkName), writer.getNameId(t.parentName),
+                    t.transforms.position.x, t.transforms.position.y, t.transforms.position.z,
+                    t.transforms.orientation.x, t.transforms.orientation.y,
+                    t.transforms.orientation.z, t.transforms.orientation.w
+            );
+        }
+    }
+
+
+    private static long getLastUpdateTime(Context context) {
+        try {
+            return context.getPackageManager().getPackageInfo(context.getPackageName(), 0).lastUpdateTime;
+        } catch (PackageManager.NameNotFoundException e) {
+            return Long.MAX_VALUE;
+        }
+    }
+}
@@ -0,0 +1,438 @@
+/*
+ * Copyright (C) 2020 Idiap Research Institute
+ *
+ * Authors:
+ *   philip.abbet@idiap.ch (Philip Abbet)
+ */
+
+package ch.idiap.android.ros.playback;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+
+/** Write a recording in the binary format described in Recording
+ *
+ * Samples are accumulated in chunks of up to 'chunkSize' samples per stream, each chunk
+ * being written as one block once full (or when the writer is flushed). The samples of a
+ * stream must be added in chronological order.
+ */
+public class RecordingWriter implements Closeable {
+
+    public static final int DEFAULT_CHUNK_SIZE = 256;
+
+
+    private static class TransformsChunk {
+        final int type;
+        final long[] timestamps;
+        final int[] firstEntries;
+        int nbSamples = 0;
+        int nbEntries = 0;
+        int[] childIds = new int[64];
+        int[] parentIds = new int[64];
+        float[] values = new float[64 * 7];
+
+
+        TransformsChunk(int type, int chunkSize) {
+            this.type = type;
+            this.timestamps = new long[chunkSize];
+            this.firstEntries = new int[chunkSize + 1];
+        }
+
+
+        int payloadSize() {
+            return 8 + nbSamples * 12 + 4 + nbEntries * 36;
+        }
+    }
+
+
+    private static class JointStatesChunk {
+        final long[] timestamps;
+        int nbSamples = 0;
+        int nbJoints = 0;
+        int[] jointIds = new int[16];
+        float[] positions = new float[0];
+        float[] velocities = new float[0];
+        float[] efforts = new float[0];
+
+
+        JointStatesChunk(int chunkSize) {
+            this.timestamps = new long[chunkSize];
+        }
+
+
+        int payloadSize() {
+            return 8 + nbJoints * 4 + nbSamples * 8 + nbSamples * nbJoints * 12;
+        }
+    }
+
+
+    private final WritableByteChannel channel;
+    private final int chunkSize;
+    private ByteBuffer buffer = ByteBuffer.allocateDirect(64 * 1024).order(ByteOrder.LITTLE_ENDIAN);
+
+    private final Map<String, Integer> nameIds = new HashMap<>();
+    private final List<String> names = new ArrayList<>();
+    private int nbWrittenNames = 0;
+
+    private final TransformsChunk transforms;
+    private final TransformsChunk staticTransforms;
+    private final JointStatesChunk jointStates;
+    private TransformsChunk currentTransforms = null;
+
+    // The joint states without their unnamed joints
+    private int[] namedJointIds = new int[0];
+    private float[] namedPositions = new float[0];
+    private float[] namedVelocities = new float[0];
+    private float[] namedEfforts = new float[0];
+    private long bytesWritten = 0;
+
+
+    public RecordingWriter(WritableByteChannel channel) throws IOException {
+        this(channel, DEFAULT_CHUNK_SIZE);
+    }
+
+
+    public RecordingWriter(WritableByteChannel channel, int chunkSize) throws IOException {
+        this.channel = channel;
+        this.chunkSize = Math.max(chunkSize, 1);
+
+        transforms = new TransformsChunk(Recording.BLOCK_TRANSFORMS, this.chunkSize);
+        staticTransforms = new TransformsChunk(Recording.BLOCK_STATIC_TRANSFORMS, this.chunkSize);
+        jointStates = new JointStatesChunk(this.chunkSize);
+
+        buffer.clear();
+        buffer.putInt(Recording.MAGIC);
+        buffer.putInt(Recording.VERSION);
+        write();
+    }
+
+
+    /** Returns the id of a frame or joint name, registering it if necessary
+     *
+     * Returns -1 for a null or empty name.
+     */
+    public int getNameId(String name) {
+        if ((name == null) || name.isEmpty())
+            return -1;
+
+        Integer id = nameIds.get(name);
+        if (id == null) {
+            id = names.size();
+            names.add(name);
+            nameIds.put(name, id);
+        }
+
+        return id;
+    }
+
+
+    /** Start a new sample of transforms, to fill with RecordingWriter#addTransform()
+     */
+    public void beginTransforms(boolean isStatic, long timestamp) throws IOException {
+        TransformsChunk chunk = (isStatic ? staticTransforms : transforms);
+
+        if (chunk.nbSamples == chunkSize)
+            writeTransforms(chunk);
+
+        chunk.timestamps[chunk.nbSamples] = timestamp;
+        chunk.firstEntries[chunk.nbSamples] = chunk.nbEntries;
+        ++chunk.nbSamples;
+        chunk.firstEntries[chunk.nbSamples] = chunk.nbEntries;
+
+        currentTransforms = chunk;
+    }
+
+
+    /** Add a transform to the sample started by the last call to
+     * RecordingWriter#beginTransforms()
+     *
+     * A transform with an invalid id (see RecordingWriter#getNameId()) is skipped, since it
+     * can't be played back.
+     */
+    public void addTransform(int childId, int parentId, float x, float y, float z,
+                             float qx, float qy, float qz, float qw) {
+        TransformsChunk chunk = currentTransforms;
+        if (chunk == null)
+            throw new IllegalStateException("No sample of transforms started");
+
+        if ((childId < 0) || (parentId < 0))
+            return;
+
+        if (chunk.nbEntries == chunk.childIds.length) {
+            int capacity = chunk.nbEntries * 2;
+            chunk.childIds = Arrays.copyOf(chunk.childIds, capacity);
+            chunk.parentIds = Arrays.copyOf(chunk.parentIds, capacity);
+            chunk.values = Arrays.copyOf(chunk.values, capacity * 7);
+        }
+
+        int index = chunk.nbEntries;
+        chunk.childIds[index] = childId;
+        chunk.parentIds[index] = parentId;
+
+        float[] values = chunk.values;
+        int offset = index * 7;
+        values[offset] = x;
+        values[offset + 1] = y;
+        values[offset + 2] = z;
+        values[offset + 3] = qx;
+        values[offset + 4] = qy;
+        values[offset + 5] = qz;
+        values[offset + 6] = qw;
+
+        ++chunk.nbEntries;
+        chunk.firstEntries[chunk.nbSamples] = chunk.nbEntries;
+    }
+
+
+    /** Add a sample of joint states
+     *
+     * Missing values (when one of the arrays is shorter than 'count' or null) are set to 0.
+     * The joints with an invalid id (see RecordingWriter#getNameId()) are skipped, since they
+     * can't be played back. A new chunk is started each time the list of joints changes.
+     */
+    public void addJointStates(long timestamp, int[] jointIds, int count, float[] positions,
+                               float[] velocities, float[] efforts) throws IOException {
+        int nbNamed = 0;
+        for (int i = 0; i < count; ++i) {
+            if (jointIds[i] >= 0)
+                ++nbNamed;
+        }
+
+        if (nbNamed < count) {
+            if (namedJointIds.length < nbNamed) {
+                namedJointIds = new int[nbNamed];
+                namedPositions = new float[nbNamed];
+                namedVelocities = new float[nbNamed];
+                namedEfforts = new float[nbNamed];
+            }
+
+            int n = 0;
+            for (int i = 0; i < count; ++i) {
+                if (jointIds[i] < 0)
+                    continue;
+
+                namedJointIds[n] = jointIds[i];
+                namedPositions[n] = getValue(positions, i);
+                namedVelocities[n] = getValue(velocities, i);
+                namedEfforts[n] = getValue(efforts, i);
+                ++n;
+            }
+
+            jointIds = namedJointIds;
+            positions = namedPositions;
+            velocities = namedVelocities;
+            efforts = namedEfforts;
+            count = nbNamed;
+        }
+
+        if (count == 0)
+            return;
+
+        JointStatesChunk chunk = jointStates;
+
+        if ((chunk.nbSamples == chunkSize) ||
+            ((chunk.nbSamples > 0) && !sameJoints(chunk, jointIds, count))) {
+            writeJointStates();
+        }
+
+        if (chunk.nbSamples == 0) {
+            if (chunk.jointIds.length < count)
+                chunk.jointIds = new int[count];
+
+            System.arraycopy(jointIds, 0, chunk.jointIds, 0, count);
+            chunk.nbJoints = count;
+
+            if (chunk.positions.length < chunkSize * count) {
+                chunk.positions = new float[chunkSize * count];
+                chunk.velocities = new float[chunkSize * count];
+                chunk.efforts = new float[chunkSize * count];
+            }
+        }
+
+        chunk.timestamps[chunk.nbSamples] = timestamp;
+
+        int offset = chunk.nbSamples * count;
+        for (int i = 0; i < count; ++i) {
+            chunk.positions[offset + i] = getValue(positions, i);
+            chunk.velocities[offset + i] = getValue(velocities, i);
+            chunk.efforts[offset + i] = getValue(efforts, i);
+        }
+
+        ++chunk.nbSamples;
+    }
+
+
+    /** Write all the pending samples
+     */
+    public void flush() throws IOException {
+        writeTransforms(staticTransforms);
+        writeTransforms(transforms);
+        writeJointStates();
+    }
+
+
+    /** Returns the number of bytes written so far
+     */
+    public long getBytesWritten() {
+        return bytesWritten;
+    }
+
+
+    @Override
+    public void close() throws IOException {
+        try {
+            flush();
+        } finally {
+            channel.close();
+        }
+    }
+
+
+    private static float getValue(float[] values, int index) {
+        return ((values != null) && (values.length > index) ? values[index] : 0.0f);
+    }
+
+
+    private static boolean sameJoints(JointStatesChunk chunk, int[] jointIds, int count) {
+        if (chunk.nbJoints != count)
+            return false;
+
+        for (int i = 0; i < count; ++i) {
+            if (chunk.jointIds[i] != jointIds[i])
+                return false;
+        }
+
+        return true;
+    }
+
+
+    private void writeNames() throws IOException {
+        if (nbWrittenNames == names.size())
+            return;
+
+        int size = 8;
+        List<byte[]> encoded = new ArrayList<>();
+        for (int i = nbWrittenNames; i < names.size(); ++i) {
+            byte[] bytes = names.get(i).getBytes(StandardCharsets.UTF_8);
+            encoded.add(bytes);
+            size += 2 + bytes.length;
+        }
+
+        beginBlock(Recording.BLOCK_NAMES, size);
+
+        buffer.putInt(nbWrittenNames);
+        buffer.putInt(encoded.size());
+
+        for (byte[] bytes: encoded) {
+            buffer.putShort((short) bytes.length);
+            buffer.put(bytes);
+        }
+
+        write();
+
+        nbWrittenNames = names.size();
+    }
+
+
+    private void writeTransforms(TransformsChunk chunk) throws IOException {
+        if (chunk.nbSamples == 0)
+            return;
+
+        writeNames();
+
+        beginBlock(chunk.type, chunk.payloadSize());
+
+        buffer.putInt(chunk.nbSamples);
+        buffer.putInt(chunk.nbEntries);
+
+        for (int i = 0; i < chunk.nbSamples; ++i)
+            buffer.putLong(chunk.timestamps[i]);
+
+        for (int i = 0; i <= chunk.nbSamples; ++i)
+            buffer.putInt(chunk.firstEntries[i]);
+
+        for (int i = 0; i < chunk.nbEntries; ++i)
+            buffer.putInt(chunk.childIds[i]);
+
+        for (int i = 0; i < chunk.nbEntries; ++i)
+            buffer.putInt(chunk.parentIds[i]);
+
+        for (int i = 0; i < chunk.nbEntries * 7; ++i)
+            buffer.putFloat(chunk.values[i]);
+
+        write();
+
+        chunk.nbSamples = 0;
+        chunk.nbEntries = 0;
+
+        if (currentTransforms == chunk)
+            currentTransforms = null;
+    }
+
+
+    private void writeJointStates() throws IOException {
+        JointStatesChunk chunk = jointStates;
+        if (chunk.nbSamples == 0)
+            return;
+
+        writeNames();
+
+        beginBlock(Recording.BLOCK_JOINT_STATES, chunk.payloadSize());
+
+        buffer.putInt(chunk.nbSamples);
+        buffer.putInt(chunk.nbJoints);
+
+        for (int i = 0; i < chunk.nbJoints; ++i)
+            buffer.putInt(chunk.jointIds[i]);
+
+        for (int i = 0; i < chunk.nbSamples; ++i)
+            buffer.putLong(chunk.timestamps[i]);
+
+        int nbValues = chunk.nbSamples * chunk.nbJoints;
+
+        for (int i = 0; i < nbValues; ++i)
+            buffer.putFloat(chunk.positions[i]);
+
+        for (int i = 0; i < nbValues; ++i)
+            buffer.putFloat(chunk.velocities[i]);
+
+        for (int i = 0; i < nbValues; ++i)
+            buffer.putFloat(chunk.efforts[i]);
+
+        write();
+
+        chunk.nbSamples = 0;
+    }
+
+
+    private void beginBlock(int type, int payloadSize) {
+        int size = Recording.BLOCK_HEADER_SIZE + payloadSize;
+
+        if (buffer.capacity() < size)
+            buffer = ByteBuffer.allocateDirect(Integer.highestOneBit(size) << 1).order(ByteOrder.LITTLE_ENDIAN);
+
+        buffer.clear();
+        buffer.putInt(type);
+        buffer.putInt(payloadSize);
+    }
+
+
+    private void write() throws IOException {
+        buffer.flip();
+
+        bytesWritten += buffer.remaining();
+
+        while (buffer.hasRemaining())
+            channel.write(buffer);
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright (C) 2020 Idiap Research Institute
+ *
+ * Authors:
+ *   philip.abbet@idiap.ch (Philip Abbet)
+ */
+
+package ch.idiap.android.ros.playback;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+
+/** Lock-free bounded queue of preallocated objects, for one producer thread and one consumer
+ * thread
+ *
+ * The producer claims a free slot, fills it and publishes it. The consumer peeks at the
+ * oldest published slot, reads it and releases it. Nothing is allocated once the queue is
+ * created.
+ */
+final class SpscQueue<T> {
+
+    private final Object[] slots;
+    private final int mask;
+    private final AtomicLong head = new AtomicLong();    // Next slot to consume
+    private final AtomicLong tail = new AtomicLong();    // Next slot to produce
+    private long cachedHead = 0;                        // Only accessed by the producer
+
+
+    SpscQueue(int capacity, Supplier<T> factory) {
+        int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+
+        slots = new Object[size];
+        mask = size - 1;
+
+        for (int i = 0; i < size; ++i)
+            slots[i] = factory.get();
+    }
+
+
+    /** Returns the next free slot, or null if the queue is full (producer only)
+     */
+    @SuppressWarnings("unchecked")
+    T claim() {
+        long t = tail.get();
+
+        if (t - cachedHead >= slots.length) {
+            cachedHead = head.get();
+            if (t - cachedHead >= slots.length)
+                return null;
+        }
+
+        return (T) slots[(int) (t & mask)];
+    }
+
+
+    /** Make the slot returned by the last call to SpscQueue#claim() visible to the
+     * consumer (producer only)
+     */
+    void publish() {
+        tail.lazySet(tail.get() + 1);
+    }
+
+
+    /** Returns the oldest published slot, or null if the queue is empty (consumer only)
+     */
+    @SuppressWarnings("unchecked")
+    T peek() {
+        long h = head.get();
+        if (h >= tail.get())
+            return null;
+
+        return (T) slots[(int) (h & mask)];
+    }
+
+
+    /** Give the slot returned by the last call to SpscQueue#peek() back to the producer
+     * (consumer only)
+     */
+    void release() {
+        head.lazySet(head.get() + 1);
+    }
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright (C) 2020 Idiap Research Institute
+ *
+ * Authors:
+ *   philip.abbet@idiap.ch (Philip Abbet)
+ */
+
+package ch.idiap.android.ros.playback;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+
+import ch.idiap.android.urdf.robot.Robot;
+import ch.idiap.android.urdf.robot.Trajectory;
+
+
+/** Sample a planned trajectory (see TrajectoryPlanner) into an in-memory recording, so it
+ * can be previewed with a Player
+ *
+ * The recording only contains joint states: the robot must be animated from them (see
+ * Robot#setAnimateFromJointStates()).
+ */
+public class TrajectorySampler {
+
+    public static final long DEFAULT_SAMPLE_PERIOD = 20000000L;    // 50 Hz
+
+
+    public static Recording sample(Trajectory trajectory, Robot robot) throws IOException {
+        return sample(trajectory, robot, DEFAULT_SAMPLE_PERIOD);
+    }
+
+
+    /** Sample a trajectory every 'samplePeriod' nanoseconds (the last sample is at the end
+     * of the trajectory)
+     */
+    public static Recording sample(Trajectory trajectory, Robot robot, long samplePeriod) throws IOException {
+        int nbJoints = trajectory.getJointCount();
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+
+        try (RecordingWriter writer = new RecordingWriter(Channels.newChannel(output))) {
+            int[] jointIds = new int[nbJoints];
+            for (int i = 0; i < nbJoints; ++i)
+                jointIds[i] = writer.getNameId(robot.getKinematicJointName(i));
+
+            float[] positions = new float[nbJoints];
+            float[] velocities = new float[nbJoints];
+
+            long duration = (long) (trajectory.getDuration() * 1e9);
+            long timestamp = 0;
+
+            while (true) {
+                trajectory.sample(timestamp * 1e-9, positions, velocities);
+                writer.addJointStates(timestamp, jointIds, nbJoints, positions, velocities, null);
+
+                if (timestamp >= duration)
+                    break;
+
+                timestamp = Math.min(timestamp + samplePeriod, duration);
+            }
+        }
+
+        return Recording.wrap(ByteBuffer.wrap(output.toByteArray()));
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright (C) 2020 Idiap Research Institute
+ *
+ * Authors:
+ *   philip.abbet@idiap.ch (Philip Abbet)
+ */
+
+package ch.idiap.android.ros.playback;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+
+
+/** Incremental reader of the messages of a tf topic, in the text format produced by
+ * 'rostopic echo'
+ */
+public class TransformsReader implements ReadAheadReader.Source<PlaybackTransforms> {
+
+    private final BufferedReader reader;
+
+
+    public TransformsReader(InputStream inputStream) {
+        reader = new BufferedReader(new InputStreamReader(inputStream, Charset.defaultCharset()));
+    }
+
+
+    @Override
+    public PlaybackTransforms create() {
+        return new PlaybackTransforms();
+    }
+
+
+    /** Read the next message into 'message', returns false at the end of the stream
+     */
+    @Override
+    public boolean read(PlaybackTransforms message) throws IOException {
+        String line;
+        boolean started = false;
+        boolean isParsingTranslation = true;
+
+        PlaybackTransform transform = null;
+
+        message.count = 0;
+
+        while ((line = reader.readLine()) != null) {
+            line = line.trim();
+
+            if (line.equals("transforms:")) {
+                started = true;
+                message.count = 0;
+                transform = null;
+
+            } else if (line.equals("---")) {
+                if (started)
+                    return true;
+
+            } else if (line.equals("-")) {
+                if (!started)
+                    continue;
+
+                transform = message.add();
+                transform.linkName = null;
+                transform.parentName = null;
+                transform.timestamp.secs = 0;
+                transform.timestamp.nsecs = 0;
+                transform.transforms.position.zero();
+                transform.transforms.orientation.identity();
+
+            } else if (transform == null) {
+                continue;
+
+            } else if (line.startsWith("secs:")) {
+                transform.timestamp.secs = Integer.parseInt(Parser.value(line));
+
+            } else if (line.startsWith("nsecs:")) {
+                transform.timestamp.nsecs = Integer.parseInt(Parser.value(line));
+
+            } else if (line.startsWith("frame_id:")) {
+                transform.parentName = Parser.unquote(Parser.value(line));
+
+            } else if (line.startsWith("child_frame_id:")) {
+                transform.linkName = Parser.unquote(Parser.value(line));
+
+            } else if (line.startsWith("translation:")) {
+                isParsingTranslation = true;
+
+            } else if (line.startsWith("rotation:")) {
+                isParsingTranslation = false;
+
+            } else if (line.startsWith("x:")) {
+                float v = (float) Double.parseDouble(Parser.value(line));
+
+                if (isParsingTranslation)
+                    transform.transforms.position.x = v;
+                else
+                    transform.transforms.orientation.x = v;
+
+            } else if (line.startsWith("y:")) {
+                float v = (float) Double.parseDouble(Parser.value(line));
+
+                if (isParsingTranslation)
+                    transform.transforms.position.y = v;
+                else
+                    transform.transforms.orientation.y = v;
+
+            } else if (line.startsWith("z:")) {
+                float v = (float) Double.parseDouble(Parser.value(line));
+
+                if (isParsingTranslation)
+                    transform.transforms.position.z = v;
+                else
+                    transform.transforms.orientation.z = v;
+
+            } else if (line.startsWith("w:")) {
+                if (!isParsingTranslation)
+                    transform.transforms.orientation.w = (float) Double.parseDouble(Parser.value(line));
+            }
+        }
+
+        // Last message, without separator
+        return started;
+    }
+
+
+    @Override
+    public void close() throws IOException {
+        reader.close();
+    }
+}
@@ -0,0 +1,216 @@
+/*
+ * Copyright (C) 2020 Idiap Research Institute
+ *
+ * Authors:
+ *   philip.abbet@idiap.ch (Philip Abbet)
+ */
+
+package ch.idiap.android.ros.publishers;
+
+import android.graphics.ImageFormat;
+import android.graphics.Rect;
+import android.graphics.YuvImage;
+import android.util.Log;
+
+import org.jboss.netty.buffer.ChannelBufferOutputStream;
+import org.ros.internal.message.MessageBuffers;
+import org.ros.namespace.GraphName;
+import org.ros.node.ConnectedNode;
+import org.ros.node.topic.Publisher;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+
+/** Publish the frames as JPEG 'sensor_msgs/CompressedImage' messages
+ *
+ * The frames are packed in NV21 (downscaled and rotated) by the loop, and encoded and sent by
+ * a second thread, so the packing of a frame overlaps with the encoding of the previous one.
+ *
+ * When the publication can't keep up with the target rate, the quality is lowered first, then
+ * the resolution is halved at each level.
+ */
+class CompressedImagePublisherLoop extends ImagePublisherLoop {
+
+    private static final String TAG = CompressedImagePublisherLoop.class.getSimpleName();
+
+    // Number of downshifting levels supported
+    static final int MAX_LEVEL = 3;
+
+    // Quality used once downshifted
+    private static final int QUALITY_STEP = 20;
+    private static final int MIN_QUALITY = 30;
+
+
+    private static class Job {
+        byte[] nv21 = new byte[0];
+        int width;
+        int height;
+        int quality;
+    }
+
+
+    private final ConnectedNode connectedNode;
+    private final CompressedImagePublisher owner;
+    private final Publisher<sensor_msgs.CompressedImage> publisher;
+    private final Nv21Converter converter = new Nv21Converter();
+    private final ChannelBufferOutputStream stream;
+
+    // Two jobs: one being packed while the other one is encoded
+    private final BlockingQueue<Job> freeJobs = new ArrayBlockingQueue<>(2);
+    private final BlockingQueue<Job> readyJobs = new ArrayBlockingQueue<>(1);
+    private final Thread encoderThread;
+
+
+    public CompressedImagePublisherLoop(ConnectedNode connectedNode, CompressedImagePublisher owner,
+                                        RateController rateController) {
+        super(rateController);
+
+        this.connectedNode = connectedNode;
+        this.owner = owner;
+
+        publisher = connectedNode.newPublisher("android_camera/compressed", sensor_msgs.CompressedImage._TYPE);
+        stream = new ChannelBufferOutputStream(MessageBuffers.dynamicBuffer());
+
+        freeJobs.add(new Job());
+        freeJobs.add(new Job());
+
+        encoderThread = new Thread(this::encodeLoop, "CompressedImageEncoder");
+        encoderThread.setDaemon(true);
+        encoderThread.start();
+    }
+
+
+    @Override
+    public void cancel() {
+        super.cancel();
+        encoderThread.interrupt();
+    }
+
+
+    @Override
+    protected boolean hasSubscribers() {
+        return (publisher.getNumberOfSubscribers() > 0);
+    }
+
+
+    /** Once both jobs are in use, this waits for the encoding of the previous frame: the
+     * duration measured by the rate controller is the one of the slowest stage
+     */
+    @Override
+    protected void publishFrame(YuvFrame frame) throws InterruptedException {
+        Job job = freeJobs.take();
+
+        int level = rateController.getLevel();
+        int rotation = getRotation(frame.orientation);
+        int scale = owner.getScale() << Math.max(level - 1, 0);
+
+        job.quality = owner.getQuality();
+        if (level > 0)
+            job.quality = Math.min(job.quality, Math.max(job.quality - QUALITY_STEP, MIN_QUALITY));
+
+        int size = Nv21Converter.getOutputSize(frame, scale);
+        if (job.nv21.length != size)
+            job.nv21 = new byte[size];
+
+        job.width = Nv21Converter.getOutputWidth(frame, rotation, scale);
+        job.height = Nv21Converter.getOutputHeight(frame, rotation, scale);
+
+        converter.convert(frame, job.nv21, rotation, scale);
+
+        readyJobs.put(job);
+    }
+
+
+    private void encodeLoop() {
+        try {
+            while (true) {
+                Job job = readyJobs.take();
+
+                try {
+                    encode(job);
+                } catch (Exception e) {
+                    Log.e(TAG, "Failed to publish the image", e);
+                }
+
+                freeJobs.put(job);
+            }
+        } catch (InterruptedException ignored) {
+        }
+    }
+
+
+    private void encode(Job job) {
+        if ((job.width == 0) || (job.height == 0))
+            return;
+
+        YuvImage yuvImage = new YuvImage(job.nv21, ImageFormat.NV21, job.width, job.height, null);
+        yuvImage.compressToJpeg(new Rect(0, 0, job.width, job.height), job.quality, stream);
+
+        sensor_msgs.CompressedImage image = publisher.newMessage();
+        image.getHeader().setStamp(connectedNode.getCurrentTime());
+        image.setFormat("jpeg");
+
+        image.setData(stream.buffer().copy());
+        stream.buffer().clear();
+
+        publisher.publish(image);
+    }
+}
+
+
+public class CompressedImagePublisher extends ImagePublisher {
+
+    public static final int DEFAULT_QUALITY = 80;
+
+    private volatile int quality;
+    private volatile int scale;
+
+
+    public CompressedImagePublisher() {
+        this(DEFAULT_QUALITY, 1);
+    }
+
+
+    /** The images are encoded with the given JPEG quality (0-100), and downscaled by the given
+     * factor (1 to keep the resolution of the camera)
+     */
+    public CompressedImagePublisher(int quality, int scale) {
+        super(new RateController(RateController.DEFAULT_TARGET_RATE, CompressedImagePublisherLoop.MAX_LEVEL));
+
+        setQuality(quality);
+        setScale(scale);
+    }
+
+
+    public void setQuality(int quality) {
+        this.quality = Math.max(0, Math.min(quality, 100));
+    }
+
+
+    public int getQuality() {
+        return quality;
+    }
+
+
+    public void setScale(int scale) {
+        this.scale = Math.max(scale, 1);
+    }
+
+
+    public int getScale() {
+        return scale;
+    }
+
+
+    @Override
+    public GraphName getDefaultNodeName() {
+        return GraphName.of("AndroidUrdfViewer/compressed_image_publisher");
+    }
+
+
+    @Override
+    ImagePublisherLoop createLoop(ConnectedNode connectedNode) {
+        return new CompressedImagePublisherLoop(connectedNode, this, getRateController());
+    }
+}
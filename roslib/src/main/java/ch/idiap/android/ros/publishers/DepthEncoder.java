@@ -0,0 +1,226 @@
+/*
+ * Copyright (C) 2020 Idiap Research Institute
+ *
+ * Authors:
+ *   philip.abbet@idiap.ch (Philip Abbet)
+ */
+
+package ch.idiap.android.ros.publishers;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+
+/** Compress 16-bit depth images (little-endian, 2 bytes per pixel) in the formats of the
+ * 'compressedDepth' transport of image_transport: PNG or RVL
+ *
+ * The data starts with the configuration header expected by the transport (format of the
+ * depth and quantization parameters, unused for 16-bit images).
+ *
+ * RVL is described in "Fast Lossless Depth Image Compression" (A. D. Wilson, 2017): runs of
+ * zeros and of valid pixels, the latter stored as variable-length deltas.
+ */
+public class DepthEncoder {
+
+    public enum Format {
+        PNG,
+        RVL
+    }
+
+
+    private static final byte[] PNG_SIGNATURE = {
+        (byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n'
+    };
+
+    // Value of the 'format' field of the configuration header
+    private static final int INV_DEPTH = 0;
+
+
+    private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+    private final CRC32 crc = new CRC32();
+    private byte[] scanline = new byte[0];
+    private byte[] deflated = new byte[0];
+    private byte[] chunk = new byte[64 * 1024];
+    private int deflatedSize = 0;
+
+    // State of the RVL encoder
+    private int word = 0;
+    private int nbNibbles = 0;
+
+
+    /** Returns the 'format' field of the CompressedImage messages holding the results
+     */
+    public static String getMessageFormat(Format format) {
+        return "16UC1; compressedDepth " + (format == Format.PNG ? "png" : "rvl");
+    }
+
+
+    /** Append the compressed image to 'out' (which must be little-endian)
+     */
+    public void encode(Format format, byte[] depth, int width, int height, ChannelBuffer out) {
+        // Configuration header
+        out.writeInt(INV_DEPTH);
+        out.writeFloat(0.0f);
+        out.writeFloat(0.0f);
+
+        if (format == Format.PNG)
+            encodePng(depth, width, height, out);
+        else
+            encodeRvl(depth, width, height, out);
+    }
+
+
+    private void encodeRvl(byte[] depth, int width, int height, ChannelBuffer out) {
+        out.writeInt(width);
+        out.writeInt(height);
+
+        word = 0;
+        nbNibbles = 0;
+
+        int end = width * height;
+        int previous = 0;
+        int i = 0;
+
+        while (i < end) {
+            int start = i;
+            while ((i < end) && (sample(depth, i) == 0))
+                ++i;
+
+            encodeVLE(i - start, out);
+
+            start = i;
+            while ((i < end) && (sample(depth, i) != 0))
+                ++i;
+
+            encodeVLE(i - start, out);
+
+            for (int j = start; j < i; ++j) {
+                int current = sample(depth, j);
+                int delta = current - previous;
+                encodeVLE((delta << 1) ^ (delta >> 31), out);
+                previous = current;
+            }
+        }
+
+        if (nbNibbles > 0)
+            out.writeInt(word << (4 * (8 - nbNibbles)));
+    }
+
+
+    private void encodeVLE(int value, ChannelBuffer out) {
+        do {
+            int nibble = value & 0x7;
+            value >>>= 3;
+
+            if (value != 0)
+                nibble |= 0x8;
+
+            word = (word << 4) | nibble;
+
+            if (++nbNibbles == 8) {
+                out.writeInt(word);
+                word = 0;
+                nbNibbles = 0;
+            }
+        } while (value != 0);
+    }
+
+
+    /** 16-bit grayscale PNG, each row using the 'Sub' filter
+     */
+    private void encodePng(byte[] depth, int width, int height, ChannelBuffer out) {
+        int rowSize = 1 + width * 2;
+        if (scanline.length < rowSize)
+            scanline = new byte[rowSize];
+
+        deflater.reset();
+        deflatedSize = 0;
+
+        scanline[0] = 1;
+
+        for (int y = 0; y < height; ++y) {
+            int src = y * width * 2;
+            int previousHigh = 0;
+            int previousLow = 0;
+
+            // PNG samples are big-endian
+            for (int x = 0, dst = 1; x < width; ++x, src += 2, dst += 2) {
+                int low = depth[src];
+                int high = depth[src + 1];
+
+                scanline[dst] = (byte) (high - previousHigh);
+                scanline[dst + 1] = (byte) (low - previousLow);
+
+                previousHigh = high;
+                previousLow = low;
+            }
+
+            deflater.setInput(scanline, 0, rowSize);
+            while (!deflater.needsInput())
+                appendDeflated(deflater.deflate(chunk));
+        }
+
+        deflater.finish();
+        while (!deflater.finished())
+            appendDeflated(deflater.deflate(chunk));
+
+        out.writeBytes(PNG_SIGNATURE);
+
+        byte[] header = new byte[13];
+        putInt(header, 0, width);
+        putInt(header, 4, height);
+        header[8] = 16;         // Bit depth
+        header[9] = 0;          // Grayscale
+        header[10] = 0;         // Deflate
+        header[11] = 0;         // Adaptive filtering
+        header[12] = 0;         // No interlacing
+
+        writeChunk(out, "IHDR", header, header.length);
+        writeChunk(out, "IDAT", deflated, deflatedSize);
+        writeChunk(out, "IEND", header, 0);
+    }
+
+
+    private void appendDeflated(int size) {
+        if (deflatedSize + size > deflated.length) {
+            byte[] buffer = new byte[Math.max(deflated.length * 2, deflatedSize + size)];
+            System.arraycopy(deflated, 0, buffer, 0, deflatedSize);
+            deflated = buffer;
+        }
+
+        System.arraycopy(chunk, 0, deflated, deflatedSize, size);
+        deflatedSize += size;
+    }
+
+
+    private void writeChunk(ChannelBuffer out, String type, byte[] data, int size) {
+        byte[] typeBytes = new byte[] {
+            (byte) type.charAt(0), (byte) type.charAt(1), (byte) type.charAt(2), (byte) type.charAt(3)
+        };
+
+        crc.reset();
+        crc.update(typeBytes);
+        crc.update(data, 0, size);
+
+        // PNG integers are big-endian, whatever the order of the buffer
+        out.writeInt(Integer.reverseBytes(size));
+        out.writeBytes(typeBytes);
+        out.writeBytes(data, 0, size);
+        out.writeInt(Integer.reverseBytes((int) crc.getValue()));
+    }
+
+
+    private static int sample(byte[] depth, int index) {
+        return (depth[2 * index] & 0xFF) | ((depth[2 * index + 1] & 0xFF) << 8);
+    }
+
+
+    private static void putInt(byte[] dst, int offset, int value) {
+        dst[offset] = (byte) (value >>> 24);
+        dst[offset + 1] = (byte) (value >>> 16);
+        dst[offset + 2] = (byte) (value >>> 8);
+        dst[offset + 3] = (byte) value;
+    }
+}
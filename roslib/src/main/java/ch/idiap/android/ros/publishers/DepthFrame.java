@@ -0,0 +1,25 @@
+/*
+ * Copyright (C) 2020 Idiap Research Institute
+ *
+ * Authors:
+ *   philip.abbet@idiap.ch (Philip Abbet)
+ */
+
+package ch.idiap.android.ros.publishers;
+
+import java.nio.ByteBuffer;
+
+
+/** The content of a DEPTH16 image, with its layout
+ */
+public class DepthFrame {
+
+    public ByteBuffer buffer = null;
+    public int width = 0;
+    public int height = 0;
+    public int rowStride = 0;
+
+    // Orientation of the screen when the frame was captured (Surface.ROTATION_*)
+    public int orientation = 0;
+
+}
@@ -10,177 +10,281 @@ package ch.idiap.android.ros.publishers;
 import android.graphics.ImageFormat;
 import android.media.Image;
 import android.util.Log;
-import android.view.Surface;
 
-import org.ros.concurrent.CancellableLoop;
-import org.ros.message.MessageFactory;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.ros.internal.message.MessageBuffers;
+import org.ros.message.Time;
 import org.ros.namespace.GraphName;
 import org.ros.node.AbstractNodeMain;
 import org.ros.node.ConnectedNode;
-import org.ros.node.NodeConfiguration;
 import org.ros.node.topic.Publisher;
 
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
-import java.util.ArrayList;
+import java.nio.ShortBuffer;
 
-import std_msgs.MultiArrayDimension;
-import std_msgs.MultiArrayLayout;
-import std_msgs.UInt16MultiArray;
 
 
-class DepthPublisherLoop extends CancellableLoop {
+/** Publish the depth frames as 'sensor_msgs/Image' messages (16UC1, in millimeters), and
+ * optionally compressed (PNG or RVL) and with the intrinsics of the camera
+ *
+ * The images are rotated while being copied from the frames into arrays that become the data
+ * of the messages. Like in RgbImagePublisherLoop, the arrays are used in turn (see
+ * MessageDataRing) since the messages are serialized asynchronously.
+ */
+class DepthPublisherLoop extends FramePublisherLoop<DepthFrame> {
+
+    // Size of the tiles in which the pixels are traversed, so the writes to a rotated image
+    // stay close to each other
+    private static final int TILE_ROWS = 16;
+    private static final int TILE_COLUMNS = 16;
 
-    public ByteBuffer srcBuffer = null;
-    public int width = 0;
-    public int height = 0;
-    public int rowStride = 0;
-    public int orientation = 0;
+    // DEPTH16 pixels store a confidence in their 3 highest bits
+    private static final int DEPTH_MASK = 0x1FFF;
 
-    private Publisher<std_msgs.UInt16MultiArray> publisher;
+    private final ConnectedNode connectedNode;
+    private final DepthPublisher owner;
+
+    private Publisher<sensor_msgs.Image> publisher;
+    private Publisher<sensor_msgs.CompressedImage> compressedPublisher;
+    private Publisher<sensor_msgs.CameraInfo> cameraInfoPublisher;
 
     private int currentWidth = 0;
     private int currentHeight = 0;
-    short[] buffer = null;
+    private final MessageDataRing buffers = new MessageDataRing();
+    private short[][] rows = new short[TILE_ROWS][0];
+
+    private final DepthEncoder encoder = new DepthEncoder();
+    private final ChannelBuffer compressedBuffer = MessageBuffers.dynamicBuffer();
 
+    // Matrices of the last CameraInfo message, recomputed when the intrinsics change
+    private float[] cameraIntrinsics = null;
+    private int cameraInfoRotation = -1;
+    private double[] k = null;
+    private double[] p = null;
+    private final double[] d = new double[5];
+    private final double[] r = new double[] { 1.0, 0.0, 0.0, 0.0, 1.0, 0.0, 0.0, 0.0, 1.0 };
 
-    public DepthPublisherLoop(ConnectedNode connectedNode) {
-        publisher = connectedNode.newPublisher("android_depth_camera", UInt16MultiArray._TYPE);
+
+    public DepthPublisherLoop(ConnectedNode connectedNode, DepthPublisher owner,
+                              RateController rateController) {
+        super(rateController, DepthFrame::new);
+
+        this.connectedNode = connectedNode;
+        this.owner = owner;
+
+        publisher = connectedNode.newPublisher("android_depth_camera", sensor_msgs.Image._TYPE);
+        compressedPublisher = connectedNode.newPublisher("android_depth_camera/compressedDepth",
+                                                         sensor_msgs.CompressedImage._TYPE);
+        cameraInfoPublisher = connectedNode.newPublisher("android_depth_camera/camera_info",
+                                                         sensor_msgs.CameraInfo._TYPE);
     }
 
 
     @Override
-    protected void loop() throws InterruptedException {
-        ByteBuffer srcBuffer = null;
-        int width = 0;
-        int height = 0;
-        int rowStride = 0;
+    protected boolean hasSubscribers() {
+        return (publisher.getNumberOfSubscribers() > 0) ||
+               (compressedPublisher.getNumberOfSubscribers() > 0) ||
+               ((owner.getCameraIntrinsics() != null) &&
+                (cameraInfoPublisher.getNumberOfSubscribers() > 0));
+    }
 
 
-        synchronized(this) {
-            srcBuffer = this.srcBuffer;
+    @Override
+    protected boolean isBusy() {
+        return buffers.isBusy();
+    }
 
-            width = this.width;
-            height = this.height;
 
-            rowStride = this.rowStride;
+    @Override
+    protected void publishFrame(DepthFrame frame) {
+        currentWidth = frame.width;
+        currentHeight = frame.height;
 
-            this.srcBuffer = null;
-        }
+        int rotation = getRotation(frame.orientation);
 
-        if (srcBuffer == null) {
-            Thread.sleep(100);
-            return;
+        int width = currentWidth;
+        int height = currentHeight;
+
+        if ((rotation == 90) || (rotation == 270)) {
+            width = currentHeight;
+            height = currentWidth;
         }
 
-        if ((buffer == null) || (width != currentWidth) || (height != currentHeight)) {
-            currentWidth = width;
-            currentHeight = height;
+        Time stamp = connectedNode.getCurrentTime();
 
-            buffer = new short[currentWidth * currentHeight];
-        }
+        boolean publishImage = (publisher.getNumberOfSubscribers() > 0);
+        boolean publishCompressed = (compressedPublisher.getNumberOfSubscribers() > 0);
 
+        // The camera info alone doesn't need the pixels
+        if (publishImage || publishCompressed) {
+            int size = currentWidth * currentHeight * 2;
+            byte[] buffer = buffers.next(size);
 
-        srcBuffer.order(ByteOrder.LITTLE_ENDIAN).asShortBuffer().get(buffer);
+            convert(frame, buffer, rotation);
 
+            if (publishImage) {
+                sensor_msgs.Image image = publisher.newMessage();
+                image.getHeader().setStamp(stamp);
+                image.setEncoding("16UC1");
+                image.setIsBigendian((byte) 0);
+                image.setWidth(width);
+                image.setHeight(height);
+                image.setStep(width * 2);
+                image.setData(buffers.wrap(buffer, size));
 
-        // Rotate the image if necessary
-        short[] rotatedBuffer = null;
-        int dst;
-        int i;
+                publisher.publish(image);
+            }
 
-        switch (orientation) {
-            case Surface.ROTATION_0:
-                rotatedBuffer = new short[currentHeight * currentWidth];
-                dst = 0;
-                for (int j = 0; j < currentWidth; j++) {
-                    int src = (currentHeight - 1) * currentWidth + j;
+            if (publishCompressed) {
+                DepthEncoder.Format format = owner.getCompression();
 
-                    for (i = 0; i < currentHeight; i++) {
-                        rotatedBuffer[dst] = buffer[src];
-                        src -= currentWidth;
-                        dst += 1;
-                    }
-                }
-                break;
+                encoder.encode(format, buffer, width, height, compressedBuffer);
 
-            case Surface.ROTATION_270:
-                rotatedBuffer = new short[currentHeight * currentWidth];
-                dst = 0;
-                for (int j = 0; j < currentHeight; j++) {
-                    int src =  (currentHeight - j) * currentWidth - 1;
+                sensor_msgs.CompressedImage image = compressedPublisher.newMessage();
+                image.getHeader().setStamp(stamp);
+                image.setFormat(DepthEncoder.getMessageFormat(format));
+                image.setData(compressedBuffer.copy());
+                compressedBuffer.clear();
 
-                    for (i = 0; i < currentWidth; i++) {
-                        rotatedBuffer[dst] = buffer[src];
-                        src -= 1;
-                        dst += 1;
-                    }
-                }
-                break;
+                compressedPublisher.publish(image);
+            }
+        }
 
-            default:
-                break;
+        float[] intrinsics = owner.getCameraIntrinsics();
+        if ((intrinsics != null) && (cameraInfoPublisher.getNumberOfSubscribers() > 0)) {
+            if ((intrinsics != cameraIntrinsics) || (rotation != cameraInfoRotation))
+                updateCameraMatrices(intrinsics, rotation);
+
+            sensor_msgs.CameraInfo info = cameraInfoPublisher.newMessage();
+            info.getHeader().setStamp(stamp);
+            info.setWidth(width);
+            info.setHeight(height);
+            info.setDistortionModel("plumb_bob");
+            info.setD(d);
+            info.setK(k);
+            info.setR(r);
+            info.setP(p);
+
+            cameraInfoPublisher.publish(info);
         }
+    }
 
 
-        ArrayList<MultiArrayDimension> dimensions = new ArrayList<MultiArrayDimension>();
+    /** Copy the depth values of the frame into 'dst' (little-endian, 2 bytes per pixel),
+     * rotated clockwise by the given angle
+     */
+    private void convert(DepthFrame frame, byte[] dst, int rotation) {
+        int width = frame.width;
+        int height = frame.height;
 
-        NodeConfiguration nodeConfiguration = NodeConfiguration.newPrivate();
-        MessageFactory messageFactory = nodeConfiguration.getTopicMessageFactory();
+        int origin;
+        int stepX;
+        int stepY;
 
-        if (orientation == Surface.ROTATION_0) {
-            MultiArrayDimension dim = messageFactory.newFromType(MultiArrayDimension._TYPE);
+        switch (rotation) {
+            case 90:
+                origin = height - 1;
+                stepX = height;
+                stepY = -1;
+                break;
 
-            dim.setLabel("height");
-            dim.setSize(currentWidth);
-            dim.setStride(currentWidth * currentHeight * 2);
+            case 180:
+                origin = (height - 1) * width + width - 1;
+                stepX = -1;
+                stepY = -width;
+                break;
 
-            dimensions.add(dim);
+            case 270:
+                origin = (width - 1) * height;
+                stepX = -height;
+                stepY = 1;
+                break;
 
-            dim = messageFactory.newFromType(MultiArrayDimension._TYPE);
+            default:
+                origin = 0;
+                stepX = 1;
+                stepY = width;
+                break;
+        }
+
+        origin *= 2;
+        stepX *= 2;
+        stepY *= 2;
 
-            dim.setLabel("width");
-            dim.setSize(currentHeight);
-            dim.setStride(currentHeight * 2);
+        if (rows[0].length < width)
+            rows = new short[TILE_ROWS][width];
 
-            dimensions.add(dim);
-        } else {
-            MultiArrayDimension dim = messageFactory.newFromType(MultiArrayDimension._TYPE);
+        ShortBuffer src = frame.buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN).asShortBuffer();
+        int rowStride = (frame.rowStride > 0 ? frame.rowStride / 2 : width);
 
-            dim.setLabel("height");
-            dim.setSize(currentHeight);
-            dim.setStride(currentWidth * currentHeight * 2);
+        for (int y0 = 0; y0 < height; y0 += TILE_ROWS) {
+            int y1 = Math.min(y0 + TILE_ROWS, height);
 
-            dimensions.add(dim);
+            for (int y = y0; y < y1; ++y) {
+                src.position(y * rowStride);
+                src.get(rows[y - y0], 0, width);
+            }
 
-            dim = messageFactory.newFromType(MultiArrayDimension._TYPE);
+            for (int x0 = 0; x0 < width; x0 += TILE_COLUMNS) {
+                int x1 = Math.min(x0 + TILE_COLUMNS, width);
 
-            dim.setLabel("width");
-            dim.setSize(currentWidth);
-            dim.setStride(currentWidth * 2);
+                for (int y = y0; y < y1; ++y) {
+                    short[] row = rows[y - y0];
+                    int offsetDst = origin + x0 * stepX + y * stepY;
 
-            dimensions.add(dim);
+                    for (int x = x0; x < x1; ++x) {
+                        int value = row[x] & DEPTH_MASK;
+                        dst[offsetDst] = (byte) value;
+                        dst[offsetDst + 1] = (byte) (value >> 8);
+                        offsetDst += stepX;
+                    }
+                }
+            }
         }
+    }
 
-        std_msgs.UInt16MultiArray image = publisher.newMessage();
 
-        MultiArrayLayout layout = image.getLayout();
-        layout.setDim(dimensions);
-        layout.setDataOffset(0);
-        image.setLayout(layout);
+    /** Compute the matrices of the CameraInfo messages from the intrinsics of the unrotated
+     * image
+     */
+    private void updateCameraMatrices(float[] intrinsics, int rotation) {
+        double fx = intrinsics[0];
+        double fy = intrinsics[1];
+        double cx = intrinsics[2];
+        double cy = intrinsics[3];
+
+        switch (rotation) {
+            case 90:
+                fx = intrinsics[1];
+                fy = intrinsics[0];
+                cx = currentHeight - 1 - intrinsics[3];
+                cy = intrinsics[2];
+                break;
 
-        if (rotatedBuffer != null) {
-            image.setData(rotatedBuffer);
-        } else {
-            image.setData(buffer);
-        }
+            case 180:
+                cx = currentWidth - 1 - intrinsics[2];
+                cy = currentHeight - 1 - intrinsics[3];
+                break;
 
+            case 270:
+                fx = intrinsics[1];
+                fy = intrinsics[0];
+                cx = intrinsics[3];
+                cy = currentWidth - 1 - intrinsics[2];
+                break;
 
-        publisher.publish(image);
+            default:
+                break;
+        }
 
-        Thread.sleep(200);
-    }
+        // New arrays, the previous ones might still be referenced by queued messages
+        k = new double[] { fx, 0.0, cx, 0.0, fy, cy, 0.0, 0.0, 1.0 };
+        p = new double[] { fx, 0.0, cx, 0.0, 0.0, fy, cy, 0.0, 0.0, 0.0, 1.0, 0.0 };
 
+        cameraIntrinsics = intrinsics;
+        cameraInfoRotation = rotation;
+    }
 }
 
 
@@ -188,41 +292,81 @@ public class DepthPublisher extends AbstractNodeMain {
 
     private static final String TAG = DepthPublisher.class.getSimpleName();
 
+    private final RateController rateController =
+            new RateController(RateController.DEFAULT_TARGET_RATE, 0);
     private DepthPublisherLoop loop = null;
+    private volatile DepthEncoder.Format compression = DepthEncoder.Format.RVL;
+    private volatile float[] cameraIntrinsics = null;
+
+
+    /** Returns the object controlling the rate at which the images are published
+     */
+    public RateController getRateController() {
+        return rateController;
+    }
 
 
+    /** Select the compression used on the 'android_depth_camera/compressedDepth' topic (PNG or
+     * RVL, the default)
+     */
+    public void setCompression(DepthEncoder.Format compression) {
+        this.compression = compression;
+    }
+
+
+    public DepthEncoder.Format getCompression() {
+        return compression;
+    }
+
+
+    /** Set the intrinsics of the depth camera (in pixels, for the unrotated image), enabling
+     * the publication of 'android_depth_camera/camera_info'
+     */
+    public void setCameraIntrinsics(float fx, float fy, float cx, float cy) {
+        cameraIntrinsics = new float[] { fx, fy, cx, cy };
+    }
+
+
+    public float[] getCameraIntrinsics() {
+        return cameraIntrinsics;
+    }
+
+
+    /** Copy the image, to publish it from the loop
+     *
+     * The image isn't closed, so it can be given to several publishers: the caller must close
+     * it as soon as possible, so the camera can reuse its memory.
+     */
     public void publish(Image depthImage, int orientation) {
-        if (loop == null) {
-            depthImage.close();
+        if ((loop == null) || !loop.hasSubscribers())
             return;
-        }
 
-        synchronized(loop) {
-            if (loop.srcBuffer != null)
-                loop.srcBuffer = null;
+        try {
+            if (depthImage.getFormat() != ImageFormat.DEPTH16) {
+                Log.e(TAG, "Invalid image format, only DEPTH16 is supported");
+                return;
+            }
 
-            try {
-                if (depthImage.getFormat() != ImageFormat.DEPTH16) {
-                    Log.e(TAG, "Invalid image format, only DEPTH16 is supported");
-                    depthImage.close();
-                    return;
-                }
+            Image.Plane[] planes = depthImage.getPlanes();
+            ByteBuffer src = planes[0].getBuffer();
 
-                Image.Plane[] planes = depthImage.getPlanes();
-                ByteBuffer src = planes[0].getBuffer();
+            // Copy the image into the buffer of a recycled frame
+            DepthFrame frame = loop.pool.acquire();
 
-                loop.srcBuffer = clone(src);
+            frame.buffer = FramePool.copy(src, frame.buffer);
 
-                loop.width = depthImage.getWidth();
-                loop.height = depthImage.getHeight();
+            frame.width = depthImage.getWidth();
+            frame.height = depthImage.getHeight();
 
-                loop.rowStride = planes[0].getRowStride();
+            frame.rowStride = planes[0].getRowStride();
 
-                loop.orientation = orientation;
+            frame.orientation = orientation;
 
-            } catch (Throwable t) {
-                Log.e(TAG, "Failed to process the image", t);
-            }
+            // Wakes the loop up, replacing the previous frame if it wasn't published yet
+            loop.offer(frame);
+
+        } catch (Throwable t) {
+            Log.e(TAG, "Failed to process the image", t);
         }
     }
 
@@ -236,18 +380,7 @@ public class DepthPublisher extends AbstractNodeMain {
     @Override
     public void onStart(ConnectedNode connectedNode) {
         // This CancellableLoop will be canceled automatically when the node shuts down.
-        loop = new DepthPublisherLoop(connectedNode);
+        loop = new DepthPublisherLoop(connectedNode, this, rateController);
         connectedNode.executeCancellableLoop(loop);
     }
-
-
-    private static ByteBuffer clone(ByteBuffer original) {
-        ByteBuffer clone = ByteBuffer.allocate(original.capacity());
-        original.rewind();
-
-        clone.put(original);
-        clone.flip();
-
-        return clone;
-    }
 }
@@ -0,0 +1,71 @@
+/*
+ * Copyright (C) 2020 Idiap Research Institute
+ *
+ * Authors:
+ *   philip.abbet@idiap.ch (Philip Abbet)
+ */
+
+package ch.idiap.android.ros.publishers;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.function.Supplier;
+
+
+/** Pool of frames recycled between the thread producing them and the one publishing them,
+ * so their buffers are allocated only once
+ *
+ * At most three frames are in use at a time: the one being filled, the one waiting in the
+ * FrameSlot, and the one being published.
+ */
+class FramePool<T> {
+
+    public static final int DEFAULT_SIZE = 3;
+
+    private final ArrayDeque<T> frames = new ArrayDeque<>();
+    private final Supplier<T> factory;
+    private final int size;
+
+
+    public FramePool(Supplier<T> factory) {
+        this(factory, DEFAULT_SIZE);
+    }
+
+
+    public FramePool(Supplier<T> factory, int size) {
+        this.factory = factory;
+        this.size = size;
+    }
+
+
+    /** Returns a recycled frame, or a new one if none is available
+     */
+    public synchronized T acquire() {
+        T frame = frames.pollFirst();
+        return (frame != null ? frame : factory.get());
+    }
+
+
+    public synchronized void release(T frame) {
+        if ((frame != null) && (frames.size() < size))
+            frames.addFirst(frame);
+    }
+
+
+    /** Copy the content of 'src' into 'dst', which is only reallocated if too small
+     *
+     * Returns the buffer holding the copy, ready to be read.
+     */
+    public static ByteBuffer copy(ByteBuffer src, ByteBuffer dst) {
+        src.rewind();
+
+        if ((dst == null) || (dst.capacity() < src.remaining()))
+            dst = ByteBuffer.allocateDirect(src.remaining());
+
+        dst.clear();
+        dst.put(src);
+        dst.flip();
+
+        return dst;
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright (C) 2020 Idiap Research Institute
+ *
+ * Authors:
+ *   philip.abbet@idiap.ch (Philip Abbet)
+ */
+
+package ch.idiap.android.ros.publishers;
+
+import android.view.Surface;
+
+import org.ros.concurrent.CancellableLoop;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+
+/** Base class of the loops publishing the latest frame received by a publisher, at the rate
+ * allowed by a RateController
+ *
+ * The frames are taken from a pool, and given back to it once published or replaced.
+ */
+abstract class FramePublisherLoop<T> extends CancellableLoop {
+
+    public final FrameSlot<T> frames = new FrameSlot<>();
+    public final FramePool<T> pool;
+
+    protected final RateController rateController;
+
+
+    protected FramePublisherLoop(RateController rateController, Supplier<T> factory) {
+        this.rateController = rateController;
+        this.pool = new FramePool<>(factory);
+    }
+
+
+    /** Hand a frame (acquired from the pool) over to the loop, the frame it replaces going
+     * back to the pool
+     */
+    public void offer(T frame) {
+        pool.release(frames.put(frame));
+    }
+
+
+    @Override
+    protected void loop() throws InterruptedException {
+        // Wait until the next frame can be published, the frames received meanwhile
+        // replacing each other
+        long delay = rateController.getDelay(System.nanoTime());
+        if (delay > 0)
+            TimeUnit.NANOSECONDS.sleep(delay);
+
+        T frame = frames.take();
+
+        try {
+            // Don't spend any time on frames that nobody will receive
+            if (!hasSubscribers())
+                return;
+
+            // Skip the frame while the previous messages still wait for their serialization
+            if (isBusy()) {
+                rateController.frameSkipped();
+                return;
+            }
+
+            long start = System.nanoTime();
+            rateController.frameStarted(start);
+
+            publishFrame(frame);
+
+            rateController.frameDone(System.nanoTime() - start);
+        } finally {
+            pool.release(frame);
+        }
+    }
+
+
+    protected abstract boolean hasSubscribers();
+
+
+    /** Indicates if the loop can't publish a frame until some previous messages are sent
+     */
+    protected boolean isBusy() {
+        return false;
+    }
+
+
+    protected abstract void publishFrame(T frame) throws InterruptedException;
+
+
+    /** Returns the clockwise rotation to apply to the camera image for the given orientation
+     * of the screen
+     */
+    protected static int getRotation(int orientation) {
+        switch (orientation) {
+            case Surface.ROTATION_0:
+                return 90;
+
+            case Surface.ROTATION_270:
+                return 180;
+
+            default:
+                return 0;
+        }
+    }
+}
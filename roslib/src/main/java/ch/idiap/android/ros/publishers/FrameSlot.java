@@ -0,0 +1,48 @@
+/*
+ * Copyright (C) 2020 Idiap Research Institute
+ *
+ * Authors:
+ *   philip.abbet@idiap.ch (Philip Abbet)
+ */
+
+package ch.idiap.android.ros.publishers;
+
+
+/** Hand-off of frames from the thread producing them to the one publishing them, where only
+ * the latest frame is kept
+ */
+class FrameSlot<T> {
+
+    private T frame = null;
+
+
+    /** Store a frame, and returns the one it replaces (null if none)
+     */
+    public synchronized T put(T frame) {
+        T previous = this.frame;
+        this.frame = frame;
+        notifyAll();
+        return previous;
+    }
+
+
+    /** Wait until a frame is available, and returns it
+     */
+    public synchronized T take() throws InterruptedException {
+        while (frame == null)
+            wait();
+
+        T result = frame;
+        frame = null;
+        return result;
+    }
+
+
+    /** Returns the frame stored in the slot, if any, without waiting
+     */
+    public synchronized T poll() {
+        T result = frame;
+        frame = null;
+        return result;
+    }
+}
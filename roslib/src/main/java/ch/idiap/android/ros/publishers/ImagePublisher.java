@@ -10,216 +10,91 @@ package ch.idiap.android.ros.publishers;
 import android.graphics.ImageFormat;
 import android.media.Image;
 import android.util.Log;
-import android.view.Surface;
 
-import org.jboss.netty.buffer.ChannelBufferOutputStream;
-import org.ros.concurrent.CancellableLoop;
-import org.ros.exception.RosRuntimeException;
-import org.ros.internal.message.MessageBuffers;
 import org.ros.namespace.GraphName;
 import org.ros.node.AbstractNodeMain;
 import org.ros.node.ConnectedNode;
 import org.ros.node.topic.Publisher;
 
-import java.io.IOException;
 import java.nio.ByteBuffer;
 
 
 
-class ImagePublisherLoop extends CancellableLoop {
+/** Base class of the loops publishing the frames received by an ImagePublisher
+ */
+abstract class ImagePublisherLoop extends FramePublisherLoop<YuvFrame> {
+
+    protected ImagePublisherLoop(RateController rateController) {
+        super(rateController, YuvFrame::new);
+    }
+}
 
-    public ByteBuffer srcY = null;
-    public ByteBuffer srcU = null;
-    public ByteBuffer srcV = null;
-    public int width = 0;
-    public int height = 0;
-    public int rowStrideY = 0;
-    public int rowStrideU = 0;
-    public int rowStrideV = 0;
-    public int orientation = 0;
+
+/** Publish the frames as raw 'rgb8' images
+ *
+ * The frames are converted directly into arrays that become the data of the messages, without
+ * any further copy. Since the messages are serialized asynchronously by rosjava, the arrays
+ * are used in turn (see MessageDataRing), so one isn't overwritten while its message is still
+ * waiting to be sent, and the frames are skipped while none is free.
+ */
+class RgbImagePublisherLoop extends ImagePublisherLoop {
 
     private Publisher<sensor_msgs.Image> publisher;
 
-    private ChannelBufferOutputStream stream;
-    private int currentWidth = 0;
-    private int currentHeight = 0;
-    byte[] rgbBuffer = null;
+    private final YuvConverter converter = new YuvConverter();
+    private final MessageDataRing rgbBuffers = new MessageDataRing();
+
 
+    public RgbImagePublisherLoop(ConnectedNode connectedNode, RateController rateController) {
+        super(rateController);
 
-    public ImagePublisherLoop(ConnectedNode connectedNode) {
         publisher = connectedNode.newPublisher("android_camera", sensor_msgs.Image._TYPE);
-        stream = new ChannelBufferOutputStream(MessageBuffers.dynamicBuffer());
     }
 
 
     @Override
-    protected void loop() throws InterruptedException {
-        ByteBuffer srcY = null;
-        ByteBuffer srcU = null;
-        ByteBuffer srcV = null;
-        int width = 0;
-        int height = 0;
-        int rowStrideY = 0;
-        int rowStrideU = 0;
-        int rowStrideV = 0;
-
-
-        synchronized(this) {
-            srcY = this.srcY;
-            srcU = this.srcU;
-            srcV = this.srcV;
-
-            width = this.width;
-            height = this.height;
-
-            rowStrideY = this.rowStrideY;
-            rowStrideU = this.rowStrideU;
-            rowStrideV = this.rowStrideV;
-
-            this.srcY = null;
-            this.srcU = null;
-            this.srcV = null;
-        }
-
-        if (srcY == null) {
-            Thread.sleep(100);
-            return;
-        }
+    public void cancel() {
+        super.cancel();
+        converter.shutdown();
+    }
 
-        if ((rgbBuffer == null) || (width != currentWidth) || (height != currentHeight)) {
-            currentWidth = width;
-            currentHeight = height;
 
-            rgbBuffer = new byte[currentWidth * currentHeight * 3];
-        }
+    @Override
+    protected boolean hasSubscribers() {
+        return (publisher.getNumberOfSubscribers() > 0);
+    }
 
-        // Note: For some reason, srcU contains the U and V planes interleaved MINUS the last V byte
-        // and srcV contains the V and U planes interleaved MINUS the last U byte.
-        // This, the code below treat them as separate planes and offset the reading of each U/V
-        // value accordingly.
-        int offsetY = 0;
-        int offsetU = 0;
-        int offsetV = 0;
-        int offsetDst = 0;
-
-        int r, g, b, y298, y, i, u, v;
-        for (int j = 0; j < currentHeight; j++) {
-            srcY.position(offsetY);
-            srcU.position(offsetU);
-            srcV.position(offsetV);
-
-            u = 0;
-            v = 0;
-
-            for (i = 0; i < currentWidth; i++) {
-                y = (0xff & ((int) srcY.get())) - 16;
-                if (y < 0)
-                    y = 0;
-
-                if ((i & 1) == 0) {
-                    u = (0xff & srcU.get()) - 128;
-                    v = (0xff & srcV.get()) - 128;
-                }
-                else if ((j < currentHeight / 2 - 1) || (i < currentWidth - 1))
-                {
-                    srcU.get();
-                    srcV.get();
-                }
-
-                y298 = 298 * y;
-                r = (y298 + 409 * v + 128) >> 8;
-                g = (y298 - 100 * u - 208 * v + 128) >> 8;
-                b = (y298 + 516 * u + 128) >> 8;
-
-                r = Math.max(0, Math.min(r, 255));
-                g = Math.max(0, Math.min(g, 255));
-                b = Math.max(0, Math.min(b, 255));
-
-                rgbBuffer[offsetDst] = (byte) r;
-                rgbBuffer[offsetDst + 1] = (byte) g;
-                rgbBuffer[offsetDst + 2] = (byte) b;
-
-                offsetDst += 3;
-            }
 
-            offsetY += rowStrideY;
+    @Override
+    protected boolean isBusy() {
+        return rgbBuffers.isBusy();
+    }
 
-            if ((j & 1) == 1) {
-                offsetU += rowStrideU;
-                offsetV += rowStrideV;
-            }
-        }
 
-        // Rotate the image if necessary
-        byte[] rotatedRgbBuffer = null;
-        int dst;
-
-        switch (orientation) {
-            case Surface.ROTATION_0:
-                rotatedRgbBuffer = new byte[currentHeight * currentWidth * 3];
-                dst = 0;
-                for (int j = 0; j < currentWidth; j++) {
-                    int src = (currentHeight - 1) * currentWidth * 3 + j * 3;
-
-                    for (i = 0; i < currentHeight; i++) {
-                        rotatedRgbBuffer[dst] = rgbBuffer[src];
-                        rotatedRgbBuffer[dst + 1] = rgbBuffer[src + 1];
-                        rotatedRgbBuffer[dst + 2] = rgbBuffer[src + 2];
-                        src -= currentWidth * 3;
-                        dst += 3;
-                    }
-                }
-                break;
-
-            case Surface.ROTATION_270:
-                rotatedRgbBuffer = new byte[currentHeight * currentWidth * 3];
-                dst = 0;
-                for (int j = 0; j < currentHeight; j++) {
-                    int src =  (currentHeight - j) * currentWidth * 3 - 3;
-
-                    for (i = 0; i < currentWidth; i++) {
-                        rotatedRgbBuffer[dst] = rgbBuffer[src];
-                        rotatedRgbBuffer[dst + 1] = rgbBuffer[src + 1];
-                        rotatedRgbBuffer[dst + 2] = rgbBuffer[src + 2];
-                        src -= 3;
-                        dst += 3;
-                    }
-                }
-                break;
-
-            default:
-                break;
-        }
+    @Override
+    protected void publishFrame(YuvFrame frame) {
+        int size = frame.width * frame.height * 3;
+        byte[] rgbBuffer = rgbBuffers.next(size);
 
+        // Rotate the image during the conversion if necessary
+        int rotation = getRotation(frame.orientation);
+        converter.convert(frame, rgbBuffer, rotation);
 
         sensor_msgs.Image image = publisher.newMessage();
         image.setEncoding("rgb8");
 
-        if (orientation == Surface.ROTATION_0) {
-            image.setWidth(currentHeight);
-            image.setHeight(currentWidth);
+        if ((rotation == 90) || (rotation == 270)) {
+            image.setWidth(frame.height);
+            image.setHeight(frame.width);
         } else {
-            image.setWidth(currentWidth);
-            image.setHeight(currentHeight);
-        }
-
-        try {
-            if (rotatedRgbBuffer != null) {
-                stream.write(rotatedRgbBuffer);
-            } else {
-                stream.write(rgbBuffer);
-            }
-        } catch (IOException e) {
-            e.printStackTrace();
-            throw new RosRuntimeException(e);
+            image.setWidth(frame.width);
+            image.setHeight(frame.height);
         }
 
-        image.setData(stream.buffer().copy());
-        stream.buffer().clear();
+        image.setStep(image.getWidth() * 3);
+        image.setData(rgbBuffers.wrap(rgbBuffer, size));
 
         publisher.publish(image);
-
-        Thread.sleep(200);
     }
 
 }
@@ -229,50 +104,72 @@ public class ImagePublisher extends AbstractNodeMain {
 
     private static final String TAG = ImagePublisher.class.getSimpleName();
 
+    private final RateController rateController;
     private ImagePublisherLoop loop = null;
 
 
+    public ImagePublisher() {
+        this(new RateController(RateController.DEFAULT_TARGET_RATE, 0));
+    }
+
+
+    ImagePublisher(RateController rateController) {
+        this.rateController = rateController;
+    }
+
+
+    /** Returns the object controlling the rate at which the images are published
+     */
+    public RateController getRateController() {
+        return rateController;
+    }
+
+
+    /** Copy the image, to publish it from the loop
+     *
+     * Like with the other publishers, the image isn't closed: the caller must close it as soon
+     * as possible, so the camera can reuse its memory.
+     */
     public void publish(Image yuvImage, int orientation) {
-        if (loop == null) {
-            yuvImage.close();
+        if ((loop == null) || !loop.hasSubscribers())
             return;
-        }
 
-        synchronized(loop) {
-            if (loop.srcY != null) {
-                loop.srcY = null;
-                loop.srcU = null;
-                loop.srcV = null;
+        try {
+            if (yuvImage.getFormat() != ImageFormat.YUV_420_888) {
+                Log.e(TAG, "Invalid image format, only YUV_420_888 is supported");
+                return;
             }
 
-            try {
-                if (yuvImage.getFormat() != ImageFormat.YUV_420_888) {
-                    Log.e(TAG, "Invalid image format, only YUV_420_888 is supported");
-                    yuvImage.close();
-                    return;
-                }
+            Image.Plane[] planes = yuvImage.getPlanes();
+            ByteBuffer srcY = planes[0].getBuffer();
+            ByteBuffer srcU = planes[1].getBuffer();
+            ByteBuffer srcV = planes[2].getBuffer();
 
-                Image.Plane[] planes = yuvImage.getPlanes();
-                ByteBuffer srcY = planes[0].getBuffer();
-                ByteBuffer srcU = planes[1].getBuffer();
-                ByteBuffer srcV = planes[2].getBuffer();
+            // Copy the planes into the buffers of a recycled frame
+            YuvFrame frame = loop.pool.acquire();
 
-                loop.srcY = clone(srcY);
-                loop.srcU = clone(srcU);
-                loop.srcV = clone(srcV);
+            frame.y = FramePool.copy(srcY, frame.y);
+            frame.u = FramePool.copy(srcU, frame.u);
+            frame.v = FramePool.copy(srcV, frame.v);
 
-                loop.width = yuvImage.getWidth();
-                loop.height = yuvImage.getHeight();
+            frame.width = yuvImage.getWidth();
+            frame.height = yuvImage.getHeight();
 
-                loop.rowStrideY = planes[0].getRowStride();
-                loop.rowStrideU = planes[1].getRowStride();
-                loop.rowStrideV = planes[2].getRowStride();
+            frame.rowStrideY = planes[0].getRowStride();
+            frame.rowStrideU = planes[1].getRowStride();
+            frame.rowStrideV = planes[2].getRowStride();
 
-                loop.orientation = orientation;
+            frame.pixelStrideY = planes[0].getPixelStride();
+            frame.pixelStrideU = planes[1].getPixelStride();
+            frame.pixelStrideV = planes[2].getPixelStride();
 
-            } catch (Throwable t) {
-                Log.e(TAG, "Failed to process the image", t);
-            }
+            frame.orientation = orientation;
+
+            // Wakes the loop up, replacing the previous frame if it wasn't published yet
+            loop.offer(frame);
+
+        } catch (Throwable t) {
+            Log.e(TAG, "Failed to process the image", t);
         }
     }
 
@@ -286,18 +183,12 @@ public class ImagePublisher extends AbstractNodeMain {
     @Override
     public void onStart(ConnectedNode connectedNode) {
         // This CancellableLoop will be canceled automatically when the node shuts down.
-        loop = new ImagePublisherLoop(connectedNode);
+        loop = createLoop(connectedNode);
         connectedNode.executeCancellableLoop(loop);
     }
 
 
-    private static ByteBuffer clone(ByteBuffer original) {
-        ByteBuffer clone = ByteBuffer.allocate(original.capacity());
-        original.rewind();
-
-        clone.put(original);
-        clone.flip();
-
-        return clone;
+    ImagePublisherLoop createLoop(ConnectedNode connectedNode) {
+        return new RgbImagePublisherLoop(connectedNode, rateController);
     }
 }
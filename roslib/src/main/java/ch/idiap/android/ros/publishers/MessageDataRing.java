@@ -0,0 +1,220 @@
+/*
+ * Copyright (C) 2020 Idiap Research Institute
+ *
+ * Authors:
+ *   philip.abbet@idiap.ch (Philip Abbet)
+ */
+
+package ch.idiap.android.ros.publishers;
+
+import org.jboss.netty.buffer.ByteBufferBackedChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.GatheringByteChannel;
+import java.util.concurrent.atomic.AtomicReference;
+
+
+/** A few arrays used in turn as the data of the messages of a publisher, without any copy
+ *
+ * rosjava doesn't serialize a message when it is published: the message waits in the outgoing
+ * queue of the publisher, then is serialized by another thread (once, whatever the number of
+ * subscribers, by copying all its data). So the data of a message is wrapped into a channel
+ * buffer noticing when all of it was read by the serialization, and an array is only reused
+ * once its message was serialized.
+ *
+ * When all the arrays are still waiting for the serialization of their message, the ring is
+ * busy: the publisher skips its frames until one is released, instead of keeping as many
+ * arrays as the queue can hold messages. An array whose message wasn't serialized after
+ * STALE_DELAY (the node is shutting down, or the message was dropped) is left to its message
+ * and replaced by a new one.
+ *
+ * The arrays are allocated on demand, and only reallocated when too small.
+ */
+class MessageDataRing {
+
+    /** Number of arrays: the one being filled, and up to two messages waiting for their
+     * serialization
+     */
+    public static final int NB_BUFFERS = 3;
+
+    /** Delay (in nanoseconds) after which a message not serialized yet is given up
+     */
+    public static final long STALE_DELAY = 1000000000L;
+
+
+    /** The data of a message, released once all of it was read by the serialization
+     *
+     * hasArray() returns false, so the serialization copies the data through getBytes()
+     * instead of reading the array directly. The data is read in full by one call, or in
+     * consecutive chunks: a partial read doesn't release the array.
+     */
+    private static class MessageData extends ByteBufferBackedChannelBuffer {
+        private final Slot slot;
+        private int nbRead = 0;     // length of the beginning of the data already read
+
+        MessageData(Slot slot, int length) {
+            super(ByteBuffer.wrap(slot.array, 0, length).order(ByteOrder.LITTLE_ENDIAN));
+            this.slot = slot;
+        }
+
+        @Override
+        public boolean hasArray() {
+            return false;
+        }
+
+        @Override
+        public void getBytes(int index, byte[] dst, int dstIndex, int length) {
+            super.getBytes(index, dst, dstIndex, length);
+            onRead(index, length);
+        }
+
+        @Override
+        public void getBytes(int index, ChannelBuffer dst, int dstIndex, int length) {
+            super.getBytes(index, dst, dstIndex, length);
+            onRead(index, length);
+        }
+
+        @Override
+        public void getBytes(int index, ByteBuffer dst) {
+            int length = Math.min(capacity() - index, dst.remaining());
+            super.getBytes(index, dst);
+            onRead(index, length);
+        }
+
+        @Override
+        public void getBytes(int index, OutputStream out, int length) throws IOException {
+            super.getBytes(index, out, length);
+            onRead(index, length);
+        }
+
+        @Override
+        public int getBytes(int index, GatheringByteChannel out, int length) throws IOException {
+            int result = super.getBytes(index, out, length);
+            onRead(index, result);
+            return result;
+        }
+
+        private synchronized void onRead(int index, int length) {
+            // Only a read continuing the ones before extends the part already read
+            if (index <= nbRead)
+                nbRead = Math.max(nbRead, index + length);
+
+            if (nbRead >= capacity())
+                slot.release(this);
+        }
+    }
+
+
+    private static class Slot {
+        byte[] array = null;
+
+        // The data of the message using the array (null if the array is free), and the time
+        // at which it was published
+        final AtomicReference<MessageData> data = new AtomicReference<>();
+        long publicationTime = 0;
+
+        void release(MessageData data) {
+            // Only the serialization of the last message using the array releases it
+            this.data.compareAndSet(data, null);
+        }
+    }
+
+
+    private final Slot[] slots = new Slot[NB_BUFFERS];
+    private final long staleDelay;
+    private int currentSlot = 0;
+    private int nbAllocations = 0;
+
+
+    public MessageDataRing() {
+        this(STALE_DELAY);
+    }
+
+
+    MessageDataRing(long staleDelay) {
+        this.staleDelay = staleDelay;
+
+        for (int i = 0; i < NB_BUFFERS; ++i)
+            slots[i] = new Slot();
+    }
+
+
+    /** Indicates if all the arrays hold the data of messages not serialized yet (the frame
+     * must then be skipped)
+     */
+    public boolean isBusy() {
+        return (findFreeSlot() < 0);
+    }
+
+
+    /** Returns the next free array, of at least the given size, or null if the ring is busy
+     */
+    public byte[] next(int size) {
+        int index = findFreeSlot();
+        if (index < 0)
+            return null;
+
+        currentSlot = index;
+
+        Slot slot = slots[index];
+        if ((slot.array == null) || (slot.array.length < size)) {
+            slot.array = new byte[size];
+            ++nbAllocations;
+        }
+
+        return slot.array;
+    }
+
+
+    /** Returns the number of arrays allocated until now
+     */
+    public int getNbAllocations() {
+        return nbAllocations;
+    }
+
+
+    /** Returns a (little-endian) channel buffer over the first 'length' bytes of an array
+     * returned by next(), to use as the data of a message
+     *
+     * The array is used until the message is serialized.
+     */
+    public ChannelBuffer wrap(byte[] buffer, int length) {
+        for (Slot slot : slots) {
+            if (slot.array == buffer) {
+                MessageData data = new MessageData(slot, length);
+                slot.publicationTime = System.nanoTime();
+                slot.data.set(data);
+                return data;
+            }
+        }
+
+        throw new IllegalArgumentException("The array doesn't belong to the ring");
+    }
+
+
+    private int findFreeSlot() {
+        long now = System.nanoTime();
+
+        for (int i = 1; i <= NB_BUFFERS; ++i) {
+            int index = (currentSlot + i) % NB_BUFFERS;
+            Slot slot = slots[index];
+
+            MessageData data = slot.data.get();
+            if (data == null)
+                return index;
+
+            // Leave the array to a message never serialized, and use a new one
+            if (now - slot.publicationTime > staleDelay) {
+                slot.data.compareAndSet(data, null);
+                slot.array = null;
+                return index;
+            }
+        }
+
+        return -1;
+    }
+}
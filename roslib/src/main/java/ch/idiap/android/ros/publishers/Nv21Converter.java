@@ -0,0 +1,164 @@
+/*
+ * Copyright (C) 2020 Idiap Research Institute
+ *
+ * Authors:
+ *   philip.abbet@idiap.ch (Philip Abbet)
+ */
+
+package ch.idiap.android.ros.publishers;
+
+import java.nio.ByteBuffer;
+
+
+/** Pack YUV_420_888 frames into NV21 buffers (as expected by android.graphics.YuvImage),
+ * optionally downscaled and rotated
+ *
+ * Downscaling keeps one pixel out of 'scale' in each direction, and the size of the result
+ * is rounded down to even values, as required by NV21.
+ */
+public class Nv21Converter {
+
+    private byte[] rowY = new byte[0];
+    private byte[] rowU = new byte[0];
+    private byte[] rowV = new byte[0];
+
+    // Destination of pixel (x, y): origin + x * stepX + y * stepY
+    private int origin;
+    private int stepX;
+    private int stepY;
+
+
+    /** Returns the width of the packed image, for a clockwise rotation of 0, 90, 180 or 270
+     * degrees
+     */
+    public static int getOutputWidth(YuvFrame frame, int rotation, int scale) {
+        return ((rotation == 90) || (rotation == 270) ? scaledHeight(frame, scale) : scaledWidth(frame, scale));
+    }
+
+
+    public static int getOutputHeight(YuvFrame frame, int rotation, int scale) {
+        return ((rotation == 90) || (rotation == 270) ? scaledWidth(frame, scale) : scaledHeight(frame, scale));
+    }
+
+
+    /** Returns the number of bytes of the packed image
+     */
+    public static int getOutputSize(YuvFrame frame, int scale) {
+        return scaledWidth(frame, scale) * scaledHeight(frame, scale) * 3 / 2;
+    }
+
+
+    public void convert(YuvFrame frame, byte[] dst, int rotation, int scale) {
+        scale = Math.max(scale, 1);
+
+        int width = scaledWidth(frame, scale);
+        int height = scaledHeight(frame, scale);
+
+        if ((width == 0) || (height == 0))
+            return;
+
+        // Luma plane
+        int lengthY = (width - 1) * scale * frame.pixelStrideY + 1;
+        if (rowY.length < lengthY)
+            rowY = new byte[lengthY];
+
+        ByteBuffer src = frame.y.duplicate();
+        int pixelStride = frame.pixelStrideY * scale;
+
+        setupDestination(width, height, rotation, 1, 0);
+
+        for (int y = 0; y < height; ++y) {
+            readRow(src, y * scale * frame.rowStrideY, rowY, lengthY);
+
+            int offsetDst = origin + y * stepY;
+            for (int x = 0; x < width; ++x) {
+                dst[offsetDst] = rowY[x * pixelStride];
+                offsetDst += stepX;
+            }
+        }
+
+        // Interleaved chroma plane (V first)
+        int chromaWidth = width / 2;
+        int chromaHeight = height / 2;
+
+        int lengthU = (chromaWidth - 1) * scale * frame.pixelStrideU + 1;
+        int lengthV = (chromaWidth - 1) * scale * frame.pixelStrideV + 1;
+
+        if (rowU.length < lengthU)
+            rowU = new byte[lengthU];
+
+        if (rowV.length < lengthV)
+            rowV = new byte[lengthV];
+
+        ByteBuffer srcU = frame.u.duplicate();
+        ByteBuffer srcV = frame.v.duplicate();
+        int pixelStrideU = frame.pixelStrideU * scale;
+        int pixelStrideV = frame.pixelStrideV * scale;
+
+        setupDestination(chromaWidth, chromaHeight, rotation, 2, width * height);
+
+        for (int y = 0; y < chromaHeight; ++y) {
+            readRow(srcU, y * scale * frame.rowStrideU, rowU, lengthU);
+            readRow(srcV, y * scale * frame.rowStrideV, rowV, lengthV);
+
+            int offsetDst = origin + y * stepY;
+            for (int x = 0; x < chromaWidth; ++x) {
+                dst[offsetDst] = rowV[x * pixelStrideV];
+                dst[offsetDst + 1] = rowU[x * pixelStrideU];
+                offsetDst += stepX;
+            }
+        }
+    }
+
+
+    private static int scaledWidth(YuvFrame frame, int scale) {
+        return (frame.width / Math.max(scale, 1)) & ~1;
+    }
+
+
+    private static int scaledHeight(YuvFrame frame, int scale) {
+        return (frame.height / Math.max(scale, 1)) & ~1;
+    }
+
+
+    /** Compute the destination of the pixels of a plane of 'width' x 'height' pixels of
+     * 'pixelSize' bytes, starting at 'offset', rotated clockwise
+     */
+    private void setupDestination(int width, int height, int rotation, int pixelSize, int offset) {
+        switch (rotation) {
+            case 90:
+                origin = height - 1;
+                stepX = height;
+                stepY = -1;
+                break;
+
+            case 180:
+                origin = (height - 1) * width + width - 1;
+                stepX = -1;
+                stepY = -width;
+                break;
+
+            case 270:
+                origin = (width - 1) * height;
+                stepX = -height;
+                stepY = 1;
+                break;
+
+            default:
+                origin = 0;
+                stepX = 1;
+                stepY = width;
+                break;
+        }
+
+        origin = offset + origin * pixelSize;
+        stepX *= pixelSize;
+        stepY *= pixelSize;
+    }
+
+
+    private static void readRow(ByteBuffer src, int offset, byte[] row, int length) {
+        src.position(offset);
+        src.get(row, 0, Math.min(length, src.limit() - offset));
+    }
+}
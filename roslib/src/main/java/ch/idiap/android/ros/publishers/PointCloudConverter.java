@@ -0,0 +1,260 @@
+/*
+ * Copyright (C) 2020 Idiap Research Institute
+ *
+ * Authors:
+ *   philip.abbet@idiap.ch (Philip Abbet)
+ */
+
+package ch.idiap.android.ros.publishers;
+
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+
+/** Back-project depth frames into point clouds (in the optical frame of the camera, in
+ * meters), optionally downsampled with a voxel grid
+ *
+ * Like in YuvConverter, the rows of the frames are split in bands processed in parallel. Each
+ * band fills its own voxel grid, merged into the one of the first band at the end.
+ */
+public class PointCloudConverter {
+
+    // DEPTH16 pixels store a confidence in their 3 highest bits
+    private static final int DEPTH_MASK = 0x1FFF;
+
+
+    /** Back-projection of a band of rows
+     */
+    private static class Band implements Runnable {
+        DepthFrame frame;
+        int firstRow;
+        int lastRow;
+        float[] columnFactors;
+        float[] rowFactors;
+        float scale;
+
+        final VoxelGrid grid = new VoxelGrid();
+        float[] points = new float[0];
+        int nbPoints = 0;
+
+        private short[] row = new short[0];
+
+
+        @Override
+        public void run() {
+            int width = frame.width;
+
+            if (row.length < width)
+                row = new short[width];
+
+            if ((scale <= 0.0f) && (points.length < (lastRow - firstRow) * width * 3))
+                points = new float[(lastRow - firstRow) * width * 3];
+
+            grid.clear();
+            nbPoints = 0;
+
+            ShortBuffer src = frame.buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN).asShortBuffer();
+            int rowStride = (frame.rowStride > 0 ? frame.rowStride / 2 : width);
+
+            float[] columnFactors = this.columnFactors;
+            float[] points = this.points;
+            int index = 0;
+
+            for (int v = firstRow; v < lastRow; ++v) {
+                src.position(v * rowStride);
+                src.get(row, 0, width);
+
+                float rowFactor = rowFactors[v];
+
+                for (int u = 0; u < width; ++u) {
+                    int depth = row[u] & DEPTH_MASK;
+                    if (depth == 0)
+                        continue;
+
+                    float z = depth * 0.001f;
+                    float x = z * columnFactors[u];
+                    float y = z * rowFactor;
+
+                    if (scale > 0.0f) {
+                        grid.add(VoxelGrid.getKey(x, y, z, scale), x, y, z);
+                    } else {
+                        points[index++] = x;
+                        points[index++] = y;
+                        points[index++] = z;
+                    }
+                }
+            }
+
+            nbPoints = index / 3;
+        }
+    }
+
+
+    private final Band[] bands;
+    private final Future<?>[] futures;
+    private ExecutorService executor = null;
+
+    private float[] points = new float[0];
+    private float[] columnFactors = new float[0];
+    private float[] rowFactors = new float[0];
+
+
+    /** Use as many threads as there are processors
+     */
+    public PointCloudConverter() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+
+    public PointCloudConverter(int nbThreads) {
+        bands = new Band[Math.max(nbThreads, 1)];
+        for (int i = 0; i < bands.length; ++i)
+            bands[i] = new Band();
+
+        futures = new Future<?>[bands.length];
+
+        if (bands.length > 1) {
+            executor = Executors.newFixedThreadPool(bands.length - 1, runnable -> {
+                Thread thread = new Thread(runnable, "PointCloudConverter");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+
+
+    /** Back-project a frame, using the intrinsics of the camera (in pixels), and returns the
+     * number of points. With a positive voxel size (in meters), each occupied voxel produces
+     * one point, the centroid of the points it contains.
+     *
+     * The points are then available (x, y, z for each) with getPoints(). Returns -1 if the
+     * conversion was interrupted (the interrupted status of the thread is kept).
+     */
+    public int convert(DepthFrame frame, float fx, float fy, float cx, float cy, float voxelSize) {
+        int width = frame.width;
+        int height = frame.height;
+
+        // Factors applied to the depth to compute x and y, per column and per row
+        if (columnFactors.length < width)
+            columnFactors = new float[width];
+
+        if (rowFactors.length < height)
+            rowFactors = new float[height];
+
+        for (int u = 0; u < width; ++u)
+            columnFactors[u] = (u - cx) / fx;
+
+        for (int v = 0; v < height; ++v)
+            rowFactors[v] = (v - cy) / fy;
+
+        float scale = (voxelSize > 0.0f ? 1.0f / voxelSize : 0.0f);
+
+        int nbBands = Math.min(bands.length, Math.max(height, 1));
+        int bandHeight = (height + nbBands - 1) / nbBands;
+
+        for (int i = 0; i < nbBands; ++i) {
+            Band band = bands[i];
+            band.frame = frame;
+            band.firstRow = Math.min(i * bandHeight, height);
+            band.lastRow = Math.min(band.firstRow + bandHeight, height);
+            band.columnFactors = columnFactors;
+            band.rowFactors = rowFactors;
+            band.scale = scale;
+
+            if (i > 0)
+                futures[i] = executor.submit(band);
+        }
+
+        // The calling thread processes the first band itself
+        RuntimeException error = null;
+
+        try {
+            bands[0].run();
+        } catch (RuntimeException e) {
+            error = e;
+        }
+
+        // Always wait for the other bands, even when interrupted: the frame is recycled by
+        // the caller as soon as this method returns
+        boolean interrupted = false;
+
+        for (int i = 1; i < nbBands; ++i) {
+            while (true) {
+                try {
+                    futures[i].get();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    if (error == null)
+                        error = new RuntimeException(e.getCause());
+                    break;
+                }
+            }
+        }
+
+        for (int i = 0; i < nbBands; ++i) {
+            futures[i] = null;
+            bands[i].frame = null;
+        }
+
+        if (error != null)
+            throw error;
+
+        // The point cloud of an interrupted conversion is dropped
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+            return -1;
+        }
+
+        // Gather the results of the bands
+        int nbPoints = 0;
+
+        if (scale > 0.0f) {
+            VoxelGrid grid = bands[0].grid;
+            for (int i = 1; i < nbBands; ++i)
+                grid.merge(bands[i].grid);
+
+            ensureCapacity(grid.size());
+            nbPoints = grid.getCentroids(points, 0);
+        } else {
+            for (int i = 0; i < nbBands; ++i)
+                nbPoints += bands[i].nbPoints;
+
+            ensureCapacity(nbPoints);
+
+            int offset = 0;
+            for (int i = 0; i < nbBands; ++i) {
+                System.arraycopy(bands[i].points, 0, points, offset, bands[i].nbPoints * 3);
+                offset += bands[i].nbPoints * 3;
+            }
+        }
+
+        return nbPoints;
+    }
+
+
+    /** Returns the points computed by the last conversion (x, y, z for each)
+     */
+    public float[] getPoints() {
+        return points;
+    }
+
+
+    /** Stop the threads used by the conversion
+     */
+    public void shutdown() {
+        if (executor != null)
+            executor.shutdownNow();
+    }
+
+
+    private void ensureCapacity(int nbPoints) {
+        if (points.length < nbPoints * 3)
+            points = new float[nbPoints * 3];
+    }
+}
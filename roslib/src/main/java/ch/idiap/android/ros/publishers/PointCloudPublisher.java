@@ -0,0 +1,229 @@
+/*
+ * Copyright (C) 2020 Idiap Research Institute
+ *
+ * Authors:
+ *   philip.abbet@idiap.ch (Philip Abbet)
+ */
+
+package ch.idiap.android.ros.publishers;
+
+import android.graphics.ImageFormat;
+import android.media.Image;
+import android.util.Log;
+
+import org.ros.message.MessageFactory;
+import org.ros.namespace.GraphName;
+import org.ros.node.AbstractNodeMain;
+import org.ros.node.ConnectedNode;
+import org.ros.node.topic.Publisher;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+
+import sensor_msgs.PointField;
+
+
+/** Publish the depth frames as 'sensor_msgs/PointCloud2' messages (packed x, y, z floats)
+ *
+ * Like in RgbImagePublisherLoop, the data of the messages are arrays used in turn (see
+ * MessageDataRing), since the messages are serialized asynchronously.
+ */
+class PointCloudPublisherLoop extends FramePublisherLoop<DepthFrame> {
+
+    // Size of a point: x, y and z as floats
+    private static final int POINT_STEP = 12;
+
+    private final ConnectedNode connectedNode;
+    private final PointCloudPublisher owner;
+
+    private Publisher<sensor_msgs.PointCloud2> publisher;
+    private final List<PointField> fields = new ArrayList<>();
+
+    private final PointCloudConverter converter = new PointCloudConverter();
+    private final MessageDataRing buffers = new MessageDataRing();
+
+
+    public PointCloudPublisherLoop(ConnectedNode connectedNode, PointCloudPublisher owner,
+                                   RateController rateController) {
+        super(rateController, DepthFrame::new);
+
+        this.connectedNode = connectedNode;
+        this.owner = owner;
+
+        publisher = connectedNode.newPublisher("android_depth_camera/points", sensor_msgs.PointCloud2._TYPE);
+
+        // The description of the fields is the same for all the messages
+        MessageFactory messageFactory = connectedNode.getTopicMessageFactory();
+
+        String[] names = new String[] { "x", "y", "z" };
+        for (int i = 0; i < names.length; ++i) {
+            PointField field = messageFactory.newFromType(PointField._TYPE);
+            field.setName(names[i]);
+            field.setOffset(i * 4);
+            field.setDatatype(PointField.FLOAT32);
+            field.setCount(1);
+            fields.add(field);
+        }
+    }
+
+
+    @Override
+    public void cancel() {
+        super.cancel();
+        converter.shutdown();
+    }
+
+
+    @Override
+    protected boolean hasSubscribers() {
+        return (publisher.getNumberOfSubscribers() > 0) && (owner.getCameraIntrinsics() != null);
+    }
+
+
+    @Override
+    protected boolean isBusy() {
+        return buffers.isBusy();
+    }
+
+
+    @Override
+    protected void publishFrame(DepthFrame frame) {
+        float[] intrinsics = owner.getCameraIntrinsics();
+
+        int nbPoints = converter.convert(frame, intrinsics[0], intrinsics[1], intrinsics[2],
+                                         intrinsics[3], owner.getVoxelSize());
+
+        // Interrupted (the loop is stopping): nothing to publish
+        if (nbPoints < 0)
+            return;
+
+        byte[] buffer = buffers.next(nbPoints * POINT_STEP);
+
+        ByteBuffer.wrap(buffer).order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer()
+                  .put(converter.getPoints(), 0, nbPoints * 3);
+
+        sensor_msgs.PointCloud2 cloud = publisher.newMessage();
+        cloud.getHeader().setStamp(connectedNode.getCurrentTime());
+        cloud.getHeader().setFrameId(owner.getFrameId());
+        cloud.setHeight(1);
+        cloud.setWidth(nbPoints);
+        cloud.setFields(fields);
+        cloud.setIsBigendian(false);
+        cloud.setPointStep(POINT_STEP);
+        cloud.setRowStep(nbPoints * POINT_STEP);
+        cloud.setIsDense(true);
+        cloud.setData(buffers.wrap(buffer, nbPoints * POINT_STEP));
+
+        publisher.publish(cloud);
+    }
+}
+
+
+public class PointCloudPublisher extends AbstractNodeMain {
+
+    private static final String TAG = PointCloudPublisher.class.getSimpleName();
+
+    public static final float DEFAULT_VOXEL_SIZE = 0.02f;
+
+    private final RateController rateController =
+            new RateController(RateController.DEFAULT_TARGET_RATE, 0);
+    private PointCloudPublisherLoop loop = null;
+    private volatile float[] cameraIntrinsics = null;
+    private volatile float voxelSize = DEFAULT_VOXEL_SIZE;
+    private volatile String frameId = "android_depth_camera";
+
+
+    /** Returns the object controlling the rate at which the point clouds are published
+     */
+    public RateController getRateController() {
+        return rateController;
+    }
+
+
+    /** Set the intrinsics of the depth camera (in pixels). No point cloud is published until
+     * they are known.
+     */
+    public void setCameraIntrinsics(float fx, float fy, float cx, float cy) {
+        cameraIntrinsics = new float[] { fx, fy, cx, cy };
+    }
+
+
+    public float[] getCameraIntrinsics() {
+        return cameraIntrinsics;
+    }
+
+
+    /** Set the size of the cells of the voxel grid used to downsample the point clouds (in
+     * meters, 0 to publish one point per valid pixel)
+     */
+    public void setVoxelSize(float voxelSize) {
+        this.voxelSize = Math.max(voxelSize, 0.0f);
+    }
+
+
+    public float getVoxelSize() {
+        return voxelSize;
+    }
+
+
+    public void setFrameId(String frameId) {
+        this.frameId = frameId;
+    }
+
+
+    public String getFrameId() {
+        return frameId;
+    }
+
+
+    /** Copy the image, to publish it from the loop
+     *
+     * The image isn't closed, so it can be given to several publishers: the caller must close
+     * it as soon as possible, so the camera can reuse its memory.
+     */
+    public void publish(Image depthImage) {
+        if ((loop == null) || !loop.hasSubscribers())
+            return;
+
+        try {
+            if (depthImage.getFormat() != ImageFormat.DEPTH16) {
+                Log.e(TAG, "Invalid image format, only DEPTH16 is supported");
+                return;
+            }
+
+            Image.Plane[] planes = depthImage.getPlanes();
+
+            // Copy the image into the buffer of a recycled frame
+            DepthFrame frame = loop.pool.acquire();
+
+            frame.buffer = FramePool.copy(planes[0].getBuffer(), frame.buffer);
+
+            frame.width = depthImage.getWidth();
+            frame.height = depthImage.getHeight();
+
+            frame.rowStride = planes[0].getRowStride();
+
+            // Wakes the loop up, replacing the previous frame if it wasn't published yet
+            loop.offer(frame);
+
+        } catch (Throwable t) {
+            Log.e(TAG, "Failed to process the image", t);
+        }
+    }
+
+
+    @Override
+    public GraphName getDefaultNodeName() {
+        return GraphName.of("AndroidUrdfViewer/point_cloud_publisher");
+    }
+
+
+    @Override
+    public void onStart(ConnectedNode connectedNode) {
+        // This CancellableLoop will be canceled automatically when the node shuts down.
+        loop = new PointCloudPublisherLoop(connectedNode, this, rateController);
+        connectedNode.executeCancellableLoop(loop);
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright (C) 2020 Idiap Research Institute
+ *
+ * Authors:
+ *   philip.abbet@idiap.ch (Philip Abbet)
+ */
+
+package ch.idiap.android.ros.publishers;
+
+
+/** Pace the publication of frames to a target rate, and adapt the cost of the frames to the
+ * time it takes to publish them
+ *
+ * The duration of the publications is averaged. When it gets longer than the period of the
+ * target rate, the publisher is asked to downshift (higher level: smaller or lower quality
+ * frames), and to upshift again once it gets well below.
+ */
+public class RateController {
+
+    public static final float DEFAULT_TARGET_RATE = 15.0f;
+
+    // Weight of the last duration in the moving average
+    private static final double SMOOTHING = 0.2;
+
+    // Fractions of the period above which to downshift, and below which to upshift
+    private static final double DOWNSHIFT_THRESHOLD = 0.9;
+    private static final double UPSHIFT_THRESHOLD = 0.5;
+
+    // Minimal number of frames between two changes of level
+    private static final int HYSTERESIS = 10;
+
+    private final int maxLevel;
+    private long period = 0;
+    private long nextFrameTime = 0;
+    private double averageDuration = -1.0;
+    private int level = 0;
+    private int nbFramesAtLevel = 0;
+
+
+    /** 'maxLevel' is the number of downshifts supported by the publisher (0 if it can only
+     * slow down)
+     */
+    public RateController(float targetRate, int maxLevel) {
+        this.maxLevel = Math.max(maxLevel, 0);
+        setTargetRate(targetRate);
+    }
+
+
+    /** Set the maximum number of frames published per second
+     */
+    public synchronized void setTargetRate(float targetRate) {
+        period = (long) (1e9 / Math.max(targetRate, 0.01f));
+    }
+
+
+    public synchronized float getTargetRate() {
+        return (float) (1e9 / period);
+    }
+
+
+    /** Returns the time (in nanoseconds) to wait before the next frame can be published
+     */
+    public synchronized long getDelay(long now) {
+        return Math.max(nextFrameTime - now, 0L);
+    }
+
+
+    /** Indicates that the publication of a frame started at the given time (in nanoseconds,
+     * from System.nanoTime())
+     */
+    public synchronized void frameStarted(long now) {
+        nextFrameTime = now + period;
+    }
+
+
+    /** Indicates how long (in nanoseconds) the publication of a frame took
+     */
+    public synchronized void frameDone(long duration) {
+        if (averageDuration < 0.0)
+            averageDuration = duration;
+        else
+            averageDuration += SMOOTHING * (duration - averageDuration);
+
+        ++nbFramesAtLevel;
+        if (nbFramesAtLevel < HYSTERESIS)
+            return;
+
+        if ((averageDuration > DOWNSHIFT_THRESHOLD * period) && (level < maxLevel)) {
+            ++level;
+            nbFramesAtLevel = 0;
+        } else if ((averageDuration < UPSHIFT_THRESHOLD * period) && (level > 0)) {
+            --level;
+            nbFramesAtLevel = 0;
+        }
+    }
+
+
+    /** Indicates that a frame was skipped because the previous ones weren't sent yet, which
+     * counts as a publication taking the whole period
+     */
+    public synchronized void frameSkipped() {
+        frameDone(period);
+    }
+
+
+    /** Returns the current level of downshifting (0: full resolution and quality)
+     */
+    public synchronized int getLevel() {
+        return level;
+    }
+
+
+    /** Returns the average duration of the publication of a frame (in nanoseconds)
+     */
+    public synchronized long getAverageDuration() {
+        return (long) Math.max(averageDuration, 0.0);
+    }
+}
@@ -0,0 +1,174 @@
+/*
+ * Copyright (C) 2020 Idiap Research Institute
+ *
+ * Authors:
+ *   philip.abbet@idiap.ch (Philip Abbet)
+ */
+
+package ch.idiap.android.ros.publishers;
+
+import java.util.Arrays;
+
+
+/** Accumulate points into the cells of a voxel grid, to replace them by their centroid in
+ * each cell
+ *
+ * The cells are stored in an open-addressing hash table indexed by their packed coordinates,
+ * reused from one frame to the next.
+ */
+class VoxelGrid {
+
+    private static final long EMPTY = Long.MIN_VALUE;
+
+    // Number of bits of each coordinate in the keys
+    private static final int COORDINATE_BITS = 21;
+    private static final long COORDINATE_MASK = (1L << COORDINATE_BITS) - 1;
+
+    private long[] keys;
+    private float[] sums;
+    private int[] counts;
+    private int[] used;
+    private int size = 0;
+    private int mask;
+
+
+    public VoxelGrid() {
+        allocate(1024);
+    }
+
+
+    public void clear() {
+        for (int i = 0; i < size; ++i)
+            keys[used[i]] = EMPTY;
+
+        size = 0;
+    }
+
+
+    /** Returns the number of non-empty cells
+     */
+    public int size() {
+        return size;
+    }
+
+
+    /** Returns the key of the cell containing a point, 'scale' being the inverse of the size
+     * of the cells
+     */
+    public static long getKey(float x, float y, float z, float scale) {
+        return ((floor(x * scale) & COORDINATE_MASK) << (2 * COORDINATE_BITS)) |
+               ((floor(y * scale) & COORDINATE_MASK) << COORDINATE_BITS) |
+               (floor(z * scale) & COORDINATE_MASK);
+    }
+
+
+    public void add(long key, float x, float y, float z) {
+        add(key, x, y, z, 1);
+    }
+
+
+    /** Add the content of the cells of another grid to this one
+     */
+    public void merge(VoxelGrid other) {
+        for (int i = 0; i < other.size; ++i) {
+            int slot = other.used[i];
+            add(other.keys[slot], other.sums[slot * 3], other.sums[slot * 3 + 1],
+                other.sums[slot * 3 + 2], other.counts[slot]);
+        }
+    }
+
+
+    /** Write the centroids of the cells in 'dst' (x, y, z for each), which must be large
+     * enough, starting at the given point index. Returns the number of points written.
+     */
+    public int getCentroids(float[] dst, int offset) {
+        int index = offset * 3;
+
+        for (int i = 0; i < size; ++i) {
+            int slot = used[i];
+            float inverse = 1.0f / counts[slot];
+
+            dst[index++] = sums[slot * 3] * inverse;
+            dst[index++] = sums[slot * 3 + 1] * inverse;
+            dst[index++] = sums[slot * 3 + 2] * inverse;
+        }
+
+        return size;
+    }
+
+
+    private void add(long key, float x, float y, float z, int count) {
+        int slot = find(key);
+
+        if (keys[slot] == EMPTY) {
+            // Keep the table at most half full
+            if ((size + 1) * 2 > keys.length) {
+                grow();
+                slot = find(key);
+            }
+
+            keys[slot] = key;
+            sums[slot * 3] = 0.0f;
+            sums[slot * 3 + 1] = 0.0f;
+            sums[slot * 3 + 2] = 0.0f;
+            counts[slot] = 0;
+            used[size++] = slot;
+        }
+
+        sums[slot * 3] += x;
+        sums[slot * 3 + 1] += y;
+        sums[slot * 3 + 2] += z;
+        counts[slot] += count;
+    }
+
+
+    private int find(long key) {
+        int slot = (int) ((key * 0x9E3779B97F4A7C15L) >>> 32) & mask;
+
+        while ((keys[slot] != EMPTY) && (keys[slot] != key))
+            slot = (slot + 1) & mask;
+
+        return slot;
+    }
+
+
+    private void grow() {
+        long[] oldKeys = keys;
+        float[] oldSums = sums;
+        int[] oldCounts = counts;
+        int[] oldUsed = used;
+        int oldSize = size;
+
+        allocate(oldKeys.length * 2);
+
+        for (int i = 0; i < oldSize; ++i) {
+            int oldSlot = oldUsed[i];
+            int slot = find(oldKeys[oldSlot]);
+
+            keys[slot] = oldKeys[oldSlot];
+            sums[slot * 3] = oldSums[oldSlot * 3];
+            sums[slot * 3 + 1] = oldSums[oldSlot * 3 + 1];
+            sums[slot * 3 + 2] = oldSums[oldSlot * 3 + 2];
+            counts[slot] = oldCounts[oldSlot];
+            used[size++] = slot;
+        }
+    }
+
+
+    private void allocate(int capacity) {
+        keys = new long[capacity];
+        sums = new float[capacity * 3];
+        counts = new int[capacity];
+        used = new int[capacity];
+        size = 0;
+        mask = capacity - 1;
+
+        Arrays.fill(keys, EMPTY);
+    }
+
+
+    private static long floor(float value) {
+        long result = (long) value;
+        return (value < result ? result - 1 : result);
+    }
+}
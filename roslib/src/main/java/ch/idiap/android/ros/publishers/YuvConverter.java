@@ -0,0 +1,311 @@
+/*
+ * Copyright (C) 2020 Idiap Research Institute
+ *
+ * Authors:
+ *   philip.abbet@idiap.ch (Philip Abbet)
+ */
+
+package ch.idiap.android.ros.publishers;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+
+/** Convert YUV_420_888 frames to RGB (3 bytes per pixel, BT.601 video range)
+ *
+ * The rows of the planes are read in bulk, the products of the conversion matrix come from
+ * lookup tables, and the rows of the image are split in bands converted in parallel. The
+ * image can be rotated during the conversion.
+ */
+public class YuvConverter {
+
+    // Lookup tables of the products of the conversion, in 8.8 fixed point
+    private static final int[] Y_TABLE = new int[256];
+    private static final int[] RV_TABLE = new int[256];
+    private static final int[] GU_TABLE = new int[256];
+    private static final int[] GV_TABLE = new int[256];
+    private static final int[] BU_TABLE = new int[256];
+
+    // Clamping of the results in [0, 255], indexed by 'value + CLAMP_OFFSET'
+    private static final int CLAMP_OFFSET = 1024;
+    private static final byte[] CLAMP_TABLE = new byte[2 * CLAMP_OFFSET];
+
+    static {
+        for (int i = 0; i < 256; ++i) {
+            Y_TABLE[i] = 298 * Math.max(i - 16, 0) + 128;
+            RV_TABLE[i] = 409 * (i - 128);
+            GU_TABLE[i] = -100 * (i - 128);
+            GV_TABLE[i] = -208 * (i - 128);
+            BU_TABLE[i] = 516 * (i - 128);
+        }
+
+        for (int i = 0; i < CLAMP_TABLE.length; ++i)
+            CLAMP_TABLE[i] = (byte) Math.max(0, Math.min(i - CLAMP_OFFSET, 255));
+    }
+
+
+    // Size of the tiles in which the pixels are traversed, so the writes to a rotated image
+    // stay close to each other (both must be even)
+    private static final int TILE_ROWS = 16;
+    private static final int TILE_COLUMNS = 16;
+
+
+    /** Conversion of a band of rows, with its own copies of the rows of the planes
+     *
+     * Pixel (x, y) of the frame is written at 'origin + x * stepX + y * stepY' in the
+     * destination.
+     */
+    private static class Band implements Runnable {
+        YuvFrame frame;
+        byte[] dst;
+        int firstRow;
+        int lastRow;
+        int origin;
+        int stepX;
+        int stepY;
+
+        private byte[][] rowsY = new byte[TILE_ROWS][0];
+        private byte[][] rowsU = new byte[TILE_ROWS / 2][0];
+        private byte[][] rowsV = new byte[TILE_ROWS / 2][0];
+
+
+        @Override
+        public void run() {
+            YuvFrame frame = this.frame;
+            int width = frame.width;
+            int chromaWidth = (width + 1) / 2;
+
+            int lengthY = (width - 1) * frame.pixelStrideY + 1;
+            int lengthU = (chromaWidth - 1) * frame.pixelStrideU + 1;
+            int lengthV = (chromaWidth - 1) * frame.pixelStrideV + 1;
+
+            if (rowsY[0].length < lengthY)
+                rowsY = new byte[TILE_ROWS][lengthY];
+
+            if (rowsU[0].length < lengthU)
+                rowsU = new byte[TILE_ROWS / 2][lengthU];
+
+            if (rowsV[0].length < lengthV)
+                rowsV = new byte[TILE_ROWS / 2][lengthV];
+
+            // Each band reads the planes through its own views, so the positions don't clash
+            ByteBuffer srcY = frame.y.duplicate();
+            ByteBuffer srcU = frame.u.duplicate();
+            ByteBuffer srcV = frame.v.duplicate();
+
+            int pixelStrideY = frame.pixelStrideY;
+            int pixelStrideU = frame.pixelStrideU;
+            int pixelStrideV = frame.pixelStrideV;
+            int stepX = this.stepX;
+            byte[] dst = this.dst;
+
+            // The bands and the tiles start on even rows, so they don't share rows of chroma
+            for (int y0 = firstRow; y0 < lastRow; y0 += TILE_ROWS) {
+                int y1 = Math.min(y0 + TILE_ROWS, lastRow);
+
+                for (int y = y0; y < y1; ++y)
+                    readRow(srcY, y * frame.rowStrideY, rowsY[y - y0], lengthY);
+
+                for (int c = y0 >> 1; c <= (y1 - 1) >> 1; ++c) {
+                    readRow(srcU, c * frame.rowStrideU, rowsU[c - (y0 >> 1)], lengthU);
+                    readRow(srcV, c * frame.rowStrideV, rowsV[c - (y0 >> 1)], lengthV);
+                }
+
+                for (int x0 = 0; x0 < width; x0 += TILE_COLUMNS) {
+                    int x1 = Math.min(x0 + TILE_COLUMNS, width);
+
+                    for (int y = y0; y < y1; ++y) {
+                        byte[] rowY = rowsY[y - y0];
+                        byte[] rowU = rowsU[(y - y0) >> 1];
+                        byte[] rowV = rowsV[(y - y0) >> 1];
+
+                        int offsetDst = origin + x0 * stepX + y * stepY;
+
+                        for (int x = x0; x < x1; x += 2) {
+                            int c = x >> 1;
+                            int u = rowU[c * pixelStrideU] & 0xff;
+                            int v = rowV[c * pixelStrideV] & 0xff;
+
+                            int rv = RV_TABLE[v] + (CLAMP_OFFSET << 8);
+                            int guv = GU_TABLE[u] + GV_TABLE[v] + (CLAMP_OFFSET << 8);
+                            int bu = BU_TABLE[u] + (CLAMP_OFFSET << 8);
+
+                            int luma = Y_TABLE[rowY[x * pixelStrideY] & 0xff];
+                            dst[offsetDst] = CLAMP_TABLE[(luma + rv) >> 8];
+                            dst[offsetDst + 1] = CLAMP_TABLE[(luma + guv) >> 8];
+                            dst[offsetDst + 2] = CLAMP_TABLE[(luma + bu) >> 8];
+                            offsetDst += stepX;
+
+                            if (x + 1 < x1) {
+                                luma = Y_TABLE[rowY[(x + 1) * pixelStrideY] & 0xff];
+                                dst[offsetDst] = CLAMP_TABLE[(luma + rv) >> 8];
+                                dst[offsetDst + 1] = CLAMP_TABLE[(luma + guv) >> 8];
+                                dst[offsetDst + 2] = CLAMP_TABLE[(luma + bu) >> 8];
+                                offsetDst += stepX;
+                            }
+                        }
+                    }
+                }
+            }
+        }
+
+
+        /** Copy a row of a plane, the last row of a plane being possibly shorter than the
+         * others (when the planes are interleaved)
+         */
+        private static void readRow(ByteBuffer src, int offset, byte[] row, int length) {
+            src.position(offset);
+            src.get(row, 0, Math.min(length, src.limit() - offset));
+        }
+    }
+
+
+    private final Band[] bands;
+    private final Future<?>[] futures;
+    private ExecutorService executor = null;
+
+
+    /** Use as many threads as there are processors
+     */
+    public YuvConverter() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+
+    public YuvConverter(int nbThreads) {
+        bands = new Band[Math.max(nbThreads, 1)];
+        for (int i = 0; i < bands.length; ++i)
+            bands[i] = new Band();
+
+        futures = new Future<?>[bands.length];
+
+        if (bands.length > 1) {
+            executor = Executors.newFixedThreadPool(bands.length - 1, runnable -> {
+                Thread thread = new Thread(runnable, "YuvConverter");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+
+
+    /** Convert a frame into 'dst', which must hold at least width * height * 3 bytes
+     *
+     * Pixel (i, j) is written at index (j * width + i) * 3.
+     */
+    public void convert(YuvFrame frame, byte[] dst) {
+        convert(frame, dst, 0);
+    }
+
+
+    /** Convert a frame into 'dst' (which must hold at least width * height * 3 bytes), rotated
+     * clockwise by the given angle (0, 90, 180 or 270 degrees)
+     *
+     * Each pixel is written directly at its rotated position, so no intermediate image is
+     * needed. With a rotation of 90 or 270 degrees, the resulting image is 'height' pixels
+     * wide and 'width' pixels high.
+     */
+    public void convert(YuvFrame frame, byte[] dst, int rotation) {
+        int width = frame.width;
+        int height = frame.height;
+
+        int origin;
+        int stepX;
+        int stepY;
+
+        switch (rotation) {
+            case 90:
+                origin = 3 * (height - 1);
+                stepX = 3 * height;
+                stepY = -3;
+                break;
+
+            case 180:
+                origin = 3 * ((height - 1) * width + width - 1);
+                stepX = -3;
+                stepY = -3 * width;
+                break;
+
+            case 270:
+                origin = 3 * (width - 1) * height;
+                stepX = -3 * height;
+                stepY = 3;
+                break;
+
+            default:
+                origin = 0;
+                stepX = 3;
+                stepY = 3 * width;
+                break;
+        }
+
+        // Bands of an even number of rows, so they don't share rows of chroma
+        int nbBands = Math.min(bands.length, Math.max((frame.height + 1) / 2, 1));
+        int bandHeight = ((frame.height + 1) / 2 + nbBands - 1) / nbBands * 2;
+
+        for (int i = 0; i < nbBands; ++i) {
+            Band band = bands[i];
+            band.frame = frame;
+            band.dst = dst;
+            band.firstRow = Math.min(i * bandHeight, frame.height);
+            band.lastRow = Math.min(band.firstRow + bandHeight, frame.height);
+            band.origin = origin;
+            band.stepX = stepX;
+            band.stepY = stepY;
+
+            if (i > 0)
+                futures[i] = executor.submit(band);
+        }
+
+        // The calling thread converts the first band itself
+        RuntimeException error = null;
+
+        try {
+            bands[0].run();
+        } catch (RuntimeException e) {
+            error = e;
+        }
+
+        // Always wait for the other bands, even when interrupted: the frame is recycled by
+        // the caller as soon as this method returns
+        boolean interrupted = false;
+
+        for (int i = 1; i < nbBands; ++i) {
+            while (true) {
+                try {
+                    futures[i].get();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    if (error == null)
+                        error = new RuntimeException(e.getCause());
+                    break;
+                }
+            }
+        }
+
+        for (int i = 0; i < nbBands; ++i) {
+            futures[i] = null;
+            bands[i].frame = null;
+            bands[i].dst = null;
+        }
+
+        if (interrupted)
+            Thread.currentThread().interrupt();
+
+        if (error != null)
+            throw error;
+    }
+
+
+    /** Stop the threads used by the conversion
+     */
+    public void shutdown() {
+        if (executor != null)
+            executor.shutdownNow();
+    }
+}
@@ -0,0 +1,35 @@
+/*
+ * Copyright (C) 2020 Idiap Research Institute
+ *
+ * Authors:
+ *   philip.abbet@idiap.ch (Philip Abbet)
+ */
+
+package ch.idiap.android.ros.publishers;
+
+import java.nio.ByteBuffer;
+
+
+/** The planes of a YUV_420_888 image, with their layout
+ *
+ * Both planar (pixel stride of 1 for U and V) and semi-planar (NV21/NV12, pixel stride of 2
+ * with U and V interleaved) layouts are described this way.
+ */
+public class YuvFrame {
+
+    public ByteBuffer y = null;
+    public ByteBuffer u = null;
+    public ByteBuffer v = null;
+    public int width = 0;
+    public int height = 0;
+    public int rowStrideY = 0;
+    public int rowStrideU = 0;
+    public int rowStrideV = 0;
+    public int pixelStrideY = 1;
+    public int pixelStrideU = 1;
+    public int pixelStrideV = 1;
+
+    // Orientation of the screen when the frame was captured (Surface.ROTATION_*)
+    public int orientation = 0;
+
+}
@@ -0,0 +1,363 @@
+/*
+ * Copyright (C) 2020 Idiap Research Institute
+ *
+ * Authors:
+ *   philip.abbet@idiap.ch (Philip Abbet)
+ */
+
+package ch.idiap.android.ros.tf;
+
+import org.joml.Quaternionf;
+import org.joml.Vector3f;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+
+/** Buffer of the transforms received on the /tf and /tf_static topics
+ *
+ * Keeps the graph of the frames, each frame storing a bounded, time-indexed history of the
+ * transforms relative to its parent. Any pair of frames of the same tree can then be queried at
+ * any time covered by those histories. The paths between the frames of the last lookups are
+ * cached, up to MAX_CACHED_PATHS targets per source frame.
+ *
+ * Timestamps are the ones of the ROS messages, in nanoseconds. A time of 0 designates the most
+ * recent transforms.
+ */
+public class TfBuffer {
+
+    public static final int DEFAULT_HISTORY_SIZE = 128;
+    public static final int DEFAULT_MAX_FRAMES = 512;
+    public static final int MAX_CACHED_PATHS = 8;
+
+
+    /** The paths going from a source and a target frames to their closest common ancestor
+     */
+    private static class Path {
+        int version = -1;
+        Frame[] sourcePath = new Frame[0];
+        int sourcePathLength = 0;
+        Frame[] targetPath = new Frame[0];
+        int targetPathLength = 0;
+    }
+
+
+    private static class Frame {
+        final String name;
+        Frame parent = null;
+        boolean isStatic = false;
+
+        final long[] timestamps;
+        final float[] values;
+        int start = 0;
+        int count = 0;
+
+        // Cache of the paths used by the lookups with this frame as the source, per target (the
+        // least recently used one is dropped when full)
+        final Map<Frame, Path> paths = new LinkedHashMap<Frame, Path>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Frame, Path> eldest) {
+                return size() > MAX_CACHED_PATHS;
+            }
+        };
+
+
+        Frame(String name, int historySize) {
+            this.name = name;
+            this.timestamps = new long[historySize];
+            this.values = new float[historySize * 7];
+        }
+
+
+        void add(long timestamp, float x, float y, float z, float qx, float qy, float qz, float qw) {
+            int size = timestamps.length;
+            int index;
+
+            if (isStatic) {
+                start = 0;
+                count = 1;
+                index = 0;
+            } else {
+                if (count > 0) {
+                    int last = (start + count - 1) % size;
+
+                    // Out-of-order samples are dropped
+                    if (timestamp < timestamps[last])
+                        return;
+                }
+
+                if (count < size) {
+                    index = (start + count) % size;
+                    ++count;
+                } else {
+                    index = start;
+                    start = (start + 1) % size;
+                }
+            }
+
+            timestamps[index] = timestamp;
+
+            int offset = index * 7;
+            values[offset] = x;
+            values[offset + 1] = y;
+            values[offset + 2] = z;
+            values[offset + 3] = qx;
+            values[offset + 4] = qy;
+            values[offset + 5] = qz;
+            values[offset + 6] = qw;
+        }
+
+
+        /** Retrieve the transforms relative to the parent at the given time
+         *
+         * Returns false if the time isn't covered by the history
+         */
+        boolean sample(long time, Vector3f position, Quaternionf orientation,
+                       Vector3f tmpPosition, Quaternionf tmpOrientation) {
+            if (count == 0)
+                return false;
+
+            int size = timestamps.length;
+            int last = (start + count - 1) % size;
+
+            if (isStatic || (time == 0) || (time == timestamps[last])) {
+                get(last, position, orientation);
+                return true;
+            }
+
+            if ((time > timestamps[last]) || (time < timestamps[start]))
+                return false;
+
+            // Binary search of the last sample not after the given time
+            int low = 0;
+            int high = count - 1;
+            while (high - low > 1) {
+                int middle = (low + high) >>> 1;
+                if (timestamps[(start + middle) % size] <= time)
+                    low = middle;
+                else
+                    high = middle;
+            }
+
+            int before = (start + low) % size;
+            int after = (start + high) % size;
+
+            float alpha = (float) (time - timestamps[before]) / (float) (timestamps[after] - timestamps[before]);
+
+            get(before, position, orientation);
+            get(after, tmpPosition, tmpOrientation);
+
+            position.lerp(tmpPosition, alpha);
+            orientation.slerp(tmpOrientation, alpha);
+
+            return true;
+        }
+
+
+        private void get(int index, Vector3f position, Quaternionf orientation) {
+            int offset = index * 7;
+            position.set(values[offset], values[offset + 1], values[offset + 2]);
+            orientation.set(values[offset + 3], values[offset + 4], values[offset + 5], values[offset + 6]);
+        }
+    }
+
+
+    private final int historySize;
+    private final int maxFrames;
+    private final Map<String, Frame> frames = new HashMap<>();
+
+    // Incremented each time the structure of the graph changes, to invalidate the cached paths
+    private int version = 0;
+
+    private final Vector3f samplePosition = new Vector3f();
+    private final Quaternionf sampleOrientation = new Quaternionf();
+    private final Vector3f tmpPosition = new Vector3f();
+    private final Quaternionf tmpOrientation = new Quaternionf();
+    private final Vector3f sourcePosition = new Vector3f();
+    private final Quaternionf sourceOrientation = new Quaternionf();
+    private final Vector3f targetPosition = new Vector3f();
+    private final Quaternionf targetOrientation = new Quaternionf();
+
+
+    public TfBuffer() {
+        this(DEFAULT_HISTORY_SIZE, DEFAULT_MAX_FRAMES);
+    }
+
+
+    public TfBuffer(int historySize, int maxFrames) {
+        this.historySize = historySize;
+        this.maxFrames = maxFrames;
+    }
+
+
+    /** Add the transforms of a child frame relative to its parent frame
+     *
+     * Static transforms (from /tf_static) are valid at any time, and only the last one is kept.
+     * Returns false if the maximum number of frames is reached.
+     */
+    public synchronized boolean setTransform(
+            String parentName, String childName, long timestamp, boolean isStatic,
+            float x, float y, float z, float qx, float qy, float qz, float qw) {
+
+        Frame parent = getOrCreateFrame(parentName);
+        Frame child = getOrCreateFrame(childName);
+
+        if ((parent == null) || (child == null) || (parent == child))
+            return false;
+
+        if ((child.parent != parent) || (child.isStatic != isStatic)) {
+            child.parent = parent;
+            child.isStatic = isStatic;
+            child.start = 0;
+            child.count = 0;
+            ++version;
+        }
+
+        child.add(timestamp, x, y, z, qx, qy, qz, qw);
+
+        return true;
+    }
+
+
+    /** Compute the transforms of the source frame relative to the target frame at the given
+     * time
+     *
+     * Returns false if one of the frames is unknown, if they aren't part of the same tree, or
+     * if the time isn't covered by the history of one of the frames in between.
+     */
+    public synchronized boolean lookupTransform(String targetName, String sourceName, long time,
+                                                Transform out) {
+        Frame target = frames.get(targetName);
+        Frame source = frames.get(sourceName);
+
+        if ((target == null) || (source == null))
+            return false;
+
+        Path path = source.paths.get(target);
+        if (path == null) {
+            path = new Path();
+            source.paths.put(target, path);
+        }
+
+        if ((path.version != version) && !computePaths(source, target, path))
+            return false;
+
+        if (!accumulate(path.sourcePath, path.sourcePathLength, time, sourcePosition, sourceOrientation))
+            return false;
+
+        if (!accumulate(path.targetPath, path.targetPathLength, time, targetPosition, targetOrientation))
+            return false;
+
+        // target_T_source = inverse(common_T_target) * common_T_source
+        targetOrientation.conjugate();
+
+        out.position.set(sourcePosition).sub(targetPosition);
+        targetOrientation.transform(out.position);
+
+        targetOrientation.mul(sourceOrientation, out.orientation);
+
+        return true;
+    }
+
+
+    public synchronized boolean hasFrame(String name) {
+        return frames.containsKey(name);
+    }
+
+
+    public synchronized void clear() {
+        frames.clear();
+        ++version;
+    }
+
+
+    private Frame getOrCreateFrame(String name) {
+        Frame frame = frames.get(name);
+
+        if ((frame == null) && (frames.size() < maxFrames)) {
+            frame = new Frame(name, historySize);
+            frames.put(name, frame);
+        }
+
+        return frame;
+    }
+
+
+    /** Find the paths going from the source and target frames to their closest common ancestor
+     *
+     * The arrays of the path are only reallocated when the graph grew.
+     */
+    private boolean computePaths(Frame source, Frame target, Path path) {
+        int maxDepth = frames.size();
+
+        if (path.sourcePath.length < maxDepth) {
+            path.sourcePath = new Frame[maxDepth];
+            path.targetPath = new Frame[maxDepth];
+        }
+
+        Frame[] sourceAncestors = path.sourcePath;
+        int sourceLength = collectAncestors(source, sourceAncestors, maxDepth);
+
+        Frame[] targetAncestors = path.targetPath;
+        int targetLength = collectAncestors(target, targetAncestors, maxDepth);
+
+        if ((sourceLength < 0) || (targetLength < 0))
+            return false;
+
+        // Both lists must end with the same root
+        if (sourceAncestors[sourceLength - 1] != targetAncestors[targetLength - 1])
+            return false;
+
+        while ((sourceLength > 0) && (targetLength > 0) &&
+               (sourceAncestors[sourceLength - 1] == targetAncestors[targetLength - 1])) {
+            --sourceLength;
+            --targetLength;
+        }
+
+        // The paths don't include the common ancestor, which doesn't contribute any transforms
+        path.sourcePathLength = sourceLength;
+        path.targetPathLength = targetLength;
+        path.version = version;
+
+        return true;
+    }
+
+
+    /** Fill the array with the frame and all its ancestors, and returns their number (or -1 if
+     * a loop is detected)
+     */
+    private int collectAncestors(Frame frame, Frame[] ancestors, int maxDepth) {
+        int length = 0;
+
+        while (frame != null) {
+            if (length == maxDepth)
+                return -1;
+
+            ancestors[length++] = frame;
+            frame = frame.parent;
+        }
+
+        return length;
+    }
+
+
+    /** Compose the transforms along a path, from its first frame up to the parent of its last
+     * one
+     */
+    private boolean accumulate(Frame[] path, int length, long time, Vector3f position, Quaternionf orientation) {
+        position.set(0.0f, 0.0f, 0.0f);
+        orientation.identity();
+
+        for (int i = 0; i < length; ++i) {
+            if (!path[i].sample(time, samplePosition, sampleOrientation, tmpPosition, tmpOrientation))
+                return false;
+
+            // parent_T_frame * frame_T_start
+            sampleOrientation.transform(position).add(samplePosition);
+            sampleOrientation.mul(orientation, orientation);
+        }
+
+        return true;
+    }
+}
@@ -0,0 +1,20 @@
+/*
+ * Copyright (C) 2020 Idiap Research Institute
+ *
+ * Authors:
+ *   philip.abbet@idiap.ch (Philip Abbet)
+ */
+
+package ch.idiap.android.ros.tf;
+
+import org.joml.Quaternionf;
+import org.joml.Vector3f;
+
+
+/** The transforms of a frame relative to another one, as computed by TfBuffer (in ROS
+ * coordinates)
+ */
+public class Transform {
+    public final Vector3f position = new Vector3f();
+    public final Quaternionf orientation = new Quaternionf();
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright (C) 2020 Idiap Research Institute
+ *
+ * Authors:
+ *   philip.abbet@idiap.ch (Philip Abbet)
+ */
+
+package ch.idiap.android.ros.listeners;
+
+import org.ros.message.MessageFactory;
+import org.ros.node.NodeConfiguration;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+import ch.idiap.android.urdf.robot.RobotState;
+
+import static ch.idiap.android.ros.listeners.JointsListenerTest.JOINT_NAMES;
+import static ch.idiap.android.ros.listeners.JointsListenerTest.NB_MESSAGES;
+import static ch.idiap.android.ros.listeners.JointsListenerTest.STREAM_PERIOD;
+
+
+/** Push the synthetic 1 kHz stream of JointsListenerTest through the listener as fast as
+ * possible (coalescing the bursts like ROSManager does), and report the cost and the
+ * allocations per message
+ *
+ * Not a unit test (the results depend on the machine, and the JIT of the JVM of the host
+ * isn't the one of Android): run its main() method manually.
+ */
+public class JointsListenerBenchmark {
+
+    private static final int NB_RUNS = 5;
+
+
+    private static JointsListener createListener() {
+        RobotState robotState = new RobotState();
+        robotState.setCoalescingInterval(10000000L);
+        return new JointsListener(robotState);
+    }
+
+
+    public static void main(String[] args) {
+        MessageFactory messageFactory = NodeConfiguration.newPrivate().getTopicMessageFactory();
+        sensor_msgs.JointState[] messages = JointsListenerTest.createStream(messageFactory);
+
+        ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+        com.sun.management.ThreadMXBean allocations =
+                (threadMXBean instanceof com.sun.management.ThreadMXBean ?
+                        (com.sun.management.ThreadMXBean) threadMXBean : null);
+
+        long threadId = Thread.currentThread().getId();
+        int nbMeasured = NB_MESSAGES - 1;
+
+        // The first run is the warm-up. Each run uses its own listener, since the timestamps
+        // of the stream must not go back in time
+        for (int run = 0; run <= NB_RUNS; ++run) {
+            JointsListener listener = createListener();
+
+            // Only the first message allocates (the mapping of the names), so it isn't measured
+            listener.onNewMessage(messages[0]);
+
+            long allocatedBefore = (allocations != null ? allocations.getThreadAllocatedBytes(threadId) : 0);
+            long start = System.nanoTime();
+
+            for (int i = 1; i < NB_MESSAGES; ++i)
+                listener.onNewMessage(messages[i]);
+
+            long duration = System.nanoTime() - start;
+            long allocated = (allocations != null ? allocations.getThreadAllocatedBytes(threadId) - allocatedBefore : -1);
+
+            if (run == 0)
+                continue;
+
+            System.out.println(String.format(
+                    "JointsListener: %d messages of %d joints, %.0f ns/message (%.1f%% of the 1 kHz period), %s bytes allocated/message",
+                    nbMeasured, JOINT_NAMES.size(), duration / (double) nbMeasured,
+                    duration * 100.0 / (nbMeasured * (double) STREAM_PERIOD),
+                    (allocated >= 0 ? String.format("%.2f", allocated / (double) nbMeasured) : "?")
+            ));
+        }
+    }
+}
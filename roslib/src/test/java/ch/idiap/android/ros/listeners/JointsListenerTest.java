@@ -0,0 +1,155 @@
+/*
+ * Copyright (C) 2020 Idiap Research Institute
+ *
+ * Authors:
+ *   philip.abbet@idiap.ch (Philip Abbet)
+ */
+
+package ch.idiap.android.ros.listeners;
+
+import org.junit.Test;
+import org.ros.message.MessageFactory;
+import org.ros.message.Time;
+import org.ros.node.NodeConfiguration;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import ch.idiap.android.urdf.robot.RobotState;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+
+public class JointsListenerTest {
+
+    static final List<String> JOINT_NAMES = Arrays.asList(
+            "panda_joint1", "panda_joint2", "panda_joint3", "panda_joint4", "panda_joint5",
+            "panda_joint6", "panda_joint7", "panda_finger_joint1", "panda_finger_joint2"
+    );
+
+    static final long STREAM_PERIOD = 1000000L;     // 1 kHz
+    static final int NB_MESSAGES = 10000;           // 10 seconds of stream
+
+
+    /** Synthetic 1 kHz stream of joint states: each joint follows a sinusoid
+     */
+    static sensor_msgs.JointState[] createStream(MessageFactory messageFactory) {
+        sensor_msgs.JointState[] messages = new sensor_msgs.JointState[NB_MESSAGES];
+
+        for (int i = 0; i < NB_MESSAGES; ++i) {
+            sensor_msgs.JointState message = messageFactory.newFromType(sensor_msgs.JointState._TYPE);
+
+            message.getHeader().setStamp(Time.fromNano(1000000000L + i * STREAM_PERIOD));
+
+            // Each message has its own list of names, like the received ones
+            message.setName(new ArrayList<>(JOINT_NAMES));
+
+            double[] positions = new double[JOINT_NAMES.size()];
+            double[] velocities = new double[JOINT_NAMES.size()];
+
+            for (int j = 0; j < positions.length; ++j) {
+                double t = i * STREAM_PERIOD * 1e-9;
+                positions[j] = Math.sin(t + j);
+                velocities[j] = Math.cos(t + j);
+            }
+
+            message.setPosition(positions);
+            message.setVelocity(velocities);
+
+            messages[i] = message;
+        }
+
+        return messages;
+    }
+
+
+    @Test
+    public void testLatestStates() {
+        MessageFactory messageFactory = NodeConfiguration.newPrivate().getTopicMessageFactory();
+        sensor_msgs.JointState[] messages = createStream(messageFactory);
+
+        RobotState robotState = new RobotState();
+        JointsListener listener = new JointsListener(robotState);
+
+        for (sensor_msgs.JointState message : messages)
+            listener.onNewMessage(message);
+
+        sensor_msgs.JointState last = messages[NB_MESSAGES - 1];
+
+        for (int j = 0; j < JOINT_NAMES.size(); ++j) {
+            RobotState.JointState state = robotState.getJointState(JOINT_NAMES.get(j));
+
+            assertNotNull(state);
+            assertEquals((float) last.getPosition()[j], state.position, 0.0f);
+            assertEquals((float) last.getVelocity()[j], state.velocity, 0.0f);
+        }
+    }
+
+
+    @Test
+    public void testMappingUpdatedWhenTheNamesChange() {
+        MessageFactory messageFactory = NodeConfiguration.newPrivate().getTopicMessageFactory();
+
+        RobotState robotState = new RobotState();
+        JointsListener listener = new JointsListener(robotState);
+
+        sensor_msgs.JointState message = messageFactory.newFromType(sensor_msgs.JointState._TYPE);
+        message.setName(Arrays.asList("a", "b"));
+        message.setPosition(new double[] { 1.0, 2.0 });
+        message.setVelocity(new double[0]);
+        listener.onNewMessage(message);
+
+        // Same joints, different order and one more
+        message = messageFactory.newFromType(sensor_msgs.JointState._TYPE);
+        message.setName(Arrays.asList("c", "b", "a"));
+        message.setPosition(new double[] { 3.0, 4.0, 5.0 });
+        message.setVelocity(new double[0]);
+        listener.onNewMessage(message);
+
+        assertEquals(5.0f, robotState.getJointState("a").position, 0.0f);
+        assertEquals(4.0f, robotState.getJointState("b").position, 0.0f);
+        assertEquals(3.0f, robotState.getJointState("c").position, 0.0f);
+    }
+
+
+    /** The messages are received much faster than the stream (their timestamps follow the
+     * reception, see StampConverter): a burst longer than the history is coalesced into its
+     * most recent sample, without flushing the older ones
+     */
+    @Test
+    public void testBurstIsCoalesced() {
+        MessageFactory messageFactory = NodeConfiguration.newPrivate().getTopicMessageFactory();
+        sensor_msgs.JointState[] messages = createStream(messageFactory);
+
+        RobotState robotState = new RobotState();
+        robotState.setCoalescingInterval(1000000000L);
+
+        JointsListener listener = new JointsListener(robotState);
+
+        int nbMessages = RobotState.DEFAULT_HISTORY_SIZE * 2;
+        for (int i = 0; i < nbMessages; ++i)
+            listener.onNewMessage(messages[i]);
+
+        sensor_msgs.JointState first = messages[0];
+        sensor_msgs.JointState last = messages[nbMessages - 1];
+
+        RobotState.JointState state = new RobotState.JointState();
+
+        for (int j = 0; j < JOINT_NAMES.size(); ++j) {
+            String name = JOINT_NAMES.get(j);
+
+            // The oldest sample is still the first message
+            assertTrue(robotState.getJointState(name, Long.MIN_VALUE, state));
+            assertEquals((float) first.getPosition()[j], state.position, 0.0f);
+            assertEquals((float) first.getVelocity()[j], state.velocity, 0.0f);
+
+            // The most recent one was replaced by each message of the burst
+            assertTrue(robotState.getJointState(name, Long.MAX_VALUE, state));
+            assertEquals((float) last.getPosition()[j], state.position, 0.0f);
+            assertEquals((float) last.getVelocity()[j], state.velocity, 0.0f);
+        }
+    }
+}
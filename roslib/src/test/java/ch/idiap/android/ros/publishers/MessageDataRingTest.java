@@ -0,0 +1,324 @@
+/*
+ * Copyright (C) 2020 Idiap Research Institute
+ *
+ * Authors:
+ *   philip.abbet@idiap.ch (Philip Abbet)
+ */
+
+package ch.idiap.android.ros.publishers;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.junit.Test;
+import org.ros.internal.message.MessageBuffers;
+import org.ros.message.MessageFactory;
+import org.ros.message.MessageSerializer;
+import org.ros.node.NodeConfiguration;
+
+import java.nio.ByteOrder;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import sensor_msgs.Image;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+
+public class MessageDataRingTest {
+
+    static final int WIDTH = 640;
+    static final int HEIGHT = 480;
+    static final int FRAME_SIZE = WIDTH * HEIGHT * 3;
+
+    // Capacity of the outgoing queue of a rosjava publisher
+    private static final int PUBLISHER_QUEUE_CAPACITY = 16;
+
+    private static final NodeConfiguration NODE_CONFIGURATION = NodeConfiguration.newPrivate();
+    private static final MessageFactory MESSAGE_FACTORY = NODE_CONFIGURATION.getTopicMessageFactory();
+    private static final MessageSerializer<Image> SERIALIZER =
+            NODE_CONFIGURATION.getMessageSerializationFactory().newMessageSerializer(Image._TYPE);
+
+
+    /** A published message: the index of the frame, and the data filled with it
+     */
+    static class Message {
+        final int frame;
+        final ChannelBuffer data;
+
+        Message(int frame, ChannelBuffer data) {
+            this.frame = frame;
+            this.data = data;
+        }
+    }
+
+
+    /** Stand-in for the outgoing queue of a rosjava publisher: the published messages wait in
+     * a queue of PUBLISHER_QUEUE_CAPACITY entries (the oldest ones being dropped when full),
+     * until they are serialized by the serializer of rosjava
+     */
+    static class PublisherStandIn {
+        final ArrayDeque<Message> queue = new ArrayDeque<>();
+        int nbDropped = 0;
+
+        void publish(Message message) {
+            if (queue.size() == PUBLISHER_QUEUE_CAPACITY) {
+                queue.pollFirst();
+                ++nbDropped;
+            }
+
+            queue.addLast(message);
+        }
+
+        Message take() {
+            return queue.pollFirst();
+        }
+
+        /** Serialize an image message holding the data, and returns the serialized data
+         */
+        static byte[] serialize(ChannelBuffer data) {
+            Image image = MESSAGE_FACTORY.newFromType(Image._TYPE);
+            image.setData(data);
+
+            ChannelBuffer buffer = MessageBuffers.dynamicBuffer();
+            SERIALIZER.serialize(image, buffer);
+
+            // The data is at the end of the message
+            byte[] serialized = new byte[data.readableBytes()];
+            buffer.getBytes(buffer.writerIndex() - serialized.length, serialized);
+            return serialized;
+        }
+    }
+
+
+    @Test
+    public void testWrapDoesntCopy() {
+        MessageDataRing ring = new MessageDataRing();
+
+        byte[] buffer = ring.next(100);
+        ChannelBuffer data = ring.wrap(buffer, 60);
+
+        assertEquals(60, data.readableBytes());
+        assertEquals(ByteOrder.LITTLE_ENDIAN, data.order());
+
+        // The message reads the array itself
+        buffer[10] = 42;
+        assertEquals(42, data.getByte(10));
+    }
+
+
+    @Test
+    public void testArraysAreAllocatedOnce() {
+        MessageDataRing ring = new MessageDataRing();
+
+        for (int i = 0; i < 1000; ++i)
+            publishAndSerialize(ring, FRAME_SIZE);
+
+        assertEquals(MessageDataRing.NB_BUFFERS, ring.getNbAllocations());
+
+        // Smaller frames reuse the arrays, bigger ones replace them
+        for (int i = 0; i < 1000; ++i)
+            publishAndSerialize(ring, FRAME_SIZE / 2);
+
+        assertEquals(MessageDataRing.NB_BUFFERS, ring.getNbAllocations());
+
+        for (int i = 0; i < 1000; ++i)
+            publishAndSerialize(ring, FRAME_SIZE * 2);
+
+        assertEquals(MessageDataRing.NB_BUFFERS * 2, ring.getNbAllocations());
+    }
+
+
+    @Test
+    public void testBusyUntilSerialized() {
+        MessageDataRing ring = new MessageDataRing();
+
+        ChannelBuffer[] messages = new ChannelBuffer[MessageDataRing.NB_BUFFERS];
+        byte[][] buffers = new byte[MessageDataRing.NB_BUFFERS][];
+
+        for (int i = 0; i < MessageDataRing.NB_BUFFERS; ++i) {
+            assertFalse(ring.isBusy());
+            buffers[i] = ring.next(64);
+            messages[i] = ring.wrap(buffers[i], 64);
+        }
+
+        assertTrue(ring.isBusy());
+        assertNull(ring.next(64));
+
+        // The array of the serialized message is the only free one
+        PublisherStandIn.serialize(messages[1]);
+
+        assertFalse(ring.isBusy());
+        assertSame(buffers[1], ring.next(64));
+    }
+
+
+    @Test
+    public void testPartialReadsDontRelease() {
+        MessageDataRing ring = new MessageDataRing();
+
+        ChannelBuffer[] messages = new ChannelBuffer[MessageDataRing.NB_BUFFERS];
+        byte[][] buffers = new byte[MessageDataRing.NB_BUFFERS][];
+
+        for (int i = 0; i < MessageDataRing.NB_BUFFERS; ++i) {
+            buffers[i] = ring.next(64);
+            messages[i] = ring.wrap(buffers[i], 64);
+        }
+
+        // Reads of a part of the data, or not continuing the ones before
+        messages[1].getBytes(0, new byte[16]);
+        messages[1].getBytes(32, new byte[32]);
+        assertTrue(ring.isBusy());
+
+        // Consecutive chunks covering all the data
+        messages[1].getBytes(16, new byte[16]);
+        assertFalse(ring.isBusy());
+        assertSame(buffers[1], ring.next(64));
+    }
+
+
+    @Test
+    public void testStaleMessagesAreGivenUp() throws InterruptedException {
+        MessageDataRing ring = new MessageDataRing(TimeUnit.MILLISECONDS.toNanos(1));
+
+        byte[][] buffers = new byte[MessageDataRing.NB_BUFFERS][];
+
+        for (int i = 0; i < MessageDataRing.NB_BUFFERS; ++i) {
+            buffers[i] = ring.next(64);
+            Arrays.fill(buffers[i], (byte) i);
+            ring.wrap(buffers[i], 64);
+        }
+
+        Thread.sleep(10);
+
+        // The messages never serialized keep their arrays, new ones are allocated
+        assertFalse(ring.isBusy());
+
+        byte[] buffer = ring.next(64);
+        for (byte[] previous : buffers)
+            assertNotSame(previous, buffer);
+
+        assertEquals(MessageDataRing.NB_BUFFERS + 1, ring.getNbAllocations());
+    }
+
+
+    @Test
+    public void testQueuedMessagesAreNeverOverwritten() {
+        // The serialization of a message is slower than the production of the frames: it is
+        // taken from the queue every 'period' frames, and only read (serialized) after the
+        // next frame has been produced
+        for (int period = 1; period <= 40; ++period) {
+            MessageDataRing ring = new MessageDataRing();
+            PublisherStandIn publisher = new PublisherStandIn();
+
+            Message taken = null;
+            int nbSerialized = 0;
+            int nbSkipped = 0;
+
+            for (int frame = 0; frame < 500; ++frame) {
+                if (ring.isBusy()) {
+                    ++nbSkipped;
+                } else {
+                    byte[] buffer = ring.next(64);
+                    Arrays.fill(buffer, (byte) frame);
+                    publisher.publish(new Message(frame, ring.wrap(buffer, 64)));
+                }
+
+                if (taken != null) {
+                    checkMessage(taken);
+                    taken = null;
+                    ++nbSerialized;
+                }
+
+                if (frame % period == 0)
+                    taken = publisher.take();
+            }
+
+            // Each message still in the queue is intact too
+            Message message;
+            while ((message = publisher.take()) != null)
+                checkMessage(message);
+
+            // The frames are skipped instead of being dropped by the queue
+            assertTrue(nbSerialized > 0);
+            assertEquals(0, publisher.nbDropped);
+            assertTrue((period <= 2) || (nbSkipped > 0));
+        }
+    }
+
+
+    /** Produce frames as fast as possible while another thread serializes them (waiting while
+     * the ring is busy): no message is dropped, and the ring never needs more arrays
+     */
+    @Test
+    public void testConcurrentSerialization() throws InterruptedException {
+        final int nbFrames = 2000;
+
+        MessageDataRing ring = new MessageDataRing();
+        BlockingQueue<ChannelBuffer> queue =
+                new ArrayBlockingQueue<>(PUBLISHER_QUEUE_CAPACITY);
+
+        final long[] nbSerialized = new long[1];
+
+        Thread serializer = new Thread(() -> {
+            try {
+                while (true) {
+                    ChannelBuffer data = queue.poll(1, TimeUnit.SECONDS);
+                    if (data == null)
+                        return;
+
+                    PublisherStandIn.serialize(data);
+                    ++nbSerialized[0];
+                }
+            } catch (InterruptedException ignored) {
+            }
+        });
+
+        serializer.start();
+
+        long nbDropped = 0;
+
+        for (int frame = 0; frame < nbFrames; ++frame) {
+            byte[] buffer;
+            while ((buffer = ring.next(FRAME_SIZE)) == null)
+                Thread.yield();
+
+            Arrays.fill(buffer, (byte) frame);    // Stands for the conversion of the frame
+
+            // Like rosjava, drop the oldest message when the queue is full
+            ChannelBuffer data = ring.wrap(buffer, FRAME_SIZE);
+            while (!queue.offer(data)) {
+                queue.poll();
+                ++nbDropped;
+            }
+        }
+
+        serializer.join();
+
+        assertEquals(0, nbDropped);
+        assertEquals(nbFrames, nbSerialized[0]);
+        assertEquals(MessageDataRing.NB_BUFFERS, ring.getNbAllocations());
+    }
+
+
+    private static void publishAndSerialize(MessageDataRing ring, int size) {
+        byte[] buffer = ring.next(size);
+        PublisherStandIn.serialize(ring.wrap(buffer, size));
+    }
+
+
+    private static void checkMessage(Message message) {
+        byte[] serialized = PublisherStandIn.serialize(message.data);
+
+        byte[] expected = new byte[serialized.length];
+        Arrays.fill(expected, (byte) message.frame);
+        assertArrayEquals("Frame " + message.frame + " overwritten", expected, serialized);
+    }
+}
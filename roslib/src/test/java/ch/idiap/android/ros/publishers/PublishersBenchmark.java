@@ -0,0 +1,145 @@
+/*
+ * Copyright (C) 2020 Idiap Research Institute
+ *
+ * Authors:
+ *   philip.abbet@idiap.ch (Philip Abbet)
+ */
+
+package ch.idiap.android.ros.publishers;
+
+import java.util.Arrays;
+
+import ch.idiap.android.ros.publishers.MessageDataRingTest.Message;
+import ch.idiap.android.ros.publishers.MessageDataRingTest.PublisherStandIn;
+import ch.idiap.android.ros.publishers.YuvConverterTest.Layout;
+
+import static ch.idiap.android.ros.publishers.MessageDataRingTest.FRAME_SIZE;
+import static ch.idiap.android.ros.publishers.MessageDataRingTest.HEIGHT;
+import static ch.idiap.android.ros.publishers.MessageDataRingTest.WIDTH;
+
+
+/** Report the performances of the building blocks of the image publishers
+ *
+ * Not a unit test (the results depend on the machine, and the JIT of the JVM of the host
+ * isn't the one of Android): run its main() method manually.
+ */
+public class PublishersBenchmark {
+
+    private static final int[][] FRAME_SIZES = new int[][] { { 640, 480 }, { 1920, 1080 } };
+
+
+    public static void main(String[] args) throws InterruptedException {
+        benchmarkYuvConverter();
+        benchmarkMessageDataRing();
+    }
+
+
+    /** Time needed to convert usual camera frames, with one band and with one band per core
+     * (at least two)
+     */
+    private static void benchmarkYuvConverter() {
+        int nbFrames = 50;
+        int nbCores = Math.max(Runtime.getRuntime().availableProcessors(), 2);
+
+        for (int threads : new int[] { 1, nbCores }) {
+            YuvConverter converter = new YuvConverter(threads);
+
+            for (int[] size : FRAME_SIZES) {
+                for (Layout layout : new Layout[] { Layout.NV21, Layout.PLANAR }) {
+                    YuvFrame frame = YuvConverterTest.createRandomFrame(layout, size[0], size[1], 0, 0);
+                    byte[] dst = new byte[size[0] * size[1] * 3];
+
+                    for (int rotation : new int[] { 0, 90 }) {
+                        // Warm-up
+                        for (int i = 0; i < 5; ++i)
+                            converter.convert(frame, dst, rotation);
+
+                        long start = System.nanoTime();
+
+                        for (int i = 0; i < nbFrames; ++i)
+                            converter.convert(frame, dst, rotation);
+
+                        long duration = System.nanoTime() - start;
+
+                        System.out.println(String.format(
+                                "YuvConverter: %dx%d %s, rotation %d, %d threads: %.2f ms/frame",
+                                size[0], size[1], layout, rotation, threads,
+                                duration * 1e-6 / nbFrames
+                        ));
+                    }
+                }
+            }
+
+            converter.shutdown();
+        }
+    }
+
+
+    /** Throughput of the frames published with a MessageDataRing: frames are produced as fast
+     * as possible (waiting while the ring is busy) while another thread serializes them from
+     * the publisher stand-in, like rosjava does
+     */
+    private static void benchmarkMessageDataRing() throws InterruptedException {
+        final int nbFrames = 2000;
+
+        final MessageDataRing ring = new MessageDataRing();
+        final PublisherStandIn publisher = new PublisherStandIn();
+        final boolean[] done = new boolean[1];
+        final long[] nbSerialized = new long[1];
+
+        Thread serializer = new Thread(() -> {
+            while (true) {
+                Message message;
+                synchronized (publisher) {
+                    message = publisher.take();
+                    if ((message == null) && done[0])
+                        return;
+                }
+
+                if (message == null) {
+                    Thread.yield();
+                    continue;
+                }
+
+                PublisherStandIn.serialize(message.data);
+                ++nbSerialized[0];
+            }
+        }, "Serializer");
+
+        serializer.start();
+
+        long nbWaits = 0;
+        long start = System.nanoTime();
+
+        for (int frame = 0; frame < nbFrames; ++frame) {
+            byte[] buffer;
+            while ((buffer = ring.next(FRAME_SIZE)) == null) {
+                ++nbWaits;
+                Thread.yield();
+            }
+
+            Arrays.fill(buffer, (byte) frame);    // Stands for the conversion of the frame
+
+            Message message = new Message(frame, ring.wrap(buffer, FRAME_SIZE));
+            synchronized (publisher) {
+                publisher.publish(message);
+            }
+        }
+
+        synchronized (publisher) {
+            done[0] = true;
+        }
+
+        serializer.join();
+
+        long duration = System.nanoTime() - start;
+
+        System.out.println(String.format(
+                "MessageDataRing: %dx%d RGB frames, %.1f messages/s, %.1f MB/s, " +
+                "%d waits for a free array, %d serialized, %d dropped, %d arrays allocated",
+                WIDTH, HEIGHT, nbFrames * 1e9 / duration,
+                nbFrames * (double) FRAME_SIZE * 1e3 / duration, nbWaits, nbSerialized[0],
+                publisher.nbDropped, ring.getNbAllocations()
+        ));
+    }
+}
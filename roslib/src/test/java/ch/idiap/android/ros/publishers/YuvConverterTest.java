@@ -0,0 +1,239 @@
+/*
+ * Copyright (C) 2020 Idiap Research Institute
+ *
+ * Authors:
+ *   philip.abbet@idiap.ch (Philip Abbet)
+ */
+
+package ch.idiap.android.ros.publishers;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+
+
+public class YuvConverterTest {
+
+    enum Layout {
+        PLANAR,     // I420: U and V in their own planes
+        NV21,       // V and U interleaved, V first
+        NV12,       // U and V interleaved, U first
+    }
+
+
+    /** Build a frame like the ones returned by the camera, from the values of its pixels
+     *
+     * 'rowPadding' bytes are added at the end of the rows of each plane. Like with the camera,
+     * the interleaved chroma planes share the same memory, and their buffers stop at the last
+     * sample of the plane.
+     */
+    private static YuvFrame createFrame(Layout layout, int width, int height, byte[] luma,
+                                        byte[] chromaU, byte[] chromaV, int rowPadding) {
+        int chromaWidth = (width + 1) / 2;
+        int chromaHeight = (height + 1) / 2;
+
+        YuvFrame frame = new YuvFrame();
+        frame.width = width;
+        frame.height = height;
+
+        frame.rowStrideY = width + rowPadding;
+        frame.pixelStrideY = 1;
+
+        byte[] y = new byte[(height - 1) * frame.rowStrideY + width];
+        for (int j = 0; j < height; ++j)
+            System.arraycopy(luma, j * width, y, j * frame.rowStrideY, width);
+
+        frame.y = ByteBuffer.wrap(y);
+
+        if (layout == Layout.PLANAR) {
+            int rowStride = chromaWidth + rowPadding;
+
+            byte[] u = new byte[(chromaHeight - 1) * rowStride + chromaWidth];
+            byte[] v = new byte[u.length];
+
+            for (int j = 0; j < chromaHeight; ++j) {
+                System.arraycopy(chromaU, j * chromaWidth, u, j * rowStride, chromaWidth);
+                System.arraycopy(chromaV, j * chromaWidth, v, j * rowStride, chromaWidth);
+            }
+
+            frame.u = ByteBuffer.wrap(u);
+            frame.v = ByteBuffer.wrap(v);
+            frame.rowStrideU = rowStride;
+            frame.rowStrideV = rowStride;
+            frame.pixelStrideU = 1;
+            frame.pixelStrideV = 1;
+
+        } else {
+            int rowStride = chromaWidth * 2 + rowPadding;
+
+            byte[] uv = new byte[(chromaHeight - 1) * rowStride + chromaWidth * 2];
+
+            int offsetU = (layout == Layout.NV12 ? 0 : 1);
+            int offsetV = 1 - offsetU;
+
+            for (int j = 0; j < chromaHeight; ++j) {
+                for (int i = 0; i < chromaWidth; ++i) {
+                    uv[j * rowStride + i * 2 + offsetU] = chromaU[j * chromaWidth + i];
+                    uv[j * rowStride + i * 2 + offsetV] = chromaV[j * chromaWidth + i];
+                }
+            }
+
+            frame.u = ByteBuffer.wrap(uv, offsetU, uv.length - 1).slice();
+            frame.v = ByteBuffer.wrap(uv, offsetV, uv.length - 1).slice();
+            frame.rowStrideU = rowStride;
+            frame.rowStrideV = rowStride;
+            frame.pixelStrideU = 2;
+            frame.pixelStrideV = 2;
+        }
+
+        return frame;
+    }
+
+
+    static YuvFrame createRandomFrame(Layout layout, int width, int height,
+                                      int rowPadding, long seed) {
+        Random random = new Random(seed);
+
+        byte[] luma = new byte[width * height];
+        byte[] chromaU = new byte[((width + 1) / 2) * ((height + 1) / 2)];
+        byte[] chromaV = new byte[chromaU.length];
+
+        random.nextBytes(luma);
+        random.nextBytes(chromaU);
+        random.nextBytes(chromaV);
+
+        return createFrame(layout, width, height, luma, chromaU, chromaV, rowPadding);
+    }
+
+
+    /** Straightforward conversion of a frame, pixel by pixel (BT.601 video range, 8.8 fixed
+     * point), used as the reference
+     */
+    private static byte[] convertReference(YuvFrame frame, int rotation) {
+        int width = frame.width;
+        int height = frame.height;
+        byte[] dst = new byte[width * height * 3];
+
+        for (int j = 0; j < height; ++j) {
+            for (int i = 0; i < width; ++i) {
+                int y = frame.y.get(j * frame.rowStrideY + i * frame.pixelStrideY) & 0xff;
+                int u = frame.u.get((j / 2) * frame.rowStrideU + (i / 2) * frame.pixelStrideU) & 0xff;
+                int v = frame.v.get((j / 2) * frame.rowStrideV + (i / 2) * frame.pixelStrideV) & 0xff;
+
+                int luma = 298 * Math.max(y - 16, 0) + 128;
+                int r = (luma + 409 * (v - 128)) >> 8;
+                int g = (luma - 100 * (u - 128) - 208 * (v - 128)) >> 8;
+                int b = (luma + 516 * (u - 128)) >> 8;
+
+                int x2;
+                int y2;
+                int width2;
+
+                switch (rotation) {
+                    case 90:  x2 = height - 1 - j; y2 = i; width2 = height; break;
+                    case 180: x2 = width - 1 - i; y2 = height - 1 - j; width2 = width; break;
+                    case 270: x2 = j; y2 = width - 1 - i; width2 = height; break;
+                    default:  x2 = i; y2 = j; width2 = width; break;
+                }
+
+                int offset = (y2 * width2 + x2) * 3;
+                dst[offset] = (byte) Math.max(0, Math.min(r, 255));
+                dst[offset + 1] = (byte) Math.max(0, Math.min(g, 255));
+                dst[offset + 2] = (byte) Math.max(0, Math.min(b, 255));
+            }
+        }
+
+        return dst;
+    }
+
+
+    @Test
+    public void testGoldenColors() {
+        // 4x2 image: black, white, red and dark red columns (each chroma sample covers 2x2
+        // pixels, so each pair of columns shares its chroma)
+        byte[] luma = new byte[] {
+                16, (byte) 235, 82, 41,
+                16, (byte) 235, 82, 41,
+        };
+
+        // Left pair: neutral chroma. Right pair: chroma of red
+        byte[] chromaU = new byte[] { (byte) 128, 90 };
+        byte[] chromaV = new byte[] { (byte) 128, (byte) 240 };
+
+        byte[] expected = new byte[] {
+                0, 0, 0,    (byte) 255, (byte) 255, (byte) 255,    (byte) 255, 1, 0,    (byte) 208, 0, 0,
+                0, 0, 0,    (byte) 255, (byte) 255, (byte) 255,    (byte) 255, 1, 0,    (byte) 208, 0, 0,
+        };
+
+        for (Layout layout : Layout.values()) {
+            YuvFrame frame = createFrame(layout, 4, 2, luma, chromaU, chromaV, 0);
+
+            byte[] dst = new byte[4 * 2 * 3];
+            new YuvConverter(1).convert(frame, dst);
+
+            assertArrayEquals(layout.toString(), expected, dst);
+        }
+    }
+
+
+    @Test
+    public void testLayouts() {
+        // Even and odd sizes, several row strides (padding) and numbers of threads
+        int[][] sizes = new int[][] { { 64, 48 }, { 37, 23 }, { 2, 2 }, { 1, 1 }, { 161, 3 } };
+        int[] paddings = new int[] { 0, 3, 16 };
+        int[] rotations = new int[] { 0, 90, 180, 270 };
+        int[] nbThreads = new int[] { 1, 3, 8 };
+
+        long seed = 0;
+
+        for (int threads : nbThreads) {
+            YuvConverter converter = new YuvConverter(threads);
+
+            for (Layout layout : Layout.values()) {
+                for (int[] size : sizes) {
+                    for (int padding : paddings) {
+                        YuvFrame frame = createRandomFrame(layout, size[0], size[1], padding, ++seed);
+
+                        for (int rotation : rotations) {
+                            byte[] expected = convertReference(frame, rotation);
+
+                            byte[] dst = new byte[size[0] * size[1] * 3];
+                            converter.convert(frame, dst, rotation);
+
+                            assertArrayEquals(
+                                    layout + " " + size[0] + "x" + size[1] + ", padding " + padding +
+                                    ", rotation " + rotation + ", " + threads + " threads",
+                                    expected, dst
+                            );
+                        }
+                    }
+                }
+            }
+
+            converter.shutdown();
+        }
+    }
+
+
+    @Test
+    public void testInterrupted() {
+        YuvConverter converter = new YuvConverter(4);
+        YuvFrame frame = createRandomFrame(Layout.NV21, 64, 48, 0, 1);
+        byte[] expected = convertReference(frame, 0);
+
+        // All the bands are done when the conversion returns, and the interruption is kept
+        Thread.currentThread().interrupt();
+
+        byte[] dst = new byte[64 * 48 * 3];
+        converter.convert(frame, dst);
+
+        assertTrue(Thread.interrupted());
+        assertArrayEquals(expected, dst);
+
+        converter.shutdown();
+    }
+}
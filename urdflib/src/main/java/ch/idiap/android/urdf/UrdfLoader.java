@@ -34,6 +34,7 @@ import ch.idiap.android.glrenderer.meshes.MeshBuilder;
 import ch.idiap.android.glrenderer.meshes.MeshManager;
 import ch.idiap.android.glrenderer.meshes.loaders.Loader;
 import ch.idiap.android.glrenderer.physics.World;
+import ch.idiap.android.glrenderer.physics.helpers.ConvexHulls;
 import ch.idiap.android.glrenderer.physics.helpers.SubMeshWrapper;
 import ch.idiap.android.urdf.parser.Component;
 import ch.idiap.android.urdf.parser.UrdfJoint;
@@ -45,6 +46,16 @@ import ch.idiap.android.urdf.robot.Robot;
 public class UrdfLoader {
     private static final String TAG = UrdfLoader.class.getSimpleName();
     private static final Map<String, List<String>> loadedMeshFiles = new HashMap<>();
+    private static boolean convexHullCollisions = true;
+
+
+    /** Indicates if the collision meshes of the links must be replaced by their (simplified)
+     * convex hulls, much faster to process by the physics engine than the triangles of the
+     * meshes (enabled by default)
+     */
+    public static void setConvexHullCollisions(boolean enabled) {
+        convexHullCollisions = enabled;
+    }
 
 
     public static Robot load(Context context, String assetName, World world) {
@@ -116,9 +127,13 @@ public class UrdfLoader {
 
                     Mesh mesh = MeshManager.get(meshName);
 
-                    SubMeshWrapper wrapper = new SubMeshWrapper(mesh.getSubMeshes().get(0));
-                    shape = new GImpactMeshShape(wrapper);
-                    ((GImpactMeshShape) shape).updateBound();
+                    if (convexHullCollisions) {
+                        shape = ConvexHulls.get(context, meshFileName, mesh);
+                    } else {
+                        SubMeshWrapper wrapper = new SubMeshWrapper(mesh.getSubMeshes().get(0));
+                        shape = new GImpactMeshShape(wrapper);
+                        ((GImpactMeshShape) shape).updateBound();
+                    }
                 } else {
                     if (c.getType() == Component.GEOMETRY.CYLINDER) {
                         shape = new CylinderShape(
@@ -22,6 +22,9 @@ public class UrdfJoint {
 	private Vector3f originPosition;
 	private Quaternionf originOrientation;
 	private Vector3f axis;
+	private float lowerLimit = 0.0f;
+	private float upperLimit = 0.0f;
+	private float velocityLimit = 0.0f;
 
 
 	public UrdfJoint(String name, String parent, String child, String type,
@@ -37,6 +40,16 @@ public class UrdfJoint {
 	}
 
 
+	public UrdfJoint(String name, String parent, String child, String type,
+					 Vector3fc originPosition, Quaternionfc originOrientation,
+					 Vector3fc axis, float lowerLimit, float upperLimit, float velocityLimit) {
+		this(name, parent, child, type, originPosition, originOrientation, axis);
+		this.lowerLimit = lowerLimit;
+		this.upperLimit = upperLimit;
+		this.velocityLimit = velocityLimit;
+	}
+
+
 	public String getName() {
 		return name;
 	}
@@ -65,6 +78,26 @@ public class UrdfJoint {
 		return axis;
 	}
 
+	/** Returns true if the position of the joint is limited (revolute and prismatic joints)
+	 */
+	public boolean hasPositionLimits() {
+		return (type.equals("revolute") || type.equals("prismatic")) && (lowerLimit < upperLimit);
+	}
+
+	public float getLowerLimit() {
+		return lowerLimit;
+	}
+
+	public float getUpperLimit() {
+		return upperLimit;
+	}
+
+	/** Returns the maximum velocity of the joint, 0 if not specified
+	 */
+	public float getVelocityLimit() {
+		return velocityLimit;
+	}
+
 
 	@Override
 	public String toString() {
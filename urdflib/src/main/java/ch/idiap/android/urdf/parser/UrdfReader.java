@@ -237,8 +237,22 @@ public class UrdfReader extends VTDXmlReader {
 				axis.set(xyz[0], xyz[1], xyz[2]);
 			}
 
+			// OPTIONAL - get limits
+			float lower = 0.0f;
+			if (attributeExists(prefix, "/limit/@lower"))
+				lower = Float.parseFloat(existResult);
 
-			UrdfJoint newJoint = new UrdfJoint(name, parentLink, childLink, type, position, orientation, axis);
+			float upper = 0.0f;
+			if (attributeExists(prefix, "/limit/@upper"))
+				upper = Float.parseFloat(existResult);
+
+			float velocity = 0.0f;
+			if (attributeExists(prefix, "/limit/@velocity"))
+				velocity = Float.parseFloat(existResult);
+
+
+			UrdfJoint newJoint = new UrdfJoint(name, parentLink, childLink, type, position, orientation, axis,
+											   lower, upper, velocity);
 			this.joints.add(newJoint);
 
 			publishProgress(i + 1, nodeLength);
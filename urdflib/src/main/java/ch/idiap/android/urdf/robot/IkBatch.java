@@ -0,0 +1,152 @@
+/*
+ * Copyright (C) 2020 Idiap Research Institute
+ *
+ * Authors:
+ *   philip.abbet@idiap.ch (Philip Abbet)
+ */
+
+package ch.idiap.android.urdf.robot;
+
+import org.joml.Quaternionfc;
+import org.joml.Vector3fc;
+
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+
+import ch.idiap.android.kdl.KDL;
+
+
+/** A sequence of end-effector goals (typically via-points) to solve by inverse kinematics,
+ * with the results of the last resolution
+ *
+ * The goals are solved in order, each search starting from the solution of the previous goal.
+ * Create one with Robot.createIkBatch(), and reuse it: its buffers are allocated once.
+ */
+public class IkBatch {
+
+    final int nbJoints;
+    final FloatBuffer initialPositions;
+    final FloatBuffer goals;
+    final FloatBuffer result;
+    final FloatBuffer errors;
+    final IntBuffer status;
+
+    int count = 0;
+    int nbConverged = 0;
+    boolean hasInitialPositions = false;
+
+
+    IkBatch(int nbJoints, int capacity) {
+        this.nbJoints = nbJoints;
+
+        initialPositions = KDL.allocateBuffer(nbJoints);
+        goals = KDL.allocateBuffer(capacity * 7);
+        result = KDL.allocateBuffer(capacity * nbJoints);
+        errors = KDL.allocateBuffer(capacity);
+        status = KDL.allocateIntBuffer(capacity);
+    }
+
+
+    /** Remove all the goals (the initial positions are kept)
+     */
+    public void clear() {
+        count = 0;
+        nbConverged = 0;
+    }
+
+
+    /** Add a goal for the end-effector, in local (OpenGL) coordinates
+     *
+     * Returns false if the batch is full.
+     */
+    public boolean addGoal(Vector3fc position, Quaternionfc orientation) {
+        if (count == getCapacity())
+            return false;
+
+        RosCoordinates.poseToRos(position, orientation, goals, count * 7);
+
+        ++count;
+        return true;
+    }
+
+
+    /** Add a goal already in ROS coordinates (7 floats: position and orientation)
+     */
+    boolean addGoal(float[] goal) {
+        if (count == getCapacity())
+            return false;
+
+        for (int i = 0; i < 7; ++i)
+            goals.put(count * 7 + i, goal[i]);
+
+        ++count;
+        return true;
+    }
+
+
+    /** Set the joint positions from which to start the search (by default, the current
+     * positions of the robot when the batch is solved)
+     */
+    public void setInitialPositions(float[] positions) {
+        for (int i = 0; i < nbJoints; ++i)
+            initialPositions.put(i, positions[i]);
+
+        hasInitialPositions = true;
+    }
+
+
+    public void resetInitialPositions() {
+        hasInitialPositions = false;
+    }
+
+
+    public int getCapacity() {
+        return status.capacity();
+    }
+
+
+    public int getCount() {
+        return count;
+    }
+
+
+    /** Returns the number of goals that converged during the last resolution
+     */
+    public int getConvergedCount() {
+        return nbConverged;
+    }
+
+
+    public boolean hasConverged(int index) {
+        return status.get(index) == 0;
+    }
+
+
+    /** Returns the status of a goal: 0 if it converged, a negative error code of KDL otherwise
+     */
+    public int getStatus(int index) {
+        return status.get(index);
+    }
+
+
+    /** Returns the remaining distance between the end-effector and a goal
+     */
+    public float getError(int index) {
+        return errors.get(index);
+    }
+
+
+    /** Retrieve the joint positions computed for a goal
+     */
+    public float[] getPositions(int index, float[] out) {
+        for (int i = 0; i < nbJoints; ++i)
+            out[i] = result.get(index * nbJoints + i);
+
+        return out;
+    }
+
+
+    public float[] getPositions(int index) {
+        return getPositions(index, new float[nbJoints]);
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright (C) 2020 Idiap Research Institute
+ *
+ * Authors:
+ *   philip.abbet@idiap.ch (Philip Abbet)
+ */
+
+package ch.idiap.android.urdf.robot;
+
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import ch.idiap.android.kdl.KDL;
+
+
+/** Solve batches of inverse kinematics goals (see IkBatch) on a pool of threads
+ *
+ * The goals of a batch depend on each other (warm-start), but independent batches (for
+ * example, the segments of a path between fixed via-points) are solved in parallel. Each
+ * thread uses its own native solver.
+ */
+public class IkBatchSolver {
+
+    private final Robot robot;
+    private final ExecutorService executor;
+    private final BlockingQueue<Long> solvers;
+
+    // Guarded by 'solvers'
+    private boolean released = false;
+
+
+    /** The kinematic chain of the robot must have been set, and stay the same during the
+     * lifetime of the solver
+     */
+    public IkBatchSolver(Robot robot, int nbThreads) {
+        this.robot = robot;
+
+        nbThreads = Math.max(nbThreads, 1);
+
+        // One more solver for the calling thread
+        solvers = new ArrayBlockingQueue<>(nbThreads + 1);
+
+        for (int i = 0; i < nbThreads + 1; ++i)
+            solvers.add(KDL.createIkSolver(robot.getKdlRobot()));
+
+        executor = Executors.newFixedThreadPool(nbThreads, runnable -> {
+            Thread thread = new Thread(runnable, "IkBatchSolver");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+
+    /** Solve a batch on the calling thread
+     */
+    public void solve(IkBatch batch) {
+        if (!batch.hasInitialPositions)
+            robot.fillInitialPositions(batch);
+
+        run(batch);
+    }
+
+
+    /** Solve a batch on the pool of threads
+     *
+     * The batch must not be modified until the returned future is done.
+     */
+    public Future<IkBatch> submit(final IkBatch batch) {
+        // The current positions are read now, not when the batch is processed
+        if (!batch.hasInitialPositions)
+            robot.fillInitialPositions(batch);
+
+        return executor.submit(() -> {
+            run(batch);
+            return batch;
+        });
+    }
+
+
+    /** Solve several independent batches in parallel, and wait for all of them
+     */
+    public void solveAll(List<IkBatch> batches) {
+        Future<?>[] futures = new Future<?>[batches.size()];
+
+        for (int i = 1; i < batches.size(); ++i)
+            futures[i] = submit(batches.get(i));
+
+        // The calling thread solves the first batch itself
+        if (!batches.isEmpty())
+            solve(batches.get(0));
+
+        try {
+            for (int i = 1; i < futures.length; ++i)
+                futures[i].get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+
+    /** Stop the threads and release the native solvers
+     *
+     * The solvers in use are released by their thread, once the batch it solves is done.
+     */
+    public void release() {
+        executor.shutdownNow();
+
+        synchronized (solvers) {
+            released = true;
+
+            Long solver;
+            while ((solver = solvers.poll()) != null)
+                KDL.releaseIkSolver(solver);
+        }
+    }
+
+
+    private void run(IkBatch batch) {
+        Long solver;
+
+        try {
+            // Wait for a free solver, unless they were released in the meantime
+            while ((solver = solvers.poll(100, TimeUnit.MILLISECONDS)) == null) {
+                synchronized (solvers) {
+                    if (released)
+                        throw new IllegalStateException("The solvers were released");
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+
+        try {
+            batch.nbConverged = KDL.solveInverseKinematics(
+                    solver, batch.initialPositions, batch.goals, batch.result, batch.errors,
+                    batch.status, batch.count
+            );
+        } finally {
+            synchronized (solvers) {
+                if (released)
+                    KDL.releaseIkSolver(solver);
+                else
+                    solvers.add(solver);
+            }
+        }
+    }
+}
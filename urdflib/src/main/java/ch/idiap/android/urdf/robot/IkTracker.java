@@ -0,0 +1,134 @@
+/*
+ * Copyright (C) 2020 Idiap Research Institute
+ *
+ * Authors:
+ *   philip.abbet@idiap.ch (Philip Abbet)
+ */
+
+package ch.idiap.android.urdf.robot;
+
+import org.joml.Quaternionfc;
+import org.joml.Vector3fc;
+
+import java.nio.FloatBuffer;
+
+import ch.idiap.android.kdl.KDL;
+
+
+/** Differential inverse kinematics, to follow a moving goal of the end-effector (for
+ * instance, a via-point being dragged)
+ *
+ * Instead of a full resolution, each call to step() moves the joints a bit towards the goal
+ * (damped least squares on the jacobian), so the joints track the goal over the frames. A
+ * secondary task keeps the joints away from their limits. The joints without limits (the
+ * continuous ones) are unbounded, and their positions aren't wrapped: they stay continuous from
+ * one step to the next, so the interpolation between the samples given to the robot state
+ * doesn't turn them the long way. Nothing is allocated per step.
+ *
+ * Not thread-safe, and must be used on the same thread as the other kinematic methods of
+ * the robot.
+ */
+public class IkTracker {
+
+    public static final float DEFAULT_DAMPING = 0.05f;
+    public static final float DEFAULT_MAX_STEP = 0.1f;       // radians
+    public static final float DEFAULT_LIMITS_GAIN = 0.1f;
+
+
+    private final Robot robot;
+    private final int nbJoints;
+    private final FloatBuffer positions;
+    private final FloatBuffer goal;
+    private final FloatBuffer limits;
+
+    private float damping = DEFAULT_DAMPING;
+    private float maxStep = DEFAULT_MAX_STEP;
+    private float limitsGain = DEFAULT_LIMITS_GAIN;
+    private float error = Float.MAX_VALUE;
+
+
+    /** The kinematic chain of the robot must have been set
+     */
+    public IkTracker(Robot robot) {
+        this.robot = robot;
+
+        nbJoints = robot.getKinematicJointCount();
+        positions = KDL.allocateBuffer(nbJoints);
+        goal = KDL.allocateBuffer(7);
+        limits = KDL.allocateBuffer(nbJoints * 2);
+
+        JointLimits jointLimits = robot.getJointLimits();
+
+        float[] lower = new float[nbJoints];
+        float[] upper = new float[nbJoints];
+        robot.getJointLimits(lower, upper);
+
+        for (int i = 0; i < nbJoints; ++i) {
+            boolean limited = jointLimits.isLimited(i);
+            limits.put(i, limited ? lower[i] : -Float.MAX_VALUE);
+            limits.put(nbJoints + i, limited ? upper[i] : Float.MAX_VALUE);
+        }
+
+        reset();
+    }
+
+
+    /** Restart from the current joint positions of the robot
+     */
+    public void reset() {
+        robot.fillPositions(positions);
+        error = Float.MAX_VALUE;
+    }
+
+
+    public void setDamping(float damping) {
+        this.damping = damping;
+    }
+
+
+    /** Set the maximum change of the position of a joint during one step
+     */
+    public void setMaxStep(float maxStep) {
+        this.maxStep = maxStep;
+    }
+
+
+    public void setLimitsGain(float gain) {
+        limitsGain = gain;
+    }
+
+
+    /** Set the goal of the end-effector, in local (OpenGL) coordinates
+     */
+    public void setGoal(Vector3fc position, Quaternionfc orientation) {
+        RosCoordinates.poseToRos(position, orientation, goal, 0);
+    }
+
+
+    /** Move the joints one step towards the goal, typically once per frame
+     *
+     * Returns the position error of the end-effector before the step.
+     */
+    public float step() {
+        error = KDL.differentialIkStep(robot.getKdlRobot(), positions, goal, limits, damping,
+                                       maxStep, limitsGain);
+        return error;
+    }
+
+
+    /** Returns the position error of the end-effector measured by the last step
+     */
+    public float getError() {
+        return error;
+    }
+
+
+    /** Retrieve the current joint positions (in the order of the kinematic chain)
+     */
+    public float[] getPositions(float[] out) {
+        for (int i = 0; i < nbJoints; ++i)
+            out[i] = positions.get(i);
+
+        return out;
+    }
+}
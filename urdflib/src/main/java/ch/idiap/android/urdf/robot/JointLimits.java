@@ -0,0 +1,87 @@
+/*
+ * Copyright (C) 2020 Idiap Research Institute
+ *
+ * Authors:
+ *   philip.abbet@idiap.ch (Philip Abbet)
+ */
+
+package ch.idiap.android.urdf.robot;
+
+
+/** The position limits of the joints of a kinematic chain, as specified in the URDF file
+ *
+ * Instances are immutable (taken from the robot by Robot#getJointLimits()), so they can be
+ * used from any thread.
+ */
+public class JointLimits {
+
+    // Positions outside of the limits by less than this (numerical errors of the solvers) are
+    // clamped instead of rejected (radians or meters)
+    public static final float TOLERANCE = 1e-3f;
+
+    private static final double TWO_PI = 2.0 * Math.PI;
+
+
+    private final float[] lower;
+    private final float[] upper;
+    private final boolean[] limited;        // false for the continuous joints
+    private final boolean[] revolute;       // revolute and continuous joints
+
+
+    JointLimits(float[] lower, float[] upper, boolean[] limited, boolean[] revolute) {
+        this.lower = lower;
+        this.upper = upper;
+        this.limited = limited;
+        this.revolute = revolute;
+    }
+
+
+    public int getJointCount() {
+        return lower.length;
+    }
+
+
+    /** Indicates if a joint has position limits (false for the continuous joints)
+     */
+    public boolean isLimited(int index) {
+        return limited[index];
+    }
+
+
+    /** Bring joint positions (in the order of the kinematic chain) within the limits
+     *
+     * The revolute joints are turned by whole turns if necessary (which doesn't change the
+     * pose), and the continuous ones are wrapped in [-pi, pi]. The positions outside of the
+     * limits by less than TOLERANCE are clamped.
+     *
+     * Returns false if some positions were further outside of the limits: they are clamped
+     * too (so the configuration can be executed by the robot), but the pose doesn't
+     * correspond to the original configuration anymore.
+     */
+    public boolean enforce(float[] positions) {
+        boolean valid = true;
+
+        for (int i = 0; i < lower.length; ++i) {
+            double position = positions[i];
+
+            if (!limited[i]) {
+                if (revolute[i])
+                    positions[i] = (float) Math.IEEEremainder(position, TWO_PI);
+                continue;
+            }
+
+            if (revolute[i]) {
+                // Smallest equivalent position above the lower limit (minus the tolerance)
+                position = lower[i] - TOLERANCE +
+                           (((position - lower[i] + TOLERANCE) % TWO_PI) + TWO_PI) % TWO_PI;
+            }
+
+            if ((position < lower[i] - TOLERANCE) || (position > upper[i] + TOLERANCE))
+                valid = false;
+
+            positions[i] = (float) Math.max(lower[i], Math.min(position, upper[i]));
+        }
+
+        return valid;
+    }
+}
@@ -0,0 +1,422 @@
+/*
+ * Copyright (C) 2020 Idiap Research Institute
+ *
+ * Authors:
+ *   philip.abbet@idiap.ch (Philip Abbet)
+ */
+
+package ch.idiap.android.urdf.robot;
+
+import android.content.Context;
+import android.util.Log;
+
+import org.joml.Vector3fc;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import ch.idiap.android.kdl.KDL;
+
+
+/** Voxelized workspace of the end-effector of a kinematic chain
+ *
+ * Built once by sampling the joint space and computing the forward kinematics (in the
+ * background, then cached in a file or shipped as an asset, see readOrBuild()), it tells in
+ * O(1) whether a position can be reached, and gives for each reachable voxel the joint
+ * positions of the sample closest to its center: a good seed for the iterative inverse
+ * kinematics solver.
+ *
+ * The positions are in ROS coordinates, relative to the root of the kinematic chain.
+ *
+ * Layout of the file (all values are little-endian):
+ *
+ *   int magic ('URRM'), int version
+ *   int nbJoints, int sizeX, int sizeY, int sizeZ
+ *   float originX, float originY, float originZ, float voxelSize
+ *   float lower[nbJoints], float upper[nbJoints] (the limits of the joints when sampled)
+ *   long occupancy[(sizeX * sizeY * sizeZ + 63) / 64] (one bit per voxel, x varying fastest)
+ *   short seeds[nbReachableVoxels * nbJoints] (in the order of the voxels, each position
+ *       mapped from [lower, upper] of its joint to [-32768, 32767])
+ */
+public class ReachabilityMap {
+
+    public static final int MAGIC = 0x4d525255;     // 'URRM'
+    public static final int VERSION = 2;
+
+    private static final String TAG = ReachabilityMap.class.getSimpleName();
+
+    // The seeds are stored as fixed-point numbers, spanning the range of their joint
+    private static final float SEED_STEPS = 65535.0f;
+
+    private static final int HEADER_SIZE = 40;
+
+    // Number of samples processed per call to the forward kinematics
+    private static final int BATCH_SIZE = 1024;
+
+
+    private final int nbJoints;
+    private final int sizeX;
+    private final int sizeY;
+    private final int sizeZ;
+    private final float originX;
+    private final float originY;
+    private final float originZ;
+    private final float voxelSize;
+    private final float[] lower;
+    private final float[] upper;
+
+    // Index of the seed of each voxel, -1 if unreachable
+    private final int[] seedIndices;
+    private final short[] seeds;
+
+
+    private ReachabilityMap(int nbJoints, int sizeX, int sizeY, int sizeZ,
+                            float originX, float originY, float originZ, float voxelSize,
+                            float[] lower, float[] upper, int[] seedIndices, short[] seeds) {
+        this.nbJoints = nbJoints;
+        this.sizeX = sizeX;
+        this.sizeY = sizeY;
+        this.sizeZ = sizeZ;
+        this.originX = originX;
+        this.originY = originY;
+        this.originZ = originZ;
+        this.voxelSize = voxelSize;
+        this.lower = lower;
+        this.upper = upper;
+        this.seedIndices = seedIndices;
+        this.seeds = seeds;
+    }
+
+
+    /** Returns the map cached in a file, or builds it (and saves it in the file) if the file
+     * doesn't exist, or holds a map of another version or for other joints
+     *
+     * Slow the first time: call it from a background thread.
+     */
+    public static ReachabilityMap readOrBuild(File file, Robot robot, float voxelSize,
+                                              int nbSamples) {
+        if (file.exists()) {
+            try (InputStream input = new FileInputStream(file)) {
+                ReachabilityMap map = read(input);
+                if (map.matches(robot))
+                    return map;
+            } catch (IOException ignored) {
+                // Not a map of the current version: build it again
+            }
+        }
+
+        ReachabilityMap map = build(robot, voxelSize, nbSamples, 0);
+        if (map == null)
+            return null;
+
+        try (OutputStream output = new FileOutputStream(file)) {
+            map.write(output);
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to save the reachability map in " + file, e);
+        }
+
+        return map;
+    }
+
+
+    /** Build the map of the kinematic chain of a robot, from 'nbSamples' random joint
+     * configurations within the limits of the joints
+     *
+     * Slow (meant to be done once, then saved with write()). Uses its own solver, so it can be
+     * called from a background thread while the robot is used.
+     */
+    public static ReachabilityMap build(Robot robot, float voxelSize, int nbSamples, long randomSeed) {
+        int nbJoints = robot.getKinematicJointCount();
+
+        float[] lower = new float[nbJoints];
+        float[] upper = new float[nbJoints];
+        robot.getJointLimits(lower, upper);
+
+        long solver = KDL.createIkSolver(robot.getKdlRobot());
+
+        try {
+            return build(solver, lower, upper, voxelSize, nbSamples, randomSeed);
+        } finally {
+            KDL.releaseIkSolver(solver);
+        }
+    }
+
+
+    private static ReachabilityMap build(long solver, float[] lower, float[] upper,
+                                         float voxelSize, int nbSamples, long randomSeed) {
+        int nbJoints = lower.length;
+
+        FloatBuffer positions = KDL.allocateBuffer(BATCH_SIZE * nbJoints);
+        FloatBuffer poses = KDL.allocateBuffer(BATCH_SIZE * 7);
+
+        // First pass: bounds of the workspace
+        float minX = Float.MAX_VALUE, minY = Float.MAX_VALUE, minZ = Float.MAX_VALUE;
+        float maxX = -Float.MAX_VALUE, maxY = -Float.MAX_VALUE, maxZ = -Float.MAX_VALUE;
+
+        Random random = new Random(randomSeed);
+
+        for (int first = 0; first < nbSamples; first += BATCH_SIZE) {
+            int count = Math.min(BATCH_SIZE, nbSamples - first);
+
+            sample(random, lower, upper, positions, count);
+            KDL.solverForwardKinematics(solver, positions, poses, count);
+
+            for (int i = 0; i < count; ++i) {
+                float x = poses.get(i * 7), y = poses.get(i * 7 + 1), z = poses.get(i * 7 + 2);
+                minX = Math.min(minX, x); maxX = Math.max(maxX, x);
+                minY = Math.min(minY, y); maxY = Math.max(maxY, y);
+                minZ = Math.min(minZ, z); maxZ = Math.max(maxZ, z);
+            }
+        }
+
+        if (minX > maxX)
+            return null;
+
+        int sizeX = (int) ((maxX - minX) / voxelSize) + 1;
+        int sizeY = (int) ((maxY - minY) / voxelSize) + 1;
+        int sizeZ = (int) ((maxZ - minZ) / voxelSize) + 1;
+        int nbVoxels = sizeX * sizeY * sizeZ;
+
+        // Second pass (same samples): keep the sample closest to the center of each voxel
+        float[] bestDistances = new float[nbVoxels];
+        float[] bestSeeds = new float[nbVoxels * nbJoints];
+        Arrays.fill(bestDistances, Float.MAX_VALUE);
+
+        random = new Random(randomSeed);
+
+        for (int first = 0; first < nbSamples; first += BATCH_SIZE) {
+            int count = Math.min(BATCH_SIZE, nbSamples - first);
+
+            sample(random, lower, upper, positions, count);
+            KDL.solverForwardKinematics(solver, positions, poses, count);
+
+            for (int i = 0; i < count; ++i) {
+                float fx = (poses.get(i * 7) - minX) / voxelSize;
+                float fy = (poses.get(i * 7 + 1) - minY) / voxelSize;
+                float fz = (poses.get(i * 7 + 2) - minZ) / voxelSize;
+
+                int x = Math.min((int) fx, sizeX - 1);
+                int y = Math.min((int) fy, sizeY - 1);
+                int z = Math.min((int) fz, sizeZ - 1);
+                int voxel = (z * sizeY + y) * sizeX + x;
+
+                float dx = fx - x - 0.5f, dy = fy - y - 0.5f, dz = fz - z - 0.5f;
+                float distance = dx * dx + dy * dy + dz * dz;
+
+                if (distance < bestDistances[voxel]) {
+                    bestDistances[voxel] = distance;
+                    for (int j = 0; j < nbJoints; ++j)
+                        bestSeeds[voxel * nbJoints + j] = positions.get(i * nbJoints + j);
+                }
+            }
+        }
+
+        int[] seedIndices = new int[nbVoxels];
+        int nbReachable = 0;
+
+        for (int i = 0; i < nbVoxels; ++i)
+            seedIndices[i] = (bestDistances[i] < Float.MAX_VALUE ? nbReachable++ : -1);
+
+        short[] seeds = new short[nbReachable * nbJoints];
+        for (int i = 0; i < nbVoxels; ++i) {
+            if (seedIndices[i] >= 0) {
+                for (int j = 0; j < nbJoints; ++j)
+                    seeds[seedIndices[i] * nbJoints + j] =
+                            quantize(bestSeeds[i * nbJoints + j], lower[j], upper[j]);
+            }
+        }
+
+        return new ReachabilityMap(nbJoints, sizeX, sizeY, sizeZ, minX, minY, minZ, voxelSize,
+                                   lower, upper, seedIndices, seeds);
+    }
+
+
+    public static ReachabilityMap read(Context context, String filename) throws IOException {
+        try (InputStream inputStream = context.getAssets().open(filename)) {
+            return read(inputStream);
+        }
+    }
+
+
+    public static ReachabilityMap read(InputStream inputStream) throws IOException {
+        DataInputStream input = new DataInputStream(inputStream);
+
+        ByteBuffer header = readBlock(input, HEADER_SIZE);
+
+        if ((header.getInt() != MAGIC) || (header.getInt() != VERSION))
+            throw new IOException("Not a reachability map, or unsupported version");
+
+        int nbJoints = header.getInt();
+        int sizeX = header.getInt();
+        int sizeY = header.getInt();
+        int sizeZ = header.getInt();
+        float originX = header.getFloat();
+        float originY = header.getFloat();
+        float originZ = header.getFloat();
+        float voxelSize = header.getFloat();
+
+        int nbVoxels = sizeX * sizeY * sizeZ;
+
+        ByteBuffer limits = readBlock(input, nbJoints * 2 * 4);
+
+        float[] lower = new float[nbJoints];
+        float[] upper = new float[nbJoints];
+        limits.asFloatBuffer().get(lower).get(upper);
+
+        ByteBuffer occupancy = readBlock(input, (nbVoxels + 63) / 64 * 8);
+
+        int[] seedIndices = new int[nbVoxels];
+        int nbReachable = 0;
+
+        for (int i = 0; i < nbVoxels; i += 64) {
+            long bits = occupancy.getLong();
+            for (int j = 0; (j < 64) && (i + j < nbVoxels); ++j)
+                seedIndices[i + j] = (((bits >>> j) & 1L) != 0 ? nbReachable++ : -1);
+        }
+
+        short[] seeds = new short[nbReachable * nbJoints];
+        readBlock(input, seeds.length * 2).asShortBuffer().get(seeds);
+
+        return new ReachabilityMap(nbJoints, sizeX, sizeY, sizeZ, originX, originY, originZ,
+                                   voxelSize, lower, upper, seedIndices, seeds);
+    }
+
+
+    public void write(OutputStream output) throws IOException {
+        int nbVoxels = seedIndices.length;
+
+        ByteBuffer buffer = ByteBuffer.allocate(
+                HEADER_SIZE + nbJoints * 2 * 4 + (nbVoxels + 63) / 64 * 8 + seeds.length * 2
+        ).order(ByteOrder.LITTLE_ENDIAN);
+
+        buffer.putInt(MAGIC).putInt(VERSION);
+        buffer.putInt(nbJoints).putInt(sizeX).putInt(sizeY).putInt(sizeZ);
+        buffer.putFloat(originX).putFloat(originY).putFloat(originZ).putFloat(voxelSize);
+
+        for (float limit : lower)
+            buffer.putFloat(limit);
+
+        for (float limit : upper)
+            buffer.putFloat(limit);
+
+        for (int i = 0; i < nbVoxels; i += 64) {
+            long bits = 0L;
+            for (int j = 0; (j < 64) && (i + j < nbVoxels); ++j) {
+                if (seedIndices[i + j] >= 0)
+                    bits |= 1L << j;
+            }
+            buffer.putLong(bits);
+        }
+
+        buffer.asShortBuffer().put(seeds);
+
+        output.write(buffer.array());
+    }
+
+
+    public int getJointCount() {
+        return nbJoints;
+    }
+
+
+    public float getVoxelSize() {
+        return voxelSize;
+    }
+
+
+    /** Indicates if the map was built for the kinematic chain of a robot (same number of
+     * joints, and same limits)
+     */
+    public boolean matches(Robot robot) {
+        if (robot.getKinematicJointCount() != nbJoints)
+            return false;
+
+        float[] robotLower = new float[nbJoints];
+        float[] robotUpper = new float[nbJoints];
+        robot.getJointLimits(robotLower, robotUpper);
+
+        return Arrays.equals(lower, robotLower) && Arrays.equals(upper, robotUpper);
+    }
+
+
+    /** Indicates if a position (in ROS coordinates, relative to the root of the chain) can be
+     * reached by the end-effector
+     */
+    public boolean isReachable(float x, float y, float z) {
+        return getSeedIndex(x, y, z) >= 0;
+    }
+
+
+    public boolean isReachable(Vector3fc position) {
+        return isReachable(position.x(), position.y(), position.z());
+    }
+
+
+    /** Retrieve the joint positions from which to start the search of the inverse kinematics
+     * of a position
+     *
+     * Returns false if the position is unreachable.
+     */
+    public boolean getSeed(float x, float y, float z, FloatBuffer out) {
+        int index = getSeedIndex(x, y, z);
+        if (index < 0)
+            return false;
+
+        int offset = index * nbJoints;
+        for (int j = 0; j < nbJoints; ++j) {
+            float t = (seeds[offset + j] - Short.MIN_VALUE) / SEED_STEPS;
+            out.put(j, lower[j] + t * (upper[j] - lower[j]));
+        }
+
+        return true;
+    }
+
+
+    /** Returns the index of the seed of the voxel containing a position, -1 if unreachable
+     */
+    private int getSeedIndex(float x, float y, float z) {
+        int vx = (int) Math.floor((x - originX) / voxelSize);
+        int vy = (int) Math.floor((y - originY) / voxelSize);
+        int vz = (int) Math.floor((z - originZ) / voxelSize);
+
+        if ((vx < 0) || (vx >= sizeX) || (vy < 0) || (vy >= sizeY) || (vz < 0) || (vz >= sizeZ))
+            return -1;
+
+        return seedIndices[(vz * sizeY + vy) * sizeX + vx];
+    }
+
+
+    private static void sample(Random random, float[] lower, float[] upper, FloatBuffer positions,
+                               int count) {
+        int nbJoints = lower.length;
+
+        for (int i = 0; i < count; ++i) {
+            for (int j = 0; j < nbJoints; ++j)
+                positions.put(i * nbJoints + j, lower[j] + random.nextFloat() * (upper[j] - lower[j]));
+        }
+    }
+
+
+    private static short quantize(float position, float lower, float upper) {
+        float t = (upper > lower ? (position - lower) / (upper - lower) : 0.0f);
+        t = Math.max(0.0f, Math.min(t, 1.0f));
+        return (short) (Math.round(t * SEED_STEPS) + Short.MIN_VALUE);
+    }
+
+
+    private static ByteBuffer readBlock(DataInputStream input, int size) throws IOException {
+        byte[] data = new byte[size];
+        input.readFully(data);
+        return ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN);
+    }
+}
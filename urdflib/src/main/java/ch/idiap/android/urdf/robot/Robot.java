@@ -16,7 +16,8 @@ import org.joml.Quaternionfc;
 import org.joml.Vector3f;
 import org.joml.Vector3fc;
 
-import java.util.Arrays;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -51,14 +52,39 @@ public class Robot extends Entity {
 
     private RobotState robotState = null;
     private Map<String, Link> links = new HashMap<>();
+    private String[] linkNames = null;      // snapshot of 'links' used by draw()
+    private Link[] linkEntries = null;
+    private Map<String, UrdfJoint> joints = new HashMap<>();
     private long kdlRobot = 0;
-    private List<String> kdlJointNames = null;
+    private String[] kdlJointNames = new String[0];
+    private String[] kdlJointLinks = new String[0];
+    private FloatBuffer kdlPositions = null;
+    private FloatBuffer kdlPoses = null;
+    private FloatBuffer kdlGoal = null;
+    private FloatBuffer kdlSolution = null;
+    private FloatBuffer kdlErrors = null;
+    private IntBuffer kdlStatus = null;
+    private FloatBuffer kdlJacobian = null;
+    private Link[] kdlSegmentLinks = null;
+    private String[] kdlTreeJointNames = null;
+    private FloatBuffer kdlTreePositions = null;
+    private FloatBuffer kdlTreePoses = null;
+    private boolean animateFromJointStates = false;
+    private volatile ReachabilityMap reachabilityMap = null;    // set from any thread
     private World world = null;
+    private RobotState.Transforms renderedTransforms = new RobotState.Transforms();
+    private RobotState.JointState renderedJointState = new RobotState.JointState();
 
-    private float robotLength = 20; // random value, to fix or compute
+    // Sphere containing the workspace of the end-effector (in local coordinates), only used
+    // without reachability map
+    private final Vector3f reachCenter = new Vector3f();
+    private float reachRadius = Float.MAX_VALUE;
 
     private static final String TAG = Robot.class.getSimpleName();
 
+    // Log the transforms of the links and the end-effector position at each frame (allocates)
+    private static final boolean DEBUG = false;
+
 
     public Robot(World world) {
         this.world = world;
@@ -77,12 +103,145 @@ public class Robot extends Entity {
 
 
     public boolean setKinematicChain(String root, String tip) {
-        if (KDL.setKinematicChain(kdlRobot, root, tip)) {
-            kdlJointNames = Arrays.asList(KDL.getJointNames(kdlRobot));
-            return true;
+        if (!KDL.setKinematicChain(kdlRobot, root, tip))
+            return false;
+
+        // Resolve the names once, the joints are then identified by their index in the chain
+        int nbJoints = KDL.getJointCount(kdlRobot);
+
+        kdlJointNames = new String[nbJoints];
+        kdlJointLinks = new String[nbJoints];
+
+        for (int i = 0; i < nbJoints; ++i) {
+            kdlJointNames[i] = KDL.getJointName(kdlRobot, i);
+
+            for (Map.Entry<String, Link> entry : links.entrySet()) {
+                if (kdlJointNames[i].equals(entry.getValue().parentJoint)) {
+                    kdlJointLinks[i] = entry.getKey();
+                    break;
+                }
+            }
+        }
+
+        // Buffers exchanged with KDL, reused by all the calls
+        kdlPositions = KDL.allocateBuffer(nbJoints);
+        kdlPoses = KDL.allocateBuffer(nbJoints * 7);
+        kdlGoal = KDL.allocateBuffer(7);
+        kdlSolution = KDL.allocateBuffer(nbJoints);
+        kdlErrors = KDL.allocateBuffer(1);
+        kdlStatus = KDL.allocateIntBuffer(1);
+        kdlJacobian = KDL.allocateBuffer(nbJoints * 6);
+
+        computeReach(tip);
+
+        return true;
+    }
+
+
+    long getKdlRobot() {
+        return kdlRobot;
+    }
+
+
+    /** Returns the number of joints of the kinematic chain
+     */
+    public int getKinematicJointCount() {
+        return kdlJointNames.length;
+    }
+
+
+    /** Returns the name of a joint of the kinematic chain
+     */
+    public String getKinematicJointName(int index) {
+        return kdlJointNames[index];
+    }
+
+
+    /** Retrieve the velocity limits of the joints of the kinematic chain ('defaultLimit' for
+     * the joints without one)
+     */
+    public void getVelocityLimits(float[] limits, float defaultLimit) {
+        for (int i = 0; i < kdlJointNames.length; ++i) {
+            UrdfJoint joint = joints.get(kdlJointNames[i]);
+            limits[i] = ((joint != null) && (joint.getVelocityLimit() > 0.0f) ?
+                         joint.getVelocityLimit() : defaultLimit);
         }
+    }
+
 
-        return false;
+    /** Retrieve the position limits of the joints of the kinematic chain ([-pi, pi] for the
+     * joints without limits)
+     */
+    public void getJointLimits(float[] lower, float[] upper) {
+        for (int i = 0; i < kdlJointNames.length; ++i) {
+            UrdfJoint joint = joints.get(kdlJointNames[i]);
+
+            if ((joint != null) && joint.hasPositionLimits()) {
+                lower[i] = joint.getLowerLimit();
+                upper[i] = joint.getUpperLimit();
+            } else {
+                lower[i] = (float) -Math.PI;
+                upper[i] = (float) Math.PI;
+            }
+        }
+    }
+
+
+    /** Returns the position limits of the joints of the kinematic chain, to check the
+     * solutions of the inverse kinematics
+     */
+    public JointLimits getJointLimits() {
+        int nbJoints = kdlJointNames.length;
+
+        float[] lower = new float[nbJoints];
+        float[] upper = new float[nbJoints];
+        boolean[] limited = new boolean[nbJoints];
+        boolean[] revolute = new boolean[nbJoints];
+
+        getJointLimits(lower, upper);
+
+        for (int i = 0; i < nbJoints; ++i) {
+            UrdfJoint joint = joints.get(kdlJointNames[i]);
+
+            if (joint != null) {
+                limited[i] = joint.hasPositionLimits();
+                revolute[i] = "revolute".equals(joint.getType()) ||
+                              "continuous".equals(joint.getType());
+            }
+        }
+
+        return new JointLimits(lower, upper, limited, revolute);
+    }
+
+
+    /** Set the map used to reject the unreachable goals and to seed the inverse kinematics
+     * (built for the current kinematic chain), from any thread (the map is usually read or
+     * built in the background)
+     */
+    public void setReachabilityMap(ReachabilityMap map) {
+        if ((map != null) && (map.getJointCount() != kdlJointNames.length)) {
+            Log.e(TAG, "The reachability map doesn't match the kinematic chain");
+            return;
+        }
+
+        reachabilityMap = map;
+    }
+
+
+    public ReachabilityMap getReachabilityMap() {
+        return reachabilityMap;
+    }
+
+
+    /** Indicates if a goal position (in local coordinates) can be reached by the end-effector
+     */
+    public boolean isReachable(Vector3fc goalPos) {
+        if (reachabilityMap != null) {
+            //convert from OpenGL to ROS coordinates
+            return reachabilityMap.isReachable(goalPos.x(), -goalPos.z(), goalPos.y());
+        }
+
+        return goalPos.distance(reachCenter) <= reachRadius;
     }
 
 
@@ -133,6 +292,7 @@ public class Robot extends Entity {
         entry.kinematicBody._setEntity(this);
 
         links.put(link.getName(), entry);
+        linkNames = null;
     }
 
 
@@ -148,11 +308,14 @@ public class Robot extends Entity {
             entry.transforms.setParent(transforms);
             entry.transforms.tag = linkName + "_joint";
             links.put(linkName, entry);
+            linkNames = null;
         }
 
         entry.parentLink = parentLinkName;
         entry.parentJoint = joint.getName();
 
+        joints.put(joint.getName(), joint);
+
         Link parentLink = links.get(entry.parentLink);
         if (parentLink != null)
             entry.transforms.setParent(parentLink.transforms);
@@ -178,40 +341,100 @@ public class Robot extends Entity {
     }
 
 
+    /**
+     * Animate the links from the joint states alone (using the forward kinematics of the
+     * whole tree) instead of the transforms received for each link
+     */
+    public void setAnimateFromJointStates(boolean enabled) {
+        if (enabled)
+            resolveSegments();
+
+        animateFromJointStates = enabled;
+    }
+
+
+    public boolean isAnimatedFromJointStates() {
+        return animateFromJointStates;
+    }
+
+
     @Override
     public void draw(BaseCamera camera, Color ambientLight, Light light) {
         if (robotState != null) {
-            for (String linkName : links.keySet()) {
-                Link link = links.get(linkName);
-
-                RobotState.Transforms t = robotState.getTransforms(linkName);
-                if (t != null) {
-                    link.transforms.setPosition(0.0f, 0.0f, 0.0f);
-                    link.transforms.setOrientation(0.0f, 0.0f, 0.0f, 1.0f);
-
-                    link.transforms.translate(
-                            t.position.x, t.position.z, -t.position.y,
-                            Transforms.TRANSFORM_SPACE_PARENT
-                    );
+            long renderTime = robotState.getRenderTime();
+
+            if (animateFromJointStates) {
+                updateFromTreeKinematics(renderTime);
+            } else {
+                if (linkNames == null) {
+                    linkNames = links.keySet().toArray(new String[0]);
+                    linkEntries = new Link[linkNames.length];
+                    for (int i = 0; i < linkNames.length; ++i)
+                        linkEntries[i] = links.get(linkNames[i]);
+                }
 
-                    link.transforms.rotate(
-                            t.orientation.x, t.orientation.z, -t.orientation.y, t.orientation.w(),
-                            Transforms.TRANSFORM_SPACE_PARENT
-                    );
+                for (int i = 0; i < linkNames.length; ++i) {
+                    String linkName = linkNames[i];
+                    Link link = linkEntries[i];
 
+                    RobotState.Transforms t = renderedTransforms;
+                    if (robotState.getTransforms(linkName, renderTime, t)) {
+                        setLinkTransforms(link, t.position.x, t.position.y, t.position.z,
+                                t.orientation.x, t.orientation.y, t.orientation.z, t.orientation.w);
 
-                    Log.d(TAG, linkName + " from transforms getter: "+
-                            links.get(linkName).transforms.getPosition());
+                        if (DEBUG) {
+                            Log.d(TAG, linkName + " from transforms getter: "+
+                                    link.transforms.getPosition());
+                        }
+                    }
                 }
             }
 
-            Log.d(TAG, " end-effector position: "+ (Vector3fc)forwardKinematics());
+            if (DEBUG) {
+                Log.d(TAG, " end-effector position: "+ (Vector3fc)forwardKinematics());
+                computeJacobian();
+            }
+        }
+
+        super.draw(camera, ambientLight, light);
+    }
+
+
+    private void updateFromTreeKinematics(long renderTime) {
+        RobotState.JointState jointState = renderedJointState;
 
-            computeJacobian();
+        for (int i = 0; i < kdlTreeJointNames.length; ++i) {
+            if (!robotState.getJointState(kdlTreeJointNames[i], renderTime, jointState))
+                jointState.position = 0.0f;
 
+            kdlTreePositions.put(i, jointState.position);
         }
 
-        super.draw(camera, ambientLight, light);
+        // The links are attached to their parent, so only the local poses are needed
+        KDL.treeForwardKinematics(kdlRobot, kdlTreePositions, kdlTreePoses, true);
+
+        for (int i = 0; i < kdlSegmentLinks.length; ++i) {
+            Link link = kdlSegmentLinks[i];
+            if (link == null)
+                continue;
+
+            int offset = i * 7;
+            setLinkTransforms(link,
+                    kdlTreePoses.get(offset), kdlTreePoses.get(offset + 1), kdlTreePoses.get(offset + 2),
+                    kdlTreePoses.get(offset + 3), kdlTreePoses.get(offset + 4),
+                    kdlTreePoses.get(offset + 5), kdlTreePoses.get(offset + 6));
+        }
+    }
+
+
+    private static void setLinkTransforms(Link link, float px, float py, float pz,
+                                          float qx, float qy, float qz, float qw) {
+        link.transforms.setPosition(0.0f, 0.0f, 0.0f);
+        link.transforms.setOrientation(0.0f, 0.0f, 0.0f, 1.0f);
+
+        //convert from ROS to OpenGL coordinates
+        link.transforms.translate(px, pz, -py, Transforms.TRANSFORM_SPACE_PARENT);
+        link.transforms.rotate(qx, qz, -qy, qw, Transforms.TRANSFORM_SPACE_PARENT);
     }
 
     /**
@@ -219,9 +442,20 @@ public class Robot extends Entity {
      * @return the end-effector 3D position
      */
     public Vector3f forwardKinematics() {
-        float[] ROSpos = KDL.forwardKinematics(kdlRobot, getPositions());
+        return forwardKinematics(new Vector3f());
+    }
+
+    /**
+     * Compute the forward kinematics
+     * @param the vector receiving the end-effector 3D position
+     * @return that vector
+     */
+    public Vector3f forwardKinematics(Vector3f result) {
+        fillPositions(kdlPositions);
+        KDL.forwardKinematics(kdlRobot, kdlPositions, kdlPoses, 1);
+
         //convert from ROS to OpenGL coordinates
-        return new Vector3f(ROSpos[0], ROSpos[2], -ROSpos[1]);
+        return result.set(kdlPoses.get(0), kdlPoses.get(2), -kdlPoses.get(1));
     }
 
     /**
@@ -231,9 +465,44 @@ public class Robot extends Entity {
      * @return an array of all the joint angles in the goal position
      */
     public float[] inverseKinematics(Vector3f goalPos, Quaternionf goalOrient){
-        //convert from OpenGL to ROS coordinates
-        return KDL.inverseKinematics(kdlRobot, getPositions(), new float[]{goalPos.x, -goalPos.z, goalPos.y},
-                new float[]{goalOrient.x, goalOrient.z, goalOrient.y, goalOrient.w});
+        fillPositions(kdlPositions);
+        return solveGoal(goalPos, goalOrient);
+    }
+
+    private float[] solveGoal(Vector3f goalPos, Quaternionf goalOrient) {
+        RosCoordinates.poseToRos(goalPos, goalOrient, kdlGoal, 0);
+
+        KDL.inverseKinematics(kdlRobot, kdlPositions, kdlGoal, kdlSolution, kdlErrors, kdlStatus, 1);
+
+        float[] result = new float[kdlJointNames.length];
+        kdlSolution.position(0);
+        kdlSolution.get(result);
+        return result;
+    }
+
+    /**
+     * Create a batch of inverse kinematics goals for the kinematic chain
+     * @param the maximum number of goals
+     */
+    public IkBatch createIkBatch(int capacity) {
+        return new IkBatch(kdlJointNames.length, capacity);
+    }
+
+    /**
+     * Compute the inverse kinematics of all the goals of a batch, in sequence (use an
+     * IkBatchSolver to solve several batches in parallel)
+     * @return the number of goals that converged
+     */
+    public int inverseKinematics(IkBatch batch) {
+        if (!batch.hasInitialPositions)
+            fillInitialPositions(batch);
+
+        batch.nbConverged = KDL.inverseKinematics(
+                kdlRobot, batch.initialPositions, batch.goals, batch.result, batch.errors,
+                batch.status, batch.count
+        );
+
+        return batch.nbConverged;
     }
 
     /**
@@ -243,12 +512,17 @@ public class Robot extends Entity {
      * @return an array of all the joint angles in the goal position
      */
     public float[] inverseKinematicsWithCheck(Vector3f goalPos, Quaternionf goalOrient, float[] actualPose) {
-        if(distance(goalPos, links.get("panda_link0").transforms.getPosition())<=robotLength) {
-            return inverseKinematics(goalPos, goalOrient);
-        } else {
+        if (!isReachable(goalPos)) {
             Log.e(TAG, "The goal is out of reach!");
             return actualPose;
         }
+
+        if (reachabilityMap == null)
+            return inverseKinematics(goalPos, goalOrient);
+
+        // Start the search from the configuration stored for the goal
+        reachabilityMap.getSeed(goalPos.x, -goalPos.z, goalPos.y, kdlPositions);
+        return solveGoal(goalPos, goalOrient);
     }
 
     public double distance(Vector3fc obj1, Vector3fc obj2) {
@@ -260,25 +534,25 @@ public class Robot extends Entity {
     }
 
     /*public void compareJoints() {
-        for (int i = 0; i < kdlJointNames.size(); ++i) {
+        for (int i = 0; i < kdlJointNames.length; ++i) {
             Log.d(TAG, " real joint positions: "+ getPositions()[i]);
         }
-        for (int i = 0; i < kdlJointNames.size(); ++i) {
+        for (int i = 0; i < kdlJointNames.length; ++i) {
             Log.d(TAG, " computed joint positions: "+ inverseKinematics(forwardKinematics(), new Quaternionf())[i]);
         }
     }*/
 
 
     public void computeJacobian() {
-        float[] positions = getPositions();
-        KDL.computeJacobian(kdlRobot, positions);
+        fillPositions(kdlPositions);
+        KDL.computeJacobian(kdlRobot, kdlPositions, kdlJacobian);
     }
 
     public float[] getPositions() {
-        float[] positions = new float[kdlJointNames.size()];
+        float[] positions = new float[kdlJointNames.length];
 
-        for (int i = 0; i < kdlJointNames.size(); ++i) {
-            RobotState.JointState jointState = robotState.getJointState(kdlJointNames.get(i));
+        for (int i = 0; i < kdlJointNames.length; ++i) {
+            RobotState.JointState jointState = robotState.getJointState(kdlJointNames[i]);
 
             if (jointState != null)
                 positions[i] = jointState.position;
@@ -289,30 +563,165 @@ public class Robot extends Entity {
         return positions;
     }
 
+    /** Fill the initial positions of a batch: from the reachability map (for its first goal)
+     * if available, from the current joint positions otherwise
+     */
+    void fillInitialPositions(IkBatch batch) {
+        if ((reachabilityMap != null) && (batch.count > 0) &&
+            reachabilityMap.getSeed(batch.goals.get(0), batch.goals.get(1), batch.goals.get(2),
+                                    batch.initialPositions)) {
+            return;
+        }
 
-    public void updateFromJoinStates() {
-        Quaternionf q = new Quaternionf();
+        fillPositions(batch.initialPositions);
+    }
+
+    /** Compute the sphere containing the workspace of the end-effector: centered on the first
+     * joint of the chain, its radius is the sum of the distances between consecutive joints
+     * (constant for the revolute joints) and of the travels of the prismatic joints
+     */
+    private void computeReach(String tip) {
+        reachRadius = Float.MAX_VALUE;
+
+        resolveSegments();
 
-        for (int i = 0; i < kdlJointNames.size(); ++i) {
-            String joint = kdlJointNames.get(i);
+        // The frame of a segment is on the axis of its joint, so the poses of any
+        // configuration give the distances
+        FloatBuffer positions = KDL.allocateBuffer(kdlTreeJointNames.length);
+        FloatBuffer poses = KDL.allocateBuffer(kdlSegmentLinks.length * 7);
+        KDL.treeForwardKinematics(kdlRobot, positions, poses, false);
 
-            RobotState.JointState jointState = robotState.getJointState(joint);
+        Vector3f previous = null;
+        float radius = 0.0f;
 
-            float[] orientation = KDL.processJointPosition(
-                    kdlRobot, joint, jointState.position
+        for (int i = 0; i <= kdlJointNames.length; ++i) {
+            String linkName = (i < kdlJointNames.length ? kdlJointLinks[i] : tip);
+            int segment = (linkName != null ? KDL.getSegmentId(kdlRobot, linkName) : -1);
+            if (segment < 0)
+                return;
+
+            //convert from ROS to OpenGL coordinates
+            Vector3f origin = new Vector3f(
+                    poses.get(segment * 7), poses.get(segment * 7 + 2), -poses.get(segment * 7 + 1)
             );
 
-            q.set(orientation[0], orientation[1], orientation[2], orientation[3]);
+            if (previous == null)
+                reachCenter.set(origin);
+            else
+                radius += origin.distance(previous);
 
-            for (String linkName : links.keySet()) {
-                Link link = links.get(linkName);
+            if (i < kdlJointNames.length) {
+                UrdfJoint joint = joints.get(kdlJointNames[i]);
+                if ((joint != null) && "prismatic".equals(joint.getType())) {
+                    if (!joint.hasPositionLimits())
+                        return;
 
-                if (joint.equals(link.parentJoint)) {
-                    RobotState.Transforms t = robotState.getTransforms(linkName);
-                    robotState.putTransforms(linkName, t.position, q);
-                    break;
+                    radius += joint.getUpperLimit() - joint.getLowerLimit();
                 }
             }
+
+            previous = origin;
+        }
+
+        reachRadius = radius;
+    }
+
+    /** Resolve the names of the segments and joints of the tree once, they are then identified
+     * by their ids
+     */
+    void resolveSegments() {
+        if (kdlSegmentLinks != null)
+            return;
+
+        int nbSegments = KDL.getSegmentCount(kdlRobot);
+        int nbJoints = KDL.getTreeJointCount(kdlRobot);
+
+        kdlSegmentLinks = new Link[nbSegments];
+        for (int i = 0; i < nbSegments; ++i)
+            kdlSegmentLinks[i] = links.get(KDL.getSegmentName(kdlRobot, i));
+
+        kdlTreeJointNames = new String[nbJoints];
+        for (int i = 0; i < nbJoints; ++i)
+            kdlTreeJointNames[i] = KDL.getTreeJointName(kdlRobot, i);
+
+        kdlTreePositions = KDL.allocateBuffer(nbJoints);
+        kdlTreePoses = KDL.allocateBuffer(nbSegments * 7);
+    }
+
+    int getSegmentCount() {
+        return kdlSegmentLinks.length;
+    }
+
+    int getTreeJointCount() {
+        return kdlTreeJointNames.length;
+    }
+
+    /** Returns the ids in the tree of the joints of the kinematic chain
+     */
+    int[] getChainToTreeJointIds() {
+        int[] ids = new int[kdlJointNames.length];
+        for (int i = 0; i < kdlJointNames.length; ++i)
+            ids[i] = KDL.getTreeJointId(kdlRobot, kdlJointNames[i]);
+
+        return ids;
+    }
+
+    /** Returns the collision shape of the link of a segment, or null
+     */
+    CollisionShape getSegmentCollisionShape(int segment) {
+        Link link = kdlSegmentLinks[segment];
+        if ((link == null) || (link.kinematicBody == null) || (link.kinematicBody.getRigidBody() == null))
+            return null;
+
+        return link.kinematicBody.getRigidBody().getCollisionShape();
+    }
+
+    /** Returns the transforms of the collision shape of the link of a segment, relative to the
+     * link
+     */
+    Transforms getSegmentCollisionTransforms(int segment) {
+        Link link = kdlSegmentLinks[segment];
+        return (link != null ? link.collisionTransforms : null);
+    }
+
+    String getSegmentLinkName(int segment) {
+        return KDL.getSegmentName(kdlRobot, segment);
+    }
+
+    /** Fill the positions of the joints of the tree with their current state
+     */
+    void fillTreePositions(FloatBuffer positions) {
+        for (int i = 0; i < kdlTreeJointNames.length; ++i) {
+            RobotState.JointState jointState = robotState.getJointState(kdlTreeJointNames[i]);
+            positions.put(i, (jointState != null ? jointState.position : 0.0f));
+        }
+    }
+
+    void fillPositions(FloatBuffer positions) {
+        for (int i = 0; i < kdlJointNames.length; ++i) {
+            RobotState.JointState jointState = robotState.getJointState(kdlJointNames[i]);
+            positions.put(i, (jointState != null ? jointState.position : 0.0f));
+        }
+    }
+
+
+    public void updateFromJoinStates() {
+        Quaternionf q = new Quaternionf();
+
+        fillPositions(kdlPositions);
+        KDL.processJointPositions(kdlRobot, kdlPositions, kdlPoses);
+
+        for (int i = 0; i < kdlJointNames.length; ++i) {
+            String linkName = kdlJointLinks[i];
+            if (linkName == null)
+                continue;
+
+            q.set(kdlPoses.get(i * 7 + 3), kdlPoses.get(i * 7 + 4),
+                  kdlPoses.get(i * 7 + 5), kdlPoses.get(i * 7 + 6));
+
+            RobotState.Transforms t = robotState.getTransforms(linkName);
+            if (t != null)
+                robotState.putTransforms(linkName, t.position, q);
         }
     }
 }
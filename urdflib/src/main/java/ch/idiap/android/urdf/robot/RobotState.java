@@ -13,8 +13,8 @@ import org.joml.Quaternionfc;
 import org.joml.Vector3f;
 import org.joml.Vector3fc;
 
-import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 
 public class RobotState {
@@ -31,41 +31,406 @@ public class RobotState {
     }
 
 
-    private Map<String, Transforms> transforms = new HashMap<>();
-    private Map<String, JointState> jointStates = new HashMap<>();
+    /** Number of timestamped samples kept for each link and joint
+     */
+    public static final int DEFAULT_HISTORY_SIZE = 64;
+
+
+    /** Bounded ring buffer of timestamped samples, each sample made of a fixed number of floats
+     *
+     * Samples are expected to be added in chronological order: a sample older than the most
+     * recent one is dropped, and a sample with the same timestamp replaces it. A sample received
+     * less than 'coalescingInterval' after the previous one also replaces the most recent one,
+     * so bursts of messages don't flush the history.
+     */
+    private static class History {
+        private final long[] timestamps;
+        final float[] values;
+        private final int stride;
+        private int start = 0;
+        private int count = 0;
+
+
+        History(int size, int stride) {
+            this.timestamps = new long[size];
+            this.values = new float[size * stride];
+            this.stride = stride;
+        }
+
+
+        /** Returns the offset in the values array at which the new sample must be written, or
+         * -1 if the sample must be dropped
+         */
+        int add(long timestamp, long coalescingInterval) {
+            int size = timestamps.length;
+
+            if (count > 0) {
+                int last = (start + count - 1) % size;
+
+                if (timestamp < timestamps[last])
+                    return -1;
+
+                if (timestamp == timestamps[last])
+                    return last * stride;
+
+                if ((count > 1) &&
+                    (timestamp - timestamps[(start + count - 2) % size] < coalescingInterval)) {
+                    timestamps[last] = timestamp;
+                    return last * stride;
+                }
+            }
+
+            int index;
+            if (count < size) {
+                index = (start + count) % size;
+                ++count;
+            } else {
+                index = start;
+                start = (start + 1) % size;
+            }
+
+            timestamps[index] = timestamp;
+            return index * stride;
+        }
+
+
+        /** Look for the two samples surrounding the given time
+         *
+         * Fills 'result' with the offsets of the two samples in the values array and returns the
+         * interpolation factor between them, or returns -1 if the history is empty.
+         */
+        float find(long time, int[] result) {
+            if (count == 0)
+                return -1.0f;
+
+            int size = timestamps.length;
+            int first = start;
+            int last = (start + count - 1) % size;
+
+            if (time >= timestamps[last]) {
+                result[0] = last * stride;
+                result[1] = last * stride;
+                return 0.0f;
+            }
+
+            if (time <= timestamps[first]) {
+                result[0] = first * stride;
+                result[1] = first * stride;
+                return 0.0f;
+            }
+
+            // Binary search of the last sample not after the given time
+            int low = 0;
+            int high = count - 1;
+            while (high - low > 1) {
+                int middle = (low + high) >>> 1;
+                if (timestamps[(start + middle) % size] <= time)
+                    low = middle;
+                else
+                    high = middle;
+            }
+
+            int before = (start + low) % size;
+            int after = (start + high) % size;
+
+            result[0] = before * stride;
+            result[1] = after * stride;
+
+            return (float) (time - timestamps[before]) / (float) (timestamps[after] - timestamps[before]);
+        }
+    }
+
+
+    private static class TransformsHistory extends History {
+        final Transforms latest = new Transforms();
+        final Vector3f tmpPosition = new Vector3f();
+        final Quaternionf tmpOrientation = new Quaternionf();
+        final int[] indices = new int[2];
+
+        TransformsHistory(int size) {
+            super(size, 7);
+        }
+    }
+
+
+    private static class JointStateHistory extends History {
+        final JointState latest = new JointState();
+        final int[] indices = new int[2];
+        int index = -1;
+
+        JointStateHistory(int size) {
+            super(size, 2);
+        }
+    }
+
+
+    private final int historySize;
+    private volatile long renderDelay = 0;
+    private volatile long coalescingInterval = 0;
+
+    private Map<String, TransformsHistory> transforms = new ConcurrentHashMap<>();
+    private Map<String, JointStateHistory> jointStates = new ConcurrentHashMap<>();
+    private volatile JointStateHistory[] indexedJointStates = new JointStateHistory[0];
+
+
+    public RobotState() {
+        this(DEFAULT_HISTORY_SIZE);
+    }
+
+
+    public RobotState(int historySize) {
+        this.historySize = historySize;
+    }
+
+
+    /** Set the delay (in nanoseconds) between the current time and the time at which the state
+     * is rendered
+     *
+     * A delay slightly larger than the interval between two incoming messages allows to always
+     * interpolate between two received samples, at the cost of some latency. A delay of 0
+     * always renders the most recent sample.
+     */
+    public void setRenderDelay(long delay) {
+        renderDelay = Math.max(delay, 0);
+    }
+
+
+    public long getRenderDelay() {
+        return renderDelay;
+    }
+
+
+    /** Set the minimal interval (in nanoseconds) between two samples kept in the history
+     *
+     * Samples received faster than that replace the most recent one instead of being added
+     * to the history, which then covers a longer period of time for high-rate streams.
+     */
+    public void setCoalescingInterval(long interval) {
+        coalescingInterval = Math.max(interval, 0);
+    }
+
+
+    public long getCoalescingInterval() {
+        return coalescingInterval;
+    }
+
+
+    /** Returns the time (on the System#nanoTime() clock) at which the state must be rendered now
+     */
+    public long getRenderTime() {
+        return System.nanoTime() - renderDelay;
+    }
 
 
     public void putTransforms(String linkName, Vector3fc position, Quaternionfc orientation) {
-        Transforms t = transforms.get(linkName);
-        if (t == null) {
-            t = new Transforms();
-            transforms.put(linkName, t);
+        putTransforms(linkName, System.nanoTime(),
+                position.x(), position.y(), position.z(),
+                orientation.x(), orientation.y(), orientation.z(), orientation.w());
+    }
+
+
+    public void putTransforms(String linkName, long timestamp, Vector3fc position, Quaternionfc orientation) {
+        putTransforms(linkName, timestamp,
+                position.x(), position.y(), position.z(),
+                orientation.x(), orientation.y(), orientation.z(), orientation.w());
+    }
+
+
+    public void putTransforms(String linkName, long timestamp, float x, float y, float z,
+                              float qx, float qy, float qz, float qw) {
+        TransformsHistory history = transforms.get(linkName);
+        if (history == null) {
+            history = new TransformsHistory(historySize);
+
+            TransformsHistory previous = transforms.putIfAbsent(linkName, history);
+            if (previous != null)
+                history = previous;
         }
 
-        t.position.set(position);
-        t.orientation.set(orientation);
+        synchronized (history) {
+            int offset = history.add(timestamp, coalescingInterval);
+            if (offset == -1)
+                return;
+
+            float[] values = history.values;
+            values[offset] = x;
+            values[offset + 1] = y;
+            values[offset + 2] = z;
+            values[offset + 3] = qx;
+            values[offset + 4] = qy;
+            values[offset + 5] = qz;
+            values[offset + 6] = qw;
+
+            history.latest.position.set(x, y, z);
+            history.latest.orientation.set(qx, qy, qz, qw);
+        }
     }
 
 
+    /** Returns the most recent transforms of a link
+     */
     public Transforms getTransforms(String linkName) {
-        return transforms.get(linkName);
+        TransformsHistory history = transforms.get(linkName);
+        return (history != null ? history.latest : null);
+    }
+
+
+    /** Compute the transforms of a link at the given time (on the System#nanoTime() clock)
+     *
+     * The position is linearly interpolated and the orientation spherically interpolated
+     * between the two samples surrounding that time. Returns false if no sample was received
+     * for this link.
+     */
+    public boolean getTransforms(String linkName, long time, Transforms out) {
+        TransformsHistory history = transforms.get(linkName);
+        if (history == null)
+            return false;
+
+        synchronized (history) {
+            float alpha = history.find(time, history.indices);
+            if (alpha < 0.0f)
+                return false;
+
+            float[] values = history.values;
+            int a = history.indices[0];
+            int b = history.indices[1];
+
+            out.position.set(values[a], values[a + 1], values[a + 2]);
+            out.orientation.set(values[a + 3], values[a + 4], values[a + 5], values[a + 6]);
+
+            if (a != b) {
+                out.position.lerp(
+                        history.tmpPosition.set(values[b], values[b + 1], values[b + 2]), alpha
+                );
+
+                out.orientation.slerp(
+                        history.tmpOrientation.set(values[b + 3], values[b + 4], values[b + 5], values[b + 6]),
+                        alpha
+                );
+            }
+        }
+
+        return true;
     }
 
 
     public void putJointState(String jointName, float position, float velocity) {
-        JointState s = jointStates.get(jointName);
-        if (s == null) {
-            s = new JointState();
-            jointStates.put(jointName, s);
+        putJointState(jointName, System.nanoTime(), position, velocity);
+    }
+
+
+    public void putJointState(String jointName, long timestamp, float position, float velocity) {
+        putJointState(getJointStateHistory(jointName), timestamp, position, velocity);
+    }
+
+
+    /** Returns the index of a joint, to use with RobotState#putJointStates()
+     *
+     * The index of a joint never changes, so it can be retrieved once and cached.
+     */
+    public synchronized int getJointIndex(String jointName) {
+        JointStateHistory history = getJointStateHistory(jointName);
+
+        if (history.index == -1) {
+            JointStateHistory[] histories = new JointStateHistory[indexedJointStates.length + 1];
+            System.arraycopy(indexedJointStates, 0, histories, 0, indexedJointStates.length);
+
+            history.index = indexedJointStates.length;
+            histories[history.index] = history;
+
+            indexedJointStates = histories;
         }
 
-        s.position = position;
-        s.velocity = velocity;
+        return history.index;
     }
 
 
+    /** Put the state of several joints at once, identified by their index
+     *
+     * The joint at index 'indices[i]' receives 'positions[i]' and 'velocities[i]' (or 0 if
+     * those arrays are too short).
+     */
+    public void putJointStates(int[] indices, int count, long timestamp,
+                               double[] positions, double[] velocities) {
+        JointStateHistory[] histories = indexedJointStates;
+
+        for (int i = 0; i < count; ++i) {
+            float position = (positions.length > i ? (float) positions[i] : 0.0f);
+            float velocity = (velocities.length > i ? (float) velocities[i] : 0.0f);
+
+            putJointState(histories[indices[i]], timestamp, position, velocity);
+        }
+    }
+
+
+    /** Put the state of a joint identified by its index (see RobotState#getJointIndex())
+     */
+    public void putJointState(int jointIndex, long timestamp, float position, float velocity) {
+        putJointState(indexedJointStates[jointIndex], timestamp, position, velocity);
+    }
+
+
+    private JointStateHistory getJointStateHistory(String jointName) {
+        JointStateHistory history = jointStates.get(jointName);
+        if (history == null) {
+            history = new JointStateHistory(historySize);
+
+            JointStateHistory previous = jointStates.putIfAbsent(jointName, history);
+            if (previous != null)
+                history = previous;
+        }
+
+        return history;
+    }
+
+
+    private void putJointState(JointStateHistory history, long timestamp, float position, float velocity) {
+        synchronized (history) {
+            int offset = history.add(timestamp, coalescingInterval);
+            if (offset == -1)
+                return;
+
+            history.values[offset] = position;
+            history.values[offset + 1] = velocity;
+
+            history.latest.position = position;
+            history.latest.velocity = velocity;
+        }
+    }
+
+
+    /** Returns the most recent state of a joint
+     */
     public JointState getJointState(String jointName) {
-        return jointStates.get(jointName);
+        JointStateHistory history = jointStates.get(jointName);
+        return (history != null ? history.latest : null);
+    }
+
+
+    /** Compute the state of a joint at the given time (on the System#nanoTime() clock), by
+     * linear interpolation between the two samples surrounding that time
+     *
+     * Returns false if no sample was received for this joint.
+     */
+    public boolean getJointState(String jointName, long time, JointState out) {
+        JointStateHistory history = jointStates.get(jointName);
+        if (history == null)
+            return false;
+
+        synchronized (history) {
+            float alpha = history.find(time, history.indices);
+            if (alpha < 0.0f)
+                return false;
+
+            float[] values = history.values;
+            int a = history.indices[0];
+            int b = history.indices[1];
+
+            out.position = values[a] + (values[b] - values[a]) * alpha;
+            out.velocity = values[a + 1] + (values[b + 1] - values[a + 1]) * alpha;
+        }
+
+        return true;
     }
 
 }
@@ -0,0 +1,45 @@
+/*
+ * Copyright (C) 2020 Idiap Research Institute
+ *
+ * Authors:
+ *   philip.abbet@idiap.ch (Philip Abbet)
+ */
+
+package ch.idiap.android.urdf.robot;
+
+import org.joml.Quaternionfc;
+import org.joml.Vector3fc;
+
+import java.nio.FloatBuffer;
+
+
+/** Conversion of the poses from OpenGL to ROS coordinates, as 7 floats (position, then
+ * orientation as a quaternion)
+ *
+ * The inverse of the conversion applied to the links: a ROS vector (x, y, z) is (x, z, -y)
+ * in OpenGL, so an OpenGL vector (x, y, z) is (x, -z, y) in ROS, for both the position and
+ * the vector part of the quaternion.
+ */
+final class RosCoordinates {
+
+    private RosCoordinates() {
+    }
+
+
+    static void poseToRos(Vector3fc position, Quaternionfc orientation, float[] out, int offset) {
+        out[offset] = position.x();
+        out[offset + 1] = -position.z();
+        out[offset + 2] = position.y();
+        out[offset + 3] = orientation.x();
+        out[offset + 4] = -orientation.z();
+        out[offset + 5] = orientation.y();
+        out[offset + 6] = orientation.w();
+    }
+
+
+    static void poseToRos(Vector3fc position, Quaternionfc orientation, FloatBuffer out, int offset) {
+        out.put(offset, position.x()).put(offset + 1, -position.z()).put(offset + 2, position.y());
+        out.put(offset + 3, orientation.x()).put(offset + 4, -orientation.z())
+           .put(offset + 5, orientation.y()).put(offset + 6, orientation.w());
+    }
+}
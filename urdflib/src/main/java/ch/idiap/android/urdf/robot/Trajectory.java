@@ -0,0 +1,129 @@
+/*
+ * Copyright (C) 2020 Idiap Research Institute
+ *
+ * Authors:
+ *   philip.abbet@idiap.ch (Philip Abbet)
+ */
+
+package ch.idiap.android.urdf.robot;
+
+
+/** A joint-space trajectory through a sequence of waypoints, made of one quintic polynomial
+ * per joint and per segment (between two consecutive waypoints)
+ *
+ * The positions, velocities and accelerations are continuous. Instances are immutable, and
+ * produced by a TrajectoryPlanner.
+ */
+public class Trajectory {
+
+    // Number of coefficients of the polynomial of a joint, during a segment
+    static final int NB_COEFFICIENTS = 6;
+
+
+    private final int nbJoints;
+    private final int nbWaypoints;
+    private final float[] waypoints;        // nbWaypoints * nbJoints
+    private final boolean[] reached;        // per waypoint: false if its IK failed
+    private final double[] startTimes;      // nbWaypoints (start of each segment, then the end)
+    private final double[] coefficients;    // (nbWaypoints - 1) * nbJoints * NB_COEFFICIENTS
+
+
+    Trajectory(int nbJoints, int nbWaypoints, float[] waypoints, boolean[] reached,
+               double[] startTimes, double[] coefficients) {
+        this.nbJoints = nbJoints;
+        this.nbWaypoints = nbWaypoints;
+        this.waypoints = waypoints;
+        this.reached = reached;
+        this.startTimes = startTimes;
+        this.coefficients = coefficients;
+    }
+
+
+    public int getJointCount() {
+        return nbJoints;
+    }
+
+
+    public int getWaypointCount() {
+        return nbWaypoints;
+    }
+
+
+    /** Returns the duration of the trajectory, in seconds
+     */
+    public double getDuration() {
+        return (nbWaypoints > 0 ? startTimes[nbWaypoints - 1] : 0.0);
+    }
+
+
+    /** Returns the time (in seconds) at which a waypoint is reached
+     */
+    public double getWaypointTime(int index) {
+        return startTimes[index];
+    }
+
+
+    /** Indicates if the joint positions of a waypoint reach the corresponding end-effector
+     * goal (false if the inverse kinematics didn't converge, or if the solution violates the
+     * limits of the joints)
+     */
+    public boolean isWaypointReached(int index) {
+        return reached[index];
+    }
+
+
+    public float[] getWaypoint(int index, float[] out) {
+        System.arraycopy(waypoints, index * nbJoints, out, 0, nbJoints);
+        return out;
+    }
+
+
+    /** Compute the joint positions and velocities (either can be null) at a given time, in
+     * seconds (clamped to the duration of the trajectory)
+     */
+    public void sample(double time, float[] positions, float[] velocities) {
+        if (nbWaypoints == 0)
+            return;
+
+        if (nbWaypoints == 1) {
+            for (int j = 0; j < nbJoints; ++j) {
+                if (positions != null)
+                    positions[j] = waypoints[j];
+                if (velocities != null)
+                    velocities[j] = 0.0f;
+            }
+            return;
+        }
+
+        time = Math.max(0.0, Math.min(time, getDuration()));
+
+        // Binary search of the segment
+        int low = 0;
+        int high = nbWaypoints - 2;
+        while (low < high) {
+            int middle = (low + high + 1) >>> 1;
+            if (startTimes[middle] <= time)
+                low = middle;
+            else
+                high = middle - 1;
+        }
+
+        double t = time - startTimes[low];
+
+        for (int j = 0; j < nbJoints; ++j) {
+            int offset = (low * nbJoints + j) * NB_COEFFICIENTS;
+            double c0 = coefficients[offset];
+            double c1 = coefficients[offset + 1];
+            double c2 = coefficients[offset + 2];
+            double c3 = coefficients[offset + 3];
+            double c4 = coefficients[offset + 4];
+            double c5 = coefficients[offset + 5];
+
+            if (positions != null)
+                positions[j] = (float) (c0 + t * (c1 + t * (c2 + t * (c3 + t * (c4 + t * c5)))));
+
+            if (velocities != null)
+                velocities[j] = (float) (c1 + t * (2.0 * c2 + t * (3.0 * c3 + t * (4.0 * c4 + t * 5.0 * c5))));
+        }
+    }
+}
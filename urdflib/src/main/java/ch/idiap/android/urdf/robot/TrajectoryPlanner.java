@@ -0,0 +1,617 @@
+/*
+ * Copyright (C) 2020 Idiap Research Institute
+ *
+ * Authors:
+ *   philip.abbet@idiap.ch (Philip Abbet)
+ */
+
+package ch.idiap.android.urdf.robot;
+
+import org.joml.Quaternionfc;
+import org.joml.Vector3fc;
+
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import ch.idiap.android.kdl.KDL;
+
+
+/** Generate a joint-space trajectory through a sequence of end-effector via-points
+ *
+ * The trajectory starts from the joint positions of the robot when the planner is created
+ * (see setStartPositions()), and goes through the inverse kinematics solution of each
+ * via-point (a via-point whose solution doesn't converge, or violates the limits of the
+ * joints, isn't reached). With the reachability map of the robot, the via-points out of
+ * reach are rejected without searching (the robot stays at the previous waypoint), and a
+ * search that doesn't converge from the previous waypoint is started again from the seed of
+ * the map. Each segment is a quintic polynomial per joint, with zero accelerations at the
+ * waypoints and velocities chosen from the neighbouring segments. The duration of a segment
+ * is the shortest one keeping the joints (approximately) within their velocity and
+ * acceleration limits.
+ *
+ * The work is done on a background thread, and the listener is notified (on that thread)
+ * each time a new trajectory is available. Only the via-points that changed are solved
+ * again, only the segments around them are recomputed, and consecutive modifications of the
+ * via-points (while dragging one) are coalesced. The runs of via-points that changed between
+ * two unchanged waypoints don't depend on each other, and are solved in parallel (see
+ * IkBatchSolver).
+ */
+public class TrajectoryPlanner {
+
+    public interface Listener {
+        void onTrajectoryUpdated(Trajectory trajectory);
+    }
+
+
+    // Used for the joints without velocity limit in the URDF file (rad/s)
+    public static final float DEFAULT_VELOCITY_LIMIT = 1.0f;
+
+    // The URDF files don't specify accelerations (rad/s^2)
+    public static final float DEFAULT_ACCELERATION_LIMIT = 5.0f;
+
+    // Shortest duration of a segment (s)
+    public static final double MIN_SEGMENT_DURATION = 0.1;
+
+    // Peak velocity and acceleration of a quintic rest-to-rest motion of amplitude 1 and
+    // duration 1
+    private static final double QUINTIC_PEAK_VELOCITY = 1.875;
+    private static final double QUINTIC_PEAK_ACCELERATION = 5.7735;
+
+    // Threads solving the runs of via-points, besides the planning thread
+    private static final int NB_IK_THREADS = 2;
+
+
+    /** A waypoint of the trajectory, with the cached results of the planning
+     */
+    static class ViaPoint {
+        final float[] goal = new float[7];  // end-effector pose, in ROS coordinates
+        boolean dirty = true;               // the goal changed since the last planning (guarded
+                                            // by the planner)
+
+        // Only accessed by the planning thread
+        float[] solution;
+        boolean reached = false;
+        boolean changed = true;             // the solution changed during this planning
+        double[] velocities;
+
+        // Neighbours in the sequence during the last planning
+        ViaPoint previous = null;
+        ViaPoint next = null;
+
+        // Segment starting at this waypoint
+        ViaPoint segmentEnd = null;
+        double duration = 0.0;
+        double[] coefficients;
+    }
+
+
+    private final Listener listener;
+    private final Robot robot;
+    private final int nbJoints;
+    private final float[] velocityLimits;
+    private final float[] accelerationLimits;
+    private final JointLimits jointLimits;
+
+    private final ExecutorService executor;
+    private final IkBatchSolver ikSolver;
+
+    // Only accessed by the planning thread
+    private final List<IkBatch> batches = new ArrayList<>();
+    private final IkBatch retryBatch;
+
+    // Modified by the caller, guarded by 'this'
+    private final ViaPoint start;
+    private final float[] startPositions;
+    private final List<ViaPoint> viaPoints = new ArrayList<>();
+    private boolean planningScheduled = false;
+    private boolean released = false;
+    private boolean solverInUse = false;
+
+    private final Runnable planningTask = this::plan;
+
+
+    /** The kinematic chain of the robot must have been set
+     */
+    public TrajectoryPlanner(Robot robot, Listener listener) {
+        this.listener = listener;
+        this.robot = robot;
+
+        nbJoints = robot.getKinematicJointCount();
+
+        velocityLimits = new float[nbJoints];
+        robot.getVelocityLimits(velocityLimits, DEFAULT_VELOCITY_LIMIT);
+
+        accelerationLimits = new float[nbJoints];
+        Arrays.fill(accelerationLimits, DEFAULT_ACCELERATION_LIMIT);
+
+        jointLimits = robot.getJointLimits();
+
+        ikSolver = new IkBatchSolver(robot, NB_IK_THREADS);
+        retryBatch = robot.createIkBatch(1);
+
+        start = newViaPoint();
+        start.solution = new float[nbJoints];
+        start.reached = true;
+
+        startPositions = new float[nbJoints];
+        FloatBuffer positions = KDL.allocateBuffer(nbJoints);
+        robot.fillPositions(positions);
+        positions.get(startPositions);
+
+        executor = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "TrajectoryPlanner");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+
+    /** Only used by the tests: the via-points are given with their solutions, no IK solver
+     * nor planning thread
+     */
+    TrajectoryPlanner(float[] velocityLimits, float[] accelerationLimits) {
+        listener = null;
+        robot = null;
+        nbJoints = velocityLimits.length;
+        this.velocityLimits = velocityLimits.clone();
+        this.accelerationLimits = accelerationLimits.clone();
+        jointLimits = null;
+
+        executor = null;
+        ikSolver = null;
+        retryBatch = null;
+
+        start = newViaPoint();
+        start.solution = new float[nbJoints];
+        start.reached = true;
+        startPositions = new float[nbJoints];
+    }
+
+
+    /** Set the acceleration limits of the joints (in the order of the kinematic chain)
+     */
+    public synchronized void setAccelerationLimits(float[] limits) {
+        System.arraycopy(limits, 0, accelerationLimits, 0, nbJoints);
+        invalidateAll();
+    }
+
+
+    /** Set the joint positions at the start of the trajectory
+     */
+    public synchronized void setStartPositions(float[] positions) {
+        System.arraycopy(positions, 0, startPositions, 0, nbJoints);
+        start.dirty = true;
+        schedulePlanning();
+    }
+
+
+    /** Insert a via-point (in local coordinates) in the sequence
+     */
+    public synchronized void addViaPoint(int index, Vector3fc position, Quaternionfc orientation) {
+        ViaPoint viaPoint = newViaPoint();
+        setGoal(viaPoint, position, orientation);
+        viaPoints.add(index, viaPoint);
+        schedulePlanning();
+    }
+
+
+    /** Append a via-point (in local coordinates) to the sequence
+     */
+    public synchronized void addViaPoint(Vector3fc position, Quaternionfc orientation) {
+        addViaPoint(viaPoints.size(), position, orientation);
+    }
+
+
+    public synchronized void moveViaPoint(int index, Vector3fc position, Quaternionfc orientation) {
+        setGoal(viaPoints.get(index), position, orientation);
+        schedulePlanning();
+    }
+
+
+    public synchronized void removeViaPoint(int index) {
+        viaPoints.remove(index);
+        schedulePlanning();
+    }
+
+
+    public synchronized void clear() {
+        viaPoints.clear();
+        schedulePlanning();
+    }
+
+
+    public synchronized int getViaPointCount() {
+        return viaPoints.size();
+    }
+
+
+    /** Stop the planning thread and release the native solvers (once the current planning,
+     * if any, is done)
+     */
+    public void release() {
+        synchronized (this) {
+            released = true;
+
+            if (!solverInUse)
+                ikSolver.release();
+        }
+
+        executor.shutdownNow();
+    }
+
+
+    ViaPoint newViaPoint() {
+        ViaPoint viaPoint = new ViaPoint();
+        viaPoint.velocities = new double[nbJoints];
+        viaPoint.coefficients = new double[nbJoints * Trajectory.NB_COEFFICIENTS];
+        return viaPoint;
+    }
+
+
+    private static void setGoal(ViaPoint viaPoint, Vector3fc position, Quaternionfc orientation) {
+        RosCoordinates.poseToRos(position, orientation, viaPoint.goal, 0);
+
+        viaPoint.dirty = true;
+    }
+
+
+    private void invalidateAll() {
+        start.dirty = true;
+        for (ViaPoint viaPoint : viaPoints)
+            viaPoint.dirty = true;
+
+        schedulePlanning();
+    }
+
+
+    private void schedulePlanning() {
+        if (planningScheduled || released)
+            return;
+
+        planningScheduled = true;
+        executor.execute(planningTask);
+    }
+
+
+    private void plan() {
+        synchronized (this) {
+            if (released)
+                return;
+
+            solverInUse = true;
+        }
+
+        try {
+            update();
+        } finally {
+            // The solvers were kept alive by release() until now
+            synchronized (this) {
+                solverInUse = false;
+
+                if (released)
+                    ikSolver.release();
+            }
+        }
+    }
+
+
+    private void update() {
+        // Take a snapshot of the sequence, and of the goals that changed
+        List<ViaPoint> sequence = new ArrayList<>();
+        float[] accelerations = new float[nbJoints];
+        List<float[]> goals = new ArrayList<>();
+
+        synchronized (this) {
+            planningScheduled = false;
+
+            sequence.add(start);
+            sequence.addAll(viaPoints);
+
+            // The "goal" of the start are its joint positions
+            goals.add(start.dirty ? startPositions.clone() : null);
+            start.dirty = false;
+
+            for (ViaPoint viaPoint : viaPoints) {
+                goals.add(viaPoint.dirty ? viaPoint.goal.clone() : null);
+                viaPoint.dirty = false;
+            }
+
+            System.arraycopy(accelerationLimits, 0, accelerations, 0, nbJoints);
+        }
+
+        int nbWaypoints = sequence.size();
+
+        if (goals.get(0) != null) {
+            System.arraycopy(goals.get(0), 0, start.solution, 0, nbJoints);
+            start.changed = true;
+        }
+
+        solveViaPoints(sequence, goals);
+
+        // Released in the meantime
+        if (Thread.currentThread().isInterrupted())
+            return;
+
+        listener.onTrajectoryUpdated(updateSegments(sequence, accelerations));
+    }
+
+
+    /** Recompute the segments around the waypoints whose solution changed (or whose
+     * neighbours changed), and build the trajectory
+     */
+    Trajectory updateSegments(List<ViaPoint> sequence, float[] accelerations) {
+        int nbWaypoints = sequence.size();
+
+        // Durations of the segments
+        boolean[] durationChanged = new boolean[nbWaypoints];
+
+        for (int i = 0; i < nbWaypoints - 1; ++i) {
+            ViaPoint from = sequence.get(i);
+            ViaPoint to = sequence.get(i + 1);
+
+            if ((from.segmentEnd != to) || from.changed || to.changed) {
+                from.segmentEnd = to;
+                from.duration = computeDuration(from.solution, to.solution, accelerations);
+                durationChanged[i] = true;
+            }
+        }
+
+        // Velocities at the waypoints (zero at both ends, so always recomputed there: a
+        // waypoint becomes the last one when the via-points after it are removed)
+        boolean[] velocityChanged = new boolean[nbWaypoints];
+
+        for (int i = 0; i < nbWaypoints; ++i) {
+            ViaPoint viaPoint = sequence.get(i);
+            ViaPoint previous = (i > 0 ? sequence.get(i - 1) : null);
+            ViaPoint next = (i < nbWaypoints - 1 ? sequence.get(i + 1) : null);
+
+            boolean inputsChanged = viaPoint.changed || (previous == null) || (next == null) ||
+                    (viaPoint.previous != previous) || (viaPoint.next != next) ||
+                    durationChanged[i - 1] || previous.changed ||
+                    durationChanged[i] || next.changed;
+
+            viaPoint.previous = previous;
+            viaPoint.next = next;
+
+            if (inputsChanged)
+                velocityChanged[i] = computeVelocities(sequence, i);
+        }
+
+        // Polynomials of the segments whose boundary conditions changed
+        for (int i = 0; i < nbWaypoints - 1; ++i) {
+            ViaPoint from = sequence.get(i);
+            ViaPoint to = sequence.get(i + 1);
+
+            if (durationChanged[i] || velocityChanged[i] || velocityChanged[i + 1] ||
+                from.changed || to.changed) {
+                computeCoefficients(from, to);
+            }
+        }
+
+        for (ViaPoint viaPoint : sequence)
+            viaPoint.changed = false;
+
+        return buildTrajectory(sequence);
+    }
+
+
+    /** Inverse kinematics of the via-points that changed, each search starting from the
+     * previous waypoint
+     *
+     * Each run of via-points that changed starts from an unchanged waypoint, so the runs are
+     * solved in parallel, one batch per run (the goals of a batch are warm-started from the
+     * previous solution). The goals out of reach aren't searched: the robot stays at the
+     * previous waypoint.
+     */
+    private void solveViaPoints(List<ViaPoint> sequence, List<float[]> goals) {
+        ReachabilityMap reachabilityMap = robot.getReachabilityMap();
+        int nbWaypoints = sequence.size();
+
+        List<IkBatch> runs = new ArrayList<>();
+        List<Integer> runStarts = new ArrayList<>();
+
+        for (int i = 1; i < nbWaypoints; ++i) {
+            float[] goal = goals.get(i);
+            if (goal == null)
+                continue;
+
+            if ((i == 1) || (goals.get(i - 1) == null)) {
+                IkBatch batch = getBatch(runs.size(), nbWaypoints - i);
+                batch.clear();
+                batch.setInitialPositions(sequence.get(i - 1).solution);
+
+                runs.add(batch);
+                runStarts.add(i);
+            }
+
+            if (isReachable(reachabilityMap, goal))
+                runs.get(runs.size() - 1).addGoal(goal);
+        }
+
+        ikSolver.solveAll(runs);
+
+        if (Thread.currentThread().isInterrupted())
+            return;
+
+        for (int r = 0; r < runs.size(); ++r) {
+            IkBatch batch = runs.get(r);
+            int index = 0;
+
+            for (int i = runStarts.get(r); (i < nbWaypoints) && (goals.get(i) != null); ++i) {
+                ViaPoint viaPoint = sequence.get(i);
+                float[] goal = goals.get(i);
+
+                if (viaPoint.solution == null)
+                    viaPoint.solution = new float[nbJoints];
+
+                viaPoint.changed = true;
+
+                if (!isReachable(reachabilityMap, goal)) {
+                    System.arraycopy(sequence.get(i - 1).solution, 0, viaPoint.solution, 0, nbJoints);
+                    viaPoint.reached = false;
+                    continue;
+                }
+
+                boolean converged = batch.hasConverged(index);
+                batch.getPositions(index, viaPoint.solution);
+                ++index;
+
+                if (!converged && (reachabilityMap != null))
+                    converged = solveFromSeed(reachabilityMap, goal, viaPoint.solution);
+
+                // The solver doesn't know the limits of the joints: a solution violating them
+                // is clamped (so the trajectory can be executed by the robot), and the
+                // via-point isn't reached
+                boolean valid = jointLimits.enforce(viaPoint.solution);
+
+                viaPoint.reached = converged && valid;
+            }
+        }
+    }
+
+
+    /** Search again from the seed of the reachability map (if any), after a search from the
+     * previous waypoint didn't converge
+     */
+    private boolean solveFromSeed(ReachabilityMap reachabilityMap, float[] goal, float[] solution) {
+        if (!reachabilityMap.getSeed(goal[0], goal[1], goal[2], retryBatch.initialPositions))
+            return false;
+
+        retryBatch.hasInitialPositions = true;
+        retryBatch.clear();
+        retryBatch.addGoal(goal);
+
+        ikSolver.solve(retryBatch);
+
+        retryBatch.getPositions(0, solution);
+        return retryBatch.hasConverged(0);
+    }
+
+
+    private static boolean isReachable(ReachabilityMap reachabilityMap, float[] goal) {
+        return (reachabilityMap == null) || reachabilityMap.isReachable(goal[0], goal[1], goal[2]);
+    }
+
+
+    /** Returns the batch used for a run, with at least the given capacity (the batches are
+     * kept between the plannings)
+     */
+    private IkBatch getBatch(int run, int capacity) {
+        if (run == batches.size())
+            batches.add(null);
+
+        IkBatch batch = batches.get(run);
+
+        if ((batch == null) || (batch.getCapacity() < capacity)) {
+            batch = robot.createIkBatch(capacity);
+            batches.set(run, batch);
+        }
+
+        return batch;
+    }
+
+
+    private double computeDuration(float[] from, float[] to, float[] accelerations) {
+        double duration = MIN_SEGMENT_DURATION;
+
+        for (int j = 0; j < nbJoints; ++j) {
+            double distance = Math.abs(to[j] - from[j]);
+
+            duration = Math.max(duration, QUINTIC_PEAK_VELOCITY * distance / velocityLimits[j]);
+            duration = Math.max(duration, Math.sqrt(QUINTIC_PEAK_ACCELERATION * distance / accelerations[j]));
+        }
+
+        return duration;
+    }
+
+
+    /** Compute the velocities at a waypoint: the average of the slopes of the surrounding
+     * segments, or zero where the direction of a joint changes
+     *
+     * Returns true if they changed.
+     */
+    private boolean computeVelocities(List<ViaPoint> sequence, int index) {
+        ViaPoint viaPoint = sequence.get(index);
+        boolean changed = false;
+
+        for (int j = 0; j < nbJoints; ++j) {
+            double velocity = 0.0;
+
+            if ((index > 0) && (index < sequence.size() - 1)) {
+                ViaPoint previous = sequence.get(index - 1);
+                ViaPoint next = sequence.get(index + 1);
+
+                double slope1 = (viaPoint.solution[j] - previous.solution[j]) / previous.duration;
+                double slope2 = (next.solution[j] - viaPoint.solution[j]) / viaPoint.duration;
+
+                if (slope1 * slope2 > 0.0) {
+                    velocity = 0.5 * (slope1 + slope2);
+                    velocity = Math.max(-velocityLimits[j], Math.min(velocity, velocityLimits[j]));
+                }
+            }
+
+            if (viaPoint.velocities[j] != velocity) {
+                viaPoint.velocities[j] = velocity;
+                changed = true;
+            }
+        }
+
+        return changed;
+    }
+
+
+    /** Compute the quintic polynomials of a segment, with zero accelerations at both ends
+     */
+    private void computeCoefficients(ViaPoint from, ViaPoint to) {
+        double t = from.duration;
+        double t2 = t * t;
+        double t3 = t2 * t;
+
+        for (int j = 0; j < nbJoints; ++j) {
+            double p0 = from.solution[j];
+            double v0 = from.velocities[j];
+            double h = to.solution[j] - p0;
+            double v1 = to.velocities[j];
+
+            int offset = j * Trajectory.NB_COEFFICIENTS;
+            from.coefficients[offset] = p0;
+            from.coefficients[offset + 1] = v0;
+            from.coefficients[offset + 2] = 0.0;
+            from.coefficients[offset + 3] = (20.0 * h - (8.0 * v1 + 12.0 * v0) * t) / (2.0 * t3);
+            from.coefficients[offset + 4] = (-30.0 * h + (14.0 * v1 + 16.0 * v0) * t) / (2.0 * t3 * t);
+            from.coefficients[offset + 5] = (12.0 * h - 6.0 * (v1 + v0) * t) / (2.0 * t3 * t2);
+        }
+    }
+
+
+    private Trajectory buildTrajectory(List<ViaPoint> sequence) {
+        int nbWaypoints = sequence.size();
+
+        float[] waypoints = new float[nbWaypoints * nbJoints];
+        boolean[] reached = new boolean[nbWaypoints];
+        double[] startTimes = new double[nbWaypoints];
+        double[] coefficients = new double[Math.max(nbWaypoints - 1, 0) * nbJoints * Trajectory.NB_COEFFICIENTS];
+
+        double time = 0.0;
+
+        for (int i = 0; i < nbWaypoints; ++i) {
+            ViaPoint viaPoint = sequence.get(i);
+
+            System.arraycopy(viaPoint.solution, 0, waypoints, i * nbJoints, nbJoints);
+            reached[i] = viaPoint.reached;
+            startTimes[i] = time;
+
+            if (i < nbWaypoints - 1) {
+                System.arraycopy(viaPoint.coefficients, 0, coefficients,
+                                 i * nbJoints * Trajectory.NB_COEFFICIENTS, viaPoint.coefficients.length);
+                time += viaPoint.duration;
+            }
+        }
+
+        return new Trajectory(nbJoints, nbWaypoints, waypoints, reached, startTimes, coefficients);
+    }
+}
@@ -0,0 +1,557 @@
+/*
+ * Copyright (C) 2020 Idiap Research Institute
+ *
+ * Authors:
+ *   philip.abbet@idiap.ch (Philip Abbet)
+ */
+
+package ch.idiap.android.urdf.robot;
+
+import com.bulletphysics.collision.broadphase.DbvtBroadphase;
+import com.bulletphysics.collision.dispatch.CollisionDispatcher;
+import com.bulletphysics.collision.dispatch.CollisionObject;
+import com.bulletphysics.collision.dispatch.CollisionWorld;
+import com.bulletphysics.collision.dispatch.DefaultCollisionConfiguration;
+import com.bulletphysics.collision.shapes.BoxShape;
+import com.bulletphysics.collision.shapes.CollisionShape;
+import com.bulletphysics.collision.shapes.ConvexShape;
+import com.bulletphysics.extras.gimpact.GImpactCollisionAlgorithm;
+import com.bulletphysics.linearmath.Transform;
+import com.bulletphysics.util.ObjectArrayList;
+
+import org.joml.Quaternionf;
+import org.joml.Vector3f;
+import org.joml.Vector3fc;
+
+import java.nio.FloatBuffer;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
+
+import javax.vecmath.Quat4f;
+
+import ch.idiap.android.glrenderer.entities.Transforms;
+import ch.idiap.android.glrenderer.physics.PhysicBody;
+import ch.idiap.android.glrenderer.physics.World;
+import ch.idiap.android.kdl.KDL;
+
+
+/** Check that a planned trajectory doesn't make the links of the robot collide with the other
+ * objects of its physics world (props, ground, ...)
+ *
+ * The trajectory is sampled, and the collision shape of each link is swept between two
+ * consecutive samples, so thin obstacles between the samples are detected. The convex sweep of
+ * JBullet only interpolates the position (the shape keeps the orientation of the start), so an
+ * interval during which a link rotates is split in smaller sweeps, until the rotation during
+ * each one moves the points of the link by less than 1 cm. Links with concave (mesh) shapes
+ * are swept as their bounding box, which is conservative.
+ *
+ * The intervals between the samples are split in chunks checked in parallel, each thread
+ * with its own copy of the collision world, and the check stops at the first collision.
+ *
+ * The poses of the links are computed from the current pose of the robot by prepare(), on the
+ * rendering thread. The returned sweep can then be checked by validate() on another thread.
+ */
+public class TrajectoryValidator {
+
+    /** The first collision found along a trajectory
+     */
+    public static class Collision {
+        public final double time;           // start of the interval, in seconds
+        public final String linkName;
+        public final PhysicBody obstacle;   // null if not a PhysicBody
+
+        Collision(double time, String linkName, PhysicBody obstacle) {
+            this.time = time;
+            this.linkName = linkName;
+            this.obstacle = obstacle;
+        }
+    }
+
+
+    /** The poses of the links along a trajectory, and a snapshot of the obstacles around
+     * them, ready to be checked
+     */
+    public static class Sweep {
+        private final Trajectory trajectory;
+        private final int nbSamples;
+        private final float[] poses;    // 7 floats per segment, per sample
+        private final ObjectArrayList<CollisionObject> obstacles;
+
+        Sweep(Trajectory trajectory, int nbSamples, float[] poses,
+              ObjectArrayList<CollisionObject> obstacles) {
+            this.trajectory = trajectory;
+            this.nbSamples = nbSamples;
+            this.poses = poses;
+            this.obstacles = obstacles;
+        }
+
+        public Trajectory getTrajectory() {
+            return trajectory;
+        }
+    }
+
+
+    public static final double DEFAULT_TIME_STEP = 0.05;
+
+    // Largest displacement of the points of a link caused by its rotation during one sweep
+    // (1 cm, in the units of the physics world), and maximum number of sweeps per interval
+    private static final float ROTATION_MARGIN = 0.01f * World.SCALE;
+    private static final int MAX_STEPS = 32;
+
+
+    /** Checks the intervals of a chunk, in its own collision world
+     */
+    private class Chunk implements Runnable {
+        int firstInterval;
+        int lastInterval;
+        int hitInterval;
+        int hitSegment;
+        Object hitObject;
+
+        private final CollisionWorld world;
+        private final ObjectArrayList<CollisionObject> copies = new ObjectArrayList<>();
+        private int nbCopies = 0;
+
+        private final CollisionWorld.ClosestConvexResultCallback callback;
+        private final Transform from = new Transform();
+        private final Transform to = new Transform();
+        private final javax.vecmath.Vector3f fromOrigin = new javax.vecmath.Vector3f();
+        private final javax.vecmath.Vector3f toOrigin = new javax.vecmath.Vector3f();
+        private final Quat4f fromRotation = new Quat4f();
+        private final Quat4f toRotation = new Quat4f();
+        private final Quat4f rotation = new Quat4f();
+        private final Transform transform = new Transform();
+
+
+        Chunk() {
+            DefaultCollisionConfiguration configuration = new DefaultCollisionConfiguration();
+            CollisionDispatcher dispatcher = new CollisionDispatcher(configuration);
+            GImpactCollisionAlgorithm.registerAlgorithm(dispatcher);
+
+            world = new CollisionWorld(dispatcher, new DbvtBroadphase(), configuration);
+
+            callback = new CollisionWorld.ClosestConvexResultCallback(fromOrigin, toOrigin);
+        }
+
+
+        /** 'obstacles' is a snapshot of the objects of the physics world, not modified anymore
+         *
+         * The collision world and the copies of the objects are reused from one validation to
+         * the next.
+         */
+        void setObstacles(ObjectArrayList<CollisionObject> obstacles) {
+            for (int i = 0; i < nbCopies; ++i)
+                world.removeCollisionObject(copies.getQuick(i));
+
+            nbCopies = obstacles.size();
+
+            for (int i = 0; i < nbCopies; ++i) {
+                CollisionObject source = obstacles.getQuick(i);
+
+                if (i == copies.size())
+                    copies.add(new CollisionObject());
+
+                CollisionObject copy = copies.getQuick(i);
+                copy.setCollisionShape(source.getCollisionShape());
+                copy.setWorldTransform(source.getWorldTransform(transform));
+                copy.setUserPointer(source.getUserPointer());
+
+                world.addCollisionObject(copy);
+            }
+
+            // Don't keep the objects of the previous validations alive
+            for (int i = nbCopies; i < copies.size(); ++i) {
+                CollisionObject copy = copies.getQuick(i);
+                copy.setCollisionShape(null);
+                copy.setUserPointer(null);
+            }
+
+            world.updateAabbs();
+        }
+
+
+        @Override
+        public void run() {
+            hitInterval = -1;
+
+            float[] poses = sweep.poses;
+
+            for (int k = firstInterval; k < lastInterval; ++k) {
+                // An earlier collision was already found
+                if (k >= firstHit.get())
+                    return;
+
+                for (int s = 0; s < nbSegments; ++s) {
+                    if (proxies[s] == null)
+                        continue;
+
+                    int offsetFrom = (k * nbSegments + s) * 7;
+                    int offsetTo = offsetFrom + nbSegments * 7;
+
+                    // The link doesn't move during this interval
+                    if (samePose(poses, offsetFrom, offsetTo))
+                        continue;
+
+                    // The sweep only interpolates the position (the orientation stays the one
+                    // of 'from'): split the interval, so the rotation during each step moves the
+                    // points of the shape by less than ROTATION_MARGIN
+                    fromRotation.set(poses[offsetFrom + 3], poses[offsetFrom + 4],
+                                     poses[offsetFrom + 5], poses[offsetFrom + 6]);
+                    toRotation.set(poses[offsetTo + 3], poses[offsetTo + 4],
+                                   poses[offsetTo + 5], poses[offsetTo + 6]);
+
+                    float dot = Math.abs(fromRotation.x * toRotation.x + fromRotation.y * toRotation.y +
+                                         fromRotation.z * toRotation.z + fromRotation.w * toRotation.w);
+                    float angle = 2.0f * (float) Math.acos(Math.min(dot, 1.0f));
+
+                    int nbSteps = (int) Math.ceil(angle * proxyRadii[s] / ROTATION_MARGIN);
+                    nbSteps = Math.max(1, Math.min(nbSteps, MAX_STEPS));
+
+                    for (int step = 0; step < nbSteps; ++step) {
+                        interpolate(poses, offsetFrom, offsetTo, (float) step / nbSteps, from,
+                                    fromOrigin);
+                        interpolate(poses, offsetFrom, offsetTo, (float) (step + 1) / nbSteps, to,
+                                    toOrigin);
+
+                        callback.closestHitFraction = 1.0f;
+                        callback.hitCollisionObject = null;
+                        callback.convexFromWorld.set(fromOrigin);
+                        callback.convexToWorld.set(toOrigin);
+
+                        world.convexSweepTest(proxies[s], from, to, callback);
+
+                        if (callback.hasHit()) {
+                            hitInterval = k;
+                            hitSegment = s;
+                            hitObject = callback.hitCollisionObject.getUserPointer();
+
+                            int current;
+                            while ((current = firstHit.get()) > k)
+                                firstHit.compareAndSet(current, k);
+
+                            return;
+                        }
+                    }
+                }
+            }
+        }
+
+
+        /** Compute the pose at the fraction 't' of the way between two poses (fromRotation and
+         * toRotation must be set)
+         */
+        private void interpolate(float[] poses, int offsetFrom, int offsetTo, float t,
+                                 Transform out, javax.vecmath.Vector3f origin) {
+            origin.set(
+                    poses[offsetFrom] + t * (poses[offsetTo] - poses[offsetFrom]),
+                    poses[offsetFrom + 1] + t * (poses[offsetTo + 1] - poses[offsetFrom + 1]),
+                    poses[offsetFrom + 2] + t * (poses[offsetTo + 2] - poses[offsetFrom + 2])
+            );
+
+            rotation.interpolate(fromRotation, toRotation, t);
+
+            out.setIdentity();
+            out.origin.set(origin);
+            out.setRotation(rotation);
+        }
+    }
+
+
+    private final Robot robot;
+    private final int nbSegments;
+    private final ConvexShape[] proxies;
+    private final Vector3f[] proxyCenters;
+    private final float[] proxyRadii;       // farthest distance of the points from the origin
+    private final int[] chainToTree;
+    private final FloatBuffer treePositions;
+    private final FloatBuffer treePoses;
+
+    private final Chunk[] chunks;
+    private final Future<?>[] futures;
+    private ExecutorService executor = null;
+    private Predicate<PhysicBody> ignoredBodies = null;
+
+    // The sweep being checked
+    private Sweep sweep = null;
+    private final AtomicInteger firstHit = new AtomicInteger();
+
+
+    /** The kinematic chain of the robot must have been set
+     */
+    public TrajectoryValidator(Robot robot, int nbThreads) {
+        this.robot = robot;
+
+        robot.resolveSegments();
+
+        nbSegments = robot.getSegmentCount();
+        proxies = new ConvexShape[nbSegments];
+        proxyCenters = new Vector3f[nbSegments];
+        proxyRadii = new float[nbSegments];
+
+        Transform identity = new Transform();
+        identity.setIdentity();
+        javax.vecmath.Vector3f min = new javax.vecmath.Vector3f();
+        javax.vecmath.Vector3f max = new javax.vecmath.Vector3f();
+
+        for (int s = 0; s < nbSegments; ++s) {
+            CollisionShape shape = robot.getSegmentCollisionShape(s);
+            if ((shape == null) || (robot.getSegmentCollisionTransforms(s) == null))
+                continue;
+
+            shape.getAabb(identity, min, max);
+
+            if (shape instanceof ConvexShape) {
+                proxies[s] = (ConvexShape) shape;
+                proxyCenters[s] = new Vector3f();
+                proxyRadii[s] = new Vector3f(
+                        Math.max(Math.abs(min.x), Math.abs(max.x)),
+                        Math.max(Math.abs(min.y), Math.abs(max.y)),
+                        Math.max(Math.abs(min.z), Math.abs(max.z))
+                ).length();
+            } else {
+                proxies[s] = new BoxShape(new javax.vecmath.Vector3f(
+                        (max.x - min.x) / 2.0f, (max.y - min.y) / 2.0f, (max.z - min.z) / 2.0f
+                ));
+                proxyCenters[s] = new Vector3f(
+                        (max.x + min.x) / 2.0f, (max.y + min.y) / 2.0f, (max.z + min.z) / 2.0f
+                );
+                proxyRadii[s] = new Vector3f(
+                        max.x - min.x, max.y - min.y, max.z - min.z
+                ).length() / 2.0f;
+            }
+        }
+
+        chainToTree = robot.getChainToTreeJointIds();
+        treePositions = KDL.allocateBuffer(robot.getTreeJointCount());
+        treePoses = KDL.allocateBuffer(nbSegments * 7);
+
+        chunks = new Chunk[Math.max(nbThreads, 1)];
+        for (int i = 0; i < chunks.length; ++i)
+            chunks[i] = new Chunk();
+
+        futures = new Future<?>[chunks.length];
+
+        if (chunks.length > 1) {
+            executor = Executors.newFixedThreadPool(chunks.length - 1, runnable -> {
+                Thread thread = new Thread(runnable, "TrajectoryValidator");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+
+
+    /** Set which bodies of the world aren't obstacles (for instance the markers of the goals,
+     * reached by the end-effector on purpose), in addition to the links of the robot
+     */
+    public void setIgnoredBodies(Predicate<PhysicBody> ignoredBodies) {
+        this.ignoredBodies = ignoredBodies;
+    }
+
+
+    /** Check a trajectory, sampled every DEFAULT_TIME_STEP seconds (see validate(Sweep))
+     *
+     * Must be called from the rendering thread.
+     */
+    public Collision validate(Trajectory trajectory) {
+        return validate(prepare(trajectory, DEFAULT_TIME_STEP));
+    }
+
+
+    public Sweep prepare(Trajectory trajectory) {
+        return prepare(trajectory, DEFAULT_TIME_STEP);
+    }
+
+
+    /** Compute the poses of the links along a trajectory, sampled every 'timeStep' seconds,
+     * and take a snapshot of the obstacles
+     *
+     * Must be called from the rendering thread (the current pose of the robot is used).
+     */
+    public Sweep prepare(Trajectory trajectory, double timeStep) {
+        double duration = trajectory.getDuration();
+        int nbSamples = Math.max((int) Math.ceil(duration / timeStep) + 1, 2);
+
+        float[] poses = computePoses(trajectory, nbSamples, duration / (nbSamples - 1));
+
+        // Snapshot of the other objects of the world (the simulation may be running)
+        ObjectArrayList<CollisionObject> obstacles = new ObjectArrayList<>();
+        ObjectArrayList<CollisionObject> objects = robot.getWorld().copyCollisionObjects();
+
+        for (int i = 0; i < objects.size(); ++i) {
+            CollisionObject object = objects.getQuick(i);
+            Object owner = object.getUserPointer();
+
+            if (owner instanceof PhysicBody) {
+                PhysicBody body = (PhysicBody) owner;
+
+                if ((body.getEntity() == robot) || ((ignoredBodies != null) && ignoredBodies.test(body)))
+                    continue;
+            }
+
+            obstacles.add(object);
+        }
+
+        return new Sweep(trajectory, nbSamples, poses, obstacles);
+    }
+
+
+    /** Check a sweep prepared by prepare(), from any thread (but one sweep at a time)
+     *
+     * Returns the first collision, or null if there is none.
+     */
+    public synchronized Collision validate(Sweep sweep) {
+        this.sweep = sweep;
+
+        int nbSamples = sweep.nbSamples;
+        double duration = sweep.trajectory.getDuration();
+        ObjectArrayList<CollisionObject> obstacles = sweep.obstacles;
+
+        // Split the intervals between the chunks
+        int nbIntervals = nbSamples - 1;
+        int nbChunks = Math.min(chunks.length, nbIntervals);
+        int chunkSize = (nbIntervals + nbChunks - 1) / nbChunks;
+
+        firstHit.set(Integer.MAX_VALUE);
+
+        for (int i = 0; i < nbChunks; ++i) {
+            Chunk chunk = chunks[i];
+            chunk.firstInterval = Math.min(i * chunkSize, nbIntervals);
+            chunk.lastInterval = Math.min(chunk.firstInterval + chunkSize, nbIntervals);
+            chunk.setObstacles(obstacles);
+
+            if (i > 0)
+                futures[i] = executor.submit(chunk);
+        }
+
+        // The calling thread checks the first chunk itself
+        chunks[0].run();
+
+        try {
+            for (int i = 1; i < nbChunks; ++i)
+                futures[i].get();
+        } catch (InterruptedException e) {
+            // Stop the other chunks
+            firstHit.set(-1);
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        }
+
+        // Chunks are in chronological order: the first hit is the earliest one
+        for (int i = 0; i < nbChunks; ++i) {
+            Chunk chunk = chunks[i];
+            if (chunk.hitInterval >= 0) {
+                Object obstacle = chunk.hitObject;
+                return new Collision(
+                        chunk.hitInterval * duration / (nbSamples - 1),
+                        robot.getSegmentLinkName(chunk.hitSegment),
+                        (obstacle instanceof PhysicBody ? (PhysicBody) obstacle : null)
+                );
+            }
+        }
+
+        return null;
+    }
+
+
+    public void release() {
+        if (executor != null) {
+            executor.shutdownNow();
+
+            try {
+                executor.awaitTermination(1, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+
+            executor = null;
+        }
+    }
+
+
+    /** Compute the pose (in the physics world, 7 floats) of the swept shape of each segment at
+     * each sample
+     */
+    private float[] computePoses(Trajectory trajectory, int nbSamples, double step) {
+        float[] poses = new float[nbSamples * nbSegments * 7];
+
+        int nbJoints = trajectory.getJointCount();
+        float[] positions = new float[nbJoints];
+
+        Transforms robotTransforms = robot.transforms;
+        Vector3fc robotPosition = robotTransforms.getWorldPosition();
+        Quaternionf robotOrientation = new Quaternionf(robotTransforms.getWorldOrientation());
+        Vector3fc robotScale = robotTransforms.getWorldScale();
+
+        Vector3f position = new Vector3f();
+        Quaternionf orientation = new Quaternionf();
+        Vector3f offset = new Vector3f();
+
+        // The joints outside of the kinematic chain keep their current positions
+        robot.fillTreePositions(treePositions);
+
+        for (int n = 0; n < nbSamples; ++n) {
+            trajectory.sample(n * step, positions, null);
+
+            for (int j = 0; j < nbJoints; ++j) {
+                if (chainToTree[j] >= 0)
+                    treePositions.put(chainToTree[j], positions[j]);
+            }
+
+            KDL.treeForwardKinematics(robot.getKdlRobot(), treePositions, treePoses, false);
+
+            for (int s = 0; s < nbSegments; ++s) {
+                if (proxies[s] == null)
+                    continue;
+
+                int src = s * 7;
+
+                //convert from ROS to OpenGL coordinates, then to the world
+                position.set(treePoses.get(src), treePoses.get(src + 2), -treePoses.get(src + 1));
+                orientation.set(treePoses.get(src + 3), treePoses.get(src + 5),
+                                -treePoses.get(src + 4), treePoses.get(src + 6));
+
+                robotOrientation.transform(position.mul(robotScale)).add(robotPosition);
+                robotOrientation.mul(orientation, orientation);
+
+                // Collision shape of the link
+                Transforms collision = robot.getSegmentCollisionTransforms(s);
+                orientation.transform(offset.set(collision.getPosition()).mul(robotScale));
+                position.add(offset).mul(World.SCALE);
+                orientation.mul(collision.getOrientation());
+
+                // Center of the bounding box
+                orientation.transform(offset.set(proxyCenters[s]));
+                position.add(offset);
+
+                int dst = (n * nbSegments + s) * 7;
+                poses[dst] = position.x;
+                poses[dst + 1] = position.y;
+                poses[dst + 2] = position.z;
+                poses[dst + 3] = orientation.x;
+                poses[dst + 4] = orientation.y;
+                poses[dst + 5] = orientation.z;
+                poses[dst + 6] = orientation.w;
+            }
+        }
+
+        return poses;
+    }
+
+
+    private static boolean samePose(float[] poses, int offset1, int offset2) {
+        for (int i = 0; i < 7; ++i) {
+            if (poses[offset1 + i] != poses[offset2 + i])
+                return false;
+        }
+
+        return true;
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2020 Idiap Research Institute
+ *
+ * Authors:
+ *   philip.abbet@idiap.ch (Philip Abbet)
+ */
+
+package ch.idiap.android.urdf.robot;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+
+public class TrajectoryPlannerTest {
+
+    private static final float[] VELOCITY_LIMITS = { 1.0f, 1.0f };
+    private static final float[] ACCELERATION_LIMITS = { 5.0f, 5.0f };
+
+
+    private static TrajectoryPlanner.ViaPoint createViaPoint(TrajectoryPlanner planner,
+                                                             float... solution) {
+        TrajectoryPlanner.ViaPoint viaPoint = planner.newViaPoint();
+        viaPoint.solution = solution;
+        viaPoint.reached = true;
+        return viaPoint;
+    }
+
+
+    private static float[] finalVelocities(Trajectory trajectory) {
+        float[] velocities = new float[trajectory.getJointCount()];
+        trajectory.sample(trajectory.getDuration(), null, velocities);
+        return velocities;
+    }
+
+
+    @Test
+    public void testEndsAtRest() {
+        TrajectoryPlanner planner = new TrajectoryPlanner(VELOCITY_LIMITS, ACCELERATION_LIMITS);
+
+        List<TrajectoryPlanner.ViaPoint> sequence = new ArrayList<>();
+        sequence.add(createViaPoint(planner, 0.0f, 0.0f));
+        sequence.add(createViaPoint(planner, 0.5f, -0.5f));
+        sequence.add(createViaPoint(planner, 1.0f, -1.0f));
+
+        Trajectory trajectory = planner.updateSegments(sequence, ACCELERATION_LIMITS);
+
+        assertEquals(3, trajectory.getWaypointCount());
+        assertArrayEquals(new float[] { 0.0f, 0.0f }, finalVelocities(trajectory));
+
+        float[] velocities = new float[2];
+        trajectory.sample(trajectory.getWaypointTime(1), null, velocities);
+        assertNotEquals(0.0f, velocities[0], 1e-3f);
+        assertNotEquals(0.0f, velocities[1], 1e-3f);
+    }
+
+
+    @Test
+    public void testRemoveLastViaPoint() {
+        TrajectoryPlanner planner = new TrajectoryPlanner(VELOCITY_LIMITS, ACCELERATION_LIMITS);
+
+        List<TrajectoryPlanner.ViaPoint> sequence = new ArrayList<>();
+        sequence.add(createViaPoint(planner, 0.0f, 0.0f));
+        sequence.add(createViaPoint(planner, 0.5f, -0.5f));
+        sequence.add(createViaPoint(planner, 1.0f, -1.0f));
+
+        planner.updateSegments(sequence, ACCELERATION_LIMITS);
+
+        // The via-point in the middle moves through it with a non-zero velocity, and becomes
+        // the last one (its solution doesn't change)
+        sequence.remove(2);
+
+        Trajectory trajectory = planner.updateSegments(sequence, ACCELERATION_LIMITS);
+
+        assertEquals(2, trajectory.getWaypointCount());
+        assertArrayEquals(new float[] { 0.0f, 0.0f }, finalVelocities(trajectory));
+
+        float[] positions = new float[2];
+        trajectory.sample(trajectory.getDuration(), positions, null);
+        assertArrayEquals(new float[] { 0.5f, -0.5f }, positions);
+    }
+
+
+    @Test
+    public void testRemoveFirstViaPoint() {
+        TrajectoryPlanner planner = new TrajectoryPlanner(VELOCITY_LIMITS, ACCELERATION_LIMITS);
+
+        List<TrajectoryPlanner.ViaPoint> sequence = new ArrayList<>();
+        sequence.add(createViaPoint(planner, 0.0f, 0.0f));
+        sequence.add(createViaPoint(planner, 0.5f, -0.5f));
+        sequence.add(createViaPoint(planner, 1.0f, -1.0f));
+        sequence.add(createViaPoint(planner, 1.5f, -1.5f));
+
+        planner.updateSegments(sequence, ACCELERATION_LIMITS);
+
+        // The neighbours of the second via-point change, not its solution
+        sequence.remove(1);
+
+        Trajectory trajectory = planner.updateSegments(sequence, ACCELERATION_LIMITS);
+
+        float[] velocities = new float[2];
+        trajectory.sample(trajectory.getWaypointTime(1), null, velocities);
+
+        // Average of the slopes of the segments around it
+        double slope1 = 1.0 / trajectory.getWaypointTime(1);
+        double slope2 = 0.5 / (trajectory.getDuration() - trajectory.getWaypointTime(1));
+        assertEquals(0.5 * (slope1 + slope2), velocities[0], 1e-4);
+        assertArrayEquals(new float[] { 0.0f, 0.0f }, finalVelocities(trajectory));
+    }
+
+
+    private static void assertArrayEquals(float[] expected, float[] actual) {
+        org.junit.Assert.assertArrayEquals(expected, actual, 1e-4f);
+    }
+}